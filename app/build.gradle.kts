@@ -9,6 +9,8 @@
 plugins {
     // Apply the application plugin to add support for building a CLI application in Java.
     application
+    // Adds the jmh source set and the jmh task running its microbenchmarks
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 repositories {
@@ -18,7 +20,7 @@ repositories {
 
 dependencies {
     implementation(libs.guava)
-    implementation("org.jfree:jfreechart:1.5.3")
+    testImplementation("org.jfree:jfreechart:1.5.3")
 }
 
 // Apply a specific Java toolchain to ease working on different environments.
@@ -32,6 +34,42 @@ application {
     mainClass = "com.group15.kvserver.Client"
 }
 
+jmh {
+    jmhVersion = "1.37"
+    // Runs a subset of the benchmarks with -PjmhIncludes=<regex>
+    if (project.hasProperty("jmhIncludes")) {
+        includes = listOf(project.property("jmhIncludes") as String)
+    }
+    if (project.hasProperty("jmhThreads")) {
+        threads = (project.property("jmhThreads") as String).toInt()
+    }
+    // Reports the allocation rate and bytes allocated per operation next to the scores,
+    // other JMH profilers can be given with -PjmhProfilers=<profiler>;<profiler>...
+    profilers = (project.findProperty("jmhProfilers") as String? ?: "gc").split(";")
+    resultFormat = "JSON"
+    resultsFile = layout.buildDirectory.file("results/jmh/results.json")
+}
+
+// Registers a task running a main class of the project, with the arguments given as -Pargs=<arg>,<arg>...
+fun registerMain(name: String, className: String, text: String, runtime: FileCollection, taskGroup: String = "application") =
+    tasks.register<JavaExec>(name) {
+        group = taskGroup
+        description = text
+
+        mainClass.set("com.group15.kvserver.$className")
+        classpath = runtime
+
+        doFirst {
+            if (project.hasProperty("args")) {
+                args = (project.property("args") as String).split(",")
+            }
+        }
+    }
+
+registerMain("jmhThreadScaling", "ThreadScaling",
+    "Runs microbenchmarks at several thread counts and compares their throughput",
+    files(tasks.named("jmhJar")), "jmh")
+
 tasks.register<JavaExec>("client") {
     group = "application"
     description = "Runs client"
@@ -42,6 +80,10 @@ tasks.register<JavaExec>("client") {
     standardInput = System.`in`
 }
 
+registerMain("flightAnalyzer", "FlightAnalyzer",
+    "Summarizes a flight recording of a server into per-shard hotspots",
+    sourceSets["main"].runtimeClasspath)
+
 tasks.register<JavaExec>("server") {
     group = "application"
     description = "Runs server"
@@ -59,16 +101,26 @@ tasks.register<JavaExec>("server") {
     }
 }
 
-tasks.register<JavaExec>("tests") {
-    group = "application"
-    description = "Run tests"
-
-    mainClass.set("com.group15.kvservertests.Runner")
-
-    classpath = files(
-        sourceSets["main"].runtimeClasspath,
-        sourceSets["test"].runtimeClasspath
-    )
+// The benchmarks and checks kept with the tests, each run by the task named after its class
+mapOf(
+    "LoadGenerator" to "Runs a mix of operations against a server and reports throughput and latency percentiles",
+    "ShardTableBenchmark" to "Compares the shard table with a HashMap",
+    "ShardTableTest" to "Checks the shard table against a HashMap through churn, wrapped probe runs and resizes",
+    "InFlightTableTest" to "Checks the table of requests in flight against a HashMap through churn, wrapped probe runs, resizes and tag reuse",
+    "ReplicationFailoverTest" to "Kills a replicated primary under load and promotes a follower",
+    "TailLatencyBenchmark" to "Compares the tail latency of reads with and without hedging on pausing nodes",
+    "RaftPartitionTest" to "Kills and partitions the nodes of a consensus group under load and checks the writes",
+    "AtomicMultiPutTest" to "Checks that multiPuts spanning several cluster nodes are atomic and measures them",
+    "ShardAdvisorTest" to "Checks that a server reshards itself when its keys are skewed without losing writes",
+    "WatchTest" to "Checks the delivery, coalescing and overflow of the change events of watches",
+    "AtomicOpsTest" to "Checks compare-and-sets, increments and appends, alone and under contention",
+    "AsyncApiTest" to "Checks how the futures of the asynchronous client API complete and fail",
+    "NearCacheTest" to "Checks that the near-cache serves repeated gets and drops the keys written since",
+).forEach { (className, text) ->
+    registerMain(className.replaceFirstChar { it.lowercase() }, className, text,
+        files(sourceSets["main"].runtimeClasspath, sourceSets["test"].runtimeClasspath))
+}
 
-    standardInput = System.`in`
-}
\ No newline at end of file
+tasks.named<JavaExec>("shardTableBenchmark") {
+    jvmArgs = listOf("-Xmx2g")
+}
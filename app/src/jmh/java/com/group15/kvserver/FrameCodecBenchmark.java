@@ -0,0 +1,97 @@
+package com.group15.kvserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the framing of TaggedConnection over in-memory streams: sending a frame, its
+ * header written and its payload copied through the output buffer and flushed, and
+ * receiving one, its header parsed and its payload copied into a new array. Frames may
+ * carry a trace context.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameCodecBenchmark {
+    @Param({"16", "1024", "65536"})
+    int payloadSize;
+
+    @Param({"false", "true"})
+    boolean traced;
+
+    private byte[] payload;
+    private TraceContext trace;
+    private TaggedConnection sender;
+    private TaggedConnection receiver;
+    private int tag;
+
+    /**
+     * Reads the same bytes over and over, like a connection receiving the same frame.
+     */
+    private static class RepeatingInputStream extends InputStream {
+        private final byte[] bytes;
+        private int position = 0;
+
+        RepeatingInputStream(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public int read() {
+            int b = bytes[position] & 0xff;
+            position = (position + 1) % bytes.length;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int count = Math.min(len, bytes.length - position);
+            System.arraycopy(bytes, position, b, off, count);
+            position = (position + count) % bytes.length;
+            return count;
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        payload = new byte[payloadSize];
+        new SplittableRandom(42).nextBytes(payload);
+        trace = traced ? TraceContext.newTrace() : null;
+        sender = new TaggedConnection(InputStream.nullInputStream(), OutputStream.nullOutputStream());
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream();
+        try (TaggedConnection encoder = new TaggedConnection(InputStream.nullInputStream(), frame)) {
+            encoder.send(1, RequestType.PutRequest.getValue(), payload, 0, payload.length, trace);
+        }
+        receiver = new TaggedConnection(new RepeatingInputStream(frame.toByteArray()), OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public void send() throws IOException {
+        sender.send(tag++, RequestType.PutRequest.getValue(), payload, 0, payload.length, trace);
+    }
+
+    @Benchmark
+    public TaggedConnection.Frame receive() throws IOException {
+        return receiver.receive();
+    }
+}
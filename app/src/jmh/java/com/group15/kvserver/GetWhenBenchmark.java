@@ -0,0 +1,107 @@
+package com.group15.kvserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what getWhen waiters cost the writes of the key they wait on: every put of the
+ * key signals all of them, and each wakes up, takes the write lock of the shard to check
+ * the key and waits again, competing with the next put for the lock.
+ *
+ * The waiters are real getWhen requests, sent to a ServerWorker without a socket, waiting
+ * for a value the key never gets until the trial ends. A put of another key of the same
+ * shard, which signals nobody, is the baseline.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetWhenBenchmark {
+    private static final String TARGET_KEY = "target";
+    private static final byte[] PENDING = "pending".getBytes();
+    private static final byte[] RELEASED = "released".getBytes();
+
+    @Param({"0", "1", "16", "256"})
+    int waiters;
+
+    @Param({"8"})
+    int shards;
+
+    private ServerDatabase database;
+    private ServerWorker worker;
+    private String conditionKey;
+    private String otherKey;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        database = new ServerDatabase(shards, 1);
+        worker = new ServerWorker(new TaggedConnection(InputStream.nullInputStream(), OutputStream.nullOutputStream()),
+                database);
+        conditionKey = "condition";
+        int shard = database.getDatabaseShardIndex(conditionKey);
+        for (int i = 0; otherKey == null; i++) {
+            if (database.getDatabaseShardIndex("other" + i) == shard) {
+                otherKey = "other" + i;
+            }
+        }
+        worker.put(TARGET_KEY, RELEASED);
+        worker.put(conditionKey, PENDING);
+        worker.put(otherKey, PENDING);
+
+        // KEY | KEY CONDITION | VALUE CONDITION LENGTH | VALUE CONDITION
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(request);
+        out.writeUTF(TARGET_KEY);
+        out.writeUTF(conditionKey);
+        out.writeInt(RELEASED.length);
+        out.write(RELEASED);
+        byte[] data = request.toByteArray();
+        for (int tag = 0; tag < waiters; tag++) {
+            worker.handleRequest(RequestType.GetWhenRequest, new DataInputStream(new ByteArrayInputStream(data)), tag);
+        }
+        ShardLock lock = database.databaseLocks.get(shard);
+        while (lock.sample()[ShardLock.WAITERS] < waiters) {
+            Thread.sleep(1);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        worker.put(conditionKey, RELEASED);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (database.pendingGetWhens.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+    }
+
+    @Benchmark
+    public void putWatchedKey() {
+        worker.put(conditionKey, PENDING);
+    }
+
+    @Benchmark
+    public void putOtherKey() {
+        worker.put(otherKey, PENDING);
+    }
+}
@@ -0,0 +1,105 @@
+package com.group15.kvserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how keys are written and read in requests, with writeUTF and readUTF as the
+ * client and server do, against a length followed by the standard UTF-8 bytes of the key,
+ * for ASCII keys and for keys of two-byte characters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class KeyCodecBenchmark {
+    @Param({"8", "32", "128"})
+    int keyLength;
+
+    @Param({"true", "false"})
+    boolean ascii;
+
+    private String key;
+    private ByteArrayOutputStream written;
+    private DataOutputStream out;
+    private ByteArrayInputStream utf;
+    private DataInputStream utfIn;
+    private ByteArrayInputStream utf8;
+    private DataInputStream utf8In;
+    private byte[] buffer;
+
+    @Setup
+    public void setup() throws IOException {
+        SplittableRandom random = new SplittableRandom(42);
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < keyLength; i++) {
+            builder.append((char) (ascii ? 'a' + random.nextInt(26) : '\u00e0' + random.nextInt(26)));
+        }
+        key = builder.toString();
+        written = new ByteArrayOutputStream();
+        out = new DataOutputStream(written);
+
+        out.writeUTF(key);
+        utf = new ByteArrayInputStream(written.toByteArray());
+        utfIn = new DataInputStream(utf);
+        written.reset();
+        writeUtf8(key, out);
+        utf8 = new ByteArrayInputStream(written.toByteArray());
+        utf8In = new DataInputStream(utf8);
+        buffer = new byte[4 * keyLength];
+    }
+
+    private static void writeUtf8(String key, DataOutputStream out) throws IOException {
+        byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    @Benchmark
+    public int writeUTF() throws IOException {
+        written.reset();
+        out.writeUTF(key);
+        return written.size();
+    }
+
+    @Benchmark
+    public String readUTF() throws IOException {
+        utf.reset();
+        return utfIn.readUTF();
+    }
+
+    @Benchmark
+    public int writeUtf8Bytes() throws IOException {
+        written.reset();
+        writeUtf8(key, out);
+        return written.size();
+    }
+
+    @Benchmark
+    public String readUtf8Bytes() throws IOException {
+        utf8.reset();
+        int length = utf8In.readUnsignedShort();
+        utf8In.readFully(buffer, 0, length);
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,123 @@
+package com.group15.kvserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the payloads of put, get, multiPut and multiGet requests on both ends: their
+ * building by ClientLibrary, and their handling by ServerWorker.handleRequest, which
+ * decodes them, runs them on the database and encodes the response, as a worker does for
+ * every frame once the request type is read.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PayloadBenchmark {
+    @Param({"1", "10", "100"})
+    int keys;
+
+    @Param({"16", "1024"})
+    int valueSize;
+
+    private String key;
+    private byte[] value;
+    private Set<String> keySet;
+    private Map<String, byte[]> pairs;
+    private byte[] put;
+    private byte[] get;
+    private byte[] multiPut;
+    private byte[] multiGet;
+    private ServerWorker worker;
+
+    @Setup
+    public void setup() throws IOException {
+        value = new byte[valueSize];
+        new SplittableRandom(42).nextBytes(value);
+        key = "key0";
+        keySet = new HashSet<>();
+        pairs = new HashMap<>();
+        for (int i = 0; i < keys; i++) {
+            keySet.add("key" + i);
+            pairs.put("key" + i, value);
+        }
+        put = ClientLibrary.encodePut(key, value);
+        get = ClientLibrary.encodeGet(key);
+        multiPut = ClientLibrary.encodeMultiPut(pairs);
+        multiGet = ClientLibrary.encodeMultiGet(keySet);
+
+        ServerDatabase database = new ServerDatabase(8, 1);
+        database.multiPut(pairs);
+        worker = new ServerWorker(new TaggedConnection(InputStream.nullInputStream(), OutputStream.nullOutputStream()),
+                database);
+    }
+
+    private byte[] handle(byte[] request) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(request));
+        RequestType requestType = RequestType.values()[in.readShort()];
+        return worker.handleRequest(requestType, in, 0);
+    }
+
+    @Benchmark
+    public byte[] encodePut() throws IOException {
+        return ClientLibrary.encodePut(key, value);
+    }
+
+    @Benchmark
+    public byte[] encodeGet() throws IOException {
+        return ClientLibrary.encodeGet(key);
+    }
+
+    @Benchmark
+    public byte[] encodeMultiPut() throws IOException {
+        return ClientLibrary.encodeMultiPut(pairs);
+    }
+
+    @Benchmark
+    public byte[] encodeMultiGet() throws IOException {
+        return ClientLibrary.encodeMultiGet(keySet);
+    }
+
+    @Benchmark
+    public byte[] handlePut() throws IOException {
+        return handle(put);
+    }
+
+    @Benchmark
+    public byte[] handleGet() throws IOException {
+        return handle(get);
+    }
+
+    @Benchmark
+    public byte[] handleMultiPut() throws IOException {
+        return handle(multiPut);
+    }
+
+    @Benchmark
+    public byte[] handleMultiGet() throws IOException {
+        return handle(multiGet);
+    }
+}
@@ -0,0 +1,72 @@
+package com.group15.kvserver;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the time ServerDatabase takes to map a key to its shard, for keys whose hash
+ * code is cached, as when a key is used again, and for keys decoded anew, as the server
+ * does for every request, whose hash code is computed on the spot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ShardIndexBenchmark {
+    /* Number of keys cycled through, a power of two */
+    private static final int KEYS = 4096;
+
+    @Param({"1", "8", "64", "61"})
+    int shards;
+
+    @Param({"8", "32"})
+    int keyLength;
+
+    private ServerDatabase database;
+    private String[] keys;
+    private char[][] characters;
+    private int next;
+
+    @Setup
+    public void setup() {
+        database = new ServerDatabase(shards, 1);
+        keys = new String[KEYS];
+        characters = new char[KEYS][];
+        SplittableRandom random = new SplittableRandom(42);
+        for (int i = 0; i < KEYS; i++) {
+            char[] key = new char[keyLength];
+            for (int j = 0; j < keyLength; j++) {
+                key[j] = (char) ('a' + random.nextInt(26));
+            }
+            characters[i] = key;
+            keys[i] = new String(key);
+            keys[i].hashCode();
+        }
+    }
+
+    @Benchmark
+    public int cachedHash() {
+        next = (next + 1) & (KEYS - 1);
+        return database.getDatabaseShardIndex(keys[next]);
+    }
+
+    @Benchmark
+    public int decodedKey() {
+        next = (next + 1) & (KEYS - 1);
+        return database.getDatabaseShardIndex(new String(characters[next]));
+    }
+}
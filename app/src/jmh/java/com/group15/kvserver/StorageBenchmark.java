@@ -0,0 +1,138 @@
+package com.group15.kvserver;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the put, get, multiPut and multiGet logic of the server, with its shard locks,
+ * without sockets: each benchmark thread drives a ServerWorker of its own, as each client
+ * connection does, over a database shared by all of them.
+ *
+ * The keys are picked uniformly out of the loaded ones. Their hash codes are cached, so the
+ * decoding of requests is left out. Run with -t, or through ThreadScaling, to compare thread
+ * counts.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageBenchmark {
+    /* Number of operations each thread draws its keys for in advance, a power of two */
+    private static final int PICKS = 1024;
+
+    /**
+     * The database, shared by the threads.
+     */
+    @State(Scope.Benchmark)
+    public static class Database {
+        @Param({"1", "8", "64"})
+        int shards;
+
+        @Param({"100000"})
+        int keys;
+
+        @Param({"100"})
+        int valueSize;
+
+        @Param({"10"})
+        int batch;
+
+        ServerDatabase database;
+        String[] keyNames;
+        byte[] value;
+
+        @Setup
+        public void setup() {
+            database = new ServerDatabase(shards, 1);
+            keyNames = new String[keys];
+            value = new byte[valueSize];
+            new SplittableRandom(42).nextBytes(value);
+            Map<String, byte[]> pairs = new HashMap<>();
+            for (int i = 0; i < keys; i++) {
+                keyNames[i] = "key" + i;
+                pairs.put(keyNames[i], value);
+                if (pairs.size() == 1000 || i == keys - 1) {
+                    database.multiPut(pairs);
+                    pairs.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * The connection of a thread, with the keys of its next operations.
+     */
+    @State(Scope.Thread)
+    public static class Connection {
+        ServerWorker worker;
+        String[] picks;
+        Set<String>[] keySets;
+        Map<String, byte[]>[] pairSets;
+        int next;
+
+        @Setup
+        @SuppressWarnings("unchecked")
+        public void setup(Database database) {
+            worker = new ServerWorker(new TaggedConnection(InputStream.nullInputStream(), OutputStream.nullOutputStream()),
+                    database.database);
+            SplittableRandom random = new SplittableRandom(Thread.currentThread().getId());
+            picks = new String[PICKS];
+            keySets = new Set[PICKS];
+            pairSets = new Map[PICKS];
+            for (int i = 0; i < PICKS; i++) {
+                picks[i] = database.keyNames[random.nextInt(database.keys)];
+                keySets[i] = new HashSet<>();
+                pairSets[i] = new HashMap<>();
+                while (keySets[i].size() < database.batch) {
+                    String key = database.keyNames[random.nextInt(database.keys)];
+                    keySets[i].add(key);
+                    pairSets[i].put(key, database.value);
+                }
+            }
+        }
+
+        int next() {
+            next = (next + 1) & (PICKS - 1);
+            return next;
+        }
+    }
+
+    @Benchmark
+    public byte[] get(Connection connection) {
+        return connection.worker.get(connection.picks[connection.next()]);
+    }
+
+    @Benchmark
+    public void put(Database database, Connection connection) {
+        connection.worker.put(connection.picks[connection.next()], database.value);
+    }
+
+    @Benchmark
+    public Map<String, byte[]> multiGet(Connection connection) {
+        return connection.worker.multiGet(connection.keySets[connection.next()]);
+    }
+
+    @Benchmark
+    public void multiPut(Database database, Connection connection) {
+        database.database.multiPut(connection.pairSets[connection.next()]);
+    }
+}
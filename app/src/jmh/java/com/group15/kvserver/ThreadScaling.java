@@ -0,0 +1,78 @@
+package com.group15.kvserver;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs benchmarks once per thread count and prints the score of each benchmark and
+ * parameter combination by thread count, with the speedup of the throughput benchmarks
+ * from the first thread count to the last. Throughputs are those of all the threads
+ * together, times are those of an operation.
+ *
+ * Usage: ThreadScaling [benchmark-regex] [thread-counts]
+ *   e.g. ThreadScaling StorageBenchmark.get 1:2:4:8
+ */
+public class ThreadScaling {
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : "StorageBenchmark";
+        List<Integer> threadCounts = new ArrayList<>();
+        for (String count : (args.length > 1 ? args[1] : "1:2:4:8").split(":")) {
+            threadCounts.add(Integer.parseInt(count));
+        }
+
+        // Scores by benchmark and parameters, then by thread count
+        Map<String, Map<Integer, Double>> scores = new LinkedHashMap<>();
+        Map<String, String> units = new LinkedHashMap<>();
+        Set<String> throughputs = new HashSet<>();
+        for (int threads : threadCounts) {
+            Options options = new OptionsBuilder().include(include).threads(threads).build();
+            for (RunResult result : new Runner(options).run()) {
+                BenchmarkParams params = result.getParams();
+                String benchmark = params.getBenchmark();
+                // The class and method, without the package
+                int method = benchmark.lastIndexOf('.');
+                StringBuilder label = new StringBuilder(benchmark.substring(benchmark.lastIndexOf('.', method - 1) + 1));
+                for (String key : params.getParamsKeys()) {
+                    label.append(' ').append(key).append('=').append(params.getParam(key));
+                }
+                scores.computeIfAbsent(label.toString(), k -> new LinkedHashMap<>())
+                        .put(threads, result.getPrimaryResult().getScore());
+                units.put(label.toString(), result.getPrimaryResult().getScoreUnit());
+                if (params.getMode() == Mode.Throughput) {
+                    throughputs.add(label.toString());
+                }
+            }
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%-60s %-10s", "Benchmark", "Unit"));
+        for (int threads : threadCounts) {
+            report.append(String.format(" %12s", threads + " threads"));
+        }
+        report.append(String.format(" %9s%n", "speedup"));
+        for (Map.Entry<String, Map<Integer, Double>> entry : scores.entrySet()) {
+            report.append(String.format("%-60s %-10s", entry.getKey(), units.get(entry.getKey())));
+            for (int threads : threadCounts) {
+                Double score = entry.getValue().get(threads);
+                report.append(score != null ? String.format(" %12.3f", score) : String.format(" %12s", "-"));
+            }
+            Double first = entry.getValue().get(threadCounts.get(0));
+            Double last = entry.getValue().get(threadCounts.get(threadCounts.size() - 1));
+            report.append(throughputs.contains(entry.getKey()) && first != null && last != null && first > 0
+                    ? String.format(" %8.2fx%n", last / first) : String.format(" %9s%n", "-"));
+        }
+        System.out.print(report);
+    }
+}
@@ -5,32 +5,90 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import com.group15.kvserver.utils.Logger;
 
 /**
  * The ClientLibrary class provides methods for communication between the client
  * and the server. It supports authentication, data operations (put, get), and
  * multi-key operations.
+ *
+ * Requests are tagged and never hold a lock while waiting, so any number of them may be
+ * in flight on the connection at once: the asynchronous methods return a future completed
+ * when the response arrives, and the blocking methods wait on that same future.
  */
 public class ClientLibrary {
+    /**
+     * Callback for the change events of a watch subscription.
+     * Callbacks run on the connection's reader thread and should return quickly.
+     */
+    public interface WatchListener {
+        /**
+         * Called when a watched key is written.
+         *
+         * @param key the key that was written
+         * @param value the new value
+         * @param version the commit sequence of the write
+         */
+        void onChange(String key, byte[] value, long version);
+
+        /**
+         * Called when the server dropped events because this subscriber fell behind.
+         * The keys of interest should be read again.
+         */
+        default void onOverflow() {
+        }
+    }
+
+    /* Size of the chunks of a chunked transfer */
+    public static final int CHUNK_SIZE = 1024 * 1024;
+    /* Number of chunks of a chunked transfer in flight at once */
+    public static final int CHUNK_WINDOW = 4;
+    /* Number of frames of a scan in flight at once */
+    public static final int SCAN_WINDOW = 4;
+    /* Values larger than this are uploaded in chunks by put */
+    public static final int CHUNKED_PUT_THRESHOLD = ServerWorker.MAX_INLINE_VALUE_LENGTH;
+
+    /* Threads decoding the responses of asynchronous requests and running their callbacks */
+    private static final ExecutorService callbackExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "client-callback");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Decodes the response of a request.
+     */
+    @FunctionalInterface
+    private interface ResponseDecoder<T> {
+        T decode(byte[] response) throws IOException;
+    }
+
     /* Handles tagged communication with the server */
     private TaggedConnection taggedConnection;
     /* Handles message multiplexing/demultiplexing */
     private Demultiplexer demultiplexer;
-    /* Ensures thread-safe operations */
-    private final ReentrantLock lock = new ReentrantLock();
     /* Unique identifier for each request */
-    private int tag = 0;
+    private final AtomicInteger tag = new AtomicInteger();
+    /* The near-cache serving repeated gets, or null if it is disabled */
+    private volatile NearCache nearCache = null;
+    /* The tag of the tracking subscription of the near-cache */
+    private int nearCacheTag;
 
-    /* Maps tags to conditions for waiting threads */
-    public Map<Integer, Condition> conditionsMap = new HashMap<>();
-    /* Maps tags to server responses */
-    public Map<Integer, byte[]> responsesMap = new HashMap<>();
 
     /**
      * Constructor to initialize the ClientLibrary with the given server host and port.
@@ -42,35 +100,125 @@ public class ClientLibrary {
     public ClientLibrary(String host, int port) throws IOException {
         Socket socket = new Socket(host, port);
         taggedConnection = new TaggedConnection(socket);
-        demultiplexer = new Demultiplexer(taggedConnection);
+        demultiplexer = new Demultiplexer(taggedConnection, true);
+    }
 
-        demultiplexer.setClientLibrary(this);
-        new Thread(demultiplexer::reader).start();
+    /**
+     * Sends a request and returns a future completed with the response by the reader
+     * thread. Any number of requests may be in flight on the connection at once.
+     *
+     * @param requestType the type of the request
+     * @param requestData the request data
+     * @return the future response data
+     */
+    private CompletableFuture<byte[]> sendAsync(short requestType, byte[] requestData) {
+        return sendAsync(nextTag(), requestType, requestData);
     }
 
     /**
-     * Sends a request with a specific tag and waits for a response.
+     * Sends a request with a specific tag and returns a future completed with the response.
      *
+     * @param tagS the tag of the request
      * @param requestType the type of the request
      * @param requestData the request data
-     * @return the response data
-     * @throws IOException if there is an issue sending the request or receiving the response
+     * @return the future response data
      */
-    private byte[] sendWithTag(short requestType, byte[] requestData) throws IOException {
-        lock.lock();
+    private CompletableFuture<byte[]> sendAsync(int tagS, short requestType, byte[] requestData) {
+        Demultiplexer.ResponseFuture future = new Demultiplexer.ResponseFuture();
+        TraceContext trace = Tracing.sample();
         try {
-            TaggedConnection.Frame frame = new TaggedConnection.Frame(this.tag, requestType, requestData);
-            this.tag++;
-            taggedConnection.send(frame.tag, requestType, requestData);
-            
+            demultiplexer.register(tagS, future);
+            if (trace == null) {
+                demultiplexer.send(tagS, requestType, requestData);
+            } else {
+                long start = System.nanoTime();
+                demultiplexer.send(tagS, requestType, requestData, trace);
+                long sent = System.nanoTime();
+                future.whenComplete((response, error) -> recordSpans(trace, tagS, requestType, start, sent, error));
+            }
+        } catch (IOException e) {
+            demultiplexer.unregister(tagS);
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Records the spans of a traced request once its response arrived: the request, then
+     * the wait for the connection, the write of the frame and the wait for the response.
+     *
+     * @param trace the trace context sent with the request
+     * @param tagS the tag of the request
+     * @param requestType the type of the request
+     * @param start when the request was sent, as System.nanoTime
+     * @param sent when its frame was written
+     * @param error the failure of the request, or null
+     */
+    private static void recordSpans(TraceContext trace, int tagS, short requestType, long start, long sent, Throwable error) {
+        long end = System.nanoTime();
+        String type = FlightEvents.typeName(requestType);
+        if (error != null) {
+            Tracing.record(trace, trace.spanId, 0, type, "CLIENT", start, end, "tag", Integer.toString(tagS),
+                    "error", String.valueOf(error.getMessage()));
+        } else {
+            Tracing.record(trace, trace.spanId, 0, type, "CLIENT", start, end, "tag", Integer.toString(tagS));
+        }
+        Tracing.record(trace, TraceContext.newSpanId(), trace.spanId, "client.send-lock", null, start, trace.lockedAt);
+        Tracing.record(trace, TraceContext.newSpanId(), trace.spanId, "client.write", null, trace.lockedAt, sent);
+        Tracing.record(trace, TraceContext.newSpanId(), trace.spanId, "client.await-response", null, sent, end);
+    }
+
+    /**
+     * Sends a request, waits for its response and decodes it in the calling thread.
+     *
+     * @param requestType the type of the request
+     * @param requestData the request data
+     * @param decoder decodes the response data
+     * @return the decoded response
+     * @throws IOException if there is an issue sending the request or receiving the response
+     */
+    private <T> T call(short requestType, byte[] requestData, ResponseDecoder<T> decoder) throws IOException {
+        return decoder.decode(await(sendAsync(requestType, requestData)));
+    }
+
+    /**
+     * Sends a request and returns a future of its decoded response. Responses are decoded,
+     * and callbacks run, on the callback threads rather than on the reader thread, so they
+     * may block or issue other requests.
+     *
+     * @param requestType the type of the request
+     * @param requestData the request data
+     * @param decoder decodes the response data
+     * @return the future decoded response
+     */
+    private <T> CompletableFuture<T> callAsync(short requestType, byte[] requestData, ResponseDecoder<T> decoder) {
+        return sendAsync(requestType, requestData).thenApplyAsync(response -> {
             try {
-                return demultiplexer.receive(frame.tag);
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                throw new IOException("Interrupted while waiting for response", e);
+                return decoder.decode(response);
+            } catch (IOException e) {
+                throw new CompletionException(e);
             }
-        } finally {
-            lock.unlock();
+        }, callbackExecutor);
+    }
+
+    /**
+     * Waits for a future response.
+     *
+     * @param future the future
+     * @return the response
+     * @throws IOException if the request failed or the thread was interrupted
+     */
+    static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for response", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
         }
     }
 
@@ -83,27 +231,16 @@ public class ClientLibrary {
      * @throws IOException if there is an issue during authentication
      */
     public boolean authenticate(String username, String password) throws IOException {
-        lock.lock();
-        try {
-            // Envia um pedido de autenticação com as credenciais
-            byte[] requestData;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeShort(RequestType.AuthRequest.getValue());
-                dos.writeUTF(username);
-                dos.writeUTF(password);
-                requestData = baos.toByteArray();
-            }
-            System.out.println("Sending authentication request");
-            byte[] responseData = sendWithTag(RequestType.AuthRequest.getValue(), requestData);
-            // Lê a resposta
-            try (ByteArrayInputStream bais = new ByteArrayInputStream(responseData);
-                 DataInputStream dis = new DataInputStream(bais)) {
-                return dis.readBoolean();
-            }
-        } finally {
-            lock.unlock();
+        // Envia um pedido de autenticação com as credenciais
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.AuthRequest.getValue());
+            dos.writeUTF(username);
+            dos.writeUTF(password);
+            requestData = baos.toByteArray();
         }
+        return call(RequestType.AuthRequest.getValue(), requestData, ClientLibrary::decodeBoolean);
     }
 
     /**
@@ -115,25 +252,15 @@ public class ClientLibrary {
      * @throws IOException if there is an issue during registration
      */
     public boolean register(String username, String password) throws IOException {
-        lock.lock();
-        try {
-            byte[] requestData;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeShort(RequestType.RegisterRequest.getValue());
-                dos.writeUTF(username);
-                dos.writeUTF(password);
-                requestData = baos.toByteArray();
-            }
-            byte[] responseData = sendWithTag(RequestType.RegisterRequest.getValue(), requestData);
-            // Lê a resposta
-            try (ByteArrayInputStream bais = new ByteArrayInputStream(responseData);
-                 DataInputStream dis = new DataInputStream(bais)) {
-                return dis.readBoolean();
-            }
-        } finally {
-            lock.unlock();
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.RegisterRequest.getValue());
+            dos.writeUTF(username);
+            dos.writeUTF(password);
+            requestData = baos.toByteArray();
         }
+        return call(RequestType.RegisterRequest.getValue(), requestData, ClientLibrary::decodeBoolean);
     }
 
     /**
@@ -144,22 +271,49 @@ public class ClientLibrary {
      * @throws IOException if there is an issue storing the data
      */
     public void put(String key, byte[] value) throws IOException {
-        lock.lock();
+        if (value.length > CHUNKED_PUT_THRESHOLD) {
+            putChunked(key, new ByteArrayInputStream(value), value.length);
+            return;
+        }
+        call(RequestType.PutRequest.getValue(), encodePut(key, value), response -> invalidateCached(key));
+    }
+
+    /**
+     * Stores a value with the specified key in the server without waiting for it.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return a future completed once the server stored the value
+     */
+    public CompletableFuture<Void> putAsync(String key, byte[] value) {
+        if (value.length > CHUNKED_PUT_THRESHOLD) {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    putChunked(key, new ByteArrayInputStream(value), value.length);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, callbackExecutor);
+        }
         try {
-            // Envia um pedido de inserção com a chave e o valor
-            byte[] requestData;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeShort(RequestType.PutRequest.getValue());
-                dos.writeUTF(key);
-                dos.writeInt(value.length);
-                dos.write(value);
-                requestData = baos.toByteArray();
-            }
-            System.out.println("Sending put request for key: " + key);
-            sendWithTag(RequestType.PutRequest.getValue(), requestData);
-        } finally {
-            lock.unlock();
+            return callAsync(RequestType.PutRequest.getValue(), encodePut(key, value), response -> invalidateCached(key));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Encodes a put request.
+     */
+    static byte[] encodePut(String key, byte[] value) throws IOException {
+        // Envia um pedido de inserção com a chave e o valor
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.PutRequest.getValue());
+            dos.writeUTF(key);
+            dos.writeInt(value.length);
+            dos.write(value);
+            return baos.toByteArray();
         }
     }
 
@@ -171,45 +325,92 @@ public class ClientLibrary {
      * @throws IOException if there is an issue retrieving the data
      */
     public byte[] get(String key) throws IOException {
-        lock.lock();
-        try {
-            int tagG = this.tag;
-            this.tag++;
-            byte[] requestData;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeShort(RequestType.GetRequest.getValue());
-                dos.writeUTF(key);
-                requestData = baos.toByteArray();
+        NearCache cache = nearCache;
+        if (cache != null && cache.isOpen()) {
+            boolean[] found = new boolean[1];
+            byte[] value = cache.lookup(key, found);
+            if (found[0]) {
+                return value;
             }
+            return decodeTracked(await(sendTracked(cache, key)), key);
+        }
+        return call(RequestType.GetRequest.getValue(), encodeGet(key), response -> decodeValue(response, key));
+    }
 
-            Condition condition = lock.newCondition();
-            conditionsMap.put(tagG, condition);
-
-            demultiplexer.send(tagG, RequestType.GetRequest.getValue(), requestData);
-            
-            while (!responsesMap.containsKey(tagG)) {
+    /**
+     * Retrieves the value associated with the specified key from the server without waiting for it.
+     *
+     * @param key the key
+     * @return a future of the value associated with the key, or of null if the key does not exist
+     */
+    public CompletableFuture<byte[]> getAsync(String key) {
+        NearCache cache = nearCache;
+        if (cache != null && cache.isOpen()) {
+            boolean[] found = new boolean[1];
+            byte[] value = cache.lookup(key, found);
+            if (found[0]) {
+                return CompletableFuture.completedFuture(value);
+            }
+            return sendTracked(cache, key).thenApplyAsync(response -> {
                 try {
-                    condition.await();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new IOException("Interrupted while waiting for response", e);
+                    return decodeTracked(response, key);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
                 }
-            }
+            }, callbackExecutor);
+        }
+        try {
+            return callAsync(RequestType.GetRequest.getValue(), encodeGet(key), response -> decodeValue(response, key));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 
-            byte[] response = responsesMap.remove(tagG);
-            conditionsMap.remove(tagG);
+    /**
+     * Encodes a get request.
+     */
+    static byte[] encodeGet(String key) throws IOException {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.GetRequest.getValue());
+            dos.writeUTF(key);
+            return baos.toByteArray();
+        }
+    }
 
-            try (ByteArrayInputStream bais = new ByteArrayInputStream(response);
-                DataInputStream dis = new DataInputStream(bais)) {
-                int length = dis.readInt();
-                if (length < 0) return null;
-                byte[] data = new byte[length];
-                dis.readFully(data);
-                return data;
-            }
-        } finally {
-            lock.unlock();
+    /**
+     * Sends a tracked get, whose response is cached by the reader thread as it arrives.
+     *
+     * @param cache the near-cache
+     * @param key the key
+     * @return the future response data
+     */
+    private CompletableFuture<byte[]> sendTracked(NearCache cache, String key) {
+        NearCache.Fill fill = cache.beginFill(key);
+        int tagG = nextTag();
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.GetTrackedRequest.getValue());
+            dos.writeUTF(key);
+            demultiplexer.register(tagG, fill);
+            demultiplexer.send(tagG, RequestType.GetTrackedRequest.getValue(), baos.toByteArray());
+        } catch (IOException e) {
+            demultiplexer.unregister(tagG);
+            fill.completeExceptionally(e);
+        }
+        return fill;
+    }
+
+    /**
+     * Decodes the response of a tracked get.
+     */
+    private byte[] decodeTracked(byte[] response, String key) throws IOException {
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(response);
+             DataInputStream dis = new DataInputStream(bais)) {
+            // TRACKED | VERSION | VALUE SIZE | VALUE
+            dis.readBoolean();
+            dis.readLong();
+            return readValue(dis, key);
         }
     }
 
@@ -220,24 +421,67 @@ public class ClientLibrary {
      * @throws IOException if there is an issue storing the data
      */
     public void multiPut(Map<String, byte[]> pairs) throws IOException {
-        lock.lock();
+        call(RequestType.MultiPutRequest.getValue(), encodeMultiPut(pairs), response -> invalidateCached(pairs.keySet()));
+    }
+
+    /**
+     * Stores multiple key-value pairs in the server without waiting for it.
+     *
+     * @param pairs the key-value pairs
+     * @return a future completed once the server stored every pair
+     */
+    public CompletableFuture<Void> multiPutAsync(Map<String, byte[]> pairs) {
+        try {
+            return callAsync(RequestType.MultiPutRequest.getValue(), encodeMultiPut(pairs), response -> invalidateCached(pairs.keySet()));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Stores multiple key-value pairs atomically across the nodes of a cluster, with the
+     * server this client is connected to coordinating the nodes owning the pairs.
+     *
+     * @param pairs the key-value pairs
+     * @return a future completed once every node stored its pairs, or failed if the
+     *         multiPut was aborted, in which case no pair was stored, or if its outcome
+     *         is unknown
+     */
+    CompletableFuture<Void> atomicMultiPutAsync(Map<String, byte[]> pairs) {
         try {
-            // Envia um pedido de inserção múltipla com os pares chave-valor
-            byte[] requestData;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeShort(RequestType.MultiPutRequest.getValue());
-                dos.writeInt(pairs.size());
-                for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
-                    dos.writeUTF(entry.getKey());
-                    dos.writeInt(entry.getValue().length);
-                    dos.write(entry.getValue());
+            return callAsync(RequestType.AtomicMultiPutRequest.getValue(), encodeMultiPut(RequestType.AtomicMultiPutRequest, pairs), response -> {
+                invalidateCached(pairs.keySet());
+                if (response[0] == TransactionManager.OUTCOME_ABORTED) {
+                    throw new IOException("The multiPut was aborted by conflicting multiPuts, no pair was stored");
+                } else if (response[0] != TransactionManager.OUTCOME_COMMITTED) {
+                    throw new IOException("The multiPut was committed but not acknowledged by every node in time");
                 }
-                requestData = baos.toByteArray();
+                return null;
+            });
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Encodes a multi-put request.
+     */
+    static byte[] encodeMultiPut(Map<String, byte[]> pairs) throws IOException {
+        return encodeMultiPut(RequestType.MultiPutRequest, pairs);
+    }
+
+    private static byte[] encodeMultiPut(RequestType requestType, Map<String, byte[]> pairs) throws IOException {
+        // Envia um pedido de inserção múltipla com os pares chave-valor
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(requestType.getValue());
+            dos.writeInt(pairs.size());
+            for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+                dos.writeUTF(entry.getKey());
+                dos.writeInt(entry.getValue().length);
+                dos.write(entry.getValue());
             }
-            sendWithTag(RequestType.MultiPutRequest.getValue(), requestData);
-        } finally {
-            lock.unlock();
+            return baos.toByteArray();
         }
     }
 
@@ -249,53 +493,54 @@ public class ClientLibrary {
      * @throws IOException if there is an issue retrieving the data
      */
     public Map<String, byte[]> multiGet(Set<String> keys) throws IOException {
-        lock.lock();
-        try {
-            int tagG = this.tag;
-            this.tag++;
-            byte[] requestData;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeShort(RequestType.MultiGetRequest.getValue());
-                dos.writeInt(keys.size());
-                for (String key : keys) {
-                    dos.writeUTF(key);
-                }
-                requestData = baos.toByteArray();
-            }
-
-            Condition condition = lock.newCondition();
-            conditionsMap.put(tagG, condition);
+        return call(RequestType.MultiGetRequest.getValue(), encodeMultiGet(keys), this::decodeMultiGet);
+    }
 
-            demultiplexer.send(tagG, RequestType.MultiGetRequest.getValue(), requestData);
+    /**
+     * Retrieves multiple values associated with the specified keys from the server without waiting for them.
+     *
+     * @param keys the keys
+     * @return a future of the map of key-value pairs
+     */
+    public CompletableFuture<Map<String, byte[]>> multiGetAsync(Set<String> keys) {
+        try {
+            return callAsync(RequestType.MultiGetRequest.getValue(), encodeMultiGet(keys), this::decodeMultiGet);
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 
-            while (!responsesMap.containsKey(tagG)) {
-                try {
-                    condition.await();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new IOException("Interrupted while waiting for response", e);
-                }
+    /**
+     * Encodes a multi-get request.
+     */
+    static byte[] encodeMultiGet(Set<String> keys) throws IOException {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.MultiGetRequest.getValue());
+            dos.writeInt(keys.size());
+            for (String key : keys) {
+                dos.writeUTF(key);
             }
+            return baos.toByteArray();
+        }
+    }
 
-            byte[] responseData = responsesMap.remove(tagG);
-            conditionsMap.remove(tagG);
-            
-            try (ByteArrayInputStream bais = new ByteArrayInputStream(responseData);
-                 DataInputStream dis = new DataInputStream(bais)) {
-                int n = dis.readInt();
-                Map<String, byte[]> result = new HashMap<>();
-                for (int i = 0; i < n; i++) {
-                    String key = dis.readUTF();
-                    int length = dis.readInt();
-                    byte[] data = new byte[length];
-                    dis.readFully(data);
+    /**
+     * Decodes a multi-get response. Keys that do not exist are left out of the result.
+     */
+    private Map<String, byte[]> decodeMultiGet(byte[] responseData) throws IOException {
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(responseData);
+             DataInputStream dis = new DataInputStream(bais)) {
+            int n = dis.readInt();
+            Map<String, byte[]> result = new HashMap<>();
+            for (int i = 0; i < n; i++) {
+                String key = dis.readUTF();
+                byte[] data = readValue(dis, key);
+                if (data != null) {
                     result.put(key, data);
                 }
-                return result;
             }
-        } finally {
-            lock.unlock();
+            return result;
         }
     }
 
@@ -309,60 +554,920 @@ public class ClientLibrary {
      * @throws IOException if there is an issue retrieving the data
      */
     public byte[] getWhen(String key, String keyCond, byte[] valueCond) throws IOException, InterruptedException {
-        lock.lock();
+        return call(RequestType.GetWhenRequest.getValue(), encodeGetWhen(key, keyCond, valueCond), response -> decodeValue(response, key));
+    }
+
+    /**
+     * Retrieves the value associated with the specified key once the condition key holds the
+     * condition value, without blocking the calling thread while the condition does not hold.
+     *
+     * @param key the key
+     * @param keyCond the key condition
+     * @param valueCond the value condition
+     * @return a future of the value associated with the key, or of null if the key does not exist
+     */
+    public CompletableFuture<byte[]> getWhenAsync(String key, String keyCond, byte[] valueCond) {
         try {
-            int tagG = this.tag;
-            this.tag++;
-            byte[] requestData;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                 DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeShort(RequestType.GetWhenRequest.getValue());
-                dos.writeUTF(key);
-                dos.writeUTF(keyCond);
-                dos.writeInt(valueCond.length);
-                dos.write(valueCond);
-                requestData = baos.toByteArray();
+            return callAsync(RequestType.GetWhenRequest.getValue(), encodeGetWhen(key, keyCond, valueCond), response -> decodeValue(response, key));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Encodes a get-when request.
+     */
+    private static byte[] encodeGetWhen(String key, String keyCond, byte[] valueCond) throws IOException {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.GetWhenRequest.getValue());
+            dos.writeUTF(key);
+            dos.writeUTF(keyCond);
+            dos.writeInt(valueCond.length);
+            dos.write(valueCond);
+            return baos.toByteArray();
+        }
+    }
+
+    /**
+     * Atomically replaces the value of a key if its current value equals the expected one.
+     *
+     * @param key the key
+     * @param expected the expected value, or null if the key is expected to be absent
+     * @param value the new value
+     * @return true if the value was replaced, false otherwise
+     * @throws IOException if there is an issue updating the data
+     */
+    public boolean compareAndSet(String key, byte[] expected, byte[] value) throws IOException {
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.CompareAndSetRequest.getValue());
+            dos.writeUTF(key);
+            dos.writeBoolean(false);
+            if (expected == null) {
+                dos.writeInt(-1);
+            } else {
+                dos.writeInt(expected.length);
+                dos.write(expected);
+            }
+            dos.writeInt(value.length);
+            dos.write(value);
+            requestData = baos.toByteArray();
+        }
+        return sendCompareAndSet(key, requestData);
+    }
+
+    /**
+     * Atomically replaces the value of a key if its current version equals the expected one.
+     *
+     * @param key the key
+     * @param expectedVersion the expected version, or 0 if the key is expected to be absent
+     * @param value the new value
+     * @return true if the value was replaced, false otherwise
+     * @throws IOException if there is an issue updating the data
+     */
+    public boolean compareAndSetVersion(String key, long expectedVersion, byte[] value) throws IOException {
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.CompareAndSetRequest.getValue());
+            dos.writeUTF(key);
+            dos.writeBoolean(true);
+            dos.writeLong(expectedVersion);
+            dos.writeInt(value.length);
+            dos.write(value);
+            requestData = baos.toByteArray();
+        }
+        return sendCompareAndSet(key, requestData);
+    }
+
+    /**
+     * Sends a compare-and-set request and reads the outcome.
+     *
+     * @param key the key
+     * @param requestData the request data
+     * @return true if the value was replaced, false otherwise
+     * @throws IOException if there is an issue sending the request
+     */
+    private boolean sendCompareAndSet(String key, byte[] requestData) throws IOException {
+        boolean replaced = call(RequestType.CompareAndSetRequest.getValue(), requestData, ClientLibrary::decodeBoolean);
+        invalidateCached(key);
+        return replaced;
+    }
+
+    /**
+     * Atomically adds a delta to a counter stored as a decimal string. A missing key counts as 0.
+     *
+     * @param key the key of the counter
+     * @param delta the value to add
+     * @return the new value of the counter
+     * @throws IOException if there is an issue updating the data or the value is not a number
+     */
+    public long increment(String key, long delta) throws IOException {
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.IncrementRequest.getValue());
+            dos.writeUTF(key);
+            dos.writeLong(delta);
+            requestData = baos.toByteArray();
+        }
+        byte[] responseData = call(RequestType.IncrementRequest.getValue(), requestData, response -> response);
+        invalidateCached(key);
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(responseData);
+             DataInputStream dis = new DataInputStream(bais)) {
+            boolean success = dis.readBoolean();
+            long counter = dis.readLong();
+            if (!success) {
+                throw new IOException("Value of key " + key + " is not a counter");
+            }
+            return counter;
+        }
+    }
+
+    /**
+     * Atomically appends bytes to the value of a key. A missing key is treated as empty.
+     *
+     * @param key the key
+     * @param suffix the bytes to append
+     * @return the length of the new value
+     * @throws IOException if there is an issue updating the data
+     */
+    public int append(String key, byte[] suffix) throws IOException {
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.AppendRequest.getValue());
+            dos.writeUTF(key);
+            dos.writeInt(suffix.length);
+            dos.write(suffix);
+            requestData = baos.toByteArray();
+        }
+        byte[] responseData = call(RequestType.AppendRequest.getValue(), requestData, response -> response);
+        invalidateCached(key);
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(responseData);
+             DataInputStream dis = new DataInputStream(bais)) {
+            return dis.readInt();
+        }
+    }
+
+    /**
+     * Retrieves the value associated with the specified key together with its version.
+     *
+     * @param key the key
+     * @return the value and its version, or null if the key does not exist
+     * @throws IOException if there is an issue retrieving the data
+     */
+    public VersionedValue getVersioned(String key) throws IOException {
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.GetVersionedRequest.getValue());
+            dos.writeUTF(key);
+            requestData = baos.toByteArray();
+        }
+        byte[] responseData = call(RequestType.GetVersionedRequest.getValue(), requestData, response -> response);
+
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(responseData);
+             DataInputStream dis = new DataInputStream(bais)) {
+            long version = dis.readLong();
+            int length = dis.readInt();
+            if (length == -2) {
+                // Too large to be sent inline, the download reports its own version
+                byte[][] data = new byte[1][];
+                long downloaded = download(key, total -> new ArrayOutputStream(data[0] = new byte[total]));
+                return downloaded < 0 ? null : new VersionedValue(data[0], downloaded);
             }
+            if (length < 0) return null;
+            byte[] data = new byte[length];
+            dis.readFully(data);
+            return new VersionedValue(data, version);
+        }
+    }
 
-            Condition condition = lock.newCondition();
-            conditionsMap.put(tagG, condition);
+    /**
+     * Stores a value read from a stream, uploading it in chunks. The server writes the
+     * chunks straight into the stored value, and at most CHUNK_WINDOW chunks are in flight
+     * at once, so neither side ever buffers more than that besides the value itself.
+     *
+     * @param key the key
+     * @param in the stream the value is read from
+     * @param length the length of the value
+     * @throws IOException if there is an issue storing the data or the stream ends early
+     */
+    public void putChunked(String key, InputStream in, int length) throws IOException {
+        int tagG = nextTag();
+        byte[] begin;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.PutChunkRequest.getValue());
+            dos.writeByte(ServerWorker.CHUNK_BEGIN);
+            dos.writeUTF(key);
+            dos.writeInt(length);
+            begin = baos.toByteArray();
+        }
+        Demultiplexer.FrameStream acks = demultiplexer.openStream(tagG);
+        try {
+            demultiplexer.send(tagG, RequestType.PutChunkRequest.getValue(), begin);
+            uploadChunks(tagG, acks, key, in, length);
+        } finally {
+            demultiplexer.unregister(tagG);
+            invalidateCached(key);
+        }
+    }
 
-            demultiplexer.send(tagG, RequestType.GetWhenRequest.getValue(), requestData);
-    
-            while (!responsesMap.containsKey(tagG)) {
-                try {
-                    condition.await();
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    throw new IOException("Interrupted while waiting for response", e);
+    /**
+     * Sends the chunks of a chunked upload and waits for the server to commit the value.
+     *
+     * @param tagG the tag of the upload
+     * @param acks the acknowledgements of the upload
+     * @param key the key
+     * @param in the stream the value is read from
+     * @param length the length of the value
+     * @throws IOException if there is an issue storing the data or the stream ends early
+     */
+    private void uploadChunks(int tagG, Demultiplexer.FrameStream acks, String key, InputStream in, int length) throws IOException {
+        byte[] chunk = new byte[Math.min(CHUNK_SIZE, length)];
+        int sent = 0;
+        int inFlight = 1;
+        while (true) {
+            while (sent < length && inFlight <= CHUNK_WINDOW) {
+                int chunkLength = in.readNBytes(chunk, 0, Math.min(chunk.length, length - sent));
+                if (chunkLength == 0) {
+                    abortChunked(tagG, RequestType.PutChunkRequest.getValue());
+                    throw new IOException("Stream ended after " + sent + " of " + length + " bytes");
                 }
+                try (ByteArrayOutputStream baos = new ByteArrayOutputStream(chunkLength + 16);
+                     DataOutputStream dos = new DataOutputStream(baos)) {
+                    dos.writeShort(RequestType.PutChunkRequest.getValue());
+                    dos.writeByte(ServerWorker.CHUNK_DATA);
+                    dos.writeInt(chunkLength);
+                    dos.write(chunk, 0, chunkLength);
+                    demultiplexer.send(tagG, RequestType.PutChunkRequest.getValue(), baos.toByteArray());
+                }
+                sent += chunkLength;
+                inFlight++;
+            }
+
+            // STATUS | RECEIVED
+            byte[] ack = acks.take();
+            inFlight--;
+            if (ack[0] == ServerWorker.CHUNK_COMMITTED) {
+                return;
             }
+            if (ack[0] != ServerWorker.CHUNK_OK) {
+                throw new IOException("Chunked put of key " + key + " was rejected");
+            }
+        }
+    }
 
-            byte[] response = responsesMap.remove(tagG);
-            conditionsMap.remove(tagG);
-            return response;
+    /**
+     * Retrieves the value associated with the specified key, writing it to a stream as it
+     * is downloaded in chunks. At most CHUNK_WINDOW chunks are in flight at once.
+     *
+     * @param key the key
+     * @param out the stream the value is written to
+     * @return true if the key exists, false otherwise
+     * @throws IOException if there is an issue retrieving the data
+     */
+    public boolean getChunked(String key, OutputStream out) throws IOException {
+        return download(key, total -> out) >= 0;
+    }
 
+    /**
+     * Downloads a value in chunks.
+     *
+     * @param key the key
+     * @param sinks gives the stream to write the value to, given its length
+     * @return the version of the value, or -1 if the key does not exist
+     * @throws IOException if there is an issue retrieving the data
+     */
+    private long download(String key, IntFunction<OutputStream> sinks) throws IOException {
+        int tagG = nextTag();
+        byte[] begin;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.GetChunkRequest.getValue());
+            dos.writeByte(ServerWorker.CHUNK_BEGIN);
+            dos.writeUTF(key);
+            dos.writeInt(CHUNK_SIZE);
+            dos.writeInt(CHUNK_WINDOW);
+            begin = baos.toByteArray();
+        }
+        Demultiplexer.FrameStream chunks = demultiplexer.openStream(tagG);
+        try {
+            demultiplexer.send(tagG, RequestType.GetChunkRequest.getValue(), begin);
+            return downloadChunks(tagG, chunks, sinks);
         } finally {
-            lock.unlock();
+            demultiplexer.unregister(tagG);
+        }
+    }
+
+    /**
+     * Receives the chunks of a chunked download, granting the server a new chunk of
+     * credit for each one received.
+     *
+     * @param tagG the tag of the download
+     * @param frames the frames of the download
+     * @param sinks gives the stream to write the value to, given its length
+     * @return the version of the value, or -1 if the key does not exist
+     * @throws IOException if there is an issue retrieving the data
+     */
+    private long downloadChunks(int tagG, Demultiplexer.FrameStream frames, IntFunction<OutputStream> sinks) throws IOException {
+        // STATUS | VERSION | VALUE LENGTH
+        long version;
+        int length;
+        try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(frames.take()))) {
+            if (dis.readByte() != ServerWorker.CHUNK_OK) {
+                return -1;
+            }
+            version = dis.readLong();
+            length = dis.readInt();
+        }
+
+        OutputStream out = sinks.apply(length);
+        int chunks = (int) ((length + (long) CHUNK_SIZE - 1) / CHUNK_SIZE);
+        int requested = Math.min(CHUNK_WINDOW, chunks);
+        byte[] credit;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.GetChunkRequest.getValue());
+            dos.writeByte(ServerWorker.CHUNK_CREDIT);
+            dos.writeInt(1);
+            credit = baos.toByteArray();
+        }
+        for (int i = 0; i < chunks; i++) {
+            byte[] chunk = frames.take();
+            if (requested < chunks) {
+                demultiplexer.send(tagG, RequestType.GetChunkRequest.getValue(), credit);
+                requested++;
+            }
+            out.write(chunk);
+        }
+        return version;
+    }
+
+    /**
+     * Tells the server to drop the state of a chunked transfer.
+     *
+     * @param tagT the tag of the transfer
+     * @param requestType the request type of the transfer
+     * @throws IOException if there is an issue sending the request
+     */
+    private void abortChunked(int tagT, short requestType) throws IOException {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(requestType);
+            dos.writeByte(ServerWorker.CHUNK_ABORT);
+            demultiplexer.send(tagT, requestType, baos.toByteArray());
+        }
+    }
+
+    /**
+     * Reads a value of a response, downloading it in chunks if the server did not send it
+     * inline.
+     *
+     * @param dis the stream to read from
+     * @param key the key of the value
+     * @return the value, or null if the key does not exist
+     * @throws IOException if there is an issue reading or downloading the value
+     */
+    byte[] readValue(DataInputStream dis, String key) throws IOException {
+        int length = dis.readInt();
+        if (length == -2) {
+            dis.readInt();
+            byte[][] data = new byte[1][];
+            return download(key, total -> new ArrayOutputStream(data[0] = new byte[total])) < 0 ? null : data[0];
+        }
+        if (length < 0) return null;
+        byte[] data = new byte[length];
+        dis.readFully(data);
+        return data;
+    }
+
+    /**
+     * Reserves the tag of a new request.
+     *
+     * @return the tag
+     */
+    private int nextTag() {
+        return tag.getAndIncrement();
+    }
+
+    /**
+     * Decodes a response holding a single boolean.
+     */
+    private static boolean decodeBoolean(byte[] response) throws IOException {
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(response);
+             DataInputStream dis = new DataInputStream(bais)) {
+            return dis.readBoolean();
+        }
+    }
+
+    /**
+     * Decodes a response holding a single value.
+     */
+    private byte[] decodeValue(byte[] response, String key) throws IOException {
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(response);
+             DataInputStream dis = new DataInputStream(bais)) {
+            return readValue(dis, key);
+        }
+    }
+
+    /**
+     * An output stream writing into an array of a known size.
+     */
+    private static class ArrayOutputStream extends OutputStream {
+        private final byte[] target;
+        private int position = 0;
+
+        ArrayOutputStream(byte[] target) {
+            this.target = target;
+        }
+
+        @Override
+        public void write(int b) {
+            target[position++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            System.arraycopy(b, off, target, position, len);
+            position += len;
+        }
+    }
+
+    /**
+     * Scans the keys in the range [startKey, endKey) in ascending order.
+     *
+     * @param startKey the first key of the range, or "" to start from the smallest key
+     * @param endKey the key after the range, or null for no upper bound
+     * @param limit the maximum number of pairs to return, or 0 for no limit
+     * @return an iterator over the key-value pairs
+     * @throws IOException if there is an issue sending the request
+     */
+    public ScanIterator scan(String startKey, String endKey, int limit) throws IOException {
+        return scan(startKey, true, endKey, "", limit, 0);
+    }
+
+    /**
+     * Scans the keys starting with the given prefix in ascending order.
+     *
+     * @param prefix the key prefix
+     * @param limit the maximum number of pairs to return, or 0 for no limit
+     * @return an iterator over the key-value pairs
+     * @throws IOException if there is an issue sending the request
+     */
+    public ScanIterator scanPrefix(String prefix, int limit) throws IOException {
+        return scan(prefix, true, null, prefix, limit, 0);
+    }
+
+    /**
+     * Scans a range of keys in ascending order. The pairs are streamed by the server in
+     * frames of about frameBytes bytes, at most SCAN_WINDOW of them in flight. To resume a scan, start a new one at the cursor of
+     * the previous iterator with startInclusive set to false.
+     *
+     * @param startKey the first key of the range, or "" to start from the smallest key
+     * @param startInclusive whether the start key itself is included
+     * @param endKey the key after the range, or null for no upper bound
+     * @param prefix the prefix every returned key must have, or ""
+     * @param limit the maximum number of pairs to return, or 0 for no limit
+     * @param frameBytes the approximate size of each frame, or 0 for the server default
+     * @return an iterator over the key-value pairs
+     * @throws IOException if there is an issue sending the request
+     */
+    public ScanIterator scan(String startKey, boolean startInclusive, String endKey, String prefix, int limit, int frameBytes) throws IOException {
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.ScanRequest.getValue());
+            dos.writeByte(ServerWorker.CHUNK_BEGIN);
+            dos.writeUTF(startKey);
+            dos.writeBoolean(startInclusive);
+            dos.writeBoolean(endKey != null);
+            dos.writeUTF(endKey != null ? endKey : "");
+            dos.writeUTF(prefix);
+            dos.writeInt(limit);
+            dos.writeInt(frameBytes);
+            dos.writeInt(SCAN_WINDOW);
+            requestData = baos.toByteArray();
         }
+
+        int tagG = nextTag();
+        Demultiplexer.FrameStream frames = demultiplexer.openStream(tagG);
+        try {
+            demultiplexer.send(tagG, RequestType.ScanRequest.getValue(), requestData);
+        } catch (IOException e) {
+            demultiplexer.unregister(tagG);
+            throw e;
+        }
+        return new ScanIterator(this, demultiplexer, tagG, frames, startKey);
+    }
+
+    /**
+     * Subscribes to the changes of a key.
+     *
+     * @param key the key to watch
+     * @param listener the listener receiving the change events
+     * @return the watch identifier, used to unsubscribe
+     * @throws IOException if there is an issue subscribing
+     */
+    public int watch(String key, WatchListener listener) throws IOException {
+        return watch(key, false, 0, listener);
+    }
+
+    /**
+     * Subscribes to the changes of every key starting with the given prefix.
+     *
+     * @param prefix the key prefix to watch
+     * @param listener the listener receiving the change events
+     * @return the watch identifier, used to unsubscribe
+     * @throws IOException if there is an issue subscribing
+     */
+    public int watchPrefix(String prefix, WatchListener listener) throws IOException {
+        return watch(prefix, true, 0, listener);
     }
 
     /**
-     * Adds a response to the responses map and signals the waiting threads.
-     * 
-     * @param tagR the tag of the response
-     * @param response the response data
+     * Subscribes to the changes of a key or key prefix. Returns once the server has
+     * registered the subscription, so every write committed afterwards is reported.
+     *
+     * @param key the key or key prefix to watch
+     * @param prefix whether the key is a prefix
+     * @param bufferCapacity the number of distinct keys the server may buffer for this
+     *                       subscriber before reporting an overflow, or 0 for the default
+     * @param listener the listener receiving the change events
+     * @return the watch identifier, used to unsubscribe
+     * @throws IOException if there is an issue subscribing
      */
-    public void addResponse(int tagR, byte[] response) {
-        lock.lock();
+    public int watch(String key, boolean prefix, int bufferCapacity, WatchListener listener) throws IOException {
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.WatchRequest.getValue());
+            dos.writeUTF(key);
+            dos.writeBoolean(prefix);
+            dos.writeInt(bufferCapacity);
+            requestData = baos.toByteArray();
+        }
+
+        // The subscription stays registered on its tag until unwatch, the acknowledgement
+        // and the change events that follow are all handled by it
+        int tagW = nextTag();
+        WatchHandler handler = new WatchHandler(listener);
         try {
-            if (conditionsMap.containsKey(tagR)) {
-                responsesMap.put(tagR, response);
-                conditionsMap.get(tagR).signalAll();
+            demultiplexer.register(tagW, handler);
+            demultiplexer.send(tagW, RequestType.WatchRequest.getValue(), requestData);
+            await(handler.subscribed);
+        } catch (IOException e) {
+            demultiplexer.unregister(tagW);
+            throw e;
+        }
+        return tagW;
+    }
+
+    /**
+     * Cancels a watch subscription.
+     *
+     * @param watchId the identifier returned by watch
+     * @return true if the subscription existed, false otherwise
+     * @throws IOException if there is an issue unsubscribing
+     */
+    public boolean unwatch(int watchId) throws IOException {
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.UnwatchRequest.getValue());
+            dos.writeInt(watchId);
+            requestData = baos.toByteArray();
+        }
+        boolean existed = call(RequestType.UnwatchRequest.getValue(), requestData, ClientLibrary::decodeBoolean);
+        demultiplexer.unregister(watchId);
+        return existed;
+    }
+
+    /**
+     * The handler of the frames of a watch subscription. Decodes the events and hands them
+     * to the listener of the subscription.
+     */
+    private static class WatchHandler implements Demultiplexer.FrameHandler {
+        private final WatchListener listener;
+        /* Completed by the subscription acknowledgement */
+        private final CompletableFuture<Void> subscribed = new CompletableFuture<>();
+
+        WatchHandler(WatchListener listener) {
+            this.listener = listener;
+        }
+
+        @Override
+        public boolean onFrame(byte[] event) {
+            try (ByteArrayInputStream bais = new ByteArrayInputStream(event);
+                 DataInputStream dis = new DataInputStream(bais)) {
+                byte eventType = dis.readByte();
+                long version = dis.readLong();
+                String key = dis.readUTF();
+                int length = dis.readInt();
+                byte[] value = null;
+                if (length >= 0) {
+                    value = new byte[length];
+                    dis.readFully(value);
+                }
+
+                if (eventType == WatchRegistry.EVENT_SUBSCRIBED) {
+                    subscribed.complete(null);
+                } else if (eventType == WatchRegistry.EVENT_CHANGE) {
+                    listener.onChange(key, value, version);
+                } else if (eventType == WatchRegistry.EVENT_OVERFLOW) {
+                    listener.onOverflow();
+                }
+            } catch (IOException e) {
+                Logger.log("Invalid watch event: " + e.getMessage(), Logger.LogLevel.ERROR);
             }
-        } finally {
-            lock.unlock();
+            return true;
+        }
+
+        @Override
+        public void onClose(IOException cause) {
+            subscribed.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Enables a near-cache of the values read by get and getAsync. Repeated gets of a key
+     * are served locally until the server reports a write of the key, or the lease of the
+     * entry expires, whichever comes first. Writes made through this client are visible to
+     * its own gets as soon as they return.
+     *
+     * @param capacity the maximum number of cached keys
+     * @param leaseMillis the time an entry is served without being invalidated, which bounds
+     *                    its staleness should an invalidation be lost
+     * @throws IOException if there is an issue subscribing to the invalidations
+     */
+    public synchronized void enableNearCache(int capacity, long leaseMillis) throws IOException {
+        if (capacity < 1 || leaseMillis < 0) {
+            throw new IllegalArgumentException("Invalid near-cache settings");
+        }
+        disableNearCache();
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.TrackRequest.getValue());
+            // Keys evicted from the cache stay tracked until they are written, leave them room
+            dos.writeInt(capacity * 2);
+            requestData = baos.toByteArray();
+        }
+
+        // The subscription stays registered on its tag until the cache is disabled
+        int tagT = nextTag();
+        NearCache cache = new NearCache(capacity, leaseMillis);
+        try {
+            demultiplexer.register(tagT, cache);
+            demultiplexer.send(tagT, RequestType.TrackRequest.getValue(), requestData);
+            await(cache.subscribed);
+        } catch (IOException e) {
+            demultiplexer.unregister(tagT);
+            throw e;
+        }
+        nearCacheTag = tagT;
+        nearCache = cache;
+    }
+
+    /**
+     * Disables the near-cache, if enabled, and drops its entries.
+     *
+     * @throws IOException if there is an issue unsubscribing from the invalidations
+     */
+    public synchronized void disableNearCache() throws IOException {
+        NearCache cache = nearCache;
+        if (cache == null) {
+            return;
+        }
+        nearCache = null;
+        cache.clear();
+        if (cache.isOpen()) {
+            unwatch(nearCacheTag);
+        }
+    }
+
+    /**
+     * Returns the near-cache, to read its statistics.
+     *
+     * @return the near-cache, or null if it is disabled
+     */
+    public NearCache getNearCache() {
+        return nearCache;
+    }
+
+    /**
+     * Drops a key written through this client from the near-cache. Called once the write
+     * is acknowledged, after the reader thread cached every get answered before it.
+     *
+     * @param key the key
+     * @return null
+     */
+    private Void invalidateCached(String key) {
+        NearCache cache = nearCache;
+        if (cache != null) {
+            cache.invalidate(key, Long.MAX_VALUE);
+        }
+        return null;
+    }
+
+    /**
+     * Drops keys written through this client from the near-cache.
+     *
+     * @param keys the keys
+     * @return null
+     */
+    private Void invalidateCached(Set<String> keys) {
+        NearCache cache = nearCache;
+        if (cache != null) {
+            for (String key : keys) {
+                cache.invalidate(key, Long.MAX_VALUE);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks that the server answers on this connection.
+     *
+     * @return a future completed when the server answers
+     */
+    public CompletableFuture<Void> pingAsync() {
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.PingRequest.getValue());
+            requestData = baos.toByteArray();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return callAsync(RequestType.PingRequest.getValue(), requestData, response -> null);
+    }
+
+    /**
+     * Retrieves the partition map of the cluster the server is part of.
+     *
+     * @return the partition map, or null if the server runs alone
+     * @throws IOException if there is an issue retrieving the map
+     */
+    PartitionMap getPartitionMap() throws IOException {
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.PartitionMapRequest.getValue());
+            requestData = baos.toByteArray();
+        }
+        return call(RequestType.PartitionMapRequest.getValue(), requestData, response -> {
+            try (ByteArrayInputStream bais = new ByteArrayInputStream(response);
+                 DataInputStream dis = new DataInputStream(bais)) {
+                return PartitionMap.read(dis);
+            }
+        });
+    }
+
+    /**
+     * Retrieves the replication state of the server: its role, and the lag of each of its
+     * followers if it is a primary.
+     *
+     * @return the replication state
+     * @throws IOException if there is an issue retrieving the state
+     */
+    public ReplicationStatus getReplicationStatus() throws IOException {
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.ReplicationStatusRequest.getValue());
+            requestData = baos.toByteArray();
+        }
+        return call(RequestType.ReplicationStatusRequest.getValue(), requestData, response -> {
+            try (ByteArrayInputStream bais = new ByteArrayInputStream(response);
+                 DataInputStream dis = new DataInputStream(bais)) {
+                return ReplicationStatus.read(dis);
+            }
+        });
+    }
+
+    /**
+     * Retrieves the state of the server in its consensus group: its role, term, the
+     * leader it knows of and how far its log is committed and applied.
+     *
+     * @return the consensus state, with the role ROLE_NONE if the server has no group
+     * @throws IOException if there is an issue retrieving the state
+     */
+    public RaftStatus getRaftStatus() throws IOException {
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.RaftStatusRequest.getValue());
+            requestData = baos.toByteArray();
+        }
+        return call(RequestType.RaftStatusRequest.getValue(), requestData, response -> {
+            try (ByteArrayInputStream bais = new ByteArrayInputStream(response);
+                 DataInputStream dis = new DataInputStream(bais)) {
+                return RaftStatus.read(dis);
+            }
+        });
+    }
+
+    /**
+     * Retrieves the latency histograms of the requests the server served since it started,
+     * by request type, split into queue wait, lock wait and execution time.
+     *
+     * @return the histograms
+     * @throws IOException if there is an issue retrieving them
+     */
+    public ServerStats getStats() throws IOException {
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.StatsRequest.getValue());
+            requestData = baos.toByteArray();
+        }
+        return call(RequestType.StatsRequest.getValue(), requestData, response -> {
+            try (ByteArrayInputStream bais = new ByteArrayInputStream(response);
+                 DataInputStream dis = new DataInputStream(bais)) {
+                return ServerStats.read(dis);
+            }
+        });
+    }
+
+    /**
+     * Sets the lowest level of the messages the server logs, taking effect at once.
+     *
+     * @param level the level
+     * @return the level it replaced
+     * @throws IOException if there is an issue setting it
+     */
+    public Logger.LogLevel setServerLogLevel(Logger.LogLevel level) throws IOException {
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.LogLevelRequest.getValue());
+            dos.writeUTF(level.name());
+            requestData = baos.toByteArray();
+        }
+        return call(RequestType.LogLevelRequest.getValue(), requestData, response -> {
+            try (ByteArrayInputStream bais = new ByteArrayInputStream(response);
+                 DataInputStream dis = new DataInputStream(bais)) {
+                return Logger.LogLevel.valueOf(dis.readUTF());
+            }
+        });
+    }
+
+    /**
+     * Retrieves the lock counters, keys and bytes of each database shard of the server,
+     * with the shard count it recommends.
+     *
+     * @return the shard stats
+     * @throws IOException if there is an issue retrieving them
+     */
+    public ShardStats getShardStats() throws IOException {
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.ShardStatsRequest.getValue());
+            requestData = baos.toByteArray();
         }
+        return call(RequestType.ShardStatsRequest.getValue(), requestData, response -> {
+            try (ByteArrayInputStream bais = new ByteArrayInputStream(response);
+                 DataInputStream dis = new DataInputStream(bais)) {
+                return ShardStats.read(dis);
+            }
+        });
+    }
+
+    /**
+     * Promotes the follower this client is connected to, once its primary is gone. The
+     * follower stops accepting the writes of its former primary, and replicates the writes
+     * it receives from now on to the given followers.
+     *
+     * @param followers the followers of the new primary, as host:port
+     * @throws IOException if there is an issue promoting the server
+     */
+    public void promote(List<String> followers) throws IOException {
+        byte[] requestData;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.PromoteRequest.getValue());
+            dos.writeInt(followers.size());
+            for (String follower : followers) {
+                dos.writeUTF(follower);
+            }
+            requestData = baos.toByteArray();
+        }
+        call(RequestType.PromoteRequest.getValue(), requestData, ClientLibrary::decodeBoolean);
+    }
+
+    /**
+     * Returns whether the connection with the server is still usable.
+     *
+     * @return false once the connection is closed or lost
+     */
+    public boolean isConnected() {
+        return demultiplexer.isOpen();
     }
 
     /**
@@ -371,33 +1476,32 @@ public class ClientLibrary {
      * @throws IOException if there is an issue closing the connection
      */
     public void close() throws IOException {
-        lock.lock();
-        try {
-            sendDisconnectMessage();
-            demultiplexer.close();
-        } finally {
-            lock.unlock();
-        }
+        sendDisconnectMessage();
+        demultiplexer.close();
     }
 
     /**
-     * Sends a disconnect message to the server.
+     * Closes the connection without notifying the server, failing every request in flight.
+     *
+     * @throws IOException if there is an issue closing the connection
+     */
+    void abort() throws IOException {
+        demultiplexer.close();
+    }
+
+    /**
+     * Sends a disconnect message to the server and waits for it to be acknowledged.
      *
      * @throws IOException if there is an issue sending the disconnect message
      */
     public void sendDisconnectMessage() throws IOException {
-        lock.lock();
-        try {
-            byte[] disconnect;
-            try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                 DataOutputStream dos = new DataOutputStream(baos)) {
-                dos.writeShort(RequestType.DisconnectRequest.getValue());
-                disconnect = baos.toByteArray();
-            }
-            sendWithTag(RequestType.DisconnectRequest.getValue(), disconnect);
-        } finally {
-            lock.unlock();
+        byte[] disconnect;
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.DisconnectRequest.getValue());
+            disconnect = baos.toByteArray();
         }
+        call(RequestType.DisconnectRequest.getValue(), disconnect, response -> null);
     }
     
 }
@@ -0,0 +1,567 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * The ClientPool class keeps a set of long-lived connections to the server and routes
+ * each request to the connection with the fewest requests in flight.
+ *
+ * The pool starts with minConnections connections and opens another one, up to
+ * maxConnections, whenever every connection has at least growThreshold requests in
+ * flight. Connections are only opened in the background: a request finding no usable
+ * connection waits for one. A background task pings the idle connections, all at once,
+ * replaces the ones that stopped answering, and closes the extra ones that stayed idle
+ * for longer than idleTimeout. An idle connection is claimed while it is pinged, so no
+ * request starts on a connection that may be dropped.
+ *
+ * Requests are never retried: a request that fails because its connection was lost
+ * reports the error, and the connection is dropped from the pool.
+ */
+public class ClientPool implements AutoCloseable {
+    /**
+     * A request issued on a connection of the pool.
+     */
+    @FunctionalInterface
+    public interface Operation<T> {
+        T apply(ClientLibrary client) throws IOException;
+    }
+
+    /**
+     * A pooled connection and its load.
+     */
+    private static class PooledConnection {
+        final ClientLibrary client;
+        /* Requests in flight on the connection, or CLOSING once claimed for removal, or PROBING
+           while a health check pings it */
+        final AtomicInteger load = new AtomicInteger();
+        /* When the last request on the connection completed, in milliseconds */
+        volatile long lastUsed = System.currentTimeMillis();
+
+        PooledConnection(ClientLibrary client) {
+            this.client = client;
+        }
+
+        /**
+         * Counts a new request on the connection, unless it was claimed for removal or for
+         * a health check.
+         *
+         * @return true if the request was counted
+         */
+        boolean claim() {
+            while (true) {
+                int current = load.get();
+                if (current < 0) {
+                    return false;
+                }
+                if (load.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        void release() {
+            lastUsed = System.currentTimeMillis();
+            load.decrementAndGet();
+        }
+    }
+
+    /* Load of a connection claimed for removal, which no request may use any more */
+    private static final int CLOSING = -1;
+    /* Load of a connection claimed by a health check while it is pinged */
+    private static final int PROBING = -2;
+    /* Default number of requests in flight on every connection before a new one is opened */
+    public static final int DEFAULT_GROW_THRESHOLD = 16;
+    /* Default interval between health checks, in milliseconds */
+    public static final long DEFAULT_HEALTH_CHECK_INTERVAL = 5000;
+    /* Default time an extra connection stays open while idle, in milliseconds */
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    private final String host;
+    private final int port;
+    private final int minConnections;
+    private final int maxConnections;
+    private final int growThreshold;
+    private final long healthCheckInterval;
+    private final long idleTimeout;
+
+    /* The open connections */
+    private final List<PooledConnection> connections = new CopyOnWriteArrayList<>();
+    /* Whether a connection is being opened in the background */
+    private final AtomicBoolean growing = new AtomicBoolean(false);
+    /* Notified when a connection is added or released by a health check, or an opening fails */
+    private final Object available = new Object();
+    /* Number of background openings that failed, and the last failure, guarded by available */
+    private int openFailures = 0;
+    private IOException lastOpenFailure = null;
+    /* Runs the health checks and opens the connections added under load */
+    private final ScheduledExecutorService maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "client-pool");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean closed = false;
+
+    /**
+     * Constructs a pool with the default settings, between 1 and maxConnections connections.
+     *
+     * @param host the server hostname
+     * @param port the server port
+     * @param maxConnections the maximum number of connections
+     * @throws IOException if the first connection cannot be opened
+     */
+    public ClientPool(String host, int port, int maxConnections) throws IOException {
+        this(host, port, 1, maxConnections, DEFAULT_GROW_THRESHOLD, DEFAULT_HEALTH_CHECK_INTERVAL, DEFAULT_IDLE_TIMEOUT);
+    }
+
+    /**
+     * Constructs a pool and opens its initial connections.
+     *
+     * @param host the server hostname
+     * @param port the server port
+     * @param minConnections the number of connections kept open at all times
+     * @param maxConnections the maximum number of connections
+     * @param growThreshold the number of requests in flight on every connection before
+     *                      a new one is opened
+     * @param healthCheckInterval the interval between health checks, in milliseconds
+     * @param idleTimeout the time an extra connection stays open while idle, in milliseconds
+     * @throws IOException if the initial connections cannot be opened
+     */
+    public ClientPool(String host, int port, int minConnections, int maxConnections, int growThreshold,
+                      long healthCheckInterval, long idleTimeout) throws IOException {
+        if (minConnections < 1 || maxConnections < minConnections || growThreshold < 1) {
+            throw new IllegalArgumentException("Invalid pool size: " + minConnections + ".." + maxConnections);
+        }
+        this.host = host;
+        this.port = port;
+        this.minConnections = minConnections;
+        this.maxConnections = maxConnections;
+        this.growThreshold = growThreshold;
+        this.healthCheckInterval = healthCheckInterval;
+        this.idleTimeout = idleTimeout;
+
+        try {
+            for (int i = 0; i < minConnections; i++) {
+                openConnection();
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        maintenance.scheduleWithFixedDelay(this::checkHealth, healthCheckInterval, healthCheckInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a blocking request on the least-loaded connection.
+     *
+     * @param operation the request
+     * @return the result of the request
+     * @throws IOException if the request fails
+     */
+    public <T> T execute(Operation<T> operation) throws IOException {
+        PooledConnection connection = acquire();
+        try {
+            return operation.apply(connection.client);
+        } catch (IOException e) {
+            dropIfBroken(connection);
+            throw e;
+        } finally {
+            connection.release();
+        }
+    }
+
+    /**
+     * Issues an asynchronous request on the least-loaded connection. The connection counts
+     * the request as in flight until the returned future completes.
+     *
+     * @param operation the request
+     * @return the future result of the request
+     */
+    public <T> CompletableFuture<T> submit(Function<ClientLibrary, CompletableFuture<T>> operation) {
+        PooledConnection connection;
+        try {
+            connection = acquire();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<T> future;
+        try {
+            future = operation.apply(connection.client);
+        } catch (RuntimeException e) {
+            connection.release();
+            throw e;
+        }
+        future.whenComplete((result, error) -> {
+            connection.release();
+            if (error != null) {
+                dropIfBroken(connection);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Stores a value with the specified key in the server.
+     *
+     * @param key the key
+     * @param value the value
+     * @throws IOException if there is an issue storing the data
+     */
+    public void put(String key, byte[] value) throws IOException {
+        execute(client -> {
+            client.put(key, value);
+            return null;
+        });
+    }
+
+    /**
+     * Retrieves the value associated with the specified key from the server.
+     *
+     * @param key the key
+     * @return the value associated with the key, or null if the key does not exist
+     * @throws IOException if there is an issue retrieving the data
+     */
+    public byte[] get(String key) throws IOException {
+        return execute(client -> client.get(key));
+    }
+
+    /**
+     * Stores multiple key-value pairs in the server.
+     *
+     * @param pairs the key-value pairs
+     * @throws IOException if there is an issue storing the data
+     */
+    public void multiPut(Map<String, byte[]> pairs) throws IOException {
+        execute(client -> {
+            client.multiPut(pairs);
+            return null;
+        });
+    }
+
+    /**
+     * Retrieves multiple values associated with the specified keys from the server.
+     *
+     * @param keys the keys
+     * @return a map of key-value pairs
+     * @throws IOException if there is an issue retrieving the data
+     */
+    public Map<String, byte[]> multiGet(Set<String> keys) throws IOException {
+        return execute(client -> client.multiGet(keys));
+    }
+
+    /**
+     * Stores a value with the specified key in the server without waiting for it.
+     *
+     * @param key the key
+     * @param value the value
+     * @return a future completed once the server stored the value
+     */
+    public CompletableFuture<Void> putAsync(String key, byte[] value) {
+        return submit(client -> client.putAsync(key, value));
+    }
+
+    /**
+     * Retrieves the value associated with the specified key without waiting for it.
+     *
+     * @param key the key
+     * @return a future of the value, or of null if the key does not exist
+     */
+    public CompletableFuture<byte[]> getAsync(String key) {
+        return submit(client -> client.getAsync(key));
+    }
+
+    /**
+     * Retrieves multiple values associated with the specified keys without waiting for them.
+     *
+     * @param keys the keys
+     * @return a future of the map of key-value pairs
+     */
+    public CompletableFuture<Map<String, byte[]>> multiGetAsync(Set<String> keys) {
+        return submit(client -> client.multiGetAsync(keys));
+    }
+
+    /**
+     * Retrieves the value associated with the specified key once the condition key holds
+     * the condition value.
+     *
+     * @param key the key
+     * @param keyCond the key condition
+     * @param valueCond the value condition
+     * @return a future of the value, or of null if the key does not exist
+     */
+    public CompletableFuture<byte[]> getWhenAsync(String key, String keyCond, byte[] valueCond) {
+        return submit(client -> client.getWhenAsync(key, keyCond, valueCond));
+    }
+
+    /**
+     * Returns the number of open connections.
+     *
+     * @return the size of the pool
+     */
+    public int size() {
+        return connections.size();
+    }
+
+    /**
+     * Picks the connection with the fewest requests in flight and counts a new request
+     * on it. Starts opening another connection if every connection is loaded. If no
+     * connection is usable, because they were lost or are being pinged, opens one in the
+     * background and waits for up to a health check interval.
+     *
+     * @return the connection
+     * @throws IOException if the pool is closed, or no connection became usable in time
+     */
+    private PooledConnection acquire() throws IOException {
+        long deadline = 0;
+        int failures = 0;
+        while (true) {
+            if (closed) {
+                throw new IOException("Client pool is closed");
+            }
+            PooledConnection best = leastLoaded();
+            if (best != null) {
+                if (best.load.get() >= growThreshold && connections.size() < maxConnections) {
+                    grow();
+                }
+                if (best.claim()) {
+                    return best;
+                }
+                // Claimed for removal or for a health check since it was picked
+                continue;
+            }
+
+            synchronized (available) {
+                if (deadline == 0) {
+                    deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(healthCheckInterval);
+                    failures = openFailures;
+                } else if (openFailures != failures && connections.isEmpty()) {
+                    throw new IOException("Failed to open a pooled connection", lastOpenFailure);
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new IOException("No pooled connection became available");
+                }
+                if (connections.size() < maxConnections) {
+                    grow();
+                }
+                // Checked again under the lock, so that a connection released meanwhile is not missed
+                if (leastLoaded() == null && !closed) {
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(available, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while waiting for a pooled connection", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the usable connection with the fewest requests in flight.
+     *
+     * @return the connection, or null if every connection is lost, claimed for removal or
+     *         being pinged
+     */
+    private PooledConnection leastLoaded() {
+        PooledConnection best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        for (PooledConnection connection : connections) {
+            int load = connection.load.get();
+            if (load >= 0 && load < bestLoad) {
+                best = connection;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Wakes the requests waiting for a usable connection.
+     */
+    private void signalAvailable() {
+        synchronized (available) {
+            available.notifyAll();
+        }
+    }
+
+    /**
+     * Opens a new connection in the background, unless one is already being opened.
+     */
+    private void grow() {
+        if (!growing.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            maintenance.execute(() -> {
+                try {
+                    if (connections.size() < maxConnections) {
+                        openConnection();
+                        Logger.log("Client pool grew to " + connections.size() + " connection(s)", Logger.LogLevel.INFO);
+                    }
+                } catch (IOException e) {
+                    Logger.log("Failed to open pooled connection: " + e.getMessage(), Logger.LogLevel.ERROR);
+                    synchronized (available) {
+                        openFailures++;
+                        lastOpenFailure = e;
+                        available.notifyAll();
+                    }
+                } finally {
+                    growing.set(false);
+                }
+            });
+        } catch (java.util.concurrent.RejectedExecutionException e) {
+            // The pool was closed meanwhile
+            growing.set(false);
+        }
+    }
+
+    /**
+     * Opens a new connection and adds it to the pool once the server answers on it. The
+     * server only accepts a limited number of clients, and leaves the connections above
+     * that limit waiting unanswered, so those are never added.
+     *
+     * @throws IOException if the connection cannot be opened or the server does not answer
+     */
+    private synchronized void openConnection() throws IOException {
+        if (closed || connections.size() >= maxConnections) {
+            return;
+        }
+        ClientLibrary client = new ClientLibrary(host, port);
+        try {
+            client.pingAsync().get(healthCheckInterval, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            client.abort();
+            throw new IOException("Interrupted while opening pooled connection", e);
+        } catch (ExecutionException | TimeoutException e) {
+            client.abort();
+            throw new IOException("Server did not answer on a new connection", e);
+        }
+        connections.add(new PooledConnection(client));
+        signalAvailable();
+    }
+
+    /**
+     * Drops a connection from the pool if it was lost.
+     */
+    private void dropIfBroken(PooledConnection connection) {
+        if (!connection.client.isConnected()) {
+            remove(connection, false);
+            Logger.log("Dropped lost pooled connection", Logger.LogLevel.WARN);
+        }
+    }
+
+    /**
+     * Removes a connection from the pool and closes it.
+     *
+     * @param connection the connection
+     * @param graceful whether to disconnect from the server in the background, rather than
+     *                 dropping the connection right away
+     */
+    private void remove(PooledConnection connection, boolean graceful) {
+        if (!connections.remove(connection)) {
+            return;
+        }
+        if (!graceful) {
+            try {
+                connection.client.abort();
+            } catch (IOException e) {
+                Logger.log("Failed to close pooled connection: " + e.getMessage(), Logger.LogLevel.ERROR);
+            }
+            return;
+        }
+        Thread closer = new Thread(() -> {
+            try {
+                connection.client.close();
+            } catch (IOException e) {
+                Logger.log("Failed to close pooled connection: " + e.getMessage(), Logger.LogLevel.ERROR);
+            }
+        }, "client-pool-close");
+        closer.setDaemon(true);
+        closer.start();
+    }
+
+    /**
+     * Pings every idle connection, drops the ones that do not answer within a health check
+     * interval, closes the extra ones idle for too long and reopens connections up to
+     * minConnections. The idle connections are claimed before they are pinged, and pinged
+     * all at once, so a slow server holds the check for a single interval.
+     */
+    private void checkHealth() {
+        long now = System.currentTimeMillis();
+        Map<PooledConnection, CompletableFuture<Void>> pings = new HashMap<>();
+        for (PooledConnection connection : connections) {
+            if (connection.load.get() != 0) {
+                continue;
+            }
+            if (now - connection.lastUsed > idleTimeout && connections.size() > minConnections) {
+                // Claims the idle connection, unless a request was counted on it meanwhile
+                if (connection.load.compareAndSet(0, CLOSING)) {
+                    remove(connection, true);
+                }
+                continue;
+            }
+            if (connection.load.compareAndSet(0, PROBING)) {
+                pings.put(connection, connection.client.pingAsync());
+            }
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(healthCheckInterval);
+        for (Map.Entry<PooledConnection, CompletableFuture<Void>> ping : pings.entrySet()) {
+            PooledConnection connection = ping.getKey();
+            try {
+                ping.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                connection.load.set(0);
+                signalAvailable();
+            } catch (InterruptedException e) {
+                // The pool is closing
+                Thread.currentThread().interrupt();
+                connection.load.set(0);
+            } catch (ExecutionException | TimeoutException e) {
+                Logger.log("Pooled connection failed its health check: " + e, Logger.LogLevel.WARN);
+                remove(connection, false);
+            }
+        }
+        try {
+            while (!closed && connections.size() < minConnections) {
+                openConnection();
+            }
+        } catch (IOException e) {
+            Logger.log("Failed to reopen pooled connection: " + e.getMessage(), Logger.LogLevel.ERROR);
+        }
+    }
+
+    /**
+     * Closes every connection of the pool.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        maintenance.shutdownNow();
+        signalAvailable();
+        for (PooledConnection connection : connections) {
+            connections.remove(connection);
+            try {
+                connection.client.close();
+            } catch (IOException e) {
+                Logger.log("Failed to close pooled connection: " + e.getMessage(), Logger.LogLevel.ERROR);
+            }
+        }
+    }
+}
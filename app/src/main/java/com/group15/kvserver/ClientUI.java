@@ -104,18 +104,20 @@ public class ClientUI {
                         System.out.println("3. MultiPut");
                         System.out.println("4. MultiGet");
                         System.out.println("5. GetWhen");
-                        System.out.println("6. Exit");
+                        System.out.println("6. Stats");
+                        System.out.println("7. Shard stats");
+                        System.out.println("8. Exit");
 
                         try {
                             operation = scanner.nextInt();
                             scanner.nextLine();
-                            if (operation >= 1 && operation <= 6) {
+                            if (operation >= 1 && operation <= 8) {
                                 validChoice = true;
                             } else {
                                 System.out.println("Invalid operation! Please choose a valid operation.");
                             }
                         } catch (InputMismatchException e) {
-                            System.out.println("Invalid input! Please enter a valid number between 1 and 5.");
+                            System.out.println("Invalid input! Please enter a valid number between 1 and 8.");
                             scanner.nextLine();
                         }
                     }
@@ -221,6 +223,22 @@ public class ClientUI {
                             break;
 
                         case 6:
+                            try {
+                                System.out.print(client.getStats());
+                            } catch (IOException e) {
+                                System.out.println("Error during stats operation: " + e.getMessage());
+                            }
+                            break;
+
+                        case 7:
+                            try {
+                                System.out.println(client.getShardStats());
+                            } catch (IOException e) {
+                                System.out.println("Error during shard stats operation: " + e.getMessage());
+                            }
+                            break;
+
+                        case 8:
                             System.out.println("Disconnecting...");
                             try{
                                 client.sendDisconnectMessage();
@@ -0,0 +1,249 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The ClusterClient class gives access to a cluster of servers partitioned by consistent
+ * hashing, as if it were a single server.
+ *
+ * The partition map is read from any node of the cluster, then the client keeps a
+ * connection to every node. Single-key operations go straight to the node owning the key,
+ * and multi-key operations are split by node and sent to all of them in parallel. A
+ * multiPut whose pairs all belong to one node is sent to that node alone; one spanning
+ * several nodes is sent to the node owning most of its pairs, which commits it on every
+ * node or on none through two-phase commit.
+ *
+ * A standalone server is handled as a cluster of a single node.
+ */
+public class ClusterClient implements AutoCloseable {
+    /* The partition map of the cluster */
+    private final PartitionMap partitionMap;
+    /* The connection to each node, in the order of the partition map */
+    private final List<ClientLibrary> connections = new ArrayList<>();
+
+    /**
+     * Connects to a cluster.
+     *
+     * @param host the hostname of any node of the cluster
+     * @param port the port of that node
+     * @throws IOException if there is an issue connecting to the nodes
+     */
+    public ClusterClient(String host, int port) throws IOException {
+        ClientLibrary seed = new ClientLibrary(host, port);
+        PartitionMap map;
+        try {
+            map = seed.getPartitionMap();
+        } catch (IOException e) {
+            seed.abort();
+            throw e;
+        }
+        if (map == null) {
+            this.partitionMap = new PartitionMap(List.of(host + ":" + port), 1);
+            connections.add(seed);
+            return;
+        }
+
+        this.partitionMap = map;
+        seed.close();
+        try {
+            for (String node : map.nodes()) {
+                connections.add(new ClientLibrary(PartitionMap.parseHost(node), PartitionMap.parsePort(node)));
+            }
+        } catch (IOException e) {
+            for (ClientLibrary connection : connections) {
+                connection.abort();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the nodes of the cluster.
+     *
+     * @return the nodes, as host:port
+     */
+    public List<String> getNodes() {
+        return partitionMap.nodes();
+    }
+
+    /**
+     * Returns the node owning a key.
+     *
+     * @param key the key
+     * @return the node, as host:port
+     */
+    public String nodeFor(String key) {
+        return partitionMap.owner(key);
+    }
+
+    /**
+     * Returns the connection to the node owning a key.
+     */
+    private ClientLibrary connectionFor(String key) {
+        return connections.get(partitionMap.ownerIndex(key));
+    }
+
+    /**
+     * Registers a new user on the node owning the username.
+     *
+     * @param username the username
+     * @param password the password
+     * @return true if registration is successful, false otherwise
+     * @throws IOException if there is an issue during registration
+     */
+    public boolean register(String username, String password) throws IOException {
+        return connectionFor(username).register(username, password);
+    }
+
+    /**
+     * Authenticates a user on the node owning the username.
+     *
+     * @param username the username
+     * @param password the password
+     * @return true if authentication is successful, false otherwise
+     * @throws IOException if there is an issue during authentication
+     */
+    public boolean authenticate(String username, String password) throws IOException {
+        return connectionFor(username).authenticate(username, password);
+    }
+
+    /**
+     * Stores a value on the node owning the key.
+     *
+     * @param key the key
+     * @param value the value
+     * @throws IOException if there is an issue storing the data
+     */
+    public void put(String key, byte[] value) throws IOException {
+        connectionFor(key).put(key, value);
+    }
+
+    /**
+     * Stores a value on the node owning the key without waiting for it.
+     *
+     * @param key the key
+     * @param value the value
+     * @return a future completed once the node stored the value
+     */
+    public CompletableFuture<Void> putAsync(String key, byte[] value) {
+        return connectionFor(key).putAsync(key, value);
+    }
+
+    /**
+     * Retrieves a value from the node owning the key.
+     *
+     * @param key the key
+     * @return the value associated with the key, or null if the key does not exist
+     * @throws IOException if there is an issue retrieving the data
+     */
+    public byte[] get(String key) throws IOException {
+        return connectionFor(key).get(key);
+    }
+
+    /**
+     * Retrieves a value from the node owning the key without waiting for it.
+     *
+     * @param key the key
+     * @return a future of the value associated with the key, or of null if the key does not exist
+     */
+    public CompletableFuture<byte[]> getAsync(String key) {
+        return connectionFor(key).getAsync(key);
+    }
+
+    /**
+     * Stores multiple key-value pairs atomically.
+     *
+     * @param pairs the key-value pairs
+     * @throws IOException if there is an issue storing the data
+     */
+    public void multiPut(Map<String, byte[]> pairs) throws IOException {
+        ClientLibrary.await(multiPutAsync(pairs));
+    }
+
+    /**
+     * Stores multiple key-value pairs without waiting for them.
+     *
+     * @param pairs the key-value pairs
+     * @return a future completed once every node stored its pairs, or failed if the
+     *         multiPut was aborted by conflicting multiPuts, in which case no pair was stored
+     */
+    public CompletableFuture<Void> multiPutAsync(Map<String, byte[]> pairs) {
+        Map<Integer, Integer> pairsByNode = new HashMap<>();
+        for (String key : pairs.keySet()) {
+            pairsByNode.merge(partitionMap.ownerIndex(key), 1, Integer::sum);
+        }
+        if (pairsByNode.size() <= 1) {
+            // Fast path, the owner stores the batch atomically on its own
+            int node = pairsByNode.isEmpty() ? 0 : pairsByNode.keySet().iterator().next();
+            return connections.get(node).multiPutAsync(pairs);
+        }
+        // The node owning most pairs coordinates, so the fewest pairs travel twice
+        int coordinator = Collections.max(pairsByNode.entrySet(), Map.Entry.comparingByValue()).getKey();
+        return connections.get(coordinator).atomicMultiPutAsync(pairs);
+    }
+
+    /**
+     * Retrieves multiple values, asking every node for its keys in parallel.
+     *
+     * @param keys the keys
+     * @return a map of key-value pairs, without the keys that do not exist
+     * @throws IOException if there is an issue retrieving the data
+     */
+    public Map<String, byte[]> multiGet(Set<String> keys) throws IOException {
+        return ClientLibrary.await(multiGetAsync(keys));
+    }
+
+    /**
+     * Retrieves multiple values without waiting for them.
+     *
+     * @param keys the keys
+     * @return a future of the map of key-value pairs
+     */
+    public CompletableFuture<Map<String, byte[]>> multiGetAsync(Set<String> keys) {
+        Map<Integer, Set<String>> byNode = new HashMap<>();
+        for (String key : keys) {
+            byNode.computeIfAbsent(partitionMap.ownerIndex(key), node -> new LinkedHashSet<>()).add(key);
+        }
+        List<CompletableFuture<Map<String, byte[]>>> futures = new ArrayList<>(byNode.size());
+        for (Map.Entry<Integer, Set<String>> node : byNode.entrySet()) {
+            futures.add(connections.get(node.getKey()).multiGetAsync(node.getValue()));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            Map<String, byte[]> result = new HashMap<>();
+            for (CompletableFuture<Map<String, byte[]>> future : futures) {
+                result.putAll(future.join());
+            }
+            return result;
+        });
+    }
+
+    /**
+     * Closes the connections to every node.
+     *
+     * @throws IOException if there is an issue closing a connection
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (ClientLibrary connection : connections) {
+            try {
+                connection.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
@@ -1,69 +1,192 @@
 package com.group15.kvserver;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.util.Map;
-import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import com.group15.kvserver.utils.Logger;
 
 /**
  * The Demultiplexer class is responsible for managing incoming and outgoing messages
- * over a tagged connection. It decouples the reception of messages into multiple queues
- * based on their tags, allowing different components to handle messages independently.
- * 
+ * over a tagged connection.
+ *
+ * On the client side, each request in flight registers a handler under its tag, and the
+ * reader thread hands every frame straight to the handler of its tag: a single response
+ * completes a future, while scans, chunked transfers and watches receive a stream of frames.
+ * Handlers are removed as soon as their last frame arrives, or an error frame failing
+ * their request, the other requests of the connection going on. On the server side,
+ * every frame goes to a single inbox, taken in the order the frames were received.
+ *
  * This class implements AutoCloseable to ensure proper resource management (such as closing
  * connections and stopping threads when no longer needed).
  */
 public class Demultiplexer implements AutoCloseable {
+    /**
+     * Receives the frames of a tag.
+     */
+    interface FrameHandler {
+        /**
+         * Handles a frame. Called by the reader thread.
+         *
+         * @param data The frame data.
+         * @return true if more frames are expected on the tag, false to remove the handler.
+         */
+        boolean onFrame(byte[] data);
+
+        /**
+         * Called when the connection is lost while the handler is registered.
+         *
+         * @param cause The reason the connection was lost.
+         */
+        void onClose(IOException cause);
+
+        /**
+         * Called when the server failed the request of the tag, the connection staying
+         * open. The handler is removed afterwards.
+         *
+         * @param cause The reason the request failed.
+         */
+        default void onError(IOException cause) {
+            onClose(cause);
+        }
+    }
+
+    /**
+     * A handler completed by the single response of a request.
+     */
+    static class ResponseFuture extends CompletableFuture<byte[]> implements FrameHandler {
+        @Override
+        public boolean onFrame(byte[] data) {
+            complete(data);
+            return false;
+        }
+
+        @Override
+        public void onClose(IOException cause) {
+            completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * A handler buffering the frames of a stream until they are taken.
+     */
+    static class FrameStream implements FrameHandler {
+        /* Marks the end of the frames of a stream whose connection was lost */
+        private static final byte[] CLOSED = new byte[0];
+
+        private final BlockingQueue<byte[]> frames = new LinkedBlockingQueue<>();
+        private volatile IOException failure;
+
+        @Override
+        public boolean onFrame(byte[] data) {
+            frames.add(data);
+            return true;
+        }
+
+        @Override
+        public void onClose(IOException cause) {
+            failure = cause;
+            frames.add(CLOSED);
+        }
+
+        /**
+         * Takes the next frame of the stream, blocking until it arrives.
+         *
+         * @return The frame data.
+         * @throws IOException If the connection was lost or the thread was interrupted.
+         */
+        byte[] take() throws IOException {
+            byte[] data;
+            try {
+                data = frames.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for response", e);
+            }
+            if (data == CLOSED) {
+                frames.add(CLOSED);
+                throw failure;
+            }
+            return data;
+        }
+    }
+
+    /* Number of frames the inbox holds before the reader stops reading the connection */
+    private static final int INBOX_CAPACITY = 1024;
+    /* Marks the end of the inbox once the connection is closed */
+    private static final TaggedConnection.Frame END = new TaggedConnection.Frame(0, (short) 0, new byte[0]);
+
     /* The connection used to send/receive messages. */
     private final TaggedConnection conn;
-    /* A map of queues for storing incoming messages based on their tags. */
-    private final Map<Integer, BlockingQueue<byte[]>> queues = new ConcurrentHashMap<>();
+    /* Whether frames are routed to handlers by tag rather than queued in the inbox */
+    private final boolean routeByTag;
+    /* The handlers of the requests in flight, by tag */
+    private final InFlightTable<FrameHandler> inFlight = new InFlightTable<>();
+    /* The frames received, in order, when they are not routed by tag */
+    private final BlockingQueue<TaggedConnection.Frame> inbox = new LinkedBlockingQueue<>(INBOX_CAPACITY);
     /* A thread for reading incoming messages from the connection. */
     private final Thread readerThread;
     /* A flag indicating whether the demultiplexer is closed. */
     private volatile boolean closed = false;
-    /* The client library used to handle responses. */
-    private ClientLibrary clientLibrary = null;
+    /* Set once the connection is lost, fails the handlers registered afterwards */
+    private volatile IOException failure = null;
 
     /**
-     * Constructs a Demultiplexer with the given TaggedConnection.
+     * Constructs a Demultiplexer with the given TaggedConnection, queuing every frame
+     * received in the inbox.
      * Initializes the reader thread to handle message reception.
-     * 
+     *
      * @param conn The tagged connection used for communication.
      */
     public Demultiplexer(TaggedConnection conn) {
-        this.conn = conn;
-        this.readerThread = new Thread(this::reader);
-        this.readerThread.start();
+        this(conn, false);
     }
 
     /**
-     * Sets the ClientLibrary instance to interact with the client application.
-     * 
-     * @param clientLibrary The client library to be set.
+     * Constructs a Demultiplexer with the given TaggedConnection.
+     * Initializes the reader thread to handle message reception.
+     *
+     * @param conn The tagged connection used for communication.
+     * @param routeByTag Whether frames are handed to the handlers registered for their tag,
+     *                   rather than queued in the inbox.
      */
-    public void setClientLibrary(ClientLibrary clientLibrary) {
-        this.clientLibrary = clientLibrary;
+    public Demultiplexer(TaggedConnection conn, boolean routeByTag) {
+        this.conn = conn;
+        this.routeByTag = routeByTag;
+        this.readerThread = new Thread(this::reader);
+        this.readerThread.start();
     }
 
     /**
      * The reader method that continuously listens for incoming messages on the connection.
-     * When a message is received, it is added to the corresponding queue based on the tag
-     * and forwarded to the client library if necessary.
+     * When a message is received, it is handed to the handler of its tag, or added to the
+     * inbox.
      */
     public void reader() {
+        IOException cause = new IOException("Connection closed");
         try {
             while (!closed) {
                 try{
                     TaggedConnection.Frame frame = conn.receive();
-                    BlockingQueue<byte[]> queue = queues.computeIfAbsent(frame.tag, k -> new ArrayBlockingQueue<>(1024));
-                    queue.put(frame.data);
-
-                    if (clientLibrary != null) clientLibrary.addResponse(frame.tag, frame.data);
+                    if (!routeByTag) {
+                        inbox.put(frame);
+                        continue;
+                    }
+                    FrameHandler handler = inFlight.get(frame.tag);
+                    if (handler == null) {
+                        // Late frames of a stream that was already closed
+                        continue;
+                    }
+                    if (frame.requestType == RequestType.ErrorResponse.getValue()) {
+                        inFlight.remove(frame.tag);
+                        handler.onError(new IOException(new DataInputStream(new ByteArrayInputStream(frame.data)).readUTF()));
+                    } else if (!handler.onFrame(frame.data)) {
+                        inFlight.remove(frame.tag);
+                    }
                 } catch (EOFException e) {
                     Thread.currentThread().interrupt();
                     break;
@@ -72,10 +195,32 @@ public class Demultiplexer implements AutoCloseable {
         } catch (IOException | InterruptedException e) {
             if (!closed) {
                 e.printStackTrace();
+                cause = new IOException("Connection lost", e);
             }
         }
         finally{
-            queues.values().forEach(q -> q.clear());
+            failure = cause;
+            for (FrameHandler handler : inFlight.clear()) {
+                handler.onClose(cause);
+            }
+            if (!routeByTag) {
+                endInbox();
+            }
+        }
+    }
+
+    /**
+     * Adds the end marker after the frames left in the inbox, waiting for room unless
+     * the demultiplexer gets closed meanwhile.
+     */
+    private void endInbox() {
+        while (!closed) {
+            try {
+                inbox.put(END);
+                return;
+            } catch (InterruptedException e) {
+                // Retry, only closing the demultiplexer stops the wait
+            }
         }
     }
 
@@ -88,9 +233,67 @@ public class Demultiplexer implements AutoCloseable {
         }
     }
 
+    /**
+     * Registers the handler of the frames of a tag. Must be called before the request
+     * is sent.
+     *
+     * @param tag The tag.
+     * @param handler The handler.
+     * @throws IOException If the connection is already lost.
+     */
+    void register(int tag, FrameHandler handler) throws IOException {
+        inFlight.put(tag, handler);
+        // Checked after registering, so either this or the reader fails the handler
+        IOException lost = failure;
+        if (lost != null) {
+            inFlight.remove(tag);
+            throw lost;
+        }
+    }
+
+    /**
+     * Removes the handler of a tag. Frames received for the tag afterwards are dropped.
+     *
+     * @param tag The tag.
+     */
+    void unregister(int tag) {
+        inFlight.remove(tag);
+    }
+
+    /**
+     * Registers a new stream of frames on a tag.
+     *
+     * @param tag The tag.
+     * @return The stream.
+     * @throws IOException If the connection is already lost.
+     */
+    FrameStream openStream(int tag) throws IOException {
+        FrameStream stream = new FrameStream();
+        register(tag, stream);
+        return stream;
+    }
+
+    /**
+     * Returns whether the connection is still usable.
+     *
+     * @return false once the demultiplexer is closed or the connection is lost.
+     */
+    boolean isOpen() {
+        return !closed && failure == null;
+    }
+
+    /**
+     * Returns the number of requests in flight.
+     *
+     * @return The number of registered handlers.
+     */
+    int inFlightCount() {
+        return inFlight.size();
+    }
+
     /**
      * Sends a TaggedConnection frame over the connection.
-     * 
+     *
      * @param frame The frame to be sent.
      * @throws IOException If an error occurs during sending.
      */
@@ -100,7 +303,7 @@ public class Demultiplexer implements AutoCloseable {
 
     /**
      * Sends a tagged frame with a specific request type and data.
-     * 
+     *
      * @param tag The tag associated with the request.
      * @param request The request type (short).
      * @param data The data to be sent.
@@ -111,43 +314,52 @@ public class Demultiplexer implements AutoCloseable {
     }
 
     /**
-     * Receives data associated with a specific tag from the demultiplexer.
-     * Blocks until the data is available.
-     * 
-     * @param tag The tag to receive data for.
-     * @return The data associated with the tag.
-     * @throws IOException If an error occurs during reception.
-     * @throws InterruptedException If the thread is interrupted while waiting.
+     * Sends a tagged frame whose payload is a slice of the given array.
+     *
+     * @param tag The tag associated with the request.
+     * @param request The request type (short).
+     * @param data The array holding the data to be sent.
+     * @param offset The offset of the data in the array.
+     * @param length The length of the data.
+     * @throws IOException If an error occurs during sending.
      */
-    public byte[] receive(int tag) throws IOException, InterruptedException {
-        BlockingQueue<byte[]> queue = queues.computeIfAbsent(tag, k -> new ArrayBlockingQueue<>(1024));
-        return queue.take();
+    public void send(int tag, short request, byte[] data, int offset, int length) throws IOException {
+        conn.send(tag, request, data, offset, length);
     }
 
     /**
-     * Receives any data from the demultiplexer, regardless of the tag.
-     * Blocks until data is available.
-     * 
-     * @return A frame containing the tag and data received.
+     * Sends a tagged frame carrying a trace context in its header.
+     *
+     * @param tag The tag associated with the request.
+     * @param request The request type (short).
+     * @param data The data to be sent.
+     * @param trace The trace context, or null to send a plain frame.
+     * @throws IOException If an error occurs during sending.
+     */
+    void send(int tag, short request, byte[] data, TraceContext trace) throws IOException {
+        conn.send(tag, request, data, 0, data.length, trace);
+    }
+
+    /**
+     * Receives the next frame of the inbox, regardless of the tag.
+     * Blocks until a frame is available.
+     *
+     * @return The next frame, or null once the connection is closed and every frame
+     *         received was taken.
      * @throws InterruptedException If the thread is interrupted while waiting.
      */
     public TaggedConnection.Frame receiveAny() throws InterruptedException {
-        while (!closed) {
-            for (Map.Entry<Integer, BlockingQueue<byte[]>> entry : queues.entrySet()) {
-                BlockingQueue<byte[]> queue = entry.getValue();
-                byte[] data = queue.poll();
-    
-                if (data != null) {
-                    return new TaggedConnection.Frame(entry.getKey(), (short) 0, data);
-                }
-            }
+        TaggedConnection.Frame frame = inbox.take();
+        if (frame == END) {
+            inbox.offer(END);
+            return null;
         }
-        throw new InterruptedException("Demultiplexer is closed.");
-    }  
+        return frame;
+    }
 
     /**
      * Closes the demultiplexer, stopping the reader thread and closing the connection.
-     * 
+     *
      * @throws IOException If an error occurs while closing the connection.
      */
     @Override
@@ -157,4 +369,4 @@ public class Demultiplexer implements AutoCloseable {
         conn.close();
         Logger.log("Connection closed successfully.", Logger.LogLevel.INFO);
     }
-}
\ No newline at end of file
+}
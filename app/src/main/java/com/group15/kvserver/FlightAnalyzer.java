@@ -0,0 +1,194 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+/**
+ * Summarizes the flight events of a server recording into per-shard hotspots.
+ *
+ * For each database shard, reports the waits for its lock, how many of them were for the
+ * write lock, the request type that waited the most, the slow requests on its keys and
+ * the getWhen requests that waited on it, ranked by the total time lost. Then it reports
+ * the keys, by hash code, with the most slow requests, the slow requests by type, and the
+ * slow frame sends and receives. Only the events longer than the thresholds of the
+ * recording are in it, so these are the hotspots, not totals.
+ *
+ * Usage: FlightAnalyzer <recording.jfr> [top]
+ */
+public class FlightAnalyzer {
+    /**
+     * The events of one kind aggregated under one key.
+     */
+    private static class Total {
+        long count;
+        long nanos;
+        long maxNanos;
+        long bytes;
+
+        void add(Duration duration, long eventBytes) {
+            long eventNanos = duration.toNanos();
+            count++;
+            nanos += eventNanos;
+            maxNanos = Math.max(maxNanos, eventNanos);
+            bytes += eventBytes;
+        }
+    }
+
+    /**
+     * The hotspots of a shard.
+     */
+    private static class Shard {
+        final int index;
+        final Total lockWaits = new Total();
+        long writeLockWaits;
+        final Map<String, Total> lockWaitsByType = new HashMap<>();
+        final Total slowRequests = new Total();
+        final Total getWhenWaits = new Total();
+
+        Shard(int index) {
+            this.index = index;
+        }
+
+        long lostNanos() {
+            return lockWaits.nanos + slowRequests.nanos;
+        }
+    }
+
+    private final Map<Integer, Shard> shards = new HashMap<>();
+    private final Map<Integer, Total> slowKeys = new HashMap<>();
+    private final Map<Integer, Integer> shardOfKey = new HashMap<>();
+    private final Map<String, Total> slowRequestsByType = new HashMap<>();
+    private final Total frameSends = new Total();
+    private final Total frameReceives = new Total();
+
+    /**
+     * Main entry point for the analyzer.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("Usage: FlightAnalyzer <recording.jfr> [top]");
+            return;
+        }
+        int top = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        FlightAnalyzer analyzer = new FlightAnalyzer();
+        analyzer.read(Paths.get(args[0]));
+        System.out.print(analyzer.report(top));
+    }
+
+    /**
+     * Aggregates the server events of a recording.
+     *
+     * @param file The recording.
+     */
+    void read(Path file) throws IOException {
+        try (RecordingFile recording = new RecordingFile(file)) {
+            while (recording.hasMoreEvents()) {
+                RecordedEvent event = recording.readEvent();
+                switch (event.getEventType().getName()) {
+                    case FlightEvents.SHARD_LOCK_WAIT: {
+                        Shard shard = shard(event.getInt("shard"));
+                        shard.lockWaits.add(event.getDuration(), 0);
+                        if (event.getBoolean("write")) {
+                            shard.writeLockWaits++;
+                        }
+                        String type = event.getString("requestType");
+                        shard.lockWaitsByType.computeIfAbsent(type != null ? type : "(no request)", k -> new Total())
+                                .add(event.getDuration(), 0);
+                        break;
+                    }
+                    case FlightEvents.REQUEST: {
+                        long bytes = event.getLong("requestBytes") + event.getLong("responseBytes");
+                        slowRequestsByType.computeIfAbsent(event.getString("requestType"), k -> new Total())
+                                .add(event.getDuration(), bytes);
+                        int shardIndex = event.getInt("shard");
+                        if (shardIndex >= 0) {
+                            shard(shardIndex).slowRequests.add(event.getDuration(), bytes);
+                            int keyHash = event.getInt("keyHash");
+                            slowKeys.computeIfAbsent(keyHash, k -> new Total()).add(event.getDuration(), bytes);
+                            shardOfKey.put(keyHash, shardIndex);
+                        }
+                        break;
+                    }
+                    case FlightEvents.GET_WHEN_WAIT:
+                        shard(event.getInt("shard")).getWhenWaits.add(event.getDuration(), event.getLong("responseBytes"));
+                        break;
+                    case FlightEvents.FRAME_SEND:
+                        frameSends.add(event.getDuration(), event.getLong("bytes"));
+                        break;
+                    case FlightEvents.FRAME_RECEIVE:
+                        frameReceives.add(event.getDuration(), event.getLong("bytes"));
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
+    private Shard shard(int index) {
+        return shards.computeIfAbsent(index, Shard::new);
+    }
+
+    /**
+     * Formats the hotspots, the top of each ranking only.
+     *
+     * @param top The number of entries of each ranking.
+     * @return The report.
+     */
+    String report(int top) {
+        StringBuilder builder = new StringBuilder();
+        List<Shard> ranked = new ArrayList<>(shards.values());
+        ranked.sort(Comparator.comparingLong(Shard::lostNanos).reversed());
+        builder.append(String.format("Shards, by time lost to lock waits and slow requests (%d of %d)%n", Math.min(top, ranked.size()), ranked.size()));
+        builder.append(String.format("%5s %10s %10s %9s %8s  %-24s %9s %10s %9s %11s%n", "shard", "lock waits", "wait ms",
+                "max ms", "writes", "most waiting type", "slow reqs", "slow ms", "getWhens", "getWhen ms"));
+        for (Shard shard : ranked.subList(0, Math.min(top, ranked.size()))) {
+            String waitingType = shard.lockWaitsByType.entrySet().stream()
+                    .max(Comparator.comparingLong(entry -> entry.getValue().nanos))
+                    .map(Map.Entry::getKey).orElse("-");
+            builder.append(String.format("%5d %10d %10.1f %9.1f %8d  %-24s %9d %10.1f %9d %11.1f%n", shard.index,
+                    shard.lockWaits.count, millis(shard.lockWaits.nanos), millis(shard.lockWaits.maxNanos), shard.writeLockWaits,
+                    waitingType, shard.slowRequests.count, millis(shard.slowRequests.nanos), shard.getWhenWaits.count,
+                    millis(shard.getWhenWaits.nanos)));
+        }
+
+        List<Map.Entry<Integer, Total>> keys = new ArrayList<>(slowKeys.entrySet());
+        keys.sort(Comparator.comparingLong((Map.Entry<Integer, Total> entry) -> entry.getValue().nanos).reversed());
+        builder.append(String.format("%nKeys, by time of their slow requests (%d of %d)%n", Math.min(top, keys.size()), keys.size()));
+        builder.append(String.format("%11s %5s %9s %10s %9s%n", "key hash", "shard", "slow reqs", "slow ms", "max ms"));
+        for (Map.Entry<Integer, Total> key : keys.subList(0, Math.min(top, keys.size()))) {
+            Total total = key.getValue();
+            builder.append(String.format("%11d %5d %9d %10.1f %9.1f%n", key.getKey(), shardOfKey.get(key.getKey()),
+                    total.count, millis(total.nanos), millis(total.maxNanos)));
+        }
+
+        List<Map.Entry<String, Total>> types = new ArrayList<>(slowRequestsByType.entrySet());
+        types.sort(Comparator.comparingLong((Map.Entry<String, Total> entry) -> entry.getValue().nanos).reversed());
+        builder.append(String.format("%nSlow requests by type%n"));
+        builder.append(String.format("%-26s %9s %10s %9s %12s%n", "type", "count", "total ms", "max ms", "bytes"));
+        for (Map.Entry<String, Total> type : types) {
+            Total total = type.getValue();
+            builder.append(String.format("%-26s %9d %10.1f %9.1f %12d%n", type.getKey(), total.count, millis(total.nanos),
+                    millis(total.maxNanos), total.bytes));
+        }
+
+        builder.append(String.format("%nSlow frames: %d sends, %.1f ms, max %.1f ms, %d bytes; %d receives, %.1f ms, max %.1f ms, %d bytes%n",
+                frameSends.count, millis(frameSends.nanos), millis(frameSends.maxNanos), frameSends.bytes,
+                frameReceives.count, millis(frameReceives.nanos), millis(frameReceives.maxNanos), frameReceives.bytes));
+        return builder.toString();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
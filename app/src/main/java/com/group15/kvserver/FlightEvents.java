@@ -0,0 +1,205 @@
+package com.group15.kvserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * The Java Flight Recorder events of the server and the connections.
+ *
+ * The events are timed, and only recorded when a recording is running and they last
+ * longer than their threshold, which a recording may change. Otherwise creating, beginning
+ * and ending an event costs a check of a flag, so they are always emitted. Fields are only
+ * filled in once an event is known to be recorded.
+ *
+ * A recording may be started with -XX:StartFlightRecording, or with the server's --jfr
+ * option, which records these events with their default thresholds, and FlightAnalyzer
+ * summarizes a recording into per-shard hotspots.
+ */
+final class FlightEvents {
+    /* Names of the events */
+    static final String REQUEST = "kvserver.Request";
+    static final String SHARD_LOCK_WAIT = "kvserver.ShardLockWait";
+    static final String GET_WHEN_WAIT = "kvserver.GetWhenWait";
+    static final String FRAME_SEND = "kvserver.FrameSend";
+    static final String FRAME_RECEIVE = "kvserver.FrameReceive";
+
+    private FlightEvents() {
+    }
+
+    @Name(REQUEST)
+    @Label("Request")
+    @Category("KV Server")
+    @Description("A request handled by a server worker, until its response is ready or deferred")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class RequestEvent extends Event {
+        @Label("Request Type")
+        String requestType;
+        @Label("Tag")
+        int tag;
+        @Label("Key Hash")
+        @Description("Hash code of the key of a single-key request, 0 otherwise")
+        int keyHash;
+        @Label("Shard")
+        @Description("Database shard of the key of a single-key request, -1 otherwise")
+        int shard;
+        @Label("Request Bytes")
+        @DataAmount
+        long requestBytes;
+        @Label("Response Bytes")
+        @DataAmount
+        long responseBytes;
+    }
+
+    @Name(SHARD_LOCK_WAIT)
+    @Label("Shard Lock Wait")
+    @Category("KV Server")
+    @Description("A wait for the lock of a database shard held by another thread")
+    @StackTrace(false)
+    @Threshold("100 us")
+    static class ShardLockWaitEvent extends Event {
+        @Label("Shard")
+        int shard;
+        @Label("Write")
+        boolean write;
+        @Label("Request Type")
+        @Description("The request the waiting thread was handling, if any")
+        String requestType;
+        @Label("Tag")
+        int tag;
+    }
+
+    @Name(GET_WHEN_WAIT)
+    @Label("GetWhen Wait")
+    @Category("KV Server")
+    @Description("A getWhen request waiting for its condition to be met")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class GetWhenWaitEvent extends Event {
+        @Label("Tag")
+        int tag;
+        @Label("Key Hash")
+        @Description("Hash code of the key of the condition")
+        int keyHash;
+        @Label("Shard")
+        int shard;
+        @Label("Response Bytes")
+        @DataAmount
+        long responseBytes;
+    }
+
+    @Name(FRAME_SEND)
+    @Label("Frame Send")
+    @Category("KV Server")
+    @Description("A frame written to a connection, waiting for other senders included")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class FrameSendEvent extends Event {
+        @Label("Request Type")
+        String requestType;
+        @Label("Tag")
+        int tag;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name(FRAME_RECEIVE)
+    @Label("Frame Receive")
+    @Category("KV Server")
+    @Description("A frame read from a connection, from its header until its last byte")
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class FrameReceiveEvent extends Event {
+        @Label("Request Type")
+        String requestType;
+        @Label("Tag")
+        int tag;
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    /**
+     * Returns the name of a request type.
+     */
+    static String typeName(int requestType) {
+        RequestType[] types = RequestType.values();
+        return requestType >= 0 && requestType < types.length ? types[requestType].name() : Integer.toString(requestType);
+    }
+
+    /**
+     * Tells whether a request type carries a single key, first in its payload.
+     */
+    static boolean isSingleKey(RequestType type) {
+        switch (type) {
+            case PutRequest:
+            case GetRequest:
+            case GetWhenRequest:
+            case CompareAndSetRequest:
+            case IncrementRequest:
+            case AppendRequest:
+            case GetVersionedRequest:
+            case GetTrackedRequest:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Reads the key of a single-key request.
+     *
+     * @param data The payload of the request, starting with its type.
+     * @return The key, or null if the request carries no single key.
+     */
+    static String keyOf(RequestType type, byte[] data) {
+        if (!isSingleKey(type)) {
+            return null;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, 2, data.length - 2));
+            return in.readUTF();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Starts recording the events of this class, with their default thresholds, into a file
+     * written when the process exits.
+     *
+     * @param file The file to write the recording to.
+     * @throws IOException If the file cannot be written.
+     */
+    static void startRecording(Path file) throws IOException {
+        Recording recording = new Recording();
+        recording.setName("kvserver");
+        for (Class<? extends Event> event : java.util.List.of(RequestEvent.class, ShardLockWaitEvent.class,
+                GetWhenWaitEvent.class, FrameSendEvent.class, FrameReceiveEvent.class)) {
+            recording.enable(event);
+        }
+        recording.enable("jdk.JavaMonitorEnter").withThreshold(Duration.ofMillis(1));
+        recording.enable("jdk.GarbageCollection");
+        recording.setToDisk(true);
+        recording.setDestination(file);
+        recording.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(recording::stop));
+        Logger.log("Recording flight events to " + file, Logger.LogLevel.INFO);
+    }
+}
@@ -0,0 +1,159 @@
+package com.group15.kvserver;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A table of the requests in flight on a connection, keyed by their int tag.
+ *
+ * Tags are kept in a primitive array with open addressing and linear probing, so neither
+ * lookups nor insertions box the tag or allocate a node. Entries are removed with backward
+ * shifting instead of tombstones, so the table only ever holds the requests currently in
+ * flight and its capacity stays bounded by the peak number of concurrent requests, however
+ * many requests go through it. All operations are synchronized and constant time.
+ *
+ * @param <T> The type of the entries.
+ */
+class InFlightTable<T> {
+    /* Initial number of slots */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /* Tag of each slot */
+    private int[] tags = new int[INITIAL_CAPACITY];
+    /* Entry of each slot, null if the slot is empty */
+    private Object[] entries = new Object[INITIAL_CAPACITY];
+    /* Number of entries */
+    private int size = 0;
+
+    /**
+     * Adds an entry, replacing the entry with the same tag if any.
+     *
+     * @param tag The tag.
+     * @param entry The entry.
+     */
+    synchronized void put(int tag, T entry) {
+        if ((size + 1) * 2 > entries.length) {
+            resize(entries.length * 2);
+        }
+        int slot = find(tag);
+        if (entries[slot] == null) {
+            size++;
+        }
+        tags[slot] = tag;
+        entries[slot] = entry;
+    }
+
+    /**
+     * Returns the entry of a tag.
+     *
+     * @param tag The tag.
+     * @return The entry, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized T get(int tag) {
+        return (T) entries[find(tag)];
+    }
+
+    /**
+     * Removes the entry of a tag.
+     *
+     * @param tag The tag.
+     * @return The removed entry, or null if there was none.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized T remove(int tag) {
+        int slot = find(tag);
+        T entry = (T) entries[slot];
+        if (entry == null) {
+            return null;
+        }
+        size--;
+
+        // Shift back the following entries of the probe sequence into the freed slot
+        int mask = entries.length - 1;
+        int free = slot;
+        int next = (free + 1) & mask;
+        while (entries[next] != null) {
+            int home = slot(tags[next], mask);
+            // Move the entry unless its home slot lies cyclically in (free, next]
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                tags[free] = tags[next];
+                entries[free] = entries[next];
+                free = next;
+            }
+            next = (next + 1) & mask;
+        }
+        entries[free] = null;
+        return entry;
+    }
+
+    /**
+     * Removes every entry.
+     *
+     * @return The removed entries.
+     */
+    @SuppressWarnings("unchecked")
+    synchronized List<T> clear() {
+        List<T> removed = new ArrayList<>(size);
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] != null) {
+                removed.add((T) entries[i]);
+                entries[i] = null;
+            }
+        }
+        size = 0;
+        return removed;
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Finds the slot of a tag.
+     *
+     * @return The slot holding the tag, or the empty slot where it would be inserted.
+     */
+    private int find(int tag) {
+        int mask = entries.length - 1;
+        int slot = slot(tag, mask);
+        while (entries[slot] != null && tags[slot] != tag) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Moves the entries into arrays with the given number of slots.
+     */
+    private void resize(int capacity) {
+        int[] oldTags = tags;
+        Object[] oldEntries = entries;
+        tags = new int[capacity];
+        entries = new Object[capacity];
+        int mask = capacity - 1;
+        for (int i = 0; i < oldEntries.length; i++) {
+            if (oldEntries[i] != null) {
+                int slot = slot(oldTags[i], mask);
+                while (entries[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                tags[slot] = oldTags[i];
+                entries[slot] = oldEntries[i];
+            }
+        }
+    }
+
+    /**
+     * Returns the home slot of a tag. Tags are mostly consecutive, the multiplication
+     * spreads them so that runs of tags do not form long probe sequences once some of them
+     * are removed. Package-private so that the tests can build colliding tags.
+     */
+    static int slot(int tag, int mask) {
+        int h = tag * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
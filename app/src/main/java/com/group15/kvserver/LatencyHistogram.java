@@ -0,0 +1,152 @@
+package com.group15.kvserver;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A histogram of latencies in nanoseconds, with buckets of logarithmic width.
+ *
+ * Values below 2^SUB_BUCKET_BITS nanoseconds get a bucket each. Above, every power of two
+ * is split into 2^(SUB_BUCKET_BITS - 1) buckets of equal width, so a value is known within
+ * about 6% whatever its magnitude, from nanoseconds to hours, in under a thousand buckets.
+ * Percentiles are reported as the highest value of their bucket.
+ */
+public class LatencyHistogram {
+    /* Bits of precision of a bucket */
+    static final int SUB_BUCKET_BITS = 5;
+    /* Number of buckets covering every positive long */
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * (1 << (SUB_BUCKET_BITS - 1)) + (1 << SUB_BUCKET_BITS);
+
+    private final long[] counts;
+    private final long count;
+
+    /**
+     * Constructs a histogram from its bucket counts.
+     *
+     * @param counts The count of each bucket, BUCKETS of them.
+     */
+    LatencyHistogram(long[] counts) {
+        this.counts = counts;
+        long total = 0;
+        for (long bucketCount : counts) {
+            total += bucketCount;
+        }
+        this.count = total;
+    }
+
+    /**
+     * Returns the bucket of a value.
+     *
+     * @param value The value, negative values count as 0.
+     */
+    static int bucketOf(long value) {
+        if (value < (1L << SUB_BUCKET_BITS)) {
+            return (int) Math.max(0, value);
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift << (SUB_BUCKET_BITS - 1)) + (int) (value >>> shift);
+    }
+
+    /**
+     * Returns the highest value of a bucket.
+     */
+    static long highestValueOf(int bucket) {
+        if (bucket < (1 << SUB_BUCKET_BITS)) {
+            return bucket;
+        }
+        int shift = (bucket >>> (SUB_BUCKET_BITS - 1)) - 1;
+        long mantissa = bucket - ((long) shift << (SUB_BUCKET_BITS - 1));
+        return ((mantissa + 1) << shift) - 1;
+    }
+
+    /**
+     * @return the number of values recorded
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the value below or at which a given share of the values fall.
+     *
+     * @param percentile the share, from 0 to 100
+     * @return the value in nanoseconds, 0 if the histogram is empty
+     */
+    public long getValueAtPercentile(double percentile) {
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return highestValueOf(bucket);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the highest value recorded, in nanoseconds, 0 if the histogram is empty
+     */
+    public long getMax() {
+        for (int bucket = counts.length - 1; bucket >= 0; bucket--) {
+            if (counts[bucket] > 0) {
+                return highestValueOf(bucket);
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return the mean of the values recorded, in nanoseconds, 0 if the histogram is empty
+     */
+    public double getMean() {
+        if (count == 0) {
+            return 0;
+        }
+        double sum = 0;
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            sum += (double) counts[bucket] * highestValueOf(bucket);
+        }
+        return sum / count;
+    }
+
+    /**
+     * Writes the non-empty buckets of a histogram.
+     *
+     * N BUCKETS | BUCKET | COUNT | ...
+     *
+     * @param out The stream to write to.
+     * @param counts The count of each bucket.
+     */
+    static void write(DataOutputStream out, long[] counts) throws IOException {
+        int used = 0;
+        for (long bucketCount : counts) {
+            if (bucketCount > 0) {
+                used++;
+            }
+        }
+        out.writeShort(used);
+        for (int bucket = 0; bucket < counts.length; bucket++) {
+            if (counts[bucket] > 0) {
+                out.writeShort(bucket);
+                out.writeLong(counts[bucket]);
+            }
+        }
+    }
+
+    /**
+     * Reads a histogram written by write.
+     *
+     * @param in The stream to read from.
+     * @return The histogram.
+     */
+    static LatencyHistogram read(DataInputStream in) throws IOException {
+        long[] counts = new long[BUCKETS];
+        int used = in.readUnsignedShort();
+        for (int i = 0; i < used; i++) {
+            counts[in.readUnsignedShort()] = in.readLong();
+        }
+        return new LatencyHistogram(counts);
+    }
+}
@@ -0,0 +1,265 @@
+package com.group15.kvserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of the values read by a client, kept fresh by the server.
+ *
+ * Every value is fetched with a tracked get, and the server sends an invalidation event on
+ * the tracking subscription of the connection the next time the key is written. Entries
+ * also expire after a lease, which bounds the staleness if an invalidation is ever lost.
+ * The least recently used entries are evicted once the cache is full.
+ *
+ * Fills and invalidations are both applied by the reader thread of the connection. An
+ * invalidation may still overtake the response of a get that read the previous value, as
+ * they are sent by different server threads, so each fill leaves a stamp in the cache
+ * before its request is sent: an invalidation removes the stamp, and the response is only
+ * cached if its stamp is still there.
+ */
+public class NearCache implements Demultiplexer.FrameHandler {
+    /**
+     * A cached value.
+     */
+    private static class Entry {
+        final byte[] value;
+        final long version;
+        final long expiresAt;
+
+        Entry(byte[] value, long version, long expiresAt) {
+            this.value = value;
+            this.version = version;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * The stamp of a fill in flight, and the handler of its response.
+     */
+    class Fill extends Demultiplexer.ResponseFuture {
+        private final String key;
+
+        Fill(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public boolean onFrame(byte[] data) {
+            try (ByteArrayInputStream bais = new ByteArrayInputStream(data);
+                 DataInputStream dis = new DataInputStream(bais)) {
+                // TRACKED | VERSION | VALUE SIZE | VALUE
+                boolean tracked = dis.readBoolean();
+                long version = dis.readLong();
+                int length = dis.readInt();
+                byte[] value = null;
+                if (length >= 0) {
+                    value = new byte[length];
+                    dis.readFully(value);
+                }
+                if (tracked && length >= -1) {
+                    install(key, this, value, version);
+                } else {
+                    abandon(key, this);
+                }
+            } catch (IOException e) {
+                abandon(key, this);
+            }
+            return super.onFrame(data);
+        }
+    }
+
+    /* Marks a cached absent key */
+    private static final byte[] ABSENT = new byte[0];
+
+    private final int capacity;
+    private final long leaseMillis;
+
+    /* Entries and fill stamps by key, in access order, guarded by this */
+    private final LinkedHashMap<String, Object> entries;
+    /* Completed once the server acknowledged the tracking subscription */
+    final CompletableFuture<Void> subscribed = new CompletableFuture<>();
+    /* Set once the connection is lost, nothing is cached afterwards */
+    private volatile boolean closed = false;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param capacity the maximum number of cached keys
+     * @param leaseMillis the time an entry is served without being invalidated
+     */
+    NearCache(int capacity, long leaseMillis) {
+        this.capacity = capacity;
+        this.leaseMillis = leaseMillis;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Object> eldest) {
+                return size() > NearCache.this.capacity;
+            }
+        };
+    }
+
+    /**
+     * Looks a key up.
+     *
+     * @param key the key
+     * @param found receives whether the key is cached
+     * @return a copy of the cached value, or null if the key is cached as absent or is not cached
+     */
+    byte[] lookup(String key, boolean[] found) {
+        Object cached;
+        synchronized (this) {
+            cached = entries.get(key);
+            if (cached instanceof Entry && ((Entry) cached).expiresAt - System.nanoTime() < 0) {
+                entries.remove(key);
+                cached = null;
+            }
+        }
+        if (!(cached instanceof Entry)) {
+            misses.incrementAndGet();
+            found[0] = false;
+            return null;
+        }
+        hits.incrementAndGet();
+        found[0] = true;
+        byte[] value = ((Entry) cached).value;
+        return value == ABSENT ? null : value.clone();
+    }
+
+    /**
+     * Starts a fill, leaving its stamp in the cache. Must be called before its request is sent.
+     *
+     * @param key the key
+     * @return the stamp, which also handles the response
+     */
+    synchronized Fill beginFill(String key) {
+        Fill fill = new Fill(key);
+        if (!closed) {
+            entries.put(key, fill);
+        }
+        return fill;
+    }
+
+    /**
+     * Caches the value read by a fill, unless its stamp was removed meanwhile.
+     */
+    private synchronized void install(String key, Fill fill, byte[] value, long version) {
+        if (entries.get(key) == fill) {
+            long expiresAt = System.nanoTime() + leaseMillis * 1_000_000L;
+            entries.put(key, new Entry(value == null ? ABSENT : value, version, expiresAt));
+        }
+    }
+
+    /**
+     * Removes the stamp of a fill whose value is not cached.
+     */
+    private synchronized void abandon(String key, Fill fill) {
+        if (entries.get(key) == fill) {
+            entries.remove(key);
+        }
+    }
+
+    /**
+     * Removes a key, unless the cached value is already at least as recent as the write.
+     *
+     * @param key the key
+     * @param version the commit sequence of the write, or Long.MAX_VALUE if unknown
+     */
+    synchronized void invalidate(String key, long version) {
+        Object cached = entries.get(key);
+        if (cached == null || (cached instanceof Entry && ((Entry) cached).version >= version)) {
+            return;
+        }
+        entries.remove(key);
+        invalidations.incrementAndGet();
+    }
+
+    /**
+     * Removes every entry and fill stamp.
+     */
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    @Override
+    public boolean onFrame(byte[] event) {
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(event);
+             DataInputStream dis = new DataInputStream(bais)) {
+            // EVENT TYPE | VERSION | KEY | VALUE LENGTH | VALUE
+            byte eventType = dis.readByte();
+            long version = dis.readLong();
+            String key = dis.readUTF();
+            if (eventType == WatchRegistry.EVENT_SUBSCRIBED) {
+                subscribed.complete(null);
+            } else if (eventType == WatchRegistry.EVENT_INVALIDATE) {
+                invalidate(key, version);
+            } else if (eventType == WatchRegistry.EVENT_OVERFLOW) {
+                clear();
+            }
+        } catch (IOException e) {
+            // An event that cannot be decoded could have been an invalidation
+            clear();
+        }
+        return true;
+    }
+
+    @Override
+    public void onClose(IOException cause) {
+        closed = true;
+        clear();
+        subscribed.completeExceptionally(cause);
+    }
+
+    /**
+     * Returns whether values may still be served from the cache.
+     *
+     * @return false once the connection is lost
+     */
+    boolean isOpen() {
+        return !closed;
+    }
+
+    /**
+     * Returns the number of gets served from the cache.
+     *
+     * @return the number of hits
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns the number of gets sent to the server.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Returns the number of entries removed because their key was written.
+     *
+     * @return the number of invalidations
+     */
+    public long getInvalidationCount() {
+        return invalidations.get();
+    }
+
+    /**
+     * Returns the number of cached keys.
+     *
+     * @return the number of entries, including the fills in flight
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,196 @@
+package com.group15.kvserver;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The partition map of a cluster: a consistent hash ring assigning every key to one node.
+ *
+ * Each node owns virtualNodes points of the ring, and a key belongs to the node owning the
+ * first point at or after the hash of the key. Adding or removing a node only moves the
+ * keys of the ring segments it gains or loses, and the virtual nodes spread those segments
+ * evenly over the other nodes. The hash does not depend on the JVM, so the servers and the
+ * clients given the same list of nodes agree on the owner of every key.
+ */
+class PartitionMap {
+    /* Default number of points of each node on the ring */
+    static final int DEFAULT_VIRTUAL_NODES = 64;
+
+    /* The nodes, as host:port */
+    private final List<String> nodes;
+    private final int virtualNodes;
+    /* The points of the ring, sorted */
+    private final long[] tokens;
+    /* The node owning each point */
+    private final int[] owners;
+
+    /**
+     * Constructs the ring of the given nodes.
+     *
+     * @param nodes The nodes, as host:port.
+     * @param virtualNodes The number of points of each node.
+     */
+    PartitionMap(List<String> nodes, int virtualNodes) {
+        if (nodes.isEmpty() || virtualNodes < 1) {
+            throw new IllegalArgumentException("A partition map needs at least one node and one virtual node");
+        }
+        this.nodes = Collections.unmodifiableList(new ArrayList<>(nodes));
+        this.virtualNodes = virtualNodes;
+
+        int points = nodes.size() * virtualNodes;
+        long[][] ring = new long[points][];
+        for (int node = 0; node < nodes.size(); node++) {
+            for (int i = 0; i < virtualNodes; i++) {
+                ring[node * virtualNodes + i] = new long[] {hash(nodes.get(node) + "#" + i), node};
+            }
+        }
+        // Ties, however unlikely, are broken by the node order so that every side agrees
+        Arrays.sort(ring, (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        this.tokens = new long[points];
+        this.owners = new int[points];
+        for (int i = 0; i < points; i++) {
+            tokens[i] = ring[i][0];
+            owners[i] = (int) ring[i][1];
+        }
+    }
+
+    /**
+     * Parses a list of nodes.
+     *
+     * @param spec The nodes, as host:port separated by commas or semicolons.
+     * @param virtualNodes The number of points of each node.
+     * @return The partition map.
+     */
+    static PartitionMap parse(String spec, int virtualNodes) {
+        List<String> nodes = new ArrayList<>();
+        for (String node : spec.split("[,;]")) {
+            String trimmed = node.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            parsePort(trimmed);
+            nodes.add(trimmed);
+        }
+        return new PartitionMap(nodes, virtualNodes);
+    }
+
+    /**
+     * Returns the index of the node owning a key.
+     *
+     * @param key The key.
+     * @return The index of the node in the list of nodes.
+     */
+    int ownerIndex(String key) {
+        int point = Arrays.binarySearch(tokens, hash(key));
+        if (point < 0) {
+            point = -point - 1;
+        }
+        return owners[point == tokens.length ? 0 : point];
+    }
+
+    /**
+     * Returns the node owning a key.
+     *
+     * @param key The key.
+     * @return The node, as host:port.
+     */
+    String owner(String key) {
+        return nodes.get(ownerIndex(key));
+    }
+
+    /**
+     * Returns the nodes of the cluster.
+     *
+     * @return The nodes, as host:port, in the order they were given.
+     */
+    List<String> nodes() {
+        return nodes;
+    }
+
+    /**
+     * Returns the number of points of each node on the ring.
+     */
+    int virtualNodes() {
+        return virtualNodes;
+    }
+
+    /**
+     * Writes the map, from which the ring can be rebuilt.
+     *
+     * VIRTUAL NODES | N NODES | NODE | ...
+     *
+     * @param out The stream to write to.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeInt(virtualNodes);
+        out.writeInt(nodes.size());
+        for (String node : nodes) {
+            out.writeUTF(node);
+        }
+    }
+
+    /**
+     * Reads a map written by write.
+     *
+     * @param in The stream to read from.
+     * @return The map, or null if the server is not part of a cluster.
+     */
+    static PartitionMap read(DataInputStream in) throws IOException {
+        int virtualNodes = in.readInt();
+        int count = in.readInt();
+        if (count == 0) {
+            return null;
+        }
+        List<String> nodes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            nodes.add(in.readUTF());
+        }
+        return new PartitionMap(nodes, virtualNodes);
+    }
+
+    /**
+     * Returns the host of a node.
+     *
+     * @param node The node, as host:port.
+     */
+    static String parseHost(String node) {
+        return node.substring(0, node.lastIndexOf(':'));
+    }
+
+    /**
+     * Returns the port of a node.
+     *
+     * @param node The node, as host:port.
+     */
+    static int parsePort(String node) {
+        int separator = node.lastIndexOf(':');
+        if (separator <= 0) {
+            throw new IllegalArgumentException("Invalid node, expected host:port: " + node);
+        }
+        return Integer.parseInt(node.substring(separator + 1));
+    }
+
+    /**
+     * Hashes a string to a point of the ring: 64-bit FNV-1a over its UTF-8 bytes, followed
+     * by the MurmurHash3 finalizer so that similar strings land far apart.
+     */
+    static long hash(String value) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
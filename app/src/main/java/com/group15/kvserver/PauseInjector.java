@@ -0,0 +1,84 @@
+package com.group15.kvserver;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Stalls a server now and then, to reproduce the pauses that make up its tail latency.
+ *
+ * At random times, on average every interval milliseconds, takes the write lock of every
+ * database shard, the way a multiPut does, and holds them for the given duration. Every
+ * get and put arriving meanwhile waits, as it would behind a garbage collection pause or
+ * a long lock hold, while the connections stay open.
+ */
+class PauseInjector implements Runnable {
+    private final ServerDatabase database;
+    private final long intervalMillis;
+    private final long durationMillis;
+
+    /**
+     * @param database The database to stall.
+     * @param intervalMillis The mean time between the start of two pauses.
+     * @param durationMillis The length of a pause.
+     */
+    PauseInjector(ServerDatabase database, long intervalMillis, long durationMillis) {
+        if (intervalMillis <= 0 || durationMillis <= 0) {
+            throw new IllegalArgumentException("The pause interval and duration must be positive");
+        }
+        this.database = database;
+        this.intervalMillis = intervalMillis;
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * Starts injecting pauses in a daemon thread.
+     */
+    void start() {
+        Thread thread = new Thread(this, "pause-injector");
+        thread.setDaemon(true);
+        thread.start();
+        Logger.log("Injecting pauses of " + durationMillis + " ms every " + intervalMillis + " ms on average", Logger.LogLevel.WARN);
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                // Exponential gaps make the pauses a Poisson process, uncorrelated with the load
+                double gap = -Math.log(1 - ThreadLocalRandom.current().nextDouble()) * intervalMillis;
+                Thread.sleep(Math.max(0, (long) gap - durationMillis));
+                pause();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void pause() throws InterruptedException {
+        database.enterShards();
+        try {
+            pauseShards();
+        } finally {
+            database.exitShards();
+        }
+    }
+
+    private void pauseShards() throws InterruptedException {
+        database.globalLock.lock();
+        try {
+            for (int shardIndex = 0; shardIndex < database.databaseShardsCount; shardIndex++) {
+                database.databaseLocks.get(shardIndex).writeLock().lock();
+            }
+        } finally {
+            database.globalLock.unlock();
+        }
+        try {
+            Thread.sleep(durationMillis);
+        } finally {
+            for (int shardIndex = 0; shardIndex < database.databaseShardsCount; shardIndex++) {
+                database.databaseLocks.get(shardIndex).writeLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.group15.kvserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * The persistent state of a consensus node: its log, current term and vote.
+ *
+ * The log is an append-only file of records, TERM | LENGTH | CRC | COMMAND, and is also
+ * kept in memory, indexed from 1. Appends are written at once but only made durable by
+ * sync, so that the leader can write many entries between two syncs. A record torn by a
+ * crash fails its checksum and is cut off when the log is loaded. The term and vote are
+ * rewritten and synced on every change, through a temporary file renamed over the old one.
+ *
+ * Not thread-safe, RaftNode calls it while holding its lock, except for sync.
+ */
+class RaftLog {
+    /* TERM | LENGTH | CRC */
+    private static final int RECORD_HEADER = 16;
+
+    /**
+     * An entry of the log.
+     */
+    static class Entry {
+        final long term;
+        /* The command, empty for the entry a new leader appends to commit its term */
+        final byte[] command;
+
+        Entry(long term, byte[] command) {
+            this.term = term;
+            this.command = command;
+        }
+    }
+
+    private final Path metaPath;
+    private final FileChannel channel;
+    private final List<Entry> entries = new ArrayList<>();
+    /* The file offset of the record of each entry, and the end of the last one */
+    private final List<Long> offsets = new ArrayList<>();
+    private long end = 0;
+
+    private long currentTerm = 0;
+    private int votedFor = -1;
+
+    /**
+     * Opens the log of a node, loading what a previous run left.
+     *
+     * @param directory The directory holding the files of the node.
+     * @param id The index of the node in the group.
+     * @throws IOException If the files cannot be read or created.
+     */
+    RaftLog(Path directory, int id) throws IOException {
+        Files.createDirectories(directory);
+        this.metaPath = directory.resolve("raft-" + id + ".meta");
+        if (Files.exists(metaPath)) {
+            try (DataInputStream in = new DataInputStream(Files.newInputStream(metaPath))) {
+                currentTerm = in.readLong();
+                votedFor = in.readInt();
+            }
+        }
+        this.channel = FileChannel.open(directory.resolve("raft-" + id + ".log"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        load();
+    }
+
+    /**
+     * Reads every complete record, and cuts the file after the last one.
+     */
+    private void load() throws IOException {
+        long size = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+        CRC32 crc = new CRC32();
+        while (end + RECORD_HEADER <= size) {
+            header.clear();
+            channel.read(header, end);
+            header.flip();
+            long term = header.getLong();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if (length < 0 || end + RECORD_HEADER + length > size) {
+                break;
+            }
+            ByteBuffer command = ByteBuffer.allocate(length);
+            while (command.hasRemaining()) {
+                if (channel.read(command, end + RECORD_HEADER + command.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            crc.reset();
+            crc.update(command.array());
+            if ((int) crc.getValue() != checksum) {
+                break;
+            }
+            entries.add(new Entry(term, command.array()));
+            offsets.add(end);
+            end += RECORD_HEADER + length;
+        }
+        if (end < size) {
+            Logger.log("Cutting a torn record off the consensus log at offset " + end, Logger.LogLevel.WARN);
+            channel.truncate(end);
+        }
+        channel.force(true);
+    }
+
+    /**
+     * Returns the index of the last entry, 0 if the log is empty.
+     */
+    long lastIndex() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the term of an entry, 0 for index 0.
+     *
+     * @param index The index of the entry, at most lastIndex.
+     */
+    long termAt(long index) {
+        return index == 0 ? 0 : entries.get((int) index - 1).term;
+    }
+
+    /**
+     * Returns an entry.
+     *
+     * @param index The index of the entry, from 1 to lastIndex.
+     */
+    Entry get(long index) {
+        return entries.get((int) index - 1);
+    }
+
+    /**
+     * Returns the entries from an index, stopping at a number of entries or of bytes.
+     *
+     * @param from The index of the first entry.
+     * @param maxEntries The maximum number of entries.
+     * @param maxBytes The number of command bytes after which no entry is added.
+     * @return The entries, empty if from is after the last one.
+     */
+    List<Entry> slice(long from, int maxEntries, int maxBytes) {
+        List<Entry> slice = new ArrayList<>();
+        long bytes = 0;
+        for (long index = from; index <= lastIndex() && slice.size() < maxEntries && bytes < maxBytes; index++) {
+            Entry entry = get(index);
+            slice.add(entry);
+            bytes += entry.command.length;
+        }
+        return slice;
+    }
+
+    /**
+     * Appends entries, without waiting for them to be durable.
+     *
+     * @param appended The entries.
+     * @throws IOException If the file cannot be written.
+     */
+    void append(List<Entry> appended) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        CRC32 crc = new CRC32();
+        long position = end;
+        for (Entry entry : appended) {
+            crc.reset();
+            crc.update(entry.command);
+            out.writeLong(entry.term);
+            out.writeInt(entry.command.length);
+            out.writeInt((int) crc.getValue());
+            out.write(entry.command);
+            entries.add(entry);
+            offsets.add(position);
+            position += RECORD_HEADER + entry.command.length;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(baos.toByteArray());
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, end + buffer.position());
+        }
+        end = position;
+    }
+
+    /**
+     * Removes an entry and every entry after it.
+     *
+     * @param from The index of the first entry removed.
+     * @throws IOException If the file cannot be truncated.
+     */
+    void truncateFrom(long from) throws IOException {
+        if (from > lastIndex()) {
+            return;
+        }
+        end = offsets.get((int) from - 1);
+        entries.subList((int) from - 1, entries.size()).clear();
+        offsets.subList((int) from - 1, offsets.size()).clear();
+        channel.truncate(end);
+    }
+
+    /**
+     * Makes every entry appended so far durable. May be called without the node lock.
+     *
+     * @throws IOException If the file cannot be synced.
+     */
+    void sync() throws IOException {
+        channel.force(false);
+    }
+
+    long currentTerm() {
+        return currentTerm;
+    }
+
+    int votedFor() {
+        return votedFor;
+    }
+
+    /**
+     * Durably records the current term and vote.
+     *
+     * @param term The current term.
+     * @param vote The node voted for in that term, -1 if none.
+     * @throws IOException If the file cannot be written.
+     */
+    void saveMeta(long term, int vote) throws IOException {
+        Path temporary = metaPath.resolveSibling(metaPath.getFileName() + ".tmp");
+        try (RandomAccessFile file = new RandomAccessFile(temporary.toFile(), "rw")) {
+            file.setLength(0);
+            file.writeLong(term);
+            file.writeInt(vote);
+            file.getFD().sync();
+        }
+        Files.move(temporary, metaPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        this.currentTerm = term;
+        this.votedFor = vote;
+    }
+
+    /**
+     * Closes the log file.
+     */
+    void close() throws IOException {
+        channel.close();
+    }
+}
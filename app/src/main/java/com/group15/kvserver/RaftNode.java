@@ -0,0 +1,1338 @@
+package com.group15.kvserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * A node of a consensus group replicating the writes of a key prefix, following Raft.
+ *
+ * The puts and multiPuts of keys under the prefix, as well as their conditional writes,
+ * increments and appends, are appended to a log as commands, and only applied to the
+ * database, and acknowledged, once a majority of the group durably holds them: the writes
+ * acknowledged survive the loss of any minority of the nodes. A command is applied in log
+ * order on every node, so a read-modify-write sees the same value everywhere, and its
+ * result is computed by the node that applies it for the operation waiting on it. The
+ * leader is elected by a majority for a term. Followers forward the operations they get
+ * to it, and a candidate only wins if its log holds every committed entry.
+ *
+ * Throughput comes from batching: the leader appends the commands as they come and syncs
+ * its log once for all the commands appended meanwhile, and ships the log to each follower
+ * in batches of up to BATCH_ENTRIES entries, with up to WINDOW batches in flight.
+ *
+ * Reads are linearizable without going through the log. The leader holds a lease while a
+ * majority acknowledged one of its appends less than a minimum election timeout ago:
+ * followers refuse to vote during that timeout after hearing from the leader, so no other
+ * leader can be elected before the lease expires. A read is served by the leader, while
+ * its lease holds, once it applied every entry committed when the read arrived.
+ *
+ * Every command carries an identifier, and the identifiers and results of the last
+ * DEDUP_CAPACITY commands applied are remembered, so that an operation retried after its
+ * leader was lost is applied once, and gets the result of that application, even if the
+ * first attempt also made it into the log. The log is never compacted: a restarted node
+ * rebuilds its database by applying it again.
+ */
+class RaftNode {
+    /* Forwarded operations */
+    static final byte FORWARD_WRITE = 0;
+    static final byte FORWARD_READ = 1;
+    /* Status of a forwarded operation */
+    static final byte FORWARD_OK = 0;
+    static final byte FORWARD_NOT_LEADER = 1;
+
+    /* Operations of a command other than a put of pairs, in place of the number of pairs */
+    private static final int OP_COMPARE_AND_SET = -1;
+    private static final int OP_INCREMENT = -2;
+    private static final int OP_APPEND = -3;
+    /* Result of a command without one */
+    private static final byte[] NO_RESULT = new byte[0];
+
+    /* Minimum election timeout, the timeouts are drawn up to twice as long, in milliseconds */
+    static final long ELECTION_TIMEOUT = 300;
+    /* Time after which an idle leader sends an empty append, in milliseconds */
+    static final long HEARTBEAT_INTERVAL = 50;
+    /* Share of the minimum election timeout a lease lasts, the rest covers clock drift */
+    static final double LEASE_FRACTION = 0.9;
+    /* Maximum number of entries and of command bytes of an append */
+    static final int BATCH_ENTRIES = 512;
+    static final int BATCH_BYTES = 1024 * 1024;
+    /* Number of appends in flight per follower */
+    static final int WINDOW = 8;
+    /* Time an operation is retried for before failing, in milliseconds */
+    static final long OPERATION_TIMEOUT = 10000;
+    /* Number of applied command identifiers remembered */
+    static final int DEDUP_CAPACITY = 100000;
+
+    private static final long TICK = 10;
+    private static final long RETRY_DELAY = 20;
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final long MIN_BACKOFF = 50;
+    private static final long MAX_BACKOFF = 1000;
+
+    /**
+     * A command appended by this leader, completed with its result once it is applied.
+     */
+    private static class Proposal {
+        final long term;
+        final CompletableFuture<byte[]> future;
+
+        Proposal(long term, CompletableFuture<byte[]> future) {
+            this.term = term;
+            this.future = future;
+        }
+    }
+
+    /**
+     * A read waiting for the lease and for the entries committed before it to be applied.
+     */
+    private static class PendingRead {
+        final CompletableFuture<Void> future;
+        final long deadline;
+        /* The commit index when the lease was confirmed, -1 until then */
+        long readIndex = -1;
+
+        PendingRead(CompletableFuture<Void> future, long deadline) {
+            this.future = future;
+            this.deadline = deadline;
+        }
+    }
+
+    private final int id;
+    private final List<String> members;
+    private final String prefix;
+    private final ServerDatabase database;
+    private final RaftLog log;
+    private final Peer[] peers;
+    private final int majority;
+
+    /* Protects the state below and the log */
+    private final ReentrantLock lock = new ReentrantLock();
+    /* Signaled whenever the role, the log, the commit index or a follower changes */
+    private final Condition changed = lock.newCondition();
+    private byte role = RaftStatus.ROLE_FOLLOWER;
+    private int leaderId = -1;
+    private long commitIndex = 0;
+    private long lastApplied = 0;
+    /* The last entry synced to the log file of this node */
+    private long durableIndex;
+    /* The index of the first entry of the current term, reads wait for it to commit */
+    private long termStartIndex = Long.MAX_VALUE;
+    private long electionDeadline;
+    /* When this node last heard from a leader, or voted, or started */
+    private long lastHeard;
+    private long leaderSince;
+    private int votes;
+    private final Map<Long, Proposal> proposals = new HashMap<>();
+    private final List<PendingRead> pendingReads = new ArrayList<>();
+
+    /* Identifiers of the commands applied and their results, only used by the applier */
+    private final LinkedHashMap<Long, byte[]> appliedCommands = new LinkedHashMap<>(16, 0.75f, false) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+            return size() > DEDUP_CAPACITY;
+        }
+    };
+    private final AtomicLong nextCommandId;
+    private volatile boolean stopped = false;
+
+    /* Retries the operations */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "raft-retry");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /* Completes the operations and sends the votes, outside of the lock */
+    private final ExecutorService callbacks = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "raft-callback");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Opens the log of a node.
+     *
+     * @param id The index of this node in the group.
+     * @param members The nodes of the group, as host:port; the entry of this node is unused.
+     * @param prefix The prefix of the keys whose writes go through the log.
+     * @param directory The directory of the log.
+     * @param database The database the committed writes are applied to.
+     * @throws IOException If the log cannot be opened.
+     */
+    RaftNode(int id, List<String> members, String prefix, Path directory, ServerDatabase database) throws IOException {
+        if (id < 0 || id >= members.size()) {
+            throw new IllegalArgumentException("Invalid consensus node id " + id + " for " + members.size() + " nodes");
+        }
+        this.id = id;
+        this.members = List.copyOf(members);
+        this.prefix = prefix;
+        this.database = database;
+        this.log = new RaftLog(directory, id);
+        this.durableIndex = log.lastIndex();
+        this.majority = members.size() / 2 + 1;
+        this.peers = new Peer[members.size()];
+        for (int i = 0; i < members.size(); i++) {
+            if (i != id) {
+                peers[i] = new Peer(members.get(i));
+            }
+        }
+        this.nextCommandId = new AtomicLong(((long) id << 56) | (ThreadLocalRandom.current().nextLong() & 0x00FF_FFFF_0000_0000L));
+        this.lastHeard = System.nanoTime();
+        resetElectionDeadline();
+    }
+
+    /**
+     * Starts the threads of the node.
+     */
+    void start() {
+        startThread(this::tick, "raft-timer");
+        startThread(this::applyCommitted, "raft-applier");
+        startThread(this::flush, "raft-flusher");
+        for (Peer peer : peers) {
+            if (peer != null) {
+                startThread(peer, "raft-peer-" + peer.address);
+            }
+        }
+        Logger.log("Consensus node " + id + " of " + members + " for prefix '" + prefix + "', term " + log.currentTerm()
+                + ", " + log.lastIndex() + " entries in the log", Logger.LogLevel.INFO);
+    }
+
+    private static void startThread(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns whether the operations on a key go through the consensus group.
+     *
+     * @param key The key.
+     */
+    boolean covers(String key) {
+        return key.startsWith(prefix);
+    }
+
+    /**
+     * Returns whether a range of keys may hold keys covered by the consensus group.
+     *
+     * @param from The first key of the range.
+     * @param to The key the range ends before, or null if it is unbounded.
+     * @param rangePrefix The prefix of the keys of the range.
+     */
+    boolean mayCover(String from, String to, String rangePrefix) {
+        // The covered keys are the ones from the prefix up to the first key after them
+        return (rangePrefix.startsWith(prefix) || prefix.startsWith(rangePrefix))
+                && (from.compareTo(prefix) <= 0 || from.startsWith(prefix))
+                && (to == null || to.compareTo(prefix) > 0);
+    }
+
+    /**
+     * Writes key-value pairs atomically through the log, retrying on the leader of the
+     * moment until OPERATION_TIMEOUT.
+     *
+     * @param pairs The pairs.
+     * @return A future completed once the pairs are committed and applied by the leader.
+     */
+    CompletableFuture<Void> write(Map<String, byte[]> pairs) {
+        return execute(out -> writePairs(out, pairs)).thenApply(result -> null);
+    }
+
+    /**
+     * Replaces the value of a key through the log if its current value is the expected one.
+     *
+     * @param key The key.
+     * @param expected The expected value, or null if the key is expected to be absent.
+     * @param value The new value.
+     * @return A future of whether the value was replaced.
+     */
+    CompletableFuture<Boolean> compareAndSet(String key, byte[] expected, byte[] value) {
+        return execute(out -> {
+            out.writeInt(OP_COMPARE_AND_SET);
+            out.writeUTF(key);
+            if (expected == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(expected.length);
+                out.write(expected);
+            }
+            out.writeInt(value.length);
+            out.write(value);
+        }).thenApply(result -> result[0] != 0);
+    }
+
+    /**
+     * Adds a delta to a counter through the log.
+     *
+     * @param key The key of the counter.
+     * @param delta The delta.
+     * @return A future of the new value, or of null if the value is not a number.
+     */
+    CompletableFuture<Long> increment(String key, long delta) {
+        return execute(out -> {
+            out.writeInt(OP_INCREMENT);
+            out.writeUTF(key);
+            out.writeLong(delta);
+        }).thenApply(result -> decodeResult(result, in -> in.readBoolean() ? in.readLong() : null));
+    }
+
+    /**
+     * Appends bytes to the value of a key through the log.
+     *
+     * @param key The key.
+     * @param suffix The bytes to append.
+     * @return A future of the length of the value after the append.
+     */
+    CompletableFuture<Integer> append(String key, byte[] suffix) {
+        return execute(out -> {
+            out.writeInt(OP_APPEND);
+            out.writeUTF(key);
+            out.writeInt(suffix.length);
+            out.write(suffix);
+        }).thenApply(result -> decodeResult(result, DataInputStream::readInt));
+    }
+
+    /**
+     * Runs a command through the log, retrying on the leader of the moment until
+     * OPERATION_TIMEOUT.
+     *
+     * @param operation Writes the command after its identifier.
+     * @return A future of the result of the command, once it is committed and applied by
+     *         the leader.
+     */
+    private CompletableFuture<byte[]> execute(BytesWriter operation) {
+        byte[] command = encodeCommand(nextCommandId.getAndIncrement(), operation);
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        retry(result, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(OPERATION_TIMEOUT), () -> {
+            int leader;
+            lock.lock();
+            try {
+                if (role == RaftStatus.ROLE_LEADER) {
+                    return proposeLocked(command);
+                }
+                leader = leaderId;
+            } finally {
+                lock.unlock();
+            }
+            if (leader < 0) {
+                return CompletableFuture.failedFuture(new IOException("No consensus leader"));
+            }
+            return peers[leader].forward(FORWARD_WRITE, command).thenApply(RaftNode::readRemaining);
+        });
+        return result;
+    }
+
+    /**
+     * Reads keys linearizably, on this node if it is the leader or on the leader otherwise.
+     *
+     * @param keys The keys.
+     * @param localRead Reads the keys from the database of this node.
+     * @return A future of the values, null for the keys that do not exist.
+     */
+    CompletableFuture<Map<String, byte[]>> read(Set<String> keys, Function<Set<String>, Map<String, byte[]>> localRead) {
+        byte[] request = encodeKeys(keys);
+        CompletableFuture<Map<String, byte[]>> result = new CompletableFuture<>();
+        retry(result, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(OPERATION_TIMEOUT), () -> {
+            int leader;
+            lock.lock();
+            try {
+                if (role == RaftStatus.ROLE_LEADER) {
+                    return readBarrierLocked().thenApply(v -> localRead.apply(keys));
+                }
+                leader = leaderId;
+            } finally {
+                lock.unlock();
+            }
+            if (leader < 0) {
+                return CompletableFuture.failedFuture(new IOException("No consensus leader"));
+            }
+            return peers[leader].forward(FORWARD_READ, request).thenApply(RaftNode::decodePairs);
+        });
+        return result;
+    }
+
+    /**
+     * Runs an operation until it succeeds, it times out or the node stops.
+     */
+    private <T> void retry(CompletableFuture<T> result, long deadline, Supplier<CompletableFuture<T>> operation) {
+        CompletableFuture<T> attempt;
+        try {
+            attempt = operation.get();
+        } catch (RuntimeException e) {
+            attempt = CompletableFuture.failedFuture(e);
+        }
+        attempt.whenComplete((value, error) -> {
+            if (error == null) {
+                result.complete(value);
+            } else if (stopped || System.nanoTime() > deadline) {
+                result.completeExceptionally(new IOException("The consensus group did not complete the operation", error));
+            } else {
+                scheduler.schedule(() -> retry(result, deadline, operation), RETRY_DELAY, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Appends a command forwarded by another node.
+     *
+     * @param command The command.
+     * @return A future of the result of the command once it is applied, or failed if this
+     *         node is not the leader or stops being it first.
+     */
+    CompletableFuture<byte[]> propose(byte[] command) {
+        lock.lock();
+        try {
+            if (role != RaftStatus.ROLE_LEADER) {
+                return CompletableFuture.failedFuture(new IOException("Not the consensus leader"));
+            }
+            return proposeLocked(command);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private CompletableFuture<byte[]> proposeLocked(byte[] command) {
+        long term = log.currentTerm();
+        try {
+            log.append(List.of(new RaftLog.Entry(term, command)));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        proposals.put(log.lastIndex(), new Proposal(term, future));
+        changed.signalAll();
+        return future;
+    }
+
+    /**
+     * Waits until this node can serve a linearizable read, for a read forwarded by another node.
+     *
+     * @return A future completed once the reads may be served from the database, or
+     *         failed if this node is not the leader or cannot confirm its lease in time.
+     */
+    CompletableFuture<Void> readBarrier() {
+        lock.lock();
+        try {
+            if (role != RaftStatus.ROLE_LEADER) {
+                return CompletableFuture.failedFuture(new IOException("Not the consensus leader"));
+            }
+            return readBarrierLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private CompletableFuture<Void> readBarrierLocked() {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        pendingReads.add(new PendingRead(future, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ELECTION_TIMEOUT)));
+        checkReadsLocked();
+        return future;
+    }
+
+    /**
+     * Completes the reads that can be served, and fails those that cannot anymore.
+     */
+    private void checkReadsLocked() {
+        if (pendingReads.isEmpty()) {
+            return;
+        }
+        long now = System.nanoTime();
+        boolean leased = role == RaftStatus.ROLE_LEADER && commitIndex >= termStartIndex
+                && now - leaseStartLocked() < TimeUnit.MILLISECONDS.toNanos((long) (ELECTION_TIMEOUT * LEASE_FRACTION));
+        for (Iterator<PendingRead> iterator = pendingReads.iterator(); iterator.hasNext(); ) {
+            PendingRead read = iterator.next();
+            if (role != RaftStatus.ROLE_LEADER) {
+                fail(read.future, "Lost the consensus leadership");
+            } else {
+                if (read.readIndex < 0 && leased) {
+                    read.readIndex = commitIndex;
+                }
+                if (read.readIndex >= 0 && lastApplied >= read.readIndex) {
+                    callbacks.execute(() -> read.future.complete(null));
+                } else if (now > read.deadline) {
+                    fail(read.future, "Could not confirm the consensus lease");
+                } else {
+                    continue;
+                }
+            }
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Returns the send time of the latest append acknowledged by a majority, counting
+     * this node, 0 if there is none.
+     */
+    private long leaseStartLocked() {
+        long[] acknowledged = new long[members.size()];
+        for (int i = 0; i < members.size(); i++) {
+            acknowledged[i] = i == id ? System.nanoTime() : peers[i].ackedSentAt;
+        }
+        Arrays.sort(acknowledged);
+        return acknowledged[members.size() - majority];
+    }
+
+    private void fail(CompletableFuture<?> future, String message) {
+        callbacks.execute(() -> future.completeExceptionally(new IOException(message)));
+    }
+
+    /**
+     * Starts elections and checks that the leader still hears from a majority.
+     */
+    private void tick() {
+        while (!stopped) {
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                if (role != RaftStatus.ROLE_LEADER && now - electionDeadline >= 0) {
+                    startElectionLocked();
+                } else if (role == RaftStatus.ROLE_LEADER
+                        && now - Math.max(leaderSince, leaseStartLocked()) > TimeUnit.MILLISECONDS.toNanos(2 * ELECTION_TIMEOUT)) {
+                    Logger.log("Consensus leader lost contact with a majority, stepping down", Logger.LogLevel.WARN);
+                    becomeFollowerLocked(log.currentTerm(), -1);
+                }
+                checkReadsLocked();
+            } finally {
+                lock.unlock();
+            }
+            try {
+                Thread.sleep(TICK);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void resetElectionDeadline() {
+        long timeout = ELECTION_TIMEOUT + ThreadLocalRandom.current().nextLong(ELECTION_TIMEOUT);
+        electionDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+    }
+
+    private void persist(long term, int vote) {
+        try {
+            log.saveMeta(term, vote);
+        } catch (IOException e) {
+            Logger.log("Could not persist the consensus term: " + e.getMessage(), Logger.LogLevel.ERROR);
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void startElectionLocked() {
+        long term = log.currentTerm() + 1;
+        persist(term, id);
+        role = RaftStatus.ROLE_CANDIDATE;
+        leaderId = -1;
+        votes = 1;
+        resetElectionDeadline();
+        if (votes >= majority) {
+            becomeLeaderLocked();
+            return;
+        }
+        byte[] request = encodeVoteRequest(term, id, log.lastIndex(), log.termAt(log.lastIndex()));
+        for (Peer peer : peers) {
+            if (peer != null) {
+                callbacks.execute(() -> peer.call(RequestType.RequestVoteRequest, request)
+                        .orTimeout(ELECTION_TIMEOUT, TimeUnit.MILLISECONDS)
+                        .whenComplete((response, error) -> onVoteResponse(term, response, error)));
+            }
+        }
+    }
+
+    private void onVoteResponse(long term, byte[] response, Throwable error) {
+        if (error != null) {
+            return;
+        }
+        lock.lock();
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(response));
+            long responseTerm = in.readLong();
+            boolean granted = in.readBoolean();
+            if (responseTerm > log.currentTerm()) {
+                becomeFollowerLocked(responseTerm, -1);
+            } else if (granted && role == RaftStatus.ROLE_CANDIDATE && log.currentTerm() == term) {
+                votes++;
+                if (votes >= majority) {
+                    becomeLeaderLocked();
+                }
+            }
+        } catch (IOException e) {
+            Logger.log("Invalid vote response: " + e.getMessage(), Logger.LogLevel.ERROR);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void becomeLeaderLocked() {
+        role = RaftStatus.ROLE_LEADER;
+        leaderId = id;
+        leaderSince = System.nanoTime();
+        for (Peer peer : peers) {
+            if (peer != null) {
+                peer.reset(log.lastIndex());
+            }
+        }
+        // Entries of earlier terms are only known committed once an entry of this term is
+        proposeLocked(new byte[0]);
+        termStartIndex = log.lastIndex();
+        Logger.log("Elected consensus leader for term " + log.currentTerm(), Logger.LogLevel.INFO);
+    }
+
+    /**
+     * Becomes a follower, failing the operations waiting on this node as a leader.
+     */
+    private void becomeFollowerLocked(long term, int leader) {
+        if (term > log.currentTerm()) {
+            persist(term, -1);
+        }
+        if (role == RaftStatus.ROLE_LEADER) {
+            for (Proposal proposal : proposals.values()) {
+                fail(proposal.future, "Lost the consensus leadership");
+            }
+            proposals.clear();
+            termStartIndex = Long.MAX_VALUE;
+        }
+        if (role != RaftStatus.ROLE_FOLLOWER || leader != leaderId) {
+            Logger.log("Consensus follower in term " + term + (leader >= 0 ? ", leader " + leader : ""), Logger.LogLevel.INFO);
+        }
+        role = RaftStatus.ROLE_FOLLOWER;
+        leaderId = leader;
+        resetElectionDeadline();
+        checkReadsLocked();
+        changed.signalAll();
+    }
+
+    /**
+     * Handles a vote request from a candidate. Votes are refused, without even looking at
+     * the term, within a minimum election timeout of hearing from a leader, which is what
+     * makes the leases safe.
+     *
+     * TERM | CANDIDATE | LAST INDEX | LAST TERM, answered with TERM | GRANTED
+     *
+     * @param in The request.
+     * @param out The response.
+     */
+    void handleRequestVote(DataInputStream in, DataOutputStream out) throws IOException {
+        long term = in.readLong();
+        int candidate = in.readInt();
+        long lastIndex = in.readLong();
+        long lastTerm = in.readLong();
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            boolean sticky = role == RaftStatus.ROLE_LEADER
+                    || (role == RaftStatus.ROLE_FOLLOWER && now - lastHeard < TimeUnit.MILLISECONDS.toNanos(ELECTION_TIMEOUT));
+            boolean granted = false;
+            if (term >= log.currentTerm() && !sticky) {
+                if (term > log.currentTerm()) {
+                    becomeFollowerLocked(term, -1);
+                }
+                long ownLastIndex = log.lastIndex();
+                long ownLastTerm = log.termAt(ownLastIndex);
+                boolean upToDate = lastTerm > ownLastTerm || (lastTerm == ownLastTerm && lastIndex >= ownLastIndex);
+                if (upToDate && (log.votedFor() == -1 || log.votedFor() == candidate)) {
+                    persist(term, candidate);
+                    granted = true;
+                    resetElectionDeadline();
+                }
+            }
+            out.writeLong(log.currentTerm());
+            out.writeBoolean(granted);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Handles an append from the leader. The entries are synced before the response.
+     *
+     * TERM | LEADER | PREV INDEX | PREV TERM | LEADER COMMIT | N ENTRIES | TERM | LENGTH
+     * | COMMAND | ..., answered with TERM | SUCCESS | INDEX, the last index matching the
+     * leader on success or the index to retry from otherwise
+     *
+     * @param in The request.
+     * @param out The response.
+     */
+    void handleAppendEntries(DataInputStream in, DataOutputStream out) throws IOException {
+        long term = in.readLong();
+        int leader = in.readInt();
+        long prevIndex = in.readLong();
+        long prevTerm = in.readLong();
+        long leaderCommit = in.readLong();
+        int count = in.readInt();
+        List<RaftLog.Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long entryTerm = in.readLong();
+            byte[] command = new byte[in.readInt()];
+            in.readFully(command);
+            entries.add(new RaftLog.Entry(entryTerm, command));
+        }
+
+        lock.lock();
+        try {
+            if (term < log.currentTerm()) {
+                writeAppendResponse(out, false, 0);
+                return;
+            }
+            if (term > log.currentTerm() || role != RaftStatus.ROLE_FOLLOWER || leaderId != leader) {
+                becomeFollowerLocked(term, leader);
+            }
+            lastHeard = System.nanoTime();
+            resetElectionDeadline();
+
+            if (prevIndex > log.lastIndex()) {
+                writeAppendResponse(out, false, log.lastIndex() + 1);
+                return;
+            }
+            if (log.termAt(prevIndex) != prevTerm) {
+                // Skips the whole conflicting term rather than one entry per round trip
+                long conflictTerm = log.termAt(prevIndex);
+                long retryFrom = prevIndex;
+                while (retryFrom > commitIndex + 1 && log.termAt(retryFrom - 1) == conflictTerm) {
+                    retryFrom--;
+                }
+                writeAppendResponse(out, false, retryFrom);
+                return;
+            }
+
+            int first = 0;
+            while (first < entries.size()) {
+                long index = prevIndex + 1 + first;
+                if (index > log.lastIndex()) {
+                    break;
+                }
+                if (log.termAt(index) != entries.get(first).term) {
+                    log.truncateFrom(index);
+                    durableIndex = Math.min(durableIndex, log.lastIndex());
+                    break;
+                }
+                first++;
+            }
+            if (first < entries.size()) {
+                log.append(entries.subList(first, entries.size()));
+            }
+            long lastNew = prevIndex + entries.size();
+            if (durableIndex < lastNew) {
+                // Also covers entries appended while this node led and not synced by the flusher yet
+                log.sync();
+                durableIndex = log.lastIndex();
+            }
+            if (leaderCommit > commitIndex) {
+                commitIndex = Math.max(commitIndex, Math.min(leaderCommit, lastNew));
+                changed.signalAll();
+            }
+            writeAppendResponse(out, true, lastNew);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeAppendResponse(DataOutputStream out, boolean success, long index) throws IOException {
+        out.writeLong(log.currentTerm());
+        out.writeBoolean(success);
+        out.writeLong(index);
+    }
+
+    /**
+     * Writes the state of the node.
+     *
+     * ROLE | TERM | NODE ID | LEADER ID | LAST INDEX | COMMIT INDEX | LAST APPLIED
+     *
+     * @param out The response.
+     */
+    void writeStatus(DataOutputStream out) throws IOException {
+        lock.lock();
+        try {
+            out.writeByte(role);
+            out.writeLong(log.currentTerm());
+            out.writeInt(id);
+            out.writeInt(leaderId);
+            out.writeLong(log.lastIndex());
+            out.writeLong(commitIndex);
+            out.writeLong(lastApplied);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Commits the entries of the current term a majority durably holds.
+     */
+    private void advanceCommitLocked() {
+        if (role != RaftStatus.ROLE_LEADER) {
+            return;
+        }
+        long[] matched = new long[members.size()];
+        for (int i = 0; i < members.size(); i++) {
+            matched[i] = i == id ? durableIndex : peers[i].matchIndex;
+        }
+        Arrays.sort(matched);
+        long candidate = matched[members.size() - majority];
+        if (candidate > commitIndex && log.termAt(candidate) == log.currentTerm()) {
+            commitIndex = candidate;
+            changed.signalAll();
+        }
+    }
+
+    /**
+     * Syncs the entries the leader appended, once for all those appended since the last sync.
+     */
+    private void flush() {
+        while (!stopped) {
+            long target;
+            lock.lock();
+            try {
+                while (durableIndex >= log.lastIndex()) {
+                    changed.await();
+                }
+                target = log.lastIndex();
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                log.sync();
+            } catch (IOException e) {
+                Logger.log("Could not sync the consensus log: " + e.getMessage(), Logger.LogLevel.ERROR);
+                continue;
+            }
+            lock.lock();
+            try {
+                durableIndex = Math.max(durableIndex, Math.min(target, log.lastIndex()));
+                advanceCommitLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies the committed entries in order, and completes the operations waiting for them.
+     */
+    private void applyCommitted() {
+        while (!stopped) {
+            long from;
+            List<RaftLog.Entry> entries = new ArrayList<>();
+            lock.lock();
+            try {
+                while (lastApplied >= commitIndex) {
+                    changed.await();
+                }
+                from = lastApplied + 1;
+                for (long index = from; index <= commitIndex; index++) {
+                    entries.add(log.get(index));
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            byte[][] results = new byte[entries.size()][];
+            for (int i = 0; i < entries.size(); i++) {
+                results[i] = apply(entries.get(i).command);
+            }
+
+            lock.lock();
+            try {
+                lastApplied = from + entries.size() - 1;
+                for (int i = 0; i < entries.size(); i++) {
+                    Proposal proposal = proposals.remove(from + i);
+                    if (proposal == null) {
+                        continue;
+                    }
+                    if (proposal.term == entries.get(i).term) {
+                        byte[] result = results[i];
+                        callbacks.execute(() -> proposal.future.complete(result));
+                    } else {
+                        fail(proposal.future, "The command was overwritten by another leader");
+                    }
+                }
+                checkReadsLocked();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies a command to the database, unless it was already applied.
+     *
+     * @return The result of the command, the one of its first application if it was
+     *         already applied.
+     */
+    private byte[] apply(byte[] command) {
+        if (command.length == 0) {
+            return NO_RESULT;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(command));
+            long commandId = in.readLong();
+            byte[] applied = appliedCommands.get(commandId);
+            if (applied != null) {
+                return applied;
+            }
+            byte[] result = applyOperation(in);
+            appliedCommands.put(commandId, result);
+            return result;
+        } catch (IOException | UncheckedIOException e) {
+            Logger.log("Invalid consensus command: " + e.getMessage(), Logger.LogLevel.ERROR);
+            return NO_RESULT;
+        }
+    }
+
+    /**
+     * Applies the operation of a command to the database.
+     *
+     * N PAIRS | KEY | VALUE LENGTH | VALUE | ...
+     * OP_COMPARE_AND_SET | KEY | EXPECTED LENGTH | EXPECTED | VALUE LENGTH | VALUE, -> REPLACED
+     * OP_INCREMENT | KEY | DELTA, -> IS NUMBER | NEW VALUE
+     * OP_APPEND | KEY | SUFFIX LENGTH | SUFFIX, -> NEW LENGTH
+     *
+     * @return The result of the operation.
+     */
+    private byte[] applyOperation(DataInputStream in) throws IOException {
+        int operation = in.readInt();
+        if (operation >= 0) {
+            Map<String, byte[]> pairs = new HashMap<>();
+            for (int i = 0; i < operation; i++) {
+                String key = in.readUTF();
+                pairs.put(key, readBytes(in));
+            }
+            database.multiPut(pairs);
+            return NO_RESULT;
+        }
+        String key = in.readUTF();
+        switch (operation) {
+            case OP_COMPARE_AND_SET: {
+                byte[] expected = readBytes(in);
+                byte[] value = readBytes(in);
+                boolean replaced = database.compareAndSet(key, expected, value, new long[1]);
+                return new byte[] {(byte) (replaced ? 1 : 0)};
+            }
+            case OP_INCREMENT: {
+                Long value = database.increment(key, in.readLong());
+                return encodeResult(out -> {
+                    out.writeBoolean(value != null);
+                    out.writeLong(value != null ? value : 0);
+                });
+            }
+            case OP_APPEND: {
+                int length = database.append(key, readBytes(in));
+                return encodeResult(out -> out.writeInt(length));
+            }
+            default:
+                throw new IOException("Unknown operation " + operation);
+        }
+    }
+
+    /**
+     * The connection to another node, and the thread replicating the log to it while this
+     * node is the leader. The replication state is protected by the lock of the node.
+     */
+    private class Peer implements Runnable {
+        final String address;
+        /* The connection, replaced once lost, guarded by this */
+        private Demultiplexer connection = null;
+        private final AtomicInteger nextTag = new AtomicInteger();
+
+        long nextIndex = 1;
+        long matchIndex = 0;
+        /* The last entry sent, ahead of matchIndex while appends are in flight */
+        long sentIndex = 0;
+        int inFlight = 0;
+        /* Incremented whenever the appends in flight are abandoned, their responses are then ignored */
+        long generation = 0;
+        /* The send time of the latest append acknowledged in the current term */
+        long ackedSentAt = 0;
+        long lastSentAt = 0;
+        long retryAt = 0;
+        long backoff = MIN_BACKOFF;
+
+        Peer(String address) {
+            this.address = address;
+        }
+
+        /**
+         * Prepares to replicate from the end of the log of a new leader.
+         */
+        void reset(long lastIndex) {
+            nextIndex = lastIndex + 1;
+            sentIndex = lastIndex;
+            matchIndex = 0;
+            inFlight = 0;
+            generation++;
+            ackedSentAt = 0;
+            lastSentAt = 0;
+            retryAt = 0;
+        }
+
+        @Override
+        public void run() {
+            lock.lock();
+            try {
+                while (!stopped) {
+                    long now = System.nanoTime();
+                    if (role != RaftStatus.ROLE_LEADER || now - retryAt < 0) {
+                        changed.await(HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+                        continue;
+                    }
+                    long heartbeatAt = lastSentAt + TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_INTERVAL);
+                    boolean due = sentIndex < log.lastIndex() || (inFlight == 0 && now - heartbeatAt >= 0);
+                    if (!due || inFlight >= WINDOW) {
+                        changed.await(Math.max(1, heartbeatAt - now), TimeUnit.NANOSECONDS);
+                        continue;
+                    }
+
+                    long term = log.currentTerm();
+                    long prevIndex = sentIndex;
+                    List<RaftLog.Entry> entries = log.slice(prevIndex + 1, BATCH_ENTRIES, BATCH_BYTES);
+                    byte[] request = encodeAppend(term, id, prevIndex, log.termAt(prevIndex), commitIndex, entries);
+                    sentIndex += entries.size();
+                    inFlight++;
+                    lastSentAt = now;
+                    long sentGeneration = generation;
+                    lock.unlock();
+                    try {
+                        call(RequestType.AppendEntriesRequest, request)
+                                .orTimeout(ELECTION_TIMEOUT, TimeUnit.MILLISECONDS)
+                                .whenComplete((response, error) -> onAppendResponse(sentGeneration, term, prevIndex, now, response, error));
+                    } finally {
+                        lock.lock();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void onAppendResponse(long sentGeneration, long term, long prevIndex, long sentAt, byte[] response, Throwable error) {
+            lock.lock();
+            try {
+                if (error != null) {
+                    if (sentGeneration == generation) {
+                        abandonInFlightLocked();
+                        retryAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff);
+                        backoff = Math.min(2 * backoff, MAX_BACKOFF);
+                        callbacks.execute(this::disconnect);
+                    }
+                    return;
+                }
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(response));
+                long responseTerm = in.readLong();
+                boolean success = in.readBoolean();
+                long index = in.readLong();
+                if (responseTerm > log.currentTerm()) {
+                    becomeFollowerLocked(responseTerm, -1);
+                    return;
+                }
+                if (role != RaftStatus.ROLE_LEADER || term != log.currentTerm()) {
+                    return;
+                }
+                ackedSentAt = Math.max(ackedSentAt, sentAt);
+                if (sentGeneration != generation) {
+                    checkReadsLocked();
+                    return;
+                }
+                inFlight--;
+                backoff = MIN_BACKOFF;
+                if (success) {
+                    matchIndex = Math.max(matchIndex, index);
+                    nextIndex = Math.max(nextIndex, matchIndex + 1);
+                    advanceCommitLocked();
+                } else {
+                    nextIndex = Math.max(matchIndex + 1, Math.min(index, prevIndex));
+                    abandonInFlightLocked();
+                }
+                checkReadsLocked();
+                changed.signalAll();
+            } catch (IOException e) {
+                Logger.log("Invalid append response: " + e.getMessage(), Logger.LogLevel.ERROR);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Resends from nextIndex, ignoring the responses of the appends in flight.
+         */
+        private void abandonInFlightLocked() {
+            sentIndex = nextIndex - 1;
+            inFlight = 0;
+            generation++;
+            changed.signalAll();
+        }
+
+        /**
+         * Forwards an operation to this node, expected to be the leader.
+         *
+         * @return A future of the response after its status, failed if the node is not
+         *         the leader.
+         */
+        CompletableFuture<DataInputStream> forward(byte kind, byte[] operation) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            try {
+                out.writeShort(RequestType.RaftForwardRequest.getValue());
+                out.writeByte(kind);
+                out.write(operation);
+            } catch (IOException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            return call(RequestType.RaftForwardRequest, baos.toByteArray())
+                    .orTimeout(OPERATION_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .thenCompose(response -> {
+                        DataInputStream in = new DataInputStream(new ByteArrayInputStream(response));
+                        try {
+                            if (in.readByte() != FORWARD_OK) {
+                                return CompletableFuture.failedFuture(new IOException(address + " is not the consensus leader"));
+                            }
+                        } catch (IOException e) {
+                            return CompletableFuture.failedFuture(e);
+                        }
+                        return CompletableFuture.completedFuture(in);
+                    });
+        }
+
+        /**
+         * Sends a request to this node, connecting first if needed.
+         */
+        CompletableFuture<byte[]> call(RequestType type, byte[] data) {
+            Demultiplexer.ResponseFuture future = new Demultiplexer.ResponseFuture();
+            Demultiplexer demultiplexer = null;
+            try {
+                demultiplexer = connection();
+                int tag = nextTag.getAndIncrement();
+                demultiplexer.register(tag, future);
+                demultiplexer.send(tag, type.getValue(), data);
+            } catch (IOException e) {
+                if (demultiplexer != null) {
+                    disconnect();
+                }
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+
+        private synchronized Demultiplexer connection() throws IOException {
+            if (connection == null || !connection.isOpen()) {
+                disconnect();
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress(PartitionMap.parseHost(address), PartitionMap.parsePort(address)), CONNECT_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                connection = new Demultiplexer(new TaggedConnection(socket), true);
+            }
+            return connection;
+        }
+
+        private synchronized void disconnect() {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (IOException e) {
+                    Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
+                }
+                connection = null;
+            }
+        }
+    }
+
+    /**
+     * Encodes a command.
+     *
+     * COMMAND ID | OPERATION
+     */
+    private static byte[] encodeCommand(long commandId, BytesWriter operation) {
+        return encodeResult(out -> {
+            out.writeLong(commandId);
+            operation.write(out);
+        });
+    }
+
+    /**
+     * Encodes the result of a command, or a command.
+     */
+    private static byte[] encodeResult(BytesWriter writer) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        try {
+            writer.write(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Reads a value written with its length, a length of -1 standing for null.
+     */
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] value = new byte[length];
+        in.readFully(value);
+        return value;
+    }
+
+    /**
+     * Reads the rest of a forwarded response, the result of a forwarded command.
+     */
+    private static byte[] readRemaining(DataInputStream in) {
+        try {
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Decodes the result of a command.
+     */
+    private static <T> T decodeResult(byte[] result, ResultReader<T> reader) {
+        try {
+            return reader.read(new DataInputStream(new ByteArrayInputStream(result)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes a command or the result of a command.
+     */
+    @FunctionalInterface
+    private interface BytesWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Reads the result of a command.
+     */
+    @FunctionalInterface
+    private interface ResultReader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * Writes key-value pairs.
+     *
+     * N PAIRS | KEY | VALUE LENGTH | VALUE | ..., a length of -1 for a key that does not exist
+     */
+    static void writePairs(DataOutputStream out, Map<String, byte[]> pairs) throws IOException {
+        out.writeInt(pairs.size());
+        for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+            out.writeUTF(pair.getKey());
+            if (pair.getValue() == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(pair.getValue().length);
+                out.write(pair.getValue());
+            }
+        }
+    }
+
+    private static Map<String, byte[]> decodePairs(DataInputStream in) {
+        try {
+            int count = in.readInt();
+            Map<String, byte[]> pairs = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                int length = in.readInt();
+                byte[] value = null;
+                if (length >= 0) {
+                    value = new byte[length];
+                    in.readFully(value);
+                }
+                pairs.put(key, value);
+            }
+            return pairs;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Encodes the keys of a forwarded read.
+     *
+     * N KEYS | KEY | ...
+     */
+    private static byte[] encodeKeys(Set<String> keys) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        try {
+            out.writeInt(keys.size());
+            for (String key : keys) {
+                out.writeUTF(key);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] encodeVoteRequest(long term, int candidate, long lastIndex, long lastTerm) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        try {
+            out.writeShort(RequestType.RequestVoteRequest.getValue());
+            out.writeLong(term);
+            out.writeInt(candidate);
+            out.writeLong(lastIndex);
+            out.writeLong(lastTerm);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    private static byte[] encodeAppend(long term, int leader, long prevIndex, long prevTerm, long leaderCommit, List<RaftLog.Entry> entries) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        try {
+            out.writeShort(RequestType.AppendEntriesRequest.getValue());
+            out.writeLong(term);
+            out.writeInt(leader);
+            out.writeLong(prevIndex);
+            out.writeLong(prevTerm);
+            out.writeLong(leaderCommit);
+            out.writeInt(entries.size());
+            for (RaftLog.Entry entry : entries) {
+                out.writeLong(entry.term);
+                out.writeInt(entry.command.length);
+                out.write(entry.command);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return baos.toByteArray();
+    }
+}
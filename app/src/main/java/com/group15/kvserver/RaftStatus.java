@@ -0,0 +1,104 @@
+package com.group15.kvserver;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * The state of a node of a consensus group, as reported by ClientLibrary.getRaftStatus.
+ */
+public class RaftStatus {
+    /* A server not part of a consensus group */
+    public static final byte ROLE_NONE = -1;
+    /* A node replicating the log of a leader */
+    public static final byte ROLE_FOLLOWER = 0;
+    /* A node asking the others to elect it */
+    public static final byte ROLE_CANDIDATE = 1;
+    /* The node appending the writes to the log */
+    public static final byte ROLE_LEADER = 2;
+
+    private final byte role;
+    private final long term;
+    private final int nodeId;
+    private final int leaderId;
+    private final long lastIndex;
+    private final long commitIndex;
+    private final long lastApplied;
+
+    private RaftStatus(byte role, long term, int nodeId, int leaderId, long lastIndex, long commitIndex, long lastApplied) {
+        this.role = role;
+        this.term = term;
+        this.nodeId = nodeId;
+        this.leaderId = leaderId;
+        this.lastIndex = lastIndex;
+        this.commitIndex = commitIndex;
+        this.lastApplied = lastApplied;
+    }
+
+    /**
+     * Reads a consensus status response.
+     *
+     * ROLE | TERM | NODE ID | LEADER ID | LAST INDEX | COMMIT INDEX | LAST APPLIED
+     */
+    static RaftStatus read(DataInputStream in) throws IOException {
+        return new RaftStatus(in.readByte(), in.readLong(), in.readInt(), in.readInt(), in.readLong(), in.readLong(), in.readLong());
+    }
+
+    /**
+     * @return the role of the node, one of the ROLE constants
+     */
+    public byte getRole() {
+        return role;
+    }
+
+    /**
+     * @return the current term of the node
+     */
+    public long getTerm() {
+        return term;
+    }
+
+    /**
+     * @return the index of the node in the group, -1 if the server is not part of one
+     */
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @return the index of the leader the node knows of, -1 if none
+     */
+    public int getLeaderId() {
+        return leaderId;
+    }
+
+    /**
+     * @return the index of the last entry of the log of the node
+     */
+    public long getLastIndex() {
+        return lastIndex;
+    }
+
+    /**
+     * @return the index of the last entry the node knows to be committed
+     */
+    public long getCommitIndex() {
+        return commitIndex;
+    }
+
+    /**
+     * @return the index of the last entry applied to the database of the node
+     */
+    public long getLastApplied() {
+        return lastApplied;
+    }
+
+    @Override
+    public String toString() {
+        if (role == ROLE_NONE) {
+            return "no consensus group";
+        }
+        String name = role == ROLE_LEADER ? "leader" : role == ROLE_CANDIDATE ? "candidate" : "follower";
+        return "node " + nodeId + " " + name + " term=" + term + " leader=" + leaderId
+                + " last=" + lastIndex + " commit=" + commitIndex + " applied=" + lastApplied;
+    }
+}
@@ -0,0 +1,379 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * The ReplicaSetClient class gives access to a primary and its followers.
+ *
+ * Writes always go to the primary. Reads may also go to a follower, as long as its data
+ * is at most maxStalenessMillis old: the primary is polled for the replication lag of each
+ * follower every STATUS_INTERVAL milliseconds, and a follower is only read from while its
+ * last reported lag plus the time since it was reported stays within the bound.
+ *
+ * Reads can also be hedged: if the node a get or multiGet was sent to has not answered
+ * after the 95th percentile of the recent response times, the request is sent again to
+ * another node and the first answer wins. A node stalled by a long pause then costs about
+ * one p95 delay instead of the whole pause, for about 5% more reads. Hedged reads may be
+ * served by a follower, so hedging needs a staleness bound above 0.
+ */
+public class ReplicaSetClient implements AutoCloseable {
+    /* Time between two polls of the replication lag, in milliseconds */
+    static final long STATUS_INTERVAL = 100;
+    /* Number of recent response times the hedging delay is computed from */
+    private static final int LATENCY_SAMPLES = 1024;
+    /* Floor and initial value of the hedging delay, in microseconds */
+    private static final long MIN_HEDGE_DELAY_MICROS = 100;
+    private static final long DEFAULT_HEDGE_DELAY_MICROS = 2000;
+
+    /**
+     * A follower and the freshness of its data.
+     */
+    private static class Replica {
+        final String node;
+        final ClientLibrary client;
+        /* The lag last reported by the primary, and when, or -1 if it is not up to date */
+        volatile long lagMillis = -1;
+        volatile long reportedAt = 0;
+
+        Replica(String node, ClientLibrary client) {
+            this.node = node;
+            this.client = client;
+        }
+    }
+
+    private final ClientLibrary primary;
+    private final List<Replica> replicas = new ArrayList<>();
+    private final long maxStalenessMillis;
+    private final boolean hedging;
+
+    /* Polls the lag and fires the hedged requests */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "replica-set");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /* Recent response times of the reads, in microseconds, guarded by itself. The time of the
+       first answer rather than of the first attempt, or the stalled attempts a hedge saved
+       would raise the delay until hedging no longer helps */
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int latencyCount = 0;
+    /* The current hedging delay, recomputed as samples come in */
+    private volatile long hedgeDelayMicros = DEFAULT_HEDGE_DELAY_MICROS;
+
+    private final AtomicInteger nextNode = new AtomicInteger();
+    private final AtomicLong reads = new AtomicLong();
+    private final AtomicLong replicaReads = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+
+    /**
+     * Connects to a primary and to every follower it reports.
+     *
+     * @param host the hostname of the primary
+     * @param port the port of the primary
+     * @param maxStalenessMillis how old the data read from a follower may be, in
+     *                           milliseconds, or 0 to only read from the primary
+     * @param hedging whether reads are hedged
+     * @throws IOException if there is an issue connecting to the nodes
+     */
+    public ReplicaSetClient(String host, int port, long maxStalenessMillis, boolean hedging) throws IOException {
+        this.primary = new ClientLibrary(host, port);
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.hedging = hedging;
+        if (maxStalenessMillis > 0) {
+            try {
+                for (ReplicationStatus.Follower follower : primary.getReplicationStatus().getFollowers()) {
+                    String node = follower.getNode();
+                    replicas.add(new Replica(node, new ClientLibrary(PartitionMap.parseHost(node), PartitionMap.parsePort(node))));
+                }
+            } catch (IOException e) {
+                abortAll();
+                throw e;
+            }
+            refreshLag();
+            scheduler.scheduleWithFixedDelay(this::refreshLag, STATUS_INTERVAL, STATUS_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stores a value on the primary.
+     *
+     * @param key the key
+     * @param value the value
+     * @throws IOException if there is an issue storing the data
+     */
+    public void put(String key, byte[] value) throws IOException {
+        primary.put(key, value);
+    }
+
+    /**
+     * Stores a value on the primary without waiting for it.
+     *
+     * @param key the key
+     * @param value the value
+     * @return a future completed once the primary stored the value
+     */
+    public CompletableFuture<Void> putAsync(String key, byte[] value) {
+        return primary.putAsync(key, value);
+    }
+
+    /**
+     * Stores multiple key-value pairs on the primary.
+     *
+     * @param pairs the key-value pairs
+     * @throws IOException if there is an issue storing the data
+     */
+    public void multiPut(Map<String, byte[]> pairs) throws IOException {
+        primary.multiPut(pairs);
+    }
+
+    /**
+     * Retrieves a value from the primary or from a fresh enough follower.
+     *
+     * @param key the key
+     * @return the value associated with the key, or null if the key does not exist
+     * @throws IOException if there is an issue retrieving the data
+     */
+    public byte[] get(String key) throws IOException {
+        return ClientLibrary.await(getAsync(key));
+    }
+
+    /**
+     * Retrieves a value without waiting for it.
+     *
+     * @param key the key
+     * @return a future of the value associated with the key, or of null if the key does not exist
+     */
+    public CompletableFuture<byte[]> getAsync(String key) {
+        return read(client -> client.getAsync(key));
+    }
+
+    /**
+     * Retrieves multiple values from the primary or from a fresh enough follower.
+     *
+     * @param keys the keys
+     * @return a map of key-value pairs
+     * @throws IOException if there is an issue retrieving the data
+     */
+    public Map<String, byte[]> multiGet(Set<String> keys) throws IOException {
+        return ClientLibrary.await(multiGetAsync(keys));
+    }
+
+    /**
+     * Retrieves multiple values without waiting for them.
+     *
+     * @param keys the keys
+     * @return a future of the map of key-value pairs
+     */
+    public CompletableFuture<Map<String, byte[]>> multiGetAsync(Set<String> keys) {
+        return read(client -> client.multiGetAsync(keys));
+    }
+
+    /**
+     * Sends a read to a node, and again to another node if it is not answered within the
+     * hedging delay. The future completes with the first answer, or fails once every
+     * attempt failed.
+     */
+    private <T> CompletableFuture<T> read(Function<ClientLibrary, CompletableFuture<T>> request) {
+        reads.incrementAndGet();
+        List<ClientLibrary> nodes = readableNodes();
+        int first = Math.floorMod(nextNode.getAndIncrement(), nodes.size());
+        ClientLibrary target = nodes.get(first);
+        if (target != primary) {
+            replicaReads.incrementAndGet();
+        }
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        AtomicInteger pending = new AtomicInteger(1);
+        long start = System.nanoTime();
+        request.apply(target).whenComplete((value, error) -> settle(result, pending, value, error));
+        result.thenRun(() -> recordLatency((System.nanoTime() - start) / 1000));
+
+        if (hedging && nodes.size() > 1) {
+            ClientLibrary alternate = nodes.get((first + 1) % nodes.size());
+            pending.incrementAndGet();
+            scheduler.schedule(() -> {
+                if (result.isDone()) {
+                    return;
+                }
+                hedges.incrementAndGet();
+                request.apply(alternate).whenComplete((value, error) -> {
+                    if (error == null && !result.isDone()) {
+                        hedgeWins.incrementAndGet();
+                    }
+                    settle(result, pending, value, error);
+                });
+            }, hedgeDelayMicros, TimeUnit.MICROSECONDS);
+        }
+        return result;
+    }
+
+    /**
+     * Completes the result of a read with the first answer, or with the error of the last
+     * attempt if every attempt failed. A hedge that was not sent yet counts as pending, so
+     * a failed first attempt still gets its hedge.
+     */
+    private static <T> void settle(CompletableFuture<T> result, AtomicInteger pending, T value, Throwable error) {
+        int left = pending.decrementAndGet();
+        if (error == null) {
+            result.complete(value);
+        } else if (left == 0) {
+            result.completeExceptionally(error);
+        }
+    }
+
+    /**
+     * Returns the nodes reads may currently be sent to: the primary, and the followers
+     * whose data is fresh enough.
+     */
+    private List<ClientLibrary> readableNodes() {
+        List<ClientLibrary> nodes = new ArrayList<>(replicas.size() + 1);
+        nodes.add(primary);
+        long now = System.currentTimeMillis();
+        for (Replica replica : replicas) {
+            long lag = replica.lagMillis;
+            if (lag >= 0 && lag + (now - replica.reportedAt) <= maxStalenessMillis && replica.client.isConnected()) {
+                nodes.add(replica.client);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Polls the primary for the replication lag of its followers.
+     */
+    private void refreshLag() {
+        ReplicationStatus status;
+        try {
+            status = primary.getReplicationStatus();
+        } catch (IOException e) {
+            for (Replica replica : replicas) {
+                replica.lagMillis = -1;
+            }
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (Replica replica : replicas) {
+            replica.lagMillis = -1;
+            for (ReplicationStatus.Follower follower : status.getFollowers()) {
+                if (follower.getNode().equals(replica.node) && follower.isConnected()) {
+                    replica.lagMillis = follower.getLagMillis();
+                    replica.reportedAt = now;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the response time of a read and updates the hedging delay to the 95th
+     * percentile of the recent ones.
+     */
+    private void recordLatency(long micros) {
+        long[] snapshot = null;
+        synchronized (latencies) {
+            latencies[latencyCount % LATENCY_SAMPLES] = micros;
+            latencyCount++;
+            // Sorting a copy every 64 samples keeps the cost per read low
+            if (latencyCount % 64 == 0) {
+                snapshot = Arrays.copyOf(latencies, Math.min(latencyCount, LATENCY_SAMPLES));
+            }
+        }
+        if (snapshot != null) {
+            Arrays.sort(snapshot);
+            hedgeDelayMicros = Math.max(MIN_HEDGE_DELAY_MICROS, snapshot[(int) (snapshot.length * 0.95)]);
+        }
+    }
+
+    /**
+     * @return the current hedging delay, in microseconds
+     */
+    public long getHedgeDelayMicros() {
+        return hedgeDelayMicros;
+    }
+
+    /**
+     * @return the number of reads
+     */
+    public long getReadCount() {
+        return reads.get();
+    }
+
+    /**
+     * @return the number of reads first sent to a follower
+     */
+    public long getReplicaReadCount() {
+        return replicaReads.get();
+    }
+
+    /**
+     * @return the number of reads sent a second time
+     */
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * @return the number of hedged reads answered by their second attempt
+     */
+    public long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * Closes the connections to every node.
+     *
+     * @throws IOException if there is an issue closing a connection
+     */
+    @Override
+    public void close() throws IOException {
+        scheduler.shutdownNow();
+        IOException failure = null;
+        for (ClientLibrary client : allClients()) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void abortAll() {
+        scheduler.shutdownNow();
+        for (ClientLibrary client : allClients()) {
+            try {
+                client.abort();
+            } catch (IOException e) {
+                Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
+            }
+        }
+    }
+
+    private List<ClientLibrary> allClients() {
+        List<ClientLibrary> clients = new ArrayList<>();
+        clients.add(primary);
+        for (Replica replica : replicas) {
+            clients.add(replica.client);
+        }
+        return clients;
+    }
+}
@@ -0,0 +1,156 @@
+package com.group15.kvserver;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The replication state of a server, as reported by ClientLibrary.getReplicationStatus.
+ */
+public class ReplicationStatus {
+    /* A server neither replicating nor replicated */
+    public static final byte ROLE_STANDALONE = 0;
+    /* A server replicating its writes to followers, or a promoted follower */
+    public static final byte ROLE_PRIMARY = 1;
+    /* A server applying the writes of a primary */
+    public static final byte ROLE_FOLLOWER = 2;
+
+    /**
+     * The replication state of a follower, seen from its primary.
+     */
+    public static class Follower {
+        private final String node;
+        private final boolean connected;
+        private final long ackedSequence;
+        private final long lagEntries;
+        private final long lagMillis;
+
+        Follower(String node, boolean connected, long ackedSequence, long lagEntries, long lagMillis) {
+            this.node = node;
+            this.connected = connected;
+            this.ackedSequence = ackedSequence;
+            this.lagEntries = lagEntries;
+            this.lagMillis = lagMillis;
+        }
+
+        /**
+         * @return the follower, as host:port
+         */
+        public String getNode() {
+            return node;
+        }
+
+        /**
+         * @return whether the primary is connected to the follower
+         */
+        public boolean isConnected() {
+            return connected;
+        }
+
+        /**
+         * @return the commit sequence of the last write the follower acknowledged
+         */
+        public long getAckedSequence() {
+            return ackedSequence;
+        }
+
+        /**
+         * @return the number of commit sequences the follower is behind the primary
+         */
+        public long getLagEntries() {
+            return lagEntries;
+        }
+
+        /**
+         * @return the time since the oldest write the follower has not acknowledged was
+         *         committed, in milliseconds, 0 if it is up to date
+         */
+        public long getLagMillis() {
+            return lagMillis;
+        }
+
+        @Override
+        public String toString() {
+            return node + (connected ? "" : " (disconnected)") + " acked=" + ackedSequence
+                    + " lag=" + lagEntries + " writes/" + lagMillis + " ms";
+        }
+    }
+
+    private final byte role;
+    private final long commitSequence;
+    private final long appliedSequence;
+    private final long lastAppliedAt;
+    private final List<Follower> followers;
+
+    private ReplicationStatus(byte role, long commitSequence, long appliedSequence, long lastAppliedAt, List<Follower> followers) {
+        this.role = role;
+        this.commitSequence = commitSequence;
+        this.appliedSequence = appliedSequence;
+        this.lastAppliedAt = lastAppliedAt;
+        this.followers = Collections.unmodifiableList(followers);
+    }
+
+    /**
+     * Reads a replication status response.
+     *
+     * ROLE | COMMIT SEQUENCE | APPLIED SEQUENCE | LAST APPLIED AT | N FOLLOWERS
+     * | NODE | CONNECTED | ACKED SEQUENCE | LAG ENTRIES | LAG MILLIS | ...
+     */
+    static ReplicationStatus read(DataInputStream in) throws IOException {
+        byte role = in.readByte();
+        long commitSequence = in.readLong();
+        long appliedSequence = in.readLong();
+        long lastAppliedAt = in.readLong();
+        int count = in.readInt();
+        List<Follower> followers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            followers.add(new Follower(in.readUTF(), in.readBoolean(), in.readLong(), in.readLong(), in.readLong()));
+        }
+        return new ReplicationStatus(role, commitSequence, appliedSequence, lastAppliedAt, followers);
+    }
+
+    /**
+     * @return the role of the server, one of the ROLE constants
+     */
+    public byte getRole() {
+        return role;
+    }
+
+    /**
+     * @return the commit sequence of the last write of the server
+     */
+    public long getCommitSequence() {
+        return commitSequence;
+    }
+
+    /**
+     * @return the commit sequence of the last replicated write applied, on a follower
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * @return when the follower last applied replicated writes, in milliseconds since the
+     *         epoch, 0 if it never did
+     */
+    public long getLastAppliedAt() {
+        return lastAppliedAt;
+    }
+
+    /**
+     * @return the followers of a primary
+     */
+    public List<Follower> getFollowers() {
+        return followers;
+    }
+
+    @Override
+    public String toString() {
+        String name = role == ROLE_PRIMARY ? "primary" : role == ROLE_FOLLOWER ? "follower" : "standalone";
+        return name + " sequence=" + commitSequence + (role == ROLE_FOLLOWER ? " applied=" + appliedSequence : "")
+                + (followers.isEmpty() ? "" : " followers=" + followers);
+    }
+}
@@ -0,0 +1,552 @@
+package com.group15.kvserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Streams the committed writes of a primary server to its followers.
+ *
+ * Every write is appended to the bounded log of each follower while the write lock of its
+ * shard is held, so the writes of a key are logged in commit order, and a shipper thread
+ * per follower sends the log in batches. Up to WINDOW batches are in flight at once, the
+ * follower acknowledges each batch once it applied it. Shipping is asynchronous: a write is
+ * acknowledged to the client before it reaches the followers, so the writes still in the
+ * log when the primary dies are lost.
+ *
+ * Followers only apply a write if it is newer than the version they hold for the key, so
+ * replaying writes they already have is harmless. A follower that connects, reconnects or
+ * falls more than LOG_CAPACITY writes behind is brought up to date with a snapshot: its log
+ * is cleared and reopened first, then the follower is told to clear its database, every key
+ * is sent with its version, and the writes logged meanwhile follow. Followers refuse client
+ * writes until they are promoted, so the only keys a snapshot removes are the ones the
+ * primary removed or never had.
+ */
+class Replicator {
+    /* A write of a key */
+    static final byte ENTRY_PUT = 0;
+    /* A registration of a user */
+    static final byte ENTRY_USER = 1;
+    /* A part of a write whose value is too large for a single batch */
+    static final byte ENTRY_PUT_PART = 2;
+    /* The start of a snapshot, the follower clears its database before the keys that follow */
+    static final byte ENTRY_RESET = 3;
+
+    /* Acknowledgement of a follower that was promoted and no longer accepts writes from a primary */
+    static final long REJECTED = -1;
+    /* Acknowledgement of a follower that dropped a part of a large value, and needs a snapshot */
+    static final long RESYNC = -2;
+
+    /* Number of writes logged for a follower before it needs a snapshot */
+    static final int LOG_CAPACITY = 65536;
+    /* Maximum number of writes per batch */
+    static final int BATCH_ENTRIES = 512;
+    /* Number of value bytes after which a batch is sent, also the size of the parts of large values */
+    static final int BATCH_BYTES = 1024 * 1024;
+    /* Number of batches in flight per follower */
+    static final int WINDOW = 8;
+    /* Delays between two attempts to connect to a follower, in milliseconds */
+    private static final long MIN_RETRY_DELAY = 100;
+    private static final long MAX_RETRY_DELAY = 2000;
+
+    /**
+     * A logged write.
+     */
+    static class Entry {
+        final byte kind;
+        /* The version of the write, or the commit sequence it was logged at for registrations */
+        final long sequence;
+        final String key;
+        final byte[] value;
+        final long loggedAt;
+
+        Entry(byte kind, long sequence, String key, byte[] value) {
+            this.kind = kind;
+            this.sequence = sequence;
+            this.key = key;
+            this.value = value;
+            this.loggedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * The state of the replication to a follower, as reported to the clients.
+     */
+    static class FollowerStatus {
+        final String node;
+        final boolean connected;
+        final long ackedSequence;
+        final long lagEntries;
+        final long lagMillis;
+
+        FollowerStatus(String node, boolean connected, long ackedSequence, long lagEntries, long lagMillis) {
+            this.node = node;
+            this.connected = connected;
+            this.ackedSequence = ackedSequence;
+            this.lagEntries = lagEntries;
+            this.lagMillis = lagMillis;
+        }
+    }
+
+    private final ServerDatabase database;
+    private final List<FollowerLink> followers = new CopyOnWriteArrayList<>();
+    private volatile boolean stopped = false;
+
+    /**
+     * Constructs a replicator without followers.
+     *
+     * @param database The database whose writes are replicated.
+     */
+    Replicator(ServerDatabase database) {
+        this.database = database;
+    }
+
+    /**
+     * Starts replicating to a follower.
+     *
+     * @param node The follower, as host:port.
+     */
+    void addFollower(String node) {
+        FollowerLink link = new FollowerLink(node);
+        followers.add(link);
+        Thread shipper = new Thread(link, "replication-" + node);
+        shipper.setDaemon(true);
+        shipper.start();
+    }
+
+    /**
+     * Logs a write for every follower.
+     * Must be called while holding the write lock of the key's shard.
+     *
+     * @param key The key that was written.
+     * @param value The new value.
+     * @param version The commit sequence of the write.
+     */
+    void append(String key, byte[] value, long version) {
+        Entry entry = new Entry(ENTRY_PUT, version, key, value);
+        for (FollowerLink link : followers) {
+            link.append(entry);
+        }
+    }
+
+    /**
+     * Logs the registration of a user for every follower.
+     * Must be called while holding the lock of the user's shard.
+     *
+     * @param username The username.
+     * @param password The password.
+     */
+    void appendUser(String username, String password) {
+        Entry entry = new Entry(ENTRY_USER, database.commitSequence.get(), username, password.getBytes(StandardCharsets.UTF_8));
+        for (FollowerLink link : followers) {
+            link.append(entry);
+        }
+    }
+
+    /**
+     * Returns the state of the replication to every follower.
+     *
+     * @return The state of each follower.
+     */
+    List<FollowerStatus> status() {
+        List<FollowerStatus> result = new ArrayList<>();
+        long now = System.nanoTime();
+        long committed = database.commitSequence.get();
+        for (FollowerLink link : followers) {
+            long oldest = link.oldestUnacked();
+            long lagMillis = oldest == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(now - oldest);
+            long acked = link.ackedSequence;
+            long lagEntries = oldest == 0 && link.connected ? 0 : Math.max(0, committed - acked);
+            result.add(new FollowerStatus(link.node, link.connected, acked, lagEntries, lagMillis));
+        }
+        return result;
+    }
+
+    /**
+     * Stops replicating to every follower.
+     */
+    void stop() {
+        stopped = true;
+        for (FollowerLink link : followers) {
+            link.wake();
+        }
+    }
+
+    /**
+     * A batch in flight, with what its acknowledgement tells about the follower.
+     */
+    private static class InFlightBatch {
+        final Demultiplexer.ResponseFuture ack;
+        final long lastSequence;
+        final long firstLoggedAt;
+
+        InFlightBatch(Demultiplexer.ResponseFuture ack, long lastSequence, long firstLoggedAt) {
+            this.ack = ack;
+            this.lastSequence = lastSequence;
+            this.firstLoggedAt = firstLoggedAt;
+        }
+    }
+
+    /**
+     * The log of a follower and the thread shipping it.
+     */
+    private class FollowerLink implements Runnable {
+        final String node;
+
+        /* Protects the log and the resync flag */
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition notEmpty = lock.newCondition();
+        private final ArrayDeque<Entry> log = new ArrayDeque<>();
+        /* Whether the follower must be sent a snapshot before the log */
+        private boolean resync = true;
+
+        /* The batches sent and not acknowledged yet, only used by the shipper */
+        private final ArrayDeque<InFlightBatch> inFlight = new ArrayDeque<>();
+        private int nextTag = 0;
+
+        volatile boolean connected = false;
+        /* The sequence of the last write the follower acknowledged */
+        volatile long ackedSequence = 0;
+        /* When the oldest write not acknowledged yet was logged, 0 if there is none */
+        private volatile long oldestInFlight = 0;
+        /* Set once the follower rejected the replication, the shipper then exits */
+        private volatile boolean rejected = false;
+
+        FollowerLink(String node) {
+            this.node = node;
+        }
+
+        void append(Entry entry) {
+            lock.lock();
+            try {
+                if (resync) {
+                    // The snapshot will carry the write
+                    return;
+                }
+                if (log.size() >= LOG_CAPACITY) {
+                    log.clear();
+                    resync = true;
+                    Logger.log("Follower " + node + " fell behind, a snapshot will be sent", Logger.LogLevel.WARN);
+                } else {
+                    log.addLast(entry);
+                }
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void wake() {
+            lock.lock();
+            try {
+                notEmpty.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long oldestUnacked() {
+            long oldest = oldestInFlight;
+            if (oldest != 0) {
+                return oldest;
+            }
+            lock.lock();
+            try {
+                return log.isEmpty() ? 0 : log.peekFirst().loggedAt;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void run() {
+            long delay = MIN_RETRY_DELAY;
+            while (!stopped && !rejected) {
+                Demultiplexer demultiplexer = null;
+                try {
+                    Socket socket = new Socket(PartitionMap.parseHost(node), PartitionMap.parsePort(node));
+                    demultiplexer = new Demultiplexer(new TaggedConnection(socket), true);
+                    connected = true;
+                    delay = MIN_RETRY_DELAY;
+                    Logger.log("Replicating to " + node, Logger.LogLevel.INFO);
+                    ship(demultiplexer);
+                    return;
+                } catch (IOException e) {
+                    if (connected) {
+                        Logger.log("Lost follower " + node + ": " + e.getMessage(), Logger.LogLevel.WARN);
+                    }
+                } finally {
+                    connected = false;
+                    inFlight.clear();
+                    oldestInFlight = 0;
+                    lock.lock();
+                    try {
+                        log.clear();
+                        resync = true;
+                    } finally {
+                        lock.unlock();
+                    }
+                    if (demultiplexer != null) {
+                        try {
+                            demultiplexer.close();
+                        } catch (IOException e) {
+                            Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
+                        }
+                    }
+                }
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+            }
+        }
+
+        /**
+         * Ships the log until the replicator stops or the follower is lost.
+         */
+        private void ship(Demultiplexer demultiplexer) throws IOException {
+            List<Entry> batch = new ArrayList<>(BATCH_ENTRIES);
+            while (!stopped) {
+                boolean snapshot;
+                lock.lock();
+                try {
+                    snapshot = resync;
+                    if (snapshot) {
+                        // Writes logged from now on follow the snapshot
+                        log.clear();
+                        resync = false;
+                    } else {
+                        if (log.isEmpty() && inFlight.isEmpty()) {
+                            notEmpty.await(1, TimeUnit.SECONDS);
+                        }
+                        takeBatch(batch);
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    lock.unlock();
+                }
+
+                if (snapshot) {
+                    sendSnapshot(demultiplexer);
+                } else if (!batch.isEmpty()) {
+                    send(demultiplexer, batch);
+                    batch.clear();
+                } else if (!inFlight.isEmpty()) {
+                    awaitOldest();
+                }
+            }
+        }
+
+        /**
+         * Moves the next writes of the log to a batch. Must be called holding the lock.
+         */
+        private void takeBatch(List<Entry> batch) {
+            long bytes = 0;
+            while (!log.isEmpty() && batch.size() < BATCH_ENTRIES && bytes < BATCH_BYTES) {
+                Entry entry = log.pollFirst();
+                batch.add(entry);
+                bytes += entry.key.length() + (entry.value != null ? entry.value.length : 0);
+            }
+        }
+
+        /**
+         * Sends every key of the database with its version, and every user.
+         */
+        private void sendSnapshot(Demultiplexer demultiplexer) throws IOException {
+            long snapshotSequence = database.commitSequence.get();
+            Logger.log("Sending a snapshot to " + node, Logger.LogLevel.INFO);
+            List<Entry> batch = new ArrayList<>(BATCH_ENTRIES);
+            // Keys the follower holds and this server does not would never be overwritten
+            batch.add(new Entry(ENTRY_RESET, 0, "", new byte[0]));
+            long bytes = 0;
+            // The shards must not be rebuilt while they are walked
+            database.enterShards();
+            try {
+                for (int shardIndex = 0; shardIndex < database.databaseShardsCount; shardIndex++) {
+                    List<Entry> entries = new ArrayList<>();
+                    database.databaseLocks.get(shardIndex).readLock().lock();
+                    try {
+                        ShardTable shard = database.databaseShards.get(shardIndex);
+                        for (String key : shard.keys()) {
+                            entries.add(new Entry(ENTRY_PUT, shard.getVersion(key), key, shard.get(key)));
+                        }
+                    } finally {
+                        database.databaseLocks.get(shardIndex).readLock().unlock();
+                    }
+                    for (Entry entry : entries) {
+                        batch.add(entry);
+                        bytes += entry.key.length() + entry.value.length;
+                        if (batch.size() >= BATCH_ENTRIES || bytes >= BATCH_BYTES) {
+                            send(demultiplexer, batch);
+                            batch.clear();
+                            bytes = 0;
+                        }
+                    }
+                }
+            } finally {
+                database.exitShards();
+            }
+            for (int shardIndex = 0; shardIndex < database.usersShardsCount; shardIndex++) {
+                List<Entry> entries = new ArrayList<>();
+                database.usersLocks.get(shardIndex).lock();
+                try {
+                    for (Map.Entry<String, String> user : database.usersShards.get(shardIndex).entrySet()) {
+                        entries.add(new Entry(ENTRY_USER, snapshotSequence, user.getKey(), user.getValue().getBytes(StandardCharsets.UTF_8)));
+                    }
+                } finally {
+                    database.usersLocks.get(shardIndex).unlock();
+                }
+                for (Entry entry : entries) {
+                    batch.add(entry);
+                    if (batch.size() >= BATCH_ENTRIES) {
+                        send(demultiplexer, batch);
+                        batch.clear();
+                    }
+                }
+            }
+            if (!batch.isEmpty()) {
+                send(demultiplexer, batch);
+            }
+            while (!inFlight.isEmpty()) {
+                awaitOldest();
+            }
+            ackedSequence = Math.max(ackedSequence, snapshotSequence);
+            Logger.log("Snapshot sent to " + node + " up to sequence " + snapshotSequence, Logger.LogLevel.INFO);
+        }
+
+        /**
+         * Sends a batch, waiting for an acknowledgement first if the window is full. Values
+         * too large for a batch are sent in parts, one per batch.
+         */
+        private void send(Demultiplexer demultiplexer, List<Entry> batch) throws IOException {
+            int first = 0;
+            for (int i = 0; i <= batch.size(); i++) {
+                Entry entry = i < batch.size() ? batch.get(i) : null;
+                if (entry != null && (entry.value == null || entry.value.length <= BATCH_BYTES)) {
+                    continue;
+                }
+                if (i > first) {
+                    // Writes of different shards may be logged slightly out of sequence order
+                    long lastSequence = 0;
+                    for (int j = first; j < i; j++) {
+                        lastSequence = Math.max(lastSequence, batch.get(j).sequence);
+                    }
+                    sendFrame(demultiplexer, encodeBatch(batch, first, i), lastSequence, batch.get(first).loggedAt);
+                }
+                if (entry != null) {
+                    for (int offset = 0; offset < entry.value.length; offset += BATCH_BYTES) {
+                        sendFrame(demultiplexer, encodePart(entry, offset), entry.sequence, entry.loggedAt);
+                    }
+                }
+                first = i + 1;
+            }
+        }
+
+        private void sendFrame(Demultiplexer demultiplexer, byte[] data, long lastSequence, long firstLoggedAt) throws IOException {
+            while (inFlight.size() >= WINDOW) {
+                awaitOldest();
+            }
+            int tag = nextTag++;
+            Demultiplexer.ResponseFuture ack = new Demultiplexer.ResponseFuture();
+            demultiplexer.register(tag, ack);
+            demultiplexer.send(tag, RequestType.ReplicateRequest.getValue(), data);
+            if (inFlight.isEmpty()) {
+                oldestInFlight = firstLoggedAt;
+            }
+            inFlight.addLast(new InFlightBatch(ack, lastSequence, firstLoggedAt));
+        }
+
+        /**
+         * Waits for the acknowledgement of the oldest batch in flight.
+         */
+        private void awaitOldest() throws IOException {
+            InFlightBatch batch = inFlight.peekFirst();
+            byte[] response;
+            try {
+                response = batch.ack.get(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for follower " + node, e);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            } catch (TimeoutException e) {
+                throw new IOException("Follower " + node + " stopped acknowledging");
+            }
+            long applied = ByteBuffer.wrap(response).getLong();
+            if (applied == REJECTED) {
+                Logger.log("Follower " + node + " was promoted, no longer replicating to it", Logger.LogLevel.WARN);
+                followers.remove(this);
+                rejected = true;
+                throw new IOException("Follower " + node + " rejected the replication");
+            }
+            if (applied == RESYNC) {
+                // Reconnecting sends a snapshot first
+                throw new IOException("Follower " + node + " lost a part of a large value and asked for a resync");
+            }
+            inFlight.pollFirst();
+            ackedSequence = Math.max(ackedSequence, batch.lastSequence);
+            InFlightBatch next = inFlight.peekFirst();
+            oldestInFlight = next == null ? 0 : next.firstLoggedAt;
+        }
+    }
+
+    /**
+     * Encodes a batch of writes.
+     *
+     * N ENTRIES | KIND | VERSION | KEY | VALUE LENGTH | VALUE | ...
+     */
+    private static byte[] encodeBatch(List<Entry> batch, int from, int to) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeShort(RequestType.ReplicateRequest.getValue());
+        out.writeInt(to - from);
+        for (int i = from; i < to; i++) {
+            Entry entry = batch.get(i);
+            out.writeByte(entry.kind);
+            out.writeLong(entry.sequence);
+            out.writeUTF(entry.key);
+            out.writeInt(entry.value.length);
+            out.write(entry.value);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Encodes a part of a large value as a batch of its own.
+     *
+     * 1 | PART | VERSION | KEY | TOTAL LENGTH | OFFSET | PART LENGTH | PART
+     */
+    private static byte[] encodePart(Entry entry, int offset) throws IOException {
+        int length = Math.min(BATCH_BYTES, entry.value.length - offset);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(length + 64);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeShort(RequestType.ReplicateRequest.getValue());
+        out.writeInt(1);
+        out.writeByte(ENTRY_PUT_PART);
+        out.writeLong(entry.sequence);
+        out.writeUTF(entry.key);
+        out.writeInt(entry.value.length);
+        out.writeInt(offset);
+        out.writeInt(length);
+        out.write(entry.value, offset, length);
+        return baos.toByteArray();
+    }
+}
@@ -0,0 +1,389 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The RequestBatcher class collects the single-key gets and puts issued concurrently on
+ * a client and sends them as multi-get and multi-put requests.
+ *
+ * A batch is sent once it holds maxBatchSize keys or maxBatchBytes bytes of values, or
+ * maxDelayMicros after its first request, whichever comes first. Gets of the same key in
+ * a batch share one lookup, and the last put of a key in a batch wins. Pending puts are
+ * always taken before pending gets, and the batches are sent one at a time in the order
+ * they were taken, whichever threads take them. A value too large to be sent inline is
+ * sent after the puts and gets pending before it, and the batches taken after it wait until
+ * it is stored. As the server handles the requests of a connection in order, a get issued after
+ * a put of the same key sees it, and the last put of a key wins.
+ *
+ * Batching trades up to maxDelayMicros of latency for fewer frames on both ends, it pays
+ * off when many threads issue small requests at once.
+ */
+public class RequestBatcher implements AutoCloseable {
+    /**
+     * The gets collected for the next multi-get.
+     */
+    private static class GetBatch {
+        final Map<String, List<CompletableFuture<byte[]>>> waiters = new LinkedHashMap<>();
+    }
+
+    /**
+     * A value too large to be sent inline, stored on its own.
+     */
+    private static class LargePut {
+        final String key;
+        final byte[] value;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        LargePut(String key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * The puts collected for the next multi-put.
+     */
+    private static class PutBatch {
+        final Map<String, byte[]> values = new LinkedHashMap<>();
+        final List<CompletableFuture<Void>> waiters = new ArrayList<>();
+        long bytes = 0;
+    }
+
+    /* Default number of keys in a batch */
+    public static final int DEFAULT_MAX_BATCH_SIZE = 128;
+    /* Default number of value bytes in a batch of puts */
+    public static final int DEFAULT_MAX_BATCH_BYTES = 1024 * 1024;
+    /* Default time a request waits for its batch to fill, in microseconds */
+    public static final long DEFAULT_MAX_DELAY_MICROS = 200;
+
+    private final ClientLibrary client;
+    private final int maxBatchSize;
+    private final int maxBatchBytes;
+    private final long maxDelayMicros;
+
+    /* Sends the batches whose delay expired */
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "request-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /* The batches being collected, guarded by this */
+    private GetBatch gets = new GetBatch();
+    private PutBatch puts = new PutBatch();
+    /* The batches taken and not sent yet, in the order they must be sent, guarded by this */
+    private final ArrayDeque<Object> outbox = new ArrayDeque<>();
+    /* Whether a thread is sending the outbox, or a large put is being stored, guarded by this */
+    private boolean sending = false;
+
+    /* Number of single-key requests and of multi-key requests sent for them */
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * Constructs a batcher with the default settings.
+     *
+     * @param client the client the batches are sent on
+     */
+    public RequestBatcher(ClientLibrary client) {
+        this(client, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_BATCH_BYTES, DEFAULT_MAX_DELAY_MICROS);
+    }
+
+    /**
+     * Constructs a batcher.
+     *
+     * @param client the client the batches are sent on
+     * @param maxBatchSize the number of keys that sends a batch right away
+     * @param maxBatchBytes the number of value bytes that sends a batch of puts right away
+     * @param maxDelayMicros the time a request waits for its batch to fill, in microseconds
+     */
+    public RequestBatcher(ClientLibrary client, int maxBatchSize, int maxBatchBytes, long maxDelayMicros) {
+        if (maxBatchSize < 1 || maxBatchBytes < 1 || maxDelayMicros < 0) {
+            throw new IllegalArgumentException("Invalid batch limits");
+        }
+        this.client = client;
+        this.maxBatchSize = maxBatchSize;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxDelayMicros = maxDelayMicros;
+    }
+
+    /**
+     * Retrieves the value associated with the specified key, as part of a batch.
+     *
+     * @param key the key
+     * @return the value associated with the key, or null if the key does not exist
+     * @throws IOException if there is an issue retrieving the data
+     */
+    public byte[] get(String key) throws IOException {
+        return ClientLibrary.await(getAsync(key));
+    }
+
+    /**
+     * Stores a value with the specified key, as part of a batch.
+     *
+     * @param key the key
+     * @param value the value
+     * @throws IOException if there is an issue storing the data
+     */
+    public void put(String key, byte[] value) throws IOException {
+        ClientLibrary.await(putAsync(key, value));
+    }
+
+    /**
+     * Retrieves the value associated with the specified key, as part of a batch, without
+     * waiting for it.
+     *
+     * @param key the key
+     * @return a future of the value, or of null if the key does not exist
+     */
+    public CompletableFuture<byte[]> getAsync(String key) {
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        requests.incrementAndGet();
+        boolean full = false;
+        synchronized (this) {
+            GetBatch batch = gets;
+            boolean first = batch.waiters.isEmpty();
+            batch.waiters.computeIfAbsent(key, k -> new ArrayList<>(1)).add(future);
+            if (batch.waiters.size() >= maxBatchSize) {
+                // After the puts pending before it
+                takePuts();
+                takeGets();
+                full = true;
+            } else if (first) {
+                timer.schedule(() -> flushGets(batch), maxDelayMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+        if (full) {
+            drain();
+        }
+        return future;
+    }
+
+    /**
+     * Stores a value with the specified key, as part of a batch, without waiting for it.
+     * Values too large to be sent inline are stored on their own, after the pending puts and
+     * gets.
+     *
+     * @param key the key
+     * @param value the value
+     * @return a future completed once the server stored the value
+     */
+    public CompletableFuture<Void> putAsync(String key, byte[] value) {
+        if (value.length > ClientLibrary.CHUNKED_PUT_THRESHOLD) {
+            LargePut large = new LargePut(key, value);
+            requests.incrementAndGet();
+            synchronized (this) {
+                takePuts();
+                takeGets();
+                outbox.add(large);
+            }
+            drain();
+            return large.future;
+        }
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        requests.incrementAndGet();
+        boolean full = false;
+        synchronized (this) {
+            PutBatch batch = puts;
+            boolean first = batch.waiters.isEmpty();
+            byte[] previous = batch.values.put(key, value);
+            batch.bytes += value.length - (previous != null ? previous.length : 0);
+            batch.waiters.add(future);
+            if (batch.values.size() >= maxBatchSize || batch.bytes >= maxBatchBytes) {
+                takePuts();
+                full = true;
+            } else if (first) {
+                timer.schedule(() -> flushPuts(batch), maxDelayMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+        if (full) {
+            drain();
+        }
+        return future;
+    }
+
+    /**
+     * Sends the pending batches right away.
+     */
+    public void flush() {
+        synchronized (this) {
+            takePuts();
+            takeGets();
+        }
+        drain();
+    }
+
+    /**
+     * Returns the number of single-key requests issued on the batcher.
+     *
+     * @return the number of gets and puts
+     */
+    public long getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * Returns the number of multi-key requests sent for them, counting each large put
+     * stored on its own as one.
+     *
+     * @return the number of batches sent
+     */
+    public long getBatchCount() {
+        return batches.get();
+    }
+
+    /**
+     * Sends a batch of gets whose delay expired, unless it was already sent.
+     */
+    private void flushGets(GetBatch batch) {
+        synchronized (this) {
+            if (gets != batch) {
+                return;
+            }
+            takePuts();
+            takeGets();
+        }
+        drain();
+    }
+
+    /**
+     * Sends a batch of puts whose delay expired, unless it was already sent.
+     */
+    private void flushPuts(PutBatch batch) {
+        synchronized (this) {
+            if (puts != batch) {
+                return;
+            }
+            takePuts();
+        }
+        drain();
+    }
+
+    /**
+     * Moves the pending puts to the outbox. Must be called holding the lock.
+     */
+    private void takePuts() {
+        if (!puts.waiters.isEmpty()) {
+            outbox.add(puts);
+            puts = new PutBatch();
+        }
+    }
+
+    /**
+     * Moves the pending gets to the outbox. Must be called holding the lock.
+     */
+    private void takeGets() {
+        if (!gets.waiters.isEmpty()) {
+            outbox.add(gets);
+            gets = new GetBatch();
+        }
+    }
+
+    /**
+     * Sends the batches of the outbox in order, unless another thread is already sending
+     * them, in which case that thread sends the new ones too.
+     */
+    private void drain() {
+        synchronized (this) {
+            if (sending) {
+                return;
+            }
+            sending = true;
+        }
+        sendOutbox();
+    }
+
+    /**
+     * Sends the batches of the outbox until it is empty. A large put stops the sending
+     * until it is stored, then its completion sends the batches taken after it.
+     */
+    private void sendOutbox() {
+        while (true) {
+            Object batch;
+            synchronized (this) {
+                batch = outbox.poll();
+                if (batch == null) {
+                    sending = false;
+                    return;
+                }
+            }
+            if (batch instanceof LargePut) {
+                LargePut large = (LargePut) batch;
+                batches.incrementAndGet();
+                client.putAsync(large.key, large.value).whenComplete((result, error) -> {
+                    if (error != null) {
+                        large.future.completeExceptionally(error);
+                    } else {
+                        large.future.complete(null);
+                    }
+                    sendOutbox();
+                });
+                return;
+            }
+            if (batch instanceof PutBatch) {
+                send((PutBatch) batch);
+            } else {
+                send((GetBatch) batch);
+            }
+        }
+    }
+
+    /**
+     * Sends a batch of gets as a multi-get and hands each caller the value of its key.
+     */
+    private void send(GetBatch batch) {
+        if (batch.waiters.isEmpty()) {
+            return;
+        }
+        batches.incrementAndGet();
+        client.multiGetAsync(batch.waiters.keySet()).whenComplete((values, error) -> {
+            for (Map.Entry<String, List<CompletableFuture<byte[]>>> entry : batch.waiters.entrySet()) {
+                for (CompletableFuture<byte[]> future : entry.getValue()) {
+                    if (error != null) {
+                        future.completeExceptionally(error);
+                    } else {
+                        future.complete(values.get(entry.getKey()));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends a batch of puts as a multi-put and completes every caller once it is stored.
+     */
+    private void send(PutBatch batch) {
+        if (batch.waiters.isEmpty()) {
+            return;
+        }
+        batches.incrementAndGet();
+        client.multiPutAsync(batch.values).whenComplete((result, error) -> {
+            for (CompletableFuture<Void> future : batch.waiters) {
+                if (error != null) {
+                    future.completeExceptionally(error);
+                } else {
+                    future.complete(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the pending batches and stops the timer. The client itself stays open.
+     */
+    @Override
+    public void close() {
+        flush();
+        timer.shutdown();
+    }
+}
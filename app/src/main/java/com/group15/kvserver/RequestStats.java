@@ -0,0 +1,209 @@
+package com.group15.kvserver;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Latency histograms of the requests served, by request type, split into the time a
+ * request waited in the inbox of its connection, the time it waited for locks, and the
+ * rest of the time it took to handle.
+ *
+ * Each worker thread records into histograms of its own, so recording takes no lock and
+ * shares no cache line: a bucket is only written by its thread, with an ordered store
+ * rather than an atomic increment. The histograms of a request type are only allocated
+ * once the thread serves one. Reading merges the histograms of every thread, and those of
+ * the threads that ended, while recording goes on. The time spent in a lock is only
+ * measured when the lock is contended, so an uncontended lock only costs a tryLock.
+ *
+ * Requests answered later, such as those going through the consensus log or two-phase
+ * commit, are recorded until their handler returns, not until they are answered.
+ */
+class RequestStats {
+    /* Phases of a request */
+    static final int QUEUE_WAIT = 0;
+    static final int LOCK_WAIT = 1;
+    static final int EXECUTION = 2;
+    static final int PHASES = 3;
+
+    /**
+     * The histograms a thread records into.
+     */
+    private static class Recorder {
+        /* The histogram of each phase of each request type, allocated on first use */
+        final AtomicReferenceArray<AtomicLongArray> histograms = new AtomicReferenceArray<>(RequestType.values().length * PHASES);
+
+        void record(int type, int phase, long nanos) {
+            int index = type * PHASES + phase;
+            AtomicLongArray histogram = histograms.get(index);
+            if (histogram == null) {
+                histogram = new AtomicLongArray(LatencyHistogram.BUCKETS);
+                histograms.set(index, histogram);
+            }
+            int bucket = LatencyHistogram.bucketOf(nanos);
+            histogram.lazySet(bucket, histogram.get(bucket) + 1);
+        }
+    }
+
+    /* The recorders of the running threads */
+    private static final Set<Recorder> live = ConcurrentHashMap.newKeySet();
+    private static final ThreadLocal<Recorder> recorder = ThreadLocal.withInitial(() -> {
+        Recorder created = new Recorder();
+        live.add(created);
+        return created;
+    });
+    /* The current request of each thread: the time it waited for locks, in nanoseconds, its type
+       and its tag. Kept apart from the recorders since the threads applying replicated or
+       committed writes take locks too, outside of any request */
+    private static final ThreadLocal<long[]> request = ThreadLocal.withInitial(() -> new long[] {0, -1, 0});
+    private static final int WAITED = 0;
+    private static final int TYPE = 1;
+    private static final int TAG = 2;
+    /* The counts of the threads that ended, guarded by the class */
+    private static final long[][] retired = new long[RequestType.values().length * PHASES][];
+
+    private RequestStats() {
+    }
+
+    /**
+     * Acquires a lock, adding the time spent waiting for it to the lock wait of the
+     * current request if it was held by another thread.
+     *
+     * @param lock The lock.
+     */
+    static void lock(Lock lock) {
+        if (lock.tryLock()) {
+            return;
+        }
+        long start = System.nanoTime();
+        lock.lock();
+        request.get()[WAITED] += System.nanoTime() - start;
+    }
+
+    /**
+     * Starts measuring a request on the current thread.
+     *
+     * @param type The type of the request.
+     * @param tag The tag of the request.
+     */
+    static void begin(RequestType type, int tag) {
+        long[] current = request.get();
+        current[WAITED] = 0;
+        current[TYPE] = type.ordinal();
+        current[TAG] = tag;
+    }
+
+    /**
+     * Marks the end of the request of the current thread.
+     */
+    static void end() {
+        request.get()[TYPE] = -1;
+    }
+
+    /**
+     * @return The name of the type of the request the current thread is handling, or null if none.
+     */
+    static String currentType() {
+        long type = request.get()[TYPE];
+        return type < 0 ? null : FlightEvents.typeName((int) type);
+    }
+
+    /**
+     * @return The tag of the request the current thread is handling.
+     */
+    static int currentTag() {
+        return (int) request.get()[TAG];
+    }
+
+    /**
+     * @return The time the request of the current thread waited for locks so far, in nanoseconds.
+     */
+    static long currentLockWait() {
+        return request.get()[WAITED];
+    }
+
+    /**
+     * Records a request handled by the current thread.
+     *
+     * @param type The type of the request.
+     * @param queueWait Time from the reception of the request until its handling started, in nanoseconds.
+     * @param handling Time the handling took, lock waits included, in nanoseconds.
+     */
+    static void record(RequestType type, long queueWait, long handling) {
+        Recorder current = recorder.get();
+        int index = type.ordinal();
+        long waited = request.get()[WAITED];
+        current.record(index, QUEUE_WAIT, queueWait);
+        current.record(index, LOCK_WAIT, waited);
+        current.record(index, EXECUTION, handling - waited);
+    }
+
+    /**
+     * Keeps the counts of the current thread, which is ending, and forgets its recorder.
+     */
+    static synchronized void retire() {
+        Recorder current = recorder.get();
+        merge(current, retired);
+        live.remove(current);
+        recorder.remove();
+    }
+
+    private static void merge(Recorder source, long[][] target) {
+        for (int index = 0; index < target.length; index++) {
+            AtomicLongArray histogram = source.histograms.get(index);
+            if (histogram == null) {
+                continue;
+            }
+            if (target[index] == null) {
+                target[index] = new long[LatencyHistogram.BUCKETS];
+            }
+            for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+                target[index][bucket] += histogram.get(bucket);
+            }
+        }
+    }
+
+    /**
+     * Writes the merged histograms of every request type served.
+     *
+     * N TYPES | TYPE NAME | QUEUE WAIT | LOCK WAIT | EXECUTION | ..., each histogram as
+     * written by LatencyHistogram.write
+     *
+     * @param out The stream to write to.
+     */
+    static void write(DataOutputStream out) throws IOException {
+        long[][] merged = new long[retired.length][];
+        synchronized (RequestStats.class) {
+            for (int index = 0; index < retired.length; index++) {
+                if (retired[index] != null) {
+                    merged[index] = retired[index].clone();
+                }
+            }
+            for (Recorder source : live) {
+                merge(source, merged);
+            }
+        }
+        RequestType[] types = RequestType.values();
+        int served = 0;
+        for (int type = 0; type < types.length; type++) {
+            if (merged[type * PHASES + EXECUTION] != null) {
+                served++;
+            }
+        }
+        out.writeInt(served);
+        for (int type = 0; type < types.length; type++) {
+            if (merged[type * PHASES + EXECUTION] == null) {
+                continue;
+            }
+            out.writeUTF(types[type].name());
+            for (int phase = 0; phase < PHASES; phase++) {
+                long[] counts = merged[type * PHASES + phase];
+                LatencyHistogram.write(out, counts != null ? counts : new long[LatencyHistogram.BUCKETS]);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.group15.kvserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.AbstractMap;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * The ScanIterator class iterates over the key-value pairs returned by a scan, in key order.
+ * The server streams the pairs as a sequence of frames on the tag of the scan, and frames
+ * are only decoded as the iteration reaches them. The server sends a new frame for each one
+ * the iterator decodes, so at most SCAN_WINDOW frames are in flight.
+ *
+ * The cursor is the last key returned so far; a new scan starting after it resumes an
+ * interrupted one. Closing the iterator before the end stops the scan and discards the
+ * frames already sent.
+ */
+public class ScanIterator implements Iterator<Map.Entry<String, byte[]>>, AutoCloseable {
+    /* The client the scan belongs to, used to download large values */
+    private final ClientLibrary client;
+    /* The demultiplexer the frames are received from */
+    private final Demultiplexer demultiplexer;
+    /* The tag of the scan */
+    private final int tag;
+    /* The frames of the scan */
+    private final Demultiplexer.FrameStream frames;
+    /* Pairs of the current frame not yet returned */
+    private final ArrayDeque<Map.Entry<String, byte[]>> buffered = new ArrayDeque<>();
+    /* Whether the last frame was received */
+    private boolean finished = false;
+    /* The last key returned */
+    private String cursor;
+
+    /**
+     * Constructs a ScanIterator reading the frames of the given scan.
+     *
+     * @param client the client the scan belongs to
+     * @param demultiplexer the demultiplexer the frames are received from
+     * @param tag the tag of the scan
+     * @param frames the frames of the scan
+     * @param startKey the key the scan started from
+     */
+    ScanIterator(ClientLibrary client, Demultiplexer demultiplexer, int tag, Demultiplexer.FrameStream frames, String startKey) {
+        this.client = client;
+        this.demultiplexer = demultiplexer;
+        this.tag = tag;
+        this.frames = frames;
+        this.cursor = startKey;
+    }
+
+    /**
+     * Returns the last key returned by the iterator, or the start key if none was.
+     *
+     * @return the cursor of the scan
+     */
+    public String getCursor() {
+        return cursor;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (buffered.isEmpty() && !finished) {
+            try {
+                readFrame();
+            } catch (IOException e) {
+                finished = true;
+                demultiplexer.unregister(tag);
+                throw new UncheckedIOException(e);
+            }
+        }
+        return !buffered.isEmpty();
+    }
+
+    @Override
+    public Map.Entry<String, byte[]> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Map.Entry<String, byte[]> entry = buffered.poll();
+        cursor = entry.getKey();
+        return entry;
+    }
+
+    /**
+     * Receives and decodes the next frame of the scan.
+     *
+     * @throws IOException if there is an issue receiving the frame
+     */
+    private void readFrame() throws IOException {
+        byte[] frame = frames.take();
+
+        // LAST | N PAIRS | KEY | VALUE LENGTH | VALUE | ... | CURSOR
+        try (ByteArrayInputStream bais = new ByteArrayInputStream(frame);
+             DataInputStream dis = new DataInputStream(bais)) {
+            finished = dis.readBoolean();
+            if (finished) {
+                demultiplexer.unregister(tag);
+            } else {
+                sendPhase(ServerWorker.CHUNK_CREDIT);
+            }
+            int n = dis.readInt();
+            for (int i = 0; i < n; i++) {
+                String key = dis.readUTF();
+                byte[] value = client.readValue(dis, key);
+                if (value == null) {
+                    continue;
+                }
+                buffered.add(new AbstractMap.SimpleImmutableEntry<>(key, value));
+            }
+        }
+    }
+
+    /**
+     * Stops the scan and discards the frames already sent.
+     *
+     * @throws IOException if there is an issue receiving the frames
+     */
+    @Override
+    public void close() throws IOException {
+        buffered.clear();
+        while (!finished) {
+            // Sent again for every frame, as the server may not have started the scan yet
+            sendPhase(ServerWorker.CHUNK_ABORT);
+            byte[] frame = frames.take();
+            finished = frame[0] != 0;
+        }
+        demultiplexer.unregister(tag);
+    }
+
+    /**
+     * Sends a frame granting one more frame of credit, or stopping the scan.
+     *
+     * @param phase CHUNK_CREDIT or CHUNK_ABORT
+     * @throws IOException if there is an issue sending the frame
+     */
+    private void sendPhase(byte phase) throws IOException {
+        try (ByteArrayOutputStream baos = new ByteArrayOutputStream();
+             DataOutputStream dos = new DataOutputStream(baos)) {
+            dos.writeShort(RequestType.ScanRequest.getValue());
+            dos.writeByte(phase);
+            if (phase == ServerWorker.CHUNK_CREDIT) {
+                dos.writeInt(1);
+            }
+            demultiplexer.send(tag, RequestType.ScanRequest.getValue(), baos.toByteArray());
+        }
+    }
+}
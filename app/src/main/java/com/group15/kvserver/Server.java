@@ -8,10 +8,15 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -29,7 +34,36 @@ enum RequestType {
     MultiPutRequest((short)4),
     MultiGetRequest((short)5),
     GetWhenRequest((short)6),
-    DisconnectRequest((short)7);
+    DisconnectRequest((short)7),
+    WatchRequest((short)8),
+    UnwatchRequest((short)9),
+    CompareAndSetRequest((short)10),
+    IncrementRequest((short)11),
+    AppendRequest((short)12),
+    GetVersionedRequest((short)13),
+    ScanRequest((short)14),
+    PutChunkRequest((short)15),
+    GetChunkRequest((short)16),
+    PingRequest((short)17),
+    TrackRequest((short)18),
+    GetTrackedRequest((short)19),
+    PartitionMapRequest((short)20),
+    ReplicateRequest((short)21),
+    PromoteRequest((short)22),
+    ReplicationStatusRequest((short)23),
+    RequestVoteRequest((short)24),
+    AppendEntriesRequest((short)25),
+    RaftForwardRequest((short)26),
+    RaftStatusRequest((short)27),
+    AtomicMultiPutRequest((short)28),
+    PrepareRequest((short)29),
+    DecideRequest((short)30),
+    TransactionStatusRequest((short)31),
+    StatsRequest((short)32),
+    ShardStatsRequest((short)33),
+    LogLevelRequest((short)34),
+    /* Sent on the tag of a request that failed, instead of its response: MESSAGE */
+    ErrorResponse((short)35);
 
     private final short value;
 
@@ -49,24 +83,76 @@ class ServerDatabase {
     int databaseShardsCount;
     int usersShardsCount;
 
-    /* Stores data for different database shards */
-    List<Map<String, byte[]>> databaseShards;
+    /* Stores data, and the commit sequence of the last write of each key, for different database shards */
+    List<ShardTable> databaseShards;
+    /* Sorted keys of each database shard, or null when the ordered index is disabled */
+    List<ConcurrentSkipListSet<String>> orderedIndexes;
     /* Stores user data for different user shards */
     List<Map<String, String>> usersShards;
 
-    /* Locks for database shards */
-    List<ReentrantReadWriteLock> databaseLocks;
+    /* Locks for database shards, counting their acquisitions, waits and holds */
+    List<ShardLock> databaseLocks;
     /* Locks for user shards */
     List<ReentrantLock> usersLocks;
     /* Conditions to notify */
     Map<String, Condition> conditions;
     /* Global lock for managing concurrency */
     ReentrantLock globalLock = new ReentrantLock();
+    /* Sequence number of the last committed write */
+    AtomicLong commitSequence = new AtomicLong();
+    /* Watch subscriptions notified on every committed write */
+    WatchRegistry watchRegistry = new WatchRegistry();
+    /* The partition map of the cluster this server is part of, or null if it runs alone */
+    PartitionMap partitionMap = null;
+    /* Ships the committed writes to the followers, or null if this server has none */
+    volatile Replicator replicator = null;
+    /* Set once this server runs as a follower, by --follower or its first replicated batch. It then refuses
+       client writes until it is promoted, since they would get versions its primary's writes are skipped for */
+    volatile boolean following = false;
+    /* Set once this follower was promoted, writes replicated by its former primary are then rejected */
+    volatile boolean promoted = false;
+    /* The sequence of the last replicated write applied by this follower */
+    volatile long appliedSequence = 0;
+    /* When this follower last applied replicated writes, in milliseconds since the epoch, 0 if never */
+    volatile long lastAppliedAt = 0;
+    /* The consensus group the writes of a key prefix go through, or null if there is none */
+    RaftNode raft = null;
+    /* Coordinates the multiPuts spanning several nodes of the cluster, or null if this server runs alone */
+    TransactionManager transactions = null;
+    /* Recommends a shard count, or null if it is not running */
+    ShardAdvisor shardAdvisor = null;
+    /* Largest total length of the values of the chunked uploads in progress on a connection, 0 for no limit */
+    long maxUploadLength = 0;
+    /* Largest request reassembled from fragments */
+    int maxMessageLength = ServerWorker.DEFAULT_MAX_MESSAGE_LENGTH;
+    /* Runs the parts of requests that go on once the consensus group confirmed a read, off its threads */
+    final java.util.concurrent.ExecutorService requestTasks = java.util.concurrent.Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "request-task");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /* Number of layout stripes, a power of two */
+    private static final int LAYOUT_STRIPES = 64;
+    /* Held shared by every operation on the shards and exclusively while they are rebuilt, striped by
+       thread so that operations do not share a lock word, or null if the shards are never rebuilt */
+    private ReentrantReadWriteLock[] layoutStripes = null;
+    /* Number of times the shards were rebuilt, guarded by the layout stripes */
+    int layoutGeneration = 0;
+    /* getWhen requests from their registration until their answer, which hold on to the lock of their shard */
+    java.util.concurrent.atomic.AtomicInteger pendingGetWhens = new java.util.concurrent.atomic.AtomicInteger();
 
     /**
      * Constructor initializes the server database with the specified number of shards.
      */
     public ServerDatabase(int databaseShardsCount, int usersShardsCount) {
+        this(databaseShardsCount, usersShardsCount, false);
+    }
+
+    /**
+     * Constructor initializes the server database with the specified number of shards,
+     * optionally keeping an ordered index of the keys of each shard for range scans.
+     */
+    public ServerDatabase(int databaseShardsCount, int usersShardsCount, boolean orderedIndex) {
         this.databaseShardsCount = databaseShardsCount;
         this.usersShardsCount = usersShardsCount;
         
@@ -79,8 +165,15 @@ class ServerDatabase {
         this.conditions = new HashMap<>(); 
 
         for (int i = 0; i < databaseShardsCount; i++) {
-            this.databaseShards.add(new HashMap<>());
-            this.databaseLocks.add(new ReentrantReadWriteLock());
+            this.databaseShards.add(new ShardTable());
+            this.databaseLocks.add(new ShardLock(i));
+        }
+
+        if (orderedIndex) {
+            this.orderedIndexes = new java.util.ArrayList<>();
+            for (int i = 0; i < databaseShardsCount; i++) {
+                this.orderedIndexes.add(new ConcurrentSkipListSet<>());
+            }
         }
 
         for (int i = 0; i < usersShardsCount; i++) {
@@ -89,6 +182,154 @@ class ServerDatabase {
         }
     }
 
+    /**
+     * Allows the shards to be rebuilt with another count by reshard. Must be called
+     * before any other thread uses the database.
+     */
+    void enableResharding() {
+        layoutStripes = new ReentrantReadWriteLock[LAYOUT_STRIPES];
+        for (int i = 0; i < LAYOUT_STRIPES; i++) {
+            layoutStripes[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    /**
+     * Keeps the shards from being rebuilt until exitShards is called. Reentrant; free
+     * when resharding is not enabled.
+     */
+    void enterShards() {
+        if (layoutStripes != null) {
+            layoutStripes[(int) Thread.currentThread().getId() & (LAYOUT_STRIPES - 1)].readLock().lock();
+        }
+    }
+
+    /**
+     * Allows the shards to be rebuilt again, once every enterShards of the thread is exited.
+     */
+    void exitShards() {
+        if (layoutStripes != null) {
+            layoutStripes[(int) Thread.currentThread().getId() & (LAYOUT_STRIPES - 1)].readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the lock counters, the number of keys and the bytes of the keys and values of
+     * every shard, indexed as in ShardAdvisor. The keys and bytes are read without the shard
+     * locks, so they may be slightly out of date.
+     * Must be called between enterShards and exitShards.
+     */
+    long[][] sampleShards() {
+        long[][] samples = new long[databaseShardsCount][];
+        for (int i = 0; i < databaseShardsCount; i++) {
+            long[] sample = java.util.Arrays.copyOf(databaseLocks.get(i).sample(), ShardAdvisor.SAMPLE_LENGTH);
+            ShardTable shard = databaseShards.get(i);
+            sample[ShardAdvisor.KEYS] = shard.size();
+            sample[ShardAdvisor.KEY_BYTES] = shard.keyBytes();
+            sample[ShardAdvisor.VALUE_BYTES] = shard.valueBytes();
+            samples[i] = sample;
+        }
+        return samples;
+    }
+
+    /**
+     * Rebuilds the shards with another count, moving every key to its new shard.
+     *
+     * Waits for the operations in progress to finish, keeping new ones waiting meanwhile,
+     * and gives up if they take longer than the timeout or if a getWhen request is
+     * waiting, since it holds on to the lock of its shard. Both layouts are in memory while
+     * the keys are moved. The lock counters start again from zero.
+     *
+     * @param count The new shard count.
+     * @param timeoutMillis How long to wait for the operations in progress.
+     * @return true if the shards were rebuilt.
+     * @throws IllegalStateException If resharding is not enabled.
+     */
+    boolean reshard(int count, long timeoutMillis) throws InterruptedException {
+        if (layoutStripes == null) {
+            throw new IllegalStateException("Resharding is not enabled");
+        }
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        int locked = 0;
+        try {
+            for (; locked < LAYOUT_STRIPES; locked++) {
+                if (!layoutStripes[locked].writeLock().tryLock(deadline - System.nanoTime(), java.util.concurrent.TimeUnit.NANOSECONDS)) {
+                    return false;
+                }
+            }
+            if (pendingGetWhens.get() > 0) {
+                return false;
+            }
+
+            List<ShardTable> shards = new java.util.ArrayList<>();
+            List<ShardLock> locks = new java.util.ArrayList<>();
+            List<ConcurrentSkipListSet<String>> indexes = orderedIndexes != null ? new java.util.ArrayList<>() : null;
+            for (int i = 0; i < count; i++) {
+                shards.add(new ShardTable());
+                locks.add(new ShardLock(i));
+                if (indexes != null) {
+                    indexes.add(new ConcurrentSkipListSet<>());
+                }
+            }
+            for (ShardTable shard : databaseShards) {
+                for (String key : shard.keys()) {
+                    int shardIndex = Math.abs(key.hashCode()) % count;
+                    shards.get(shardIndex).put(key, shard.get(key), shard.getVersion(key));
+                    if (indexes != null) {
+                        indexes.get(shardIndex).add(key);
+                    }
+                }
+            }
+            databaseShards = shards;
+            databaseLocks = locks;
+            orderedIndexes = indexes;
+            // The conditions belong to the old locks, and no getWhen request waits on them
+            conditions.clear();
+            databaseShardsCount = count;
+            layoutGeneration++;
+            return true;
+        } finally {
+            for (int i = 0; i < locked; i++) {
+                layoutStripes[i].writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Removes every key and every user, for a follower about to receive a snapshot of its
+     * primary. The shards are emptied one by one, so readers may see some of them emptied
+     * before the others.
+     */
+    void clear() {
+        enterShards();
+        try {
+            RequestStats.lock(globalLock);
+            try {
+                for (int i = 0; i < databaseShardsCount; i++) {
+                    RequestStats.lock(databaseLocks.get(i).writeLock());
+                }
+            } finally {
+                globalLock.unlock();
+            }
+            for (int i = 0; i < databaseShardsCount; i++) {
+                databaseShards.set(i, new ShardTable());
+                if (orderedIndexes != null) {
+                    orderedIndexes.get(i).clear();
+                }
+                databaseLocks.get(i).writeLock().unlock();
+            }
+        } finally {
+            exitShards();
+        }
+        for (int i = 0; i < usersShardsCount; i++) {
+            RequestStats.lock(usersLocks.get(i));
+            try {
+                usersShards.get(i).clear();
+            } finally {
+                usersLocks.get(i).unlock();
+            }
+        }
+    }
+
     /**
      * Calculates the shard index for a given key based on the hash of the key.
      */
@@ -96,12 +337,227 @@ class ServerDatabase {
         return Math.abs(key.hashCode()) % databaseShardsCount;
     }
 
+    /**
+     * Returns the sorted keys of every database shard, at least those from the start key
+     * before the end key that have the prefix. Uses the ordered index when it is enabled;
+     * otherwise copies the matching keys of each shard under its read lock and sorts them.
+     *
+     * @param startKey The smallest key needed.
+     * @param endKey The key after the ones needed, or null for no upper bound.
+     * @param prefix The prefix of the keys needed, or "".
+     */
+    public List<? extends NavigableSet<String>> getSortedKeys(String startKey, String endKey, String prefix) {
+        if (orderedIndexes != null) {
+            return orderedIndexes;
+        }
+        List<NavigableSet<String>> snapshots = new java.util.ArrayList<>();
+        for (int i = 0; i < databaseShardsCount; i++) {
+            RequestStats.lock(databaseLocks.get(i).readLock());
+            try {
+                TreeSet<String> keys = new TreeSet<>();
+                for (String key : databaseShards.get(i).keys()) {
+                    if (key.startsWith(prefix) && key.compareTo(startKey) >= 0 && (endKey == null || key.compareTo(endKey) < 0)) {
+                        keys.add(key);
+                    }
+                }
+                snapshots.add(keys);
+            } finally {
+                databaseLocks.get(i).readLock().unlock();
+            }
+        }
+        return snapshots;
+    }
+
     /**
      * Calculates the shard index for a given user based on the hash of the username.
      */
     public int getUsersShardIndex(String key) {
         return Math.abs(key.hashCode()) % usersShardsCount;
     }
+
+    /**
+     * Stores a value, logs it for the followers and notifies the watchers and getWhen
+     * waiters of the key.
+     * Must be called while holding the write lock of the key's shard.
+     * 
+     * @param shardIndex The shard of the key.
+     * @param key The key to store.
+     * @param value The value to store.
+     * @param version The commit sequence of the write.
+     */
+    void store(int shardIndex, String key, byte[] value, long version) {
+        if (databaseShards.get(shardIndex).put(key, value, version) && orderedIndexes != null) {
+            orderedIndexes.get(shardIndex).add(key);
+        }
+        Replicator currentReplicator = replicator;
+        if (currentReplicator != null) {
+            currentReplicator.append(key, value, version);
+        }
+        watchRegistry.publish(key, value, version);
+        updateConditionAndNotify(key);
+    }
+
+    /**
+     * Replaces the value of a key if its current value is the expected one.
+     * 
+     * @param key The key to update.
+     * @param expected The expected value, or null if the key is expected to be absent.
+     * @param value The new value.
+     * @param version Receives the version of the key after the operation.
+     * @return true if the value was replaced.
+     */
+    boolean compareAndSet(String key, byte[] expected, byte[] value, long[] version) {
+        enterShards();
+        int shardIndex = getDatabaseShardIndex(key);
+        RequestStats.lock(databaseLocks.get(shardIndex).writeLock());
+        try {
+            byte[] current = databaseShards.get(shardIndex).get(key);
+            if (!java.util.Arrays.equals(current, expected)) {
+                version[0] = databaseShards.get(shardIndex).getVersion(key);
+                return false;
+            }
+            version[0] = commitSequence.incrementAndGet();
+            store(shardIndex, key, value, version[0]);
+            return true;
+        } finally {
+            databaseLocks.get(shardIndex).writeLock().unlock();
+            exitShards();
+        }
+    }
+
+    /**
+     * Adds a delta to a counter. Counters are stored as decimal strings and a missing
+     * key counts as 0.
+     * 
+     * @param key The key of the counter.
+     * @param delta The value to add.
+     * @return The new value, or null if the current value is not a number.
+     */
+    Long increment(String key, long delta) {
+        enterShards();
+        int shardIndex = getDatabaseShardIndex(key);
+        RequestStats.lock(databaseLocks.get(shardIndex).writeLock());
+        try {
+            byte[] current = databaseShards.get(shardIndex).get(key);
+            long counter = 0;
+            if (current != null) {
+                try {
+                    counter = Long.parseLong(new String(current, StandardCharsets.US_ASCII));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            counter += delta;
+            byte[] value = Long.toString(counter).getBytes(StandardCharsets.US_ASCII);
+            store(shardIndex, key, value, commitSequence.incrementAndGet());
+            return counter;
+        } finally {
+            databaseLocks.get(shardIndex).writeLock().unlock();
+            exitShards();
+        }
+    }
+
+    /**
+     * Appends bytes to the value of a key. A missing key is treated as empty.
+     * 
+     * @param key The key to update.
+     * @param suffix The bytes to append.
+     * @return The length of the new value.
+     */
+    int append(String key, byte[] suffix) {
+        enterShards();
+        int shardIndex = getDatabaseShardIndex(key);
+        RequestStats.lock(databaseLocks.get(shardIndex).writeLock());
+        try {
+            byte[] current = databaseShards.get(shardIndex).get(key);
+            byte[] value;
+            if (current == null) {
+                value = suffix;
+            } else {
+                // Stored values are never modified in place, readers may still hold the old one
+                value = java.util.Arrays.copyOf(current, current.length + suffix.length);
+                System.arraycopy(suffix, 0, value, current.length, suffix.length);
+            }
+            store(shardIndex, key, value, commitSequence.incrementAndGet());
+            return value.length;
+        } finally {
+            databaseLocks.get(shardIndex).writeLock().unlock();
+            exitShards();
+        }
+    }
+
+    /**
+     * Puts multiple key-value pairs into the database.
+     * 
+     * @param pairs A map of key-value pairs to store.
+     */
+    void multiPut(Map<String, byte[]> pairs) {
+        enterShards();
+        try {
+            multiPutInLayout(pairs);
+        } finally {
+            exitShards();
+        }
+    }
+
+    private void multiPutInLayout(Map<String, byte[]> pairs) {
+        Map<Integer, Map<String, byte[]>> pairsByShard = new java.util.HashMap<>();
+        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+            String key = entry.getKey();
+            int shardIndex = getDatabaseShardIndex(key);
+            if (!pairsByShard.containsKey(shardIndex)) {
+                pairsByShard.put(shardIndex, new java.util.HashMap<>());
+            }
+            pairsByShard.get(shardIndex).put(key, entry.getValue());
+        }
+
+        RequestStats.lock(globalLock);
+        try {
+            for(Map.Entry<Integer, Map<String, byte[]>> shardPairs : pairsByShard.entrySet()) {
+                int shardIndex = shardPairs.getKey();
+                RequestStats.lock(databaseLocks.get(shardIndex).writeLock());
+            }
+        } finally {
+            globalLock.unlock();
+        }
+
+        // The whole batch commits with a single sequence number
+        long version = commitSequence.incrementAndGet();
+        for(Map.Entry<Integer, Map<String, byte[]>> shardPairs : pairsByShard.entrySet()) {
+            int shardIndex = shardPairs.getKey();
+            Map<String, byte[]> par = shardPairs.getValue();
+            for (Map.Entry<String, byte[]> entry : par.entrySet()) {
+                store(shardIndex, entry.getKey(), entry.getValue(), version);
+            }
+            databaseLocks.get(shardIndex).writeLock().unlock();
+        }
+    }
+
+    /**
+     * Updates the condition and notifies waiting threads.
+     * 
+     * @param keyCond The key representing the condition.
+     */
+    void updateConditionAndNotify(String keyCond) {
+        int shardIndexCond = getDatabaseShardIndex(keyCond);
+        ReentrantReadWriteLock lock = databaseLocks.get(shardIndexCond);
+        RequestStats.lock(lock.writeLock());
+        try {
+            ShardTable currentShardCond = databaseShards.get(shardIndexCond);
+
+            if (currentShardCond.containsKey(keyCond)) {
+                Condition condition = conditions.get(keyCond);
+                if (Logger.isEnabled(Logger.LogLevel.DEBUG)) {
+                    Logger.log("Notifying condition for key: " + keyCond, Logger.LogLevel.DEBUG);
+                }
+                if (condition != null) {
+                    condition.signalAll();
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 }
 
 /**
@@ -109,18 +565,126 @@ class ServerDatabase {
  * This class handles the logic for processing different requests sent by the client.
  */
 class ServerWorker implements Runnable {
-    private Socket socket;
+    /* Default size of the frames of a scan */
+    static final int DEFAULT_SCAN_FRAME_BYTES = 64 * 1024;
+    /* Values larger than this are not sent inline, the client downloads them in chunks */
+    static final int MAX_INLINE_VALUE_LENGTH = 4 * 1024 * 1024;
+    /* Largest value accepted by a chunked upload */
+    static final int MAX_VALUE_LENGTH = Integer.MAX_VALUE - 8;
+    /* Default largest request reassembled from fragments, larger values go through chunked uploads */
+    static final int DEFAULT_MAX_MESSAGE_LENGTH = 256 * 1024 * 1024;
+    /* Bounds of the chunk size of a chunked download */
+    static final int MIN_CHUNK_SIZE = 4 * 1024;
+    static final int MAX_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    /* Phases of a chunked transfer */
+    static final byte CHUNK_BEGIN = 0;
+    static final byte CHUNK_DATA = 1;
+    static final byte CHUNK_CREDIT = 2;
+    static final byte CHUNK_ABORT = 3;
+
+    /* Status of a chunked transfer acknowledgement */
+    static final byte CHUNK_OK = 0;
+    static final byte CHUNK_COMMITTED = 1;
+    static final byte CHUNK_MISSING = 2;
+    static final byte CHUNK_ERROR = 3;
+
+    /**
+     * A value being received in chunks, written straight into its final array.
+     */
+    private static class ChunkedUpload {
+        final String key;
+        final byte[] value;
+        int received = 0;
+
+        ChunkedUpload(String key, byte[] value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A scan in progress, which sends its next frames as the client grants credits.
+     */
+    private static class ScanState {
+        final SortedKeyIterator keys;
+        final boolean hasEnd;
+        final String endKey;
+        final String prefix;
+        final int limit;
+        final int frameBytes;
+        /* Number of pairs sent so far */
+        int sent = 0;
+        /* The last key sent */
+        String cursor;
+        /* Whether the last frame was sent */
+        boolean finished = false;
+
+        ScanState(SortedKeyIterator keys, String startKey, boolean hasEnd, String endKey, String prefix, int limit, int frameBytes) {
+            this.keys = keys;
+            this.cursor = startKey;
+            this.hasEnd = hasEnd;
+            this.endKey = endKey;
+            this.prefix = prefix;
+            this.limit = limit;
+            this.frameBytes = frameBytes;
+        }
+    }
+
+    /**
+     * A value being sent in chunks. The stored array is never modified in place, so it
+     * can be sliced without holding any lock; the chunks are sent holding the download,
+     * as the first ones of a consensus key are sent once its read is confirmed.
+     */
+    private static class ChunkedDownload {
+        final byte[] value;
+        final int chunkSize;
+        int sent = 0;
+
+        ChunkedDownload(byte[] value, int chunkSize) {
+            this.value = value;
+            this.chunkSize = chunkSize;
+        }
+    }
+
+    /* The connection to the client, closed with the demultiplexer */
+    private final TaggedConnection connection;
     private ServerDatabase database;
     private final Demultiplexer demultiplexer;
     private Map<Condition, List<Integer>> conditionsTags = new HashMap<>();
+    /* Watch subscriptions opened by this client, by tag */
+    private Map<Integer, WatchRegistry.WatchSubscription> watches = new java.util.concurrent.ConcurrentHashMap<>();
+    /* The subscription tracking the keys read by the near-cache of this client, if any */
+    private WatchRegistry.WatchSubscription tracking = null;
+    /* Chunked uploads in progress on this connection, by tag */
+    private Map<Integer, ChunkedUpload> uploads = new HashMap<>();
+    /* Chunked downloads in progress on this connection, by tag */
+    private Map<Integer, ChunkedDownload> downloads = new java.util.concurrent.ConcurrentHashMap<>();
+    /* Scans in progress on this connection, by tag */
+    private Map<Integer, ScanState> scans = new java.util.concurrent.ConcurrentHashMap<>();
+    /* The large value being replicated in parts on this connection, if any */
+    private ChunkedUpload replicatedPart = null;
 
     /**
      * Constructor initializes the worker with the client's socket and server database.
      */
     public ServerWorker(Socket socket, ServerDatabase database) throws IOException {
-        this.demultiplexer = new Demultiplexer(new TaggedConnection(socket));
+        this(new TaggedConnection(socket), database);
+    }
+
+    /**
+     * Constructs a worker over a connection without a socket, such as one over in-memory
+     * streams, so that its request handling can be driven directly through handleRequest.
+     * Responses sent later, like those of getWhen, go to the connection.
+     *
+     * @param connection The connection to the client.
+     * @param database The server database.
+     */
+    ServerWorker(TaggedConnection connection, ServerDatabase database) {
+        connection.setMaxMessageLength(database.maxMessageLength);
+        this.connection = connection;
+        this.demultiplexer = new Demultiplexer(connection);
         this.database = database;
-        this.socket = socket;
     }
 
     @Override
@@ -128,11 +692,6 @@ class ServerWorker implements Runnable {
         try {
             boolean running = true;
             while (running) {
-                if (socket.isClosed()) {
-                    running = false;
-                    break;
-                }
-
                 TaggedConnection.Frame frame = new TaggedConnection.Frame(0, (short)0, new byte[0]);
                 try {
                     // Receive a request frame from the client
@@ -140,6 +699,11 @@ class ServerWorker implements Runnable {
                 } catch (InterruptedException e) {
                     Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
                 }
+                if (frame == null) {
+                    // Client disconnects
+                    running = false;
+                    break;
+                }
 
                 // Process request
                 ByteArrayInputStream bais = new ByteArrayInputStream(frame.data);
@@ -147,17 +711,45 @@ class ServerWorker implements Runnable {
                 try {
                     short requestType = in.readShort();
                     if (requestType == RequestType.DisconnectRequest.getValue()) {
-                        System.out.println("Client requested disconnect.");
+                        Logger.log("Client requested disconnect.", Logger.LogLevel.INFO);
                         running = false;
                         demultiplexer.send(frame.tag, requestType, new byte[0]);
                         break;
                     }
                     if (requestType >= 0 && requestType < RequestType.values().length) {
                         RequestType r = RequestType.values()[requestType];
-                        byte[] stream = handleRequest(r, in, frame.tag);
+                        FlightEvents.RequestEvent event = new FlightEvents.RequestEvent();
+                        event.begin();
+                        long startedAt = System.nanoTime();
+                        RequestStats.begin(r, frame.tag);
+                        byte[] stream;
+                        database.enterShards();
+                        try {
+                            stream = handleRequest(r, in, frame.tag);
+                        } finally {
+                            database.exitShards();
+                            RequestStats.end();
+                        }
+                        long handledAt = System.nanoTime();
+                        long lockWait = RequestStats.currentLockWait();
+                        RequestStats.record(r, startedAt - frame.createdAt, handledAt - startedAt);
+                        event.end();
+                        if (event.shouldCommit()) {
+                            String key = FlightEvents.keyOf(r, frame.data);
+                            event.requestType = r.name();
+                            event.tag = frame.tag;
+                            event.keyHash = key != null ? key.hashCode() : 0;
+                            event.shard = key != null ? database.getDatabaseShardIndex(key) : -1;
+                            event.requestBytes = frame.data.length;
+                            event.responseBytes = stream != null ? stream.length : 0;
+                            event.commit();
+                        }
                         if (stream != null) {
                             demultiplexer.send(frame.tag, r.getValue(), stream);
                         }
+                        if (Tracing.isRecorded(frame.trace)) {
+                            recordSpans(frame, r, startedAt, handledAt, lockWait, stream);
+                        }
                     } else {
                         Logger.log("Invalid request type: " + requestType, Logger.LogLevel.ERROR);
                     }
@@ -171,9 +763,13 @@ class ServerWorker implements Runnable {
         catch (IOException e) {
             Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
         } finally {
+            for (WatchRegistry.WatchSubscription subscription : watches.values()) {
+                database.watchRegistry.unsubscribe(subscription);
+            }
+            watches.clear();
+            RequestStats.retire();
             try {
                 demultiplexer.close();
-                socket.close();
                 Logger.log("Socket closed.", Logger.LogLevel.INFO);
             } catch (IOException e) {
                 Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
@@ -187,6 +783,11 @@ class ServerWorker implements Runnable {
      * Handles different types of requests from the client and returns the appropriate response.
      */
     public byte[] handleRequest(RequestType requestType, DataInputStream in, int tag){
+        if (database.following && !database.promoted && isClientWrite(requestType)) {
+            respondLater(tag, requestType, java.util.concurrent.CompletableFuture.failedFuture(
+                    new IOException("this server is a follower, writes go to its primary")));
+            return null;
+        }
         try {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             DataOutputStream out = new DataOutputStream(baos);
@@ -198,16 +799,24 @@ class ServerWorker implements Runnable {
                     handleRegisterRequest(in, out);
                     break;
                 case PutRequest:
-                    handlePutRequest(in, out);
+                    if (handlePutRequest(in, out, tag) == -1) {
+                        return null;
+                    }
                     break;
                 case GetRequest:
-                    handleGetRequest(in, out);
+                    if (handleGetRequest(in, out, tag) == -1) {
+                        return null;
+                    }
                     break;
                 case MultiPutRequest:
-                    handleMultiPutRequest(in, out);
+                    if (handleMultiPutRequest(in, out, tag) == -1) {
+                        return null;
+                    }
                     break;
                 case MultiGetRequest:
-                    handleMultiGetRequest(in, out);
+                    if (handleMultiGetRequest(in, out, tag) == -1) {
+                        return null;
+                    }
                     break;
                 case GetWhenRequest:
                     int flag = handleGetWhenRequest(in, out, tag);
@@ -215,6 +824,101 @@ class ServerWorker implements Runnable {
                         return null;
                     }
                     break;
+                case WatchRequest:
+                    handleWatchRequest(in, tag);
+                    return null;
+                case UnwatchRequest:
+                    handleUnwatchRequest(in, out);
+                    break;
+                case CompareAndSetRequest:
+                    if (handleCompareAndSetRequest(in, out, tag) == -1) {
+                        return null;
+                    }
+                    break;
+                case IncrementRequest:
+                    if (handleIncrementRequest(in, out, tag) == -1) {
+                        return null;
+                    }
+                    break;
+                case AppendRequest:
+                    if (handleAppendRequest(in, out, tag) == -1) {
+                        return null;
+                    }
+                    break;
+                case GetVersionedRequest:
+                    if (handleGetVersionedRequest(in, out, tag) == -1) {
+                        return null;
+                    }
+                    break;
+                case ScanRequest:
+                    handleScanRequest(in, tag);
+                    return null;
+                case PutChunkRequest:
+                    if (handlePutChunkRequest(in, out, tag) == -1) {
+                        return null;
+                    }
+                    break;
+                case GetChunkRequest:
+                    handleGetChunkRequest(in, tag);
+                    return null;
+                case PingRequest:
+                    // Health check, answered with an empty response
+                    break;
+                case TrackRequest:
+                    handleTrackRequest(in, tag);
+                    return null;
+                case GetTrackedRequest:
+                    if (handleGetTrackedRequest(in, out, tag) == -1) {
+                        return null;
+                    }
+                    break;
+                case PartitionMapRequest:
+                    handlePartitionMapRequest(out);
+                    break;
+                case ReplicateRequest:
+                    handleReplicateRequest(in, out);
+                    break;
+                case PromoteRequest:
+                    handlePromoteRequest(in, out);
+                    break;
+                case ReplicationStatusRequest:
+                    handleReplicationStatusRequest(out);
+                    break;
+                case RequestVoteRequest:
+                    handleRequestVoteRequest(in, out);
+                    break;
+                case AppendEntriesRequest:
+                    handleAppendEntriesRequest(in, out);
+                    break;
+                case RaftForwardRequest:
+                    handleRaftForwardRequest(in, tag);
+                    return null;
+                case RaftStatusRequest:
+                    handleRaftStatusRequest(out);
+                    break;
+                case AtomicMultiPutRequest:
+                    if (handleAtomicMultiPutRequest(in, out, tag) == -1) {
+                        return null;
+                    }
+                    break;
+                case PrepareRequest:
+                    handlePrepareRequest(in, out);
+                    break;
+                case DecideRequest:
+                    handleDecideRequest(in);
+                    break;
+                case TransactionStatusRequest:
+                    handleTransactionStatusRequest(in, out);
+                    break;
+                case StatsRequest:
+                    handleStatsRequest(out);
+                    break;
+                case ShardStatsRequest:
+                    handleShardStatsRequest(out);
+                    break;
+                case LogLevelRequest:
+                    handleLogLevelRequest(in, out);
+                    break;
                 default:
                     break;
             }
@@ -235,7 +939,7 @@ class ServerWorker implements Runnable {
         String username = in.readUTF();
         String password = in.readUTF();
         int userShardIndex = database.getUsersShardIndex(username);
-        database.usersLocks.get(userShardIndex).lock();
+        RequestStats.lock(database.usersLocks.get(userShardIndex));
         try {
             Map<String, String> currentShard = database.usersShards.get(userShardIndex);
             if (currentShard.containsKey(username) && currentShard.get(username).equals(password)) {
@@ -257,13 +961,17 @@ class ServerWorker implements Runnable {
         String username = in.readUTF();
         String password = in.readUTF();
         int userShardIndex = database.getUsersShardIndex(username);
-        database.usersLocks.get(userShardIndex).lock();
+        RequestStats.lock(database.usersLocks.get(userShardIndex));
         try {
             Map<String, String> currentShard = database.usersShards.get(userShardIndex);
             if (currentShard.containsKey(username)) {
                 out.writeBoolean(false);
             } else {
                 currentShard.put(username, password);
+                Replicator replicator = database.replicator;
+                if (replicator != null) {
+                    replicator.appendUser(username, password);
+                }
                 out.writeBoolean(true);
             }
         } finally {
@@ -272,121 +980,1361 @@ class ServerWorker implements Runnable {
     }
 
     /*
-     * Handles a put request from the client.
+     * Handles a put request from the client. Puts of keys covered by the consensus group
+     * are answered once committed.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     * @param tag The tag associated with the request.
+     * @return 0 if the response was written, -1 if it is sent later.
+     */
+    private int handlePutRequest(DataInputStream in, DataOutputStream out, int tag) throws IOException{
+        String key = in.readUTF();
+        int valueLength = in.readInt();
+        byte[] value = new byte[valueLength];
+        in.readFully(value);
+
+        RaftNode raft = database.raft;
+        if (raft != null && raft.covers(key)) {
+            respondLater(tag, RequestType.PutRequest, raft.write(Map.of(key, value)).thenApply(v -> new byte[0]));
+            return -1;
+        }
+        put(key, value);
+        return 0;
+    }
+
+    /*
+     * Handles a get request from the client. Gets of keys covered by the consensus group
+     * are linearizable and answered once the leader confirmed them.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     * @param tag The tag associated with the request.
+     * @return 0 if the response was written, -1 if it is sent later.
+     */
+    private int handleGetRequest(DataInputStream in, DataOutputStream out, int tag) throws IOException{
+        // KEY
+        String key = in.readUTF();
+
+        RaftNode raft = database.raft;
+        if (raft != null && raft.covers(key)) {
+            respondLater(tag, RequestType.GetRequest, raft.read(Set.of(key), this::multiGet)
+                    .thenApply(pairs -> encodeResponse(response -> writeValue(response, pairs.get(key)))));
+            return -1;
+        }
+        byte[] value = get(key);
+
+        // VALUE SIZE | VALUE
+        writeValue(out, value);
+        return 0;
+    }
+
+    /*
+     * Handles a multi-put request from the client. A batch holding a key covered by the
+     * consensus group goes through the log as a whole.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     * @param tag The tag associated with the request.
+     * @return 0 if the response was written, -1 if it is sent later.
+     */
+    private int handleMultiPutRequest(DataInputStream in, DataOutputStream out, int tag) throws IOException {
+        // N PAIRS | KEY | VALUE LENGTH | VALUE | KEY | VALUE LENGTH | VALUE | ...
+        int numberOfPairs = in.readInt();
+        Map<String, byte[]> pairs = new java.util.HashMap<>();
+
+        for (int i = 0; i < numberOfPairs; i++) {
+            String key = in.readUTF();
+            int valueLength = in.readInt();
+            byte[] value = new byte[valueLength];
+            in.readFully(value);
+            pairs.put(key, value);
+        }
+
+        RaftNode raft = database.raft;
+        if (raft != null && pairs.keySet().stream().anyMatch(raft::covers)) {
+            respondLater(tag, RequestType.MultiPutRequest, raft.write(pairs).thenApply(v -> new byte[0]));
+            return -1;
+        }
+        database.multiPut(pairs);
+        return 0;
+    }
+
+    /*
+     * Handles a multi-get request from the client. A batch holding a key covered by the
+     * consensus group is read linearizably as a whole.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     * @param tag The tag associated with the request.
+     * @return 0 if the response was written, -1 if it is sent later.
+     */
+    private int handleMultiGetRequest(DataInputStream in, DataOutputStream out, int tag) throws IOException {
+        // N KEYS | KEY | ...
+        int numberOfKeys = in.readInt();
+        Set<String> keys = new java.util.HashSet<>();
+        for (int i = 0; i < numberOfKeys; i++) {
+            String key = in.readUTF();
+            keys.add(key);
+        }
+
+        RaftNode raft = database.raft;
+        if (raft != null && keys.stream().anyMatch(raft::covers)) {
+            respondLater(tag, RequestType.MultiGetRequest, raft.read(keys, this::multiGet)
+                    .thenApply(pairs -> encodeResponse(response -> writePairs(response, pairs))));
+            return -1;
+        }
+        writePairs(out, multiGet(keys));
+        return 0;
+    }
+
+    /**
+     * Writes the pairs of a multi-get response.
+     * 
+     * N PAIRS | KEY | VALUE LENGTH | VALUE ..
+     */
+    private static void writePairs(DataOutputStream out, Map<String, byte[]> pairs) throws IOException {
+        out.writeInt(pairs.size());
+        for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+            out.writeUTF(pair.getKey());
+            writeValue(out, pair.getValue());
+        }
+    }
+
+    /**
+     * Writes a response to be sent outside of handleRequest.
+     */
+    @FunctionalInterface
+    private interface ResponseWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encodeResponse(ResponseWriter writer) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+            writer.write(new DataOutputStream(baos));
+        } catch (IOException e) {
+            throw new java.io.UncheckedIOException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Records the spans of a request sampled by its client: the request, as a child of the
+     * client's span, then its wait in the inbox, its handling, the time the handling waited
+     * for locks, and the write of its response. The lock waits are a single span of their
+     * total, from the start of the handling, as they are not timed one by one. A deferred
+     * response is not waited for.
+     *
+     * @param frame The frame of the request.
+     * @param requestType The type of the request.
+     * @param startedAt When its handling started, as System.nanoTime.
+     * @param handledAt When its handling ended.
+     * @param lockWait The time the handling waited for locks, in nanoseconds.
+     * @param response The response sent, or null if it is deferred.
+     */
+    private void recordSpans(TaggedConnection.Frame frame, RequestType requestType, long startedAt, long handledAt,
+            long lockWait, byte[] response) {
+        TraceContext trace = frame.trace;
+        long end = System.nanoTime();
+        long spanId = TraceContext.newSpanId();
+        Tracing.record(trace, spanId, trace.spanId, requestType.name(), "SERVER", frame.createdAt, end,
+                "tag", Integer.toString(frame.tag), "requestBytes", Integer.toString(frame.data.length),
+                "responseBytes", response != null ? Integer.toString(response.length) : "deferred");
+        Tracing.record(trace, TraceContext.newSpanId(), spanId, "server.queue", null, frame.createdAt, startedAt);
+        Tracing.record(trace, TraceContext.newSpanId(), spanId, "server.handle", null, startedAt, handledAt);
+        if (lockWait > 0) {
+            Tracing.record(trace, TraceContext.newSpanId(), spanId, "server.lock-wait", null, startedAt, startedAt + lockWait,
+                    "aggregated", "true");
+        }
+        if (response != null) {
+            Tracing.record(trace, TraceContext.newSpanId(), spanId, "server.write", null, handledAt, end);
+        }
+    }
+
+    /**
+     * Returns whether a request writes the keys or the users on behalf of a client.
+     * 
+     * @param requestType The type of the request.
+     * @return true if a follower must refuse the request until it is promoted.
+     */
+    private static boolean isClientWrite(RequestType requestType) {
+        switch (requestType) {
+            case RegisterRequest:
+            case PutRequest:
+            case MultiPutRequest:
+            case CompareAndSetRequest:
+            case IncrementRequest:
+            case AppendRequest:
+            case PutChunkRequest:
+            case AtomicMultiPutRequest:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Sends the response of a request once it is ready. If the request failed, an error
+     * is sent on its tag instead, and the other requests of the connection go on.
+     * 
+     * @param tag The tag associated with the request.
+     * @param requestType The type of the request.
+     * @param response The future response.
+     */
+    private void respondLater(int tag, RequestType requestType, java.util.concurrent.CompletableFuture<byte[]> response) {
+        response.whenComplete((data, error) -> {
+            try {
+                if (error == null) {
+                    demultiplexer.send(tag, requestType.getValue(), data);
+                } else {
+                    Throwable cause = error instanceof java.util.concurrent.CompletionException && error.getCause() != null
+                            ? error.getCause() : error;
+                    sendError(tag, requestType + " failed: " + cause.getMessage());
+                }
+            } catch (IOException e) {
+                Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
+            }
+        });
+    }
+
+    /**
+     * Fails a request, sending an error on its tag instead of its response.
+     * 
+     * MESSAGE
+     * 
+     * @param tag The tag of the request.
+     * @param message The reason the request failed.
+     */
+    private void sendError(int tag, String message) throws IOException {
+        Logger.log(message, Logger.LogLevel.WARN);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeUTF(message.length() > 1024 ? message.substring(0, 1024) : message);
+        demultiplexer.send(tag, RequestType.ErrorResponse.getValue(), baos.toByteArray());
+    }
+
+    /**
+     * Refuses a request on a key covered by the consensus group that cannot go through it.
+     * 
+     * @param tag The tag of the request.
+     * @param requestType The type of the request.
+     * @param operation The operation refused.
+     */
+    private void refuseCovered(int tag, RequestType requestType, String operation) {
+        respondLater(tag, requestType, java.util.concurrent.CompletableFuture.failedFuture(
+                new IOException(operation + " is not supported on the keys of the consensus group")));
+    }
+
+    /**
+     * Encodes a value the same way writeValue does, for responses sent outside of handleRequest.
+     * 
+     * @param value The value, or null.
+     * @return The encoded value.
+     */
+    private static byte[] encodeValue(byte[] value) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        writeValue(out, value);
+        return baos.toByteArray();
+    }
+
+    /**
+     * Writes a value of a response.
+     * 
+     * VALUE LENGTH | VALUE, or -1 if the key does not exist, or -2 | VALUE LENGTH if the
+     * value is too large to be sent inline and must be downloaded in chunks.
+     * 
+     * @param out The output stream to write the value to.
+     * @param value The value, or null.
+     */
+    private static void writeValue(DataOutputStream out, byte[] value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else if (value.length > MAX_INLINE_VALUE_LENGTH) {
+            out.writeInt(-2);
+            out.writeInt(value.length);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+    }
+
+    /*
+     * Handles a get-when request from the client.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     * @param tag The tag associated with the request.
+     * @return 0 if the request was successful, -1 otherwise.
+     */
+    private int handleGetWhenRequest(DataInputStream in, DataOutputStream out, int tag) throws IOException {
+        // Chaves e valores para a condição
+        String key = in.readUTF();
+        String keyCond = in.readUTF();
+        int valueCondLength = in.readInt();
+        byte[] valueCond = new byte[valueCondLength];
+        in.readFully(valueCond);
+
+        int shardIndexCond = database.getDatabaseShardIndex(keyCond);
+        ReentrantReadWriteLock lock = database.databaseLocks.get(shardIndexCond);
+        Condition condition;
+        RequestStats.lock(lock.writeLock());
+        try {
+            condition = database.conditions.computeIfAbsent(keyCond, k -> lock.writeLock().newCondition());
+            conditionsTags.putIfAbsent(condition, new java.util.ArrayList<>());
+            conditionsTags.get(condition).add(tag);
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+
+        byte[] result = getWhen(key, keyCond, valueCond);
+        if (result != null) {
+            out.write(result);
+            return 0;
+        }
+        else {
+            return -1;
+        }
+    }
+
+    /*
+     * Handles a watch request from the client. The subscription acknowledgement and the
+     * change events are all sent on the tag of the request.
+     * 
+     * @param in The input stream to read the request from.
+     * @param tag The tag associated with the request.
+     */
+    private void handleWatchRequest(DataInputStream in, int tag) throws IOException {
+        // KEY | PREFIX | BUFFER CAPACITY
+        String key = in.readUTF();
+        boolean prefix = in.readBoolean();
+        int bufferCapacity = in.readInt();
+
+        WatchRegistry.WatchSubscription subscription = database.watchRegistry.subscribe(demultiplexer, tag, key, prefix, bufferCapacity);
+        watches.put(tag, subscription);
+        subscription.start(database.commitSequence.get());
+    }
+
+    /*
+     * Handles an unwatch request from the client.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     */
+    private void handleUnwatchRequest(DataInputStream in, DataOutputStream out) throws IOException {
+        // WATCH TAG
+        int watchTag = in.readInt();
+        WatchRegistry.WatchSubscription subscription = watches.remove(watchTag);
+        if (subscription != null) {
+            database.watchRegistry.unsubscribe(subscription);
+        }
+        if (subscription == tracking) {
+            tracking = null;
+        }
+        out.writeBoolean(subscription != null);
+    }
+
+    /*
+     * Handles a tracking request from the client, which enables its near-cache. The
+     * subscription acknowledgement and the invalidation events are all sent on the tag of
+     * the request, and it is cancelled with an unwatch request like a watch.
+     * 
+     * @param in The input stream to read the request from.
+     * @param tag The tag associated with the request.
+     */
+    private void handleTrackRequest(DataInputStream in, int tag) throws IOException {
+        // CAPACITY
+        int capacity = in.readInt();
+
+        if (tracking != null) {
+            watches.remove(tracking.tag);
+            database.watchRegistry.unsubscribe(tracking);
+        }
+        tracking = database.watchRegistry.subscribeTracking(demultiplexer, tag, capacity);
+        watches.put(tag, tracking);
+        tracking.start(database.commitSequence.get());
+    }
+
+    /*
+     * Handles a get request from a client with a near-cache. The key stays tracked until
+     * its next write, which sends an invalidation to the client. A key covered by the
+     * consensus group is read linearizably and never tracked, so it is not cached.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     * @param tag The tag associated with the request.
+     * @return 0 if the response was written, -1 if it is sent later.
+     */
+    private int handleGetTrackedRequest(DataInputStream in, DataOutputStream out, int tag) throws IOException {
+        // KEY
+        String key = in.readUTF();
+        RaftNode raft = database.raft;
+        if (raft != null && raft.covers(key)) {
+            // Versions are local to each node, 0 stands for none
+            respondLater(tag, RequestType.GetTrackedRequest, raft.read(Set.of(key), this::multiGet)
+                    .thenApply(pairs -> encodeResponse(response -> {
+                        response.writeBoolean(false);
+                        response.writeLong(0);
+                        writeValue(response, pairs.get(key));
+                    })));
+            return -1;
+        }
+        int shardIndex = database.getDatabaseShardIndex(key);
+        byte[] value;
+        long version;
+        boolean tracked;
+        RequestStats.lock(database.databaseLocks.get(shardIndex).readLock());
+        try {
+            ShardTable currentShard = database.databaseShards.get(shardIndex);
+            value = currentShard.get(key);
+            version = currentShard.getVersion(key);
+            tracked = tracking != null && database.watchRegistry.track(tracking, key);
+        } finally {
+            database.databaseLocks.get(shardIndex).readLock().unlock();
+        }
+
+        // TRACKED | VERSION | VALUE SIZE | VALUE
+        out.writeBoolean(tracked);
+        out.writeLong(version);
+        writeValue(out, value);
+        return 0;
+    }
+
+    /*
+     * Handles a partition map request from the client. A server running alone answers
+     * with an empty map.
+     * 
+     * @param out The output stream to write the response to.
+     */
+    private void handlePartitionMapRequest(DataOutputStream out) throws IOException {
+        // VIRTUAL NODES | N NODES | NODE | ...
+        if (database.partitionMap != null) {
+            database.partitionMap.write(out);
+        } else {
+            out.writeInt(0);
+            out.writeInt(0);
+        }
+    }
+
+    /*
+     * Handles an atomic multi-put from the client. Pairs spanning several nodes of the
+     * cluster are stored through two-phase commit, coordinated by this node. Pairs holding
+     * a key covered by the consensus group go through its log as a whole, which is refused
+     * if they span several nodes, as the participants would not apply them through it.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     * @param tag The tag associated with the request.
+     * @return 0 if the response was written, -1 if it is sent later.
+     */
+    private int handleAtomicMultiPutRequest(DataInputStream in, DataOutputStream out, int tag) throws IOException {
+        // N PAIRS | KEY | VALUE LENGTH | VALUE | ...
+        Map<String, byte[]> pairs = TransactionManager.readPairs(in);
+        TransactionManager transactions = database.transactions;
+        RaftNode raft = database.raft;
+        if (raft != null && pairs.keySet().stream().anyMatch(raft::covers)) {
+            if (transactions != null) {
+                refuseCovered(tag, RequestType.AtomicMultiPutRequest, "A cross-node atomic multi-put");
+            } else {
+                respondLater(tag, RequestType.AtomicMultiPutRequest,
+                        raft.write(pairs).thenApply(v -> new byte[] {TransactionManager.OUTCOME_COMMITTED}));
+            }
+            return -1;
+        }
+        if (transactions == null) {
+            database.multiPut(pairs);
+            out.writeByte(TransactionManager.OUTCOME_COMMITTED);
+            return 0;
+        }
+        respondLater(tag, RequestType.AtomicMultiPutRequest, transactions.multiPut(pairs).thenApply(outcome -> new byte[] {outcome}));
+        return -1;
+    }
+
+    /*
+     * Handles a batch of prepares from the coordinator of cross-node multi-puts.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     */
+    private void handlePrepareRequest(DataInputStream in, DataOutputStream out) throws IOException {
+        if (database.transactions != null) {
+            database.transactions.handlePrepare(in, out);
+        }
+    }
+
+    /*
+     * Handles a batch of decisions from the coordinator of cross-node multi-puts.
+     * 
+     * @param in The input stream to read the request from.
+     */
+    private void handleDecideRequest(DataInputStream in) throws IOException {
+        if (database.transactions != null) {
+            database.transactions.handleDecide(in);
+        }
+    }
+
+    /*
+     * Handles a request for the decisions of cross-node multi-puts from a participant.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     */
+    private void handleTransactionStatusRequest(DataInputStream in, DataOutputStream out) throws IOException {
+        if (database.transactions != null) {
+            database.transactions.handleStatus(in, out);
+        }
+    }
+
+    /*
+     * Handles a stats request from the client.
+     * 
+     * @param out The output stream to write the response to.
+     */
+    private void handleStatsRequest(DataOutputStream out) throws IOException {
+        // N TYPES | TYPE NAME | QUEUE WAIT | LOCK WAIT | EXECUTION | ...
+        RequestStats.write(out);
+    }
+
+    /*
+     * Handles a shard stats request from the client, with advice on the counters it
+     * reports, those since the start or the last resharding.
+     * 
+     * @param out The output stream to write the response to.
+     */
+    private void handleShardStatsRequest(DataOutputStream out) throws IOException {
+        // N SHARDS | RECOMMENDED SHARDS | REASON | N COUNTERS | COUNTER | ... | ...
+        long[][] samples = database.sampleShards();
+        ShardAdvisor.Advice advice = ShardAdvisor.advise(samples.length, samples);
+        out.writeInt(samples.length);
+        out.writeInt(advice.shards);
+        out.writeUTF(advice.reason);
+        out.writeInt(ShardAdvisor.SAMPLE_LENGTH);
+        for (long[] sample : samples) {
+            for (long counter : sample) {
+                out.writeLong(counter);
+            }
+        }
+    }
+
+    /*
+     * Handles a request to change the level of the messages logged.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     */
+    private void handleLogLevelRequest(DataInputStream in, DataOutputStream out) throws IOException {
+        // LEVEL -> PREVIOUS LEVEL, an unknown level leaves the level unchanged
+        String name = in.readUTF();
+        out.writeUTF(Logger.getLevel().name());
+        for (Logger.LogLevel level : Logger.LogLevel.values()) {
+            if (level.name().equals(name)) {
+                Logger.setLevel(level);
+                Logger.log("Log level set to " + level, Logger.LogLevel.WARN);
+            }
+        }
+    }
+
+    /*
+     * Handles a batch of writes replicated by the primary. The writes of a multiPut share
+     * their version and are applied atomically, and every write older than the version
+     * this follower holds for its key is skipped, so batches may safely be replayed.
+     * A part of a large value that does not continue the value being received, such as a
+     * later part whose first one was lost, is dropped and the primary is asked for a resync.
+     * A snapshot starts with a reset entry, which clears the database first so that the keys
+     * the primary no longer holds do not stay behind.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     */
+    private void handleReplicateRequest(DataInputStream in, DataOutputStream out) throws IOException {
+        // N ENTRIES | KIND | VERSION | KEY | VALUE LENGTH | VALUE | ...
+        if (database.promoted) {
+            out.writeLong(Replicator.REJECTED);
+            return;
+        }
+        database.following = true;
+        int count = in.readInt();
+        Map<Long, Map<String, byte[]>> writes = new java.util.LinkedHashMap<>();
+        long lastSequence = 0;
+        boolean resync = false;
+        for (int i = 0; i < count; i++) {
+            byte kind = in.readByte();
+            long version = in.readLong();
+            String key = in.readUTF();
+            if (kind == Replicator.ENTRY_RESET) {
+                // VALUE LENGTH, always 0
+                in.skipBytes(in.readInt());
+                Logger.log("Clearing the database for a snapshot of the primary", Logger.LogLevel.INFO);
+                writes.clear();
+                replicatedPart = null;
+                database.clear();
+                continue;
+            }
+            if (kind == Replicator.ENTRY_PUT_PART) {
+                // TOTAL LENGTH | OFFSET | PART LENGTH | PART
+                int total = in.readInt();
+                int offset = in.readInt();
+                int length = in.readInt();
+                if (offset == 0 && total >= 0) {
+                    replicatedPart = new ChunkedUpload(key, new byte[total]);
+                }
+                if (replicatedPart == null || !replicatedPart.key.equals(key) || replicatedPart.value.length != total
+                        || offset != replicatedPart.received || length < 0 || length > total - offset) {
+                    Logger.log("Dropped a replicated part of " + key + " at offset " + offset + " that does not continue "
+                            + (replicatedPart == null ? "any value" : replicatedPart.key + " at offset " + replicatedPart.received)
+                            + ", asking for a resync", Logger.LogLevel.WARN);
+                    replicatedPart = null;
+                    resync = true;
+                    in.skipBytes(Math.max(length, 0));
+                    continue;
+                }
+                lastSequence = Math.max(lastSequence, version);
+                in.readFully(replicatedPart.value, offset, length);
+                replicatedPart.received += length;
+                if (replicatedPart.received == total) {
+                    writes.computeIfAbsent(version, v -> new HashMap<>()).put(key, replicatedPart.value);
+                    replicatedPart = null;
+                }
+                continue;
+            }
+            lastSequence = Math.max(lastSequence, version);
+            int valueLength = in.readInt();
+            byte[] value = new byte[valueLength];
+            in.readFully(value);
+            if (kind == Replicator.ENTRY_USER) {
+                int userShardIndex = database.getUsersShardIndex(key);
+                RequestStats.lock(database.usersLocks.get(userShardIndex));
+                try {
+                    database.usersShards.get(userShardIndex).put(key, new String(value, StandardCharsets.UTF_8));
+                } finally {
+                    database.usersLocks.get(userShardIndex).unlock();
+                }
+            } else {
+                writes.computeIfAbsent(version, v -> new HashMap<>()).put(key, value);
+            }
+        }
+
+        for (Map.Entry<Long, Map<String, byte[]>> write : writes.entrySet()) {
+            applyReplicated(write.getValue(), write.getKey());
+        }
+        // Writes made after a promotion must get newer versions than every replicated one
+        final long applied = lastSequence;
+        database.commitSequence.accumulateAndGet(applied, Math::max);
+        database.appliedSequence = Math.max(database.appliedSequence, applied);
+        database.lastAppliedAt = System.currentTimeMillis();
+
+        // APPLIED SEQUENCE, or RESYNC if a part was dropped
+        out.writeLong(resync ? Replicator.RESYNC : applied);
+    }
+
+    /**
+     * Applies replicated writes sharing a version atomically, skipping the keys this
+     * follower already holds at that version or a newer one.
+     * 
+     * @param pairs The keys and values written.
+     * @param version The version of the writes.
+     */
+    private void applyReplicated(Map<String, byte[]> pairs, long version) {
+        Map<Integer, Map<String, byte[]>> pairsByShard = new java.util.HashMap<>();
+        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
+            pairsByShard.computeIfAbsent(database.getDatabaseShardIndex(entry.getKey()), k -> new java.util.HashMap<>())
+                    .put(entry.getKey(), entry.getValue());
+        }
+
+        RequestStats.lock(database.globalLock);
+        try {
+            for (int shardIndex : pairsByShard.keySet()) {
+                RequestStats.lock(database.databaseLocks.get(shardIndex).writeLock());
+            }
+        } finally {
+            database.globalLock.unlock();
+        }
+
+        for (Map.Entry<Integer, Map<String, byte[]>> shardPairs : pairsByShard.entrySet()) {
+            int shardIndex = shardPairs.getKey();
+            ShardTable shard = database.databaseShards.get(shardIndex);
+            for (Map.Entry<String, byte[]> entry : shardPairs.getValue().entrySet()) {
+                if (shard.getVersion(entry.getKey()) < version) {
+                    database.store(shardIndex, entry.getKey(), entry.getValue(), version);
+                }
+            }
+            database.databaseLocks.get(shardIndex).writeLock().unlock();
+        }
+    }
+
+    /*
+     * Handles a promotion request, which turns this follower into a primary. The writes
+     * still replicated by the former primary are rejected from now on, and the writes
+     * made on this server are replicated to the given followers.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     */
+    private void handlePromoteRequest(DataInputStream in, DataOutputStream out) throws IOException {
+        // N FOLLOWERS | FOLLOWER | ...
+        int count = in.readInt();
+        List<String> followers = new java.util.ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            followers.add(in.readUTF());
+        }
+
+        synchronized (database) {
+            database.promoted = true;
+            if (!followers.isEmpty()) {
+                if (database.replicator == null) {
+                    database.replicator = new Replicator(database);
+                }
+                for (String follower : followers) {
+                    database.replicator.addFollower(follower);
+                }
+            }
+        }
+        Logger.log("Promoted to primary at sequence " + database.commitSequence.get() + ", followers: " + followers, Logger.LogLevel.INFO);
+        out.writeBoolean(true);
+    }
+
+    /*
+     * Handles a replication status request from the client.
+     * 
+     * @param out The output stream to write the response to.
+     */
+    private void handleReplicationStatusRequest(DataOutputStream out) throws IOException {
+        // ROLE | COMMIT SEQUENCE | APPLIED SEQUENCE | LAST APPLIED AT | N FOLLOWERS
+        // | NODE | CONNECTED | ACKED SEQUENCE | LAG ENTRIES | LAG MILLIS | ...
+        Replicator replicator = database.replicator;
+        byte role;
+        if (replicator != null || database.promoted) {
+            role = ReplicationStatus.ROLE_PRIMARY;
+        } else if (database.following) {
+            role = ReplicationStatus.ROLE_FOLLOWER;
+        } else {
+            role = ReplicationStatus.ROLE_STANDALONE;
+        }
+        out.writeByte(role);
+        out.writeLong(database.commitSequence.get());
+        out.writeLong(database.appliedSequence);
+        out.writeLong(database.lastAppliedAt);
+        List<Replicator.FollowerStatus> followers = replicator != null ? replicator.status() : List.of();
+        out.writeInt(followers.size());
+        for (Replicator.FollowerStatus follower : followers) {
+            out.writeUTF(follower.node);
+            out.writeBoolean(follower.connected);
+            out.writeLong(follower.ackedSequence);
+            out.writeLong(follower.lagEntries);
+            out.writeLong(follower.lagMillis);
+        }
+    }
+
+    /*
+     * Handles a vote request from a candidate of the consensus group.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     */
+    private void handleRequestVoteRequest(DataInputStream in, DataOutputStream out) throws IOException {
+        if (database.raft != null) {
+            database.raft.handleRequestVote(in, out);
+        }
+    }
+
+    /*
+     * Handles an append from the leader of the consensus group.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     */
+    private void handleAppendEntriesRequest(DataInputStream in, DataOutputStream out) throws IOException {
+        if (database.raft != null) {
+            database.raft.handleAppendEntries(in, out);
+        }
+    }
+
+    /*
+     * Handles an operation forwarded by another node of the consensus group to this one,
+     * expected to be the leader. Writes are answered with their result once applied, reads
+     * once the lease is confirmed, both with FORWARD_NOT_LEADER if this node is not or
+     * stops being the leader first.
+     * 
+     * @param in The input stream to read the request from.
+     * @param tag The tag associated with the request.
+     */
+    private void handleRaftForwardRequest(DataInputStream in, int tag) throws IOException {
+        // KIND | COMMAND, or KIND | N KEYS | KEY | ...
+        byte kind = in.readByte();
+        RaftNode raft = database.raft;
+        java.util.concurrent.CompletableFuture<byte[]> response;
+        if (raft == null) {
+            response = java.util.concurrent.CompletableFuture.failedFuture(new IOException("No consensus group"));
+        } else if (kind == RaftNode.FORWARD_WRITE) {
+            response = raft.propose(in.readAllBytes()).thenApply(result -> encodeResponse(out -> {
+                // STATUS | RESULT
+                out.writeByte(RaftNode.FORWARD_OK);
+                out.write(result);
+            }));
+        } else {
+            int numberOfKeys = in.readInt();
+            Set<String> keys = new java.util.HashSet<>();
+            for (int i = 0; i < numberOfKeys; i++) {
+                keys.add(in.readUTF());
+            }
+            response = raft.readBarrier().thenApply(v -> encodeResponse(out -> {
+                // STATUS | N PAIRS | KEY | VALUE LENGTH | VALUE | ...
+                out.writeByte(RaftNode.FORWARD_OK);
+                RaftNode.writePairs(out, multiGet(keys));
+            }));
+        }
+        respondLater(tag, RequestType.RaftForwardRequest,
+                response.exceptionally(error -> new byte[] {RaftNode.FORWARD_NOT_LEADER}));
+    }
+
+    /*
+     * Handles a consensus status request from the client.
+     * 
+     * @param out The output stream to write the response to.
+     */
+    private void handleRaftStatusRequest(DataOutputStream out) throws IOException {
+        // ROLE | TERM | NODE ID | LEADER ID | LAST INDEX | COMMIT INDEX | LAST APPLIED
+        if (database.raft != null) {
+            database.raft.writeStatus(out);
+        } else {
+            out.writeByte(RaftStatus.ROLE_NONE);
+            out.writeLong(0);
+            out.writeInt(-1);
+            out.writeInt(-1);
+            out.writeLong(0);
+            out.writeLong(0);
+            out.writeLong(0);
+        }
+    }
+
+    /*
+     * Handles a compare-and-set request from the client. A compare-and-set by value of a
+     * key covered by the consensus group goes through its log and is answered once
+     * committed, with a version of 0 as versions are local to each node; one by version is
+     * refused.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     * @param tag The tag associated with the request.
+     * @return 0 if the response was written, -1 if it is sent later.
+     */
+    private int handleCompareAndSetRequest(DataInputStream in, DataOutputStream out, int tag) throws IOException {
+        // KEY | BY VERSION | EXPECTED VERSION or EXPECTED LENGTH (-1 if absent) | EXPECTED VALUE | VALUE LENGTH | VALUE
+        String key = in.readUTF();
+        boolean byVersion = in.readBoolean();
+        long expectedVersion = 0;
+        byte[] expectedValue = null;
+        if (byVersion) {
+            expectedVersion = in.readLong();
+        } else {
+            int expectedLength = in.readInt();
+            if (expectedLength >= 0) {
+                expectedValue = new byte[expectedLength];
+                in.readFully(expectedValue);
+            }
+        }
+        int valueLength = in.readInt();
+        byte[] value = new byte[valueLength];
+        in.readFully(value);
+
+        RaftNode raft = database.raft;
+        if (raft != null && raft.covers(key)) {
+            if (byVersion) {
+                refuseCovered(tag, RequestType.CompareAndSetRequest, "A compare-and-set by version");
+            } else {
+                respondLater(tag, RequestType.CompareAndSetRequest, raft.compareAndSet(key, expectedValue, value)
+                        .thenApply(success -> encodeResponse(response -> {
+                            response.writeBoolean(success);
+                            response.writeLong(0);
+                        })));
+            }
+            return -1;
+        }
+
+        // SUCCESS | VERSION
+        long[] version = new long[1];
+        boolean success = byVersion
+                ? compareAndSetVersion(key, expectedVersion, value, version)
+                : database.compareAndSet(key, expectedValue, value, version);
+        out.writeBoolean(success);
+        out.writeLong(version[0]);
+        return 0;
+    }
+
+    /*
+     * Handles an increment request from the client. Increments of keys covered by the
+     * consensus group go through its log and are answered once committed.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     * @param tag The tag associated with the request.
+     * @return 0 if the response was written, -1 if it is sent later.
+     */
+    private int handleIncrementRequest(DataInputStream in, DataOutputStream out, int tag) throws IOException {
+        // KEY | DELTA
+        String key = in.readUTF();
+        long delta = in.readLong();
+
+        RaftNode raft = database.raft;
+        if (raft != null && raft.covers(key)) {
+            respondLater(tag, RequestType.IncrementRequest, raft.increment(key, delta)
+                    .thenApply(result -> encodeResponse(response -> writeIncrement(response, result))));
+            return -1;
+        }
+        writeIncrement(out, database.increment(key, delta));
+        return 0;
+    }
+
+    /**
+     * Writes the response of an increment.
+     * 
+     * SUCCESS | NEW VALUE
+     */
+    private static void writeIncrement(DataOutputStream out, Long result) throws IOException {
+        out.writeBoolean(result != null);
+        out.writeLong(result != null ? result : 0);
+    }
+
+    /*
+     * Handles an append request from the client. Appends to keys covered by the consensus
+     * group go through its log and are answered once committed.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     * @param tag The tag associated with the request.
+     * @return 0 if the response was written, -1 if it is sent later.
+     */
+    private int handleAppendRequest(DataInputStream in, DataOutputStream out, int tag) throws IOException {
+        // KEY | VALUE LENGTH | VALUE
+        String key = in.readUTF();
+        int valueLength = in.readInt();
+        byte[] suffix = new byte[valueLength];
+        in.readFully(suffix);
+
+        RaftNode raft = database.raft;
+        if (raft != null && raft.covers(key)) {
+            respondLater(tag, RequestType.AppendRequest, raft.append(key, suffix)
+                    .thenApply(length -> encodeResponse(response -> response.writeInt(length))));
+            return -1;
+        }
+
+        // NEW LENGTH
+        out.writeInt(database.append(key, suffix));
+        return 0;
+    }
+
+    /*
+     * Handles a versioned get request from the client. Versions are local to each node, so
+     * the versioned gets of keys covered by the consensus group are refused.
+     * 
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     * @param tag The tag associated with the request.
+     * @return 0 if the response was written, -1 if it is sent later.
+     */
+    private int handleGetVersionedRequest(DataInputStream in, DataOutputStream out, int tag) throws IOException {
+        // KEY
+        String key = in.readUTF();
+
+        RaftNode raft = database.raft;
+        if (raft != null && raft.covers(key)) {
+            refuseCovered(tag, RequestType.GetVersionedRequest, "A versioned get");
+            return -1;
+        }
+
+        int shardIndex = database.getDatabaseShardIndex(key);
+        RequestStats.lock(database.databaseLocks.get(shardIndex).readLock());
+        try {
+            // VERSION | VALUE SIZE (-1 if absent) | VALUE
+            byte[] value = database.databaseShards.get(shardIndex).get(key);
+            out.writeLong(database.databaseShards.get(shardIndex).getVersion(key));
+            writeValue(out, value);
+        } finally {
+            database.databaseLocks.get(shardIndex).readLock().unlock();
+        }
+        return 0;
+    }
+
+    /*
+     * Handles a frame of a scan. The matching pairs are streamed in key order as a sequence
+     * of frames on the tag of the scan, each one holding about the requested number of
+     * bytes. The first frame of the client is answered with as many frames as its window
+     * allows, and every credit frame after that releases one more, so that a large scan
+     * neither blocks the other requests of the connection nor outruns the client. Every
+     * frame ends with the last key it contains, so an interrupted scan can be resumed after
+     * it. A scan that may reach keys covered by the consensus group is served by its leader
+     * once the lease is confirmed, like a read, and refused by the other nodes.
      * 
      * @param in The input stream to read the request from.
-     * @param out The output stream to write the response to.
+     * @param tag The tag associated with the request.
      */
-    private void handlePutRequest(DataInputStream in, DataOutputStream out) throws IOException{
-        String key = in.readUTF();
-        int valueLength = in.readInt();
-        byte[] value = new byte[valueLength];
-        in.readFully(value);
+    private void handleScanRequest(DataInputStream in, int tag) throws IOException {
+        // PHASE | BEGIN: START KEY | START INCLUSIVE | HAS END | END KEY | PREFIX | LIMIT | FRAME BYTES | WINDOW,
+        // CREDIT: FRAMES
+        byte phase = in.readByte();
+        if (phase == CHUNK_CREDIT) {
+            int credits = in.readInt();
+            ScanState scan = scans.get(tag);
+            if (scan != null) {
+                sendScanFrames(tag, scan, credits);
+            }
+            return;
+        } else if (phase != CHUNK_BEGIN) {
+            ScanState scan = scans.remove(tag);
+            if (scan != null) {
+                synchronized (scan) {
+                    if (!scan.finished) {
+                        scan.finished = true;
+                        sendScanFrame(tag, true, 0, new byte[0], scan.cursor);
+                    }
+                }
+            }
+            return;
+        }
+        String startKey = in.readUTF();
+        boolean startInclusive = in.readBoolean();
+        boolean hasEnd = in.readBoolean();
+        String endKey = in.readUTF();
+        String prefix = in.readUTF();
+        int limit = in.readInt();
+        int frameBytes = in.readInt();
+        int window = in.readInt();
+        if (frameBytes <= 0) {
+            frameBytes = DEFAULT_SCAN_FRAME_BYTES;
+        }
+        if (prefix.compareTo(startKey) > 0) {
+            startKey = prefix;
+            startInclusive = true;
+        }
 
-        put(key, value);
+        RaftNode raft = database.raft;
+        if (raft != null && raft.mayCover(startKey, hasEnd ? endKey : null, prefix)) {
+            String from = startKey;
+            boolean fromInclusive = startInclusive;
+            int bytes = frameBytes;
+            // Continued on a task rather than on a thread of the consensus group
+            raft.readBarrier().whenCompleteAsync((v, error) -> {
+                if (error != null) {
+                    refuseCovered(tag, RequestType.ScanRequest, "A scan on another node than the consensus leader");
+                    return;
+                }
+                // Outside of any request, like the other consensus reads
+                database.enterShards();
+                try {
+                    beginScan(tag, from, fromInclusive, hasEnd, endKey, prefix, limit, bytes, window);
+                } catch (IOException e) {
+                    Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
+                } finally {
+                    database.exitShards();
+                }
+            }, database.requestTasks);
+            return;
+        }
+        beginScan(tag, startKey, startInclusive, hasEnd, endKey, prefix, limit, frameBytes, window);
     }
 
-    /*
-     * Handles a get request from the client.
+    /**
+     * Starts a scan, sending its first frames.
      * 
-     * @param in The input stream to read the request from.
-     * @param out The output stream to write the response to.
+     * @param window The number of frames the client's window allows.
      */
-    private void handleGetRequest(DataInputStream in, DataOutputStream out) throws IOException{
-        // KEY
-        String key = in.readUTF();
-        byte[] value = get(key);
+    private void beginScan(int tag, String startKey, boolean startInclusive, boolean hasEnd, String endKey, String prefix,
+            int limit, int frameBytes, int window) throws IOException {
+        SortedKeyIterator keys = new SortedKeyIterator(database.getSortedKeys(startKey, hasEnd ? endKey : null, prefix),
+                startKey, startInclusive);
+        ScanState scan = new ScanState(keys, startKey, hasEnd, endKey, prefix, limit, frameBytes);
+        synchronized (scan) {
+            // Registered first, so the credits released by the first frames find it
+            scans.put(tag, scan);
+            sendScanFrames(tag, scan, window);
+        }
+    }
 
-        // VALUE SIZE | VALUE
-        out.writeInt(value.length);
-        out.write(value);
+    /**
+     * Sends as many frames of a scan as the credits allow, in frames of about the
+     * requested number of bytes.
+     */
+    private void sendScanFrames(int tag, ScanState scan, int credits) throws IOException {
+        synchronized (scan) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            for (int frame = 0; frame < credits && !scan.finished; frame++) {
+                int count = 0;
+                boolean more = true;
+                while (baos.size() < scan.frameBytes) {
+                    if (!scan.keys.hasNext() || (scan.limit > 0 && scan.sent + count >= scan.limit)) {
+                        more = false;
+                        break;
+                    }
+                    String key = scan.keys.next();
+                    if (!key.startsWith(scan.prefix) || (scan.hasEnd && key.compareTo(scan.endKey) >= 0)) {
+                        more = false;
+                        break;
+                    }
+                    byte[] value = get(key);
+                    if (value == null) {
+                        continue;
+                    }
+                    out.writeUTF(key);
+                    writeValue(out, value);
+                    scan.cursor = key;
+                    count++;
+                }
+                scan.sent += count;
+                scan.finished = !more;
+                sendScanFrame(tag, scan.finished, count, baos.toByteArray(), scan.cursor);
+                baos.reset();
+            }
+            if (scan.finished) {
+                scans.remove(tag, scan);
+            }
+        }
+    }
+
+    /**
+     * Sends one frame of a scan.
+     * 
+     * LAST | N PAIRS | KEY | VALUE LENGTH | VALUE | ... | CURSOR
+     * 
+     * @param tag The tag of the scan.
+     * @param last Whether this is the last frame of the scan.
+     * @param count The number of pairs in the frame.
+     * @param pairs The encoded pairs.
+     * @param cursor The last key of the frame.
+     */
+    private void sendScanFrame(int tag, boolean last, int count, byte[] pairs, String cursor) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(pairs.length + 64);
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeBoolean(last);
+        out.writeInt(count);
+        out.write(pairs);
+        out.writeUTF(cursor);
+        demultiplexer.send(tag, RequestType.ScanRequest.getValue(), baos.toByteArray());
     }
 
     /*
-     * Handles a multi-put request from the client.
+     * Handles a frame of a chunked upload. The value is written straight into an array of
+     * its final size, and every frame is acknowledged so the client can keep a bounded
+     * number of chunks in flight. An upload is refused before its array is allocated if it
+     * would take the uploads in progress on the connection over the upload limit, if one is
+     * set. The value
+     * of a key covered by the consensus group is written through its log once complete,
+     * and the last frame is answered once it is committed.
      * 
      * @param in The input stream to read the request from.
      * @param out The output stream to write the response to.
+     * @param tag The tag associated with the upload.
+     * @return 0 if the response was written, -1 if it is sent later.
      */
-    private void handleMultiPutRequest(DataInputStream in, DataOutputStream out) throws IOException {
-        // N PAIRS | KEY | VALUE LENGTH | VALUE | KEY | VALUE LENGTH | VALUE | ...
-        int numberOfPairs = in.readInt();
-        Map<String, byte[]> pairs = new java.util.HashMap<>();
+    private int handlePutChunkRequest(DataInputStream in, DataOutputStream out, int tag) throws IOException {
+        // PHASE | BEGIN: KEY | VALUE LENGTH, DATA: CHUNK LENGTH | CHUNK
+        byte phase = in.readByte();
+        byte status;
+        ChunkedUpload upload;
+        switch (phase) {
+            case CHUNK_BEGIN:
+                String key = in.readUTF();
+                int valueLength = in.readInt();
+                if (valueLength < 0 || valueLength > MAX_VALUE_LENGTH
+                        || (database.maxUploadLength > 0 && valueLength > database.maxUploadLength - uploadingLength(tag))) {
+                    Logger.log("Refused an upload of " + valueLength + " bytes for " + key + ", over the upload limit of "
+                            + database.maxUploadLength + " bytes", Logger.LogLevel.WARN);
+                    uploads.remove(tag);
+                    status = CHUNK_ERROR;
+                    upload = null;
+                    break;
+                }
+                upload = new ChunkedUpload(key, new byte[valueLength]);
+                uploads.put(tag, upload);
+                status = CHUNK_OK;
+                break;
+            case CHUNK_DATA:
+                upload = uploads.get(tag);
+                int chunkLength = in.readInt();
+                if (upload == null || chunkLength < 0 || upload.received + chunkLength > upload.value.length) {
+                    uploads.remove(tag);
+                    status = CHUNK_ERROR;
+                    upload = null;
+                    break;
+                }
+                in.readFully(upload.value, upload.received, chunkLength);
+                upload.received += chunkLength;
+                status = CHUNK_OK;
+                break;
+            default:
+                uploads.remove(tag);
+                status = CHUNK_ERROR;
+                upload = null;
+                break;
+        }
 
-        for (int i = 0; i < numberOfPairs; i++) {
-            String key = in.readUTF();
-            int valueLength = in.readInt();
-            byte[] value = new byte[valueLength];
-            in.readFully(value);
-            pairs.put(key, value);
+        if (upload != null && upload.received == upload.value.length) {
+            uploads.remove(tag);
+            RaftNode raft = database.raft;
+            if (raft != null && raft.covers(upload.key)) {
+                int received = upload.received;
+                respondLater(tag, RequestType.PutChunkRequest, raft.write(Map.of(upload.key, upload.value))
+                        .thenApply(v -> encodeResponse(response -> {
+                            response.writeByte(CHUNK_COMMITTED);
+                            response.writeInt(received);
+                        })));
+                return -1;
+            }
+            put(upload.key, upload.value);
+            status = CHUNK_COMMITTED;
         }
 
-        multiPut(pairs);
+        // STATUS | RECEIVED
+        out.writeByte(status);
+        out.writeInt(upload != null ? upload.received : 0);
+        return 0;
+    }
+
+    /**
+     * Returns the total length of the values of the uploads in progress, other than the one
+     * of the given tag.
+     */
+    private long uploadingLength(int tag) {
+        long length = 0;
+        for (Map.Entry<Integer, ChunkedUpload> upload : uploads.entrySet()) {
+            if (upload.getKey() != tag) {
+                length += upload.getValue().value.length;
+            }
+        }
+        return length;
     }
 
     /*
-     * Handles a multi-get request from the client.
+     * Handles a frame of a chunked download. The first frame is answered with the length
+     * and version of the value followed by as many chunks as the client's window allows;
+     * every credit frame after that releases one more chunk. The value of a key covered by
+     * the consensus group is read linearizably, with a version of 0 as versions are local
+     * to each node, and its first chunks are sent once the read is confirmed.
      * 
      * @param in The input stream to read the request from.
-     * @param out The output stream to write the response to.
+     * @param tag The tag associated with the download.
      */
-    private void handleMultiGetRequest(DataInputStream in, DataOutputStream out) throws IOException {
-        // N KEYS | KEY | ...
-        int numberOfKeys = in.readInt();
-        Set<String> keys = new java.util.HashSet<>();
-        for (int i = 0; i < numberOfKeys; i++) {
+    private void handleGetChunkRequest(DataInputStream in, int tag) throws IOException {
+        // PHASE | BEGIN: KEY | CHUNK SIZE | WINDOW, CREDIT: CHUNKS
+        byte phase = in.readByte();
+        int credits;
+        if (phase == CHUNK_BEGIN) {
             String key = in.readUTF();
-            keys.add(key);
-        }
-        Map<String, byte[]> pairs = multiGet(keys);
+            int chunkSize = Math.max(MIN_CHUNK_SIZE, Math.min(in.readInt(), MAX_CHUNK_SIZE));
+            credits = in.readInt();
 
-        // N PAIRS | KEY | VALUE LENGTH | VALUE ..
-        out.writeInt(numberOfKeys);
-        for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
-            out.writeUTF(pair.getKey());
-            byte[] value = pair.getValue();
-            out.writeInt(value.length);
-            out.write(value);
+            RaftNode raft = database.raft;
+            if (raft != null && raft.covers(key)) {
+                int window = credits;
+                // Continued on a task rather than on a thread of the consensus group
+                raft.read(Set.of(key), this::multiGet).whenCompleteAsync((pairs, error) -> {
+                    if (error != null) {
+                        respondLater(tag, RequestType.GetChunkRequest, java.util.concurrent.CompletableFuture.failedFuture(error));
+                        return;
+                    }
+                    try {
+                        beginDownload(tag, pairs.get(key), 0, chunkSize, window);
+                    } catch (IOException e) {
+                        Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
+                    }
+                }, database.requestTasks);
+                return;
+            }
+
+            byte[] value;
+            long version;
+            int shardIndex = database.getDatabaseShardIndex(key);
+            RequestStats.lock(database.databaseLocks.get(shardIndex).readLock());
+            try {
+                value = database.databaseShards.get(shardIndex).get(key);
+                version = database.databaseShards.get(shardIndex).getVersion(key);
+            } finally {
+                database.databaseLocks.get(shardIndex).readLock().unlock();
+            }
+            beginDownload(tag, value, version, chunkSize, credits);
+        } else if (phase == CHUNK_CREDIT) {
+            credits = in.readInt();
+            ChunkedDownload download = downloads.get(tag);
+            if (download != null) {
+                sendChunks(tag, download, credits);
+            }
+        } else {
+            downloads.remove(tag);
         }
     }
 
-    /*
-     * Handles a get-when request from the client.
+    /**
+     * Answers the first frame of a chunked download with the header of the value, and
+     * sends its first chunks.
      * 
-     * @param in The input stream to read the request from.
-     * @param out The output stream to write the response to.
-     * @param tag The tag associated with the request.
-     * @return 0 if the request was successful, -1 otherwise.
+     * @param tag The tag of the download.
+     * @param value The value, or null if the key does not exist.
+     * @param version The version of the value.
+     * @param chunkSize The size of the chunks.
+     * @param credits The number of chunks the client's window allows.
      */
-    private int handleGetWhenRequest(DataInputStream in, DataOutputStream out, int tag) throws IOException {
-        // Chaves e valores para a condição
-        String key = in.readUTF();
-        String keyCond = in.readUTF();
-        int valueCondLength = in.readInt();
-        byte[] valueCond = new byte[valueCondLength];
-        in.readFully(valueCond);
-
-        int shardIndexCond = database.getDatabaseShardIndex(keyCond);
-        ReentrantReadWriteLock lock = database.databaseLocks.get(shardIndexCond);
-        Condition condition;
-        lock.writeLock().lock();
-        try {
-            condition = database.conditions.computeIfAbsent(keyCond, k -> lock.writeLock().newCondition());
-            conditionsTags.putIfAbsent(condition, new java.util.ArrayList<>());
-            conditionsTags.get(condition).add(tag);
+    private void beginDownload(int tag, byte[] value, long version, int chunkSize, int credits) throws IOException {
+        // STATUS | VERSION | VALUE LENGTH
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(baos);
+        header.writeByte(value != null ? CHUNK_OK : CHUNK_MISSING);
+        header.writeLong(version);
+        header.writeInt(value != null ? value.length : -1);
+        if (value == null) {
+            demultiplexer.send(tag, RequestType.GetChunkRequest.getValue(), baos.toByteArray());
+            return;
         }
-        finally {
-            lock.writeLock().unlock();
+        ChunkedDownload download = new ChunkedDownload(value, chunkSize);
+        synchronized (download) {
+            // Registered first, so the credits released by the first chunks find it
+            downloads.put(tag, download);
+            demultiplexer.send(tag, RequestType.GetChunkRequest.getValue(), baos.toByteArray());
+            sendChunks(tag, download, credits);
         }
+    }
 
-        byte[] result = getWhen(key, keyCond, valueCond);
-        if (result != null) {
-            out.writeInt(result.length);
-            out.write(result);
-            return 0;
+    /**
+     * Sends as many chunks of a download as the credits allow.
+     */
+    private void sendChunks(int tag, ChunkedDownload download, int credits) throws IOException {
+        synchronized (download) {
+            for (int i = 0; i < credits && download.sent < download.value.length; i++) {
+                int length = Math.min(download.chunkSize, download.value.length - download.sent);
+                demultiplexer.send(tag, RequestType.GetChunkRequest.getValue(), download.value, download.sent, length);
+                download.sent += length;
+            }
+            if (download.sent == download.value.length) {
+                downloads.remove(tag, download);
+            }
         }
-        else {
-            return -1;
+    }
+
+
+    /**
+     * Replaces the value of a key if its current version is the expected one.
+     * 
+     * @param key The key to update.
+     * @param expectedVersion The expected version, 0 if the key is expected to be absent.
+     * @param value The new value.
+     * @param version Receives the version of the key after the operation.
+     * @return true if the value was replaced.
+     */
+    private boolean compareAndSetVersion(String key, long expectedVersion, byte[] value, long[] version) {
+        int shardIndex = database.getDatabaseShardIndex(key);
+        RequestStats.lock(database.databaseLocks.get(shardIndex).writeLock());
+        try {
+            long current = database.databaseShards.get(shardIndex).getVersion(key);
+            if (current != expectedVersion) {
+                version[0] = current;
+                return false;
+            }
+            version[0] = database.commitSequence.incrementAndGet();
+            database.store(shardIndex, key, value, version[0]);
+            return true;
+        } finally {
+            database.databaseLocks.get(shardIndex).writeLock().unlock();
         }
     }
 
@@ -396,14 +2344,12 @@ class ServerWorker implements Runnable {
      * @param key The key to store.
      * @param value The value to store.
      */
-    private void put(String key, byte[] value) {
+    void put(String key, byte[] value) {
 
         int shardIndex = database.getDatabaseShardIndex(key);
-        database.databaseLocks.get(shardIndex).writeLock().lock();
+        RequestStats.lock(database.databaseLocks.get(shardIndex).writeLock());
         try {
-            Map<String, byte[]> currentShard = database.databaseShards.get(shardIndex);
-            currentShard.put(key, value);
-            updateConditionAndNotify(key);
+            database.store(shardIndex, key, value, database.commitSequence.incrementAndGet());
         } finally {
             database.databaseLocks.get(shardIndex).writeLock().unlock();
         }
@@ -415,64 +2361,35 @@ class ServerWorker implements Runnable {
      * @param key The key to retrieve.
      * @return The value associated with the key.
      */
-    private byte[] get(String key) {
+    byte[] get(String key) {
         int shardIndex = database.getDatabaseShardIndex(key);
-        database.databaseLocks.get(shardIndex).readLock().lock();
+        RequestStats.lock(database.databaseLocks.get(shardIndex).readLock());
         try {
-            Map<String, byte[]> currentShard = database.databaseShards.get(shardIndex);
+            ShardTable currentShard = database.databaseShards.get(shardIndex);
             return currentShard.get(key);
         } finally {
             database.databaseLocks.get(shardIndex).readLock().unlock();
         }
     }
     
+
     /**
-     * Puts multiple key-value pairs into the database.
+     * Gets multiple values associated with a set of keys from the database.
      * 
-     * @param pairs A map of key-value pairs to store.
+     * @param keys A set of keys to retrieve.
+     * @return A map of key-value pairs.
      */
-    private void multiPut(Map<String, byte[]> pairs) {
-        Map<Integer, Map<String, byte[]>> pairsByShard = new java.util.HashMap<>();
-        for (Map.Entry<String, byte[]> entry : pairs.entrySet()) {
-            String key = entry.getKey();
-            int shardIndex = database.getDatabaseShardIndex(key);
-            if (!pairsByShard.containsKey(shardIndex)) {
-                pairsByShard.put(shardIndex, new java.util.HashMap<>());
-            }
-            pairsByShard.get(shardIndex).put(key, entry.getValue());
-        }
-
-        database.globalLock.lock();
+    Map<String, byte[]> multiGet(Set<String> keys) {
+        // Also called by the consensus group once a read is safe, outside of any request
+        database.enterShards();
         try {
-            for(Map.Entry<Integer, Map<String, byte[]>> shardPairs : pairsByShard.entrySet()) {
-                int shardIndex = shardPairs.getKey();
-                database.databaseLocks.get(shardIndex).writeLock().lock();
-            }
+            return multiGetInLayout(keys);
         } finally {
-            database.globalLock.unlock();
-        }
-
-        for(Map.Entry<Integer, Map<String, byte[]>> shardPairs : pairsByShard.entrySet()) {
-            int shardIndex = shardPairs.getKey();
-            Map<String, byte[]> currentShard = database.databaseShards.get(shardIndex);
-            Map<String, byte[]> par = shardPairs.getValue();
-            for (Map.Entry<String, byte[]> entry : par.entrySet()) {
-                String key = entry.getKey();
-                byte[] value = entry.getValue();
-                currentShard.put(key, value);
-                updateConditionAndNotify(key);
-            }
-            database.databaseLocks.get(shardIndex).writeLock().unlock();
+            database.exitShards();
         }
     }
 
-    /**
-     * Gets multiple values associated with a set of keys from the database.
-     * 
-     * @param keys A set of keys to retrieve.
-     * @return A map of key-value pairs.
-     */
-    private Map<String, byte[]> multiGet(Set<String> keys) {
+    private Map<String, byte[]> multiGetInLayout(Set<String> keys) {
         Map<String, byte[]> pairs = new java.util.HashMap<>();
         Map<Integer, List<String>> keysByShard = new java.util.HashMap<>();
         for (String key : keys) {
@@ -483,11 +2400,11 @@ class ServerWorker implements Runnable {
             keysByShard.get(shardIndex).add(key);
         }
 
-        database.globalLock.lock();
+        RequestStats.lock(database.globalLock);
         try{
             for (Map.Entry<Integer, List<String>> entry : keysByShard.entrySet()) {
                 int shardIndex = entry.getKey();
-                database.databaseLocks.get(shardIndex).readLock().lock();
+                RequestStats.lock(database.databaseLocks.get(shardIndex).readLock());
             }
         }
         finally {
@@ -497,7 +2414,7 @@ class ServerWorker implements Runnable {
         for(Map.Entry<Integer, List<String>> shardKeys : keysByShard.entrySet()) {
             int shardIndex = shardKeys.getKey();
             List<String> keysByShardList = shardKeys.getValue();
-            Map<String, byte[]> currentShard = database.databaseShards.get(shardIndex);
+            ShardTable currentShard = database.databaseShards.get(shardIndex);
             for (String key : keysByShardList) {
                 pairs.put(key, currentShard.get(key));
             }
@@ -513,33 +2430,36 @@ class ServerWorker implements Runnable {
      * @param key The key to retrieve.
      * @param keyCond The key representing the condition.
      * @param valueCond The value representing the condition.
-     * @return The value associated with the key.
+     * @return The encoded value associated with the key, or null if the response is sent
+     *         later, once the condition is met.
      * @throws IOException If an error occurs during the operation.
      */
     private byte[] getWhen(String key, String keyCond, byte[] valueCond) throws IOException {
         int shardIndexCond = database.getDatabaseShardIndex(keyCond);
         ReentrantReadWriteLock lock = database.databaseLocks.get(shardIndexCond);
         Condition condition;
-        lock.writeLock().lock();
+        RequestStats.lock(lock.writeLock());
         try {
-            Map<String, byte[]> currentShardCond = database.databaseShards.get(shardIndexCond);
+            ShardTable currentShardCond = database.databaseShards.get(shardIndexCond);
             condition = database.conditions.computeIfAbsent(keyCond, k -> lock.writeLock().newCondition());
 
             // Check the condition before waiting
             if (java.util.Arrays.equals(currentShardCond.get(keyCond), valueCond)) {
-                Logger.log("Condition met for key: " + keyCond, Logger.LogLevel.INFO);
+                Logger.log("Condition met for key: " + keyCond, Logger.LogLevel.DEBUG);
                 conditionsTags.get(condition).remove(0);
-                return fetchTargetValue(key);
+                return encodeValue(fetchTargetValue(key));
             }
         } finally {
             lock.writeLock().unlock();
         }
 
         final Condition finalCondition = condition;
+        FlightEvents.GetWhenWaitEvent event = new FlightEvents.GetWhenWaitEvent();
+        event.begin();
         Runnable task = () -> {
-            lock.writeLock().lock();
+            RequestStats.lock(lock.writeLock());
             try {
-                Map<String, byte[]> currentShardCond = database.databaseShards.get(shardIndexCond);
+                ShardTable currentShardCond = database.databaseShards.get(shardIndexCond);
                 while (!java.util.Arrays.equals(currentShardCond.get(keyCond), valueCond)) {
                     try {
                         finalCondition.await();
@@ -549,17 +2469,25 @@ class ServerWorker implements Runnable {
                         return;
                     }
                 }
-                byte[] result = fetchTargetValue(key);
-                if (result != null) {
-                    Logger.log("Condition met for key: " + keyCond, Logger.LogLevel.INFO);
-                    try {
-                        int tag = conditionsTags.get(finalCondition).get(0);
-                        conditionsTags.get(finalCondition).remove(0);
-                        demultiplexer.send(tag, RequestType.GetWhenRequest.getValue(), result);
-                        Logger.log("Sent result for key: " + keyCond, Logger.LogLevel.INFO);
-                    } catch (IOException e) {
-                        Logger.log("Failed to send result: " + e.getMessage(), Logger.LogLevel.ERROR);
+                byte[] result = encodeValue(fetchTargetValue(key));
+                Logger.log("Condition met for key: " + keyCond, Logger.LogLevel.DEBUG);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.keyHash = keyCond.hashCode();
+                    event.shard = shardIndexCond;
+                    event.responseBytes = result.length;
+                }
+                try {
+                    int tag = conditionsTags.get(finalCondition).get(0);
+                    conditionsTags.get(finalCondition).remove(0);
+                    if (event.shouldCommit()) {
+                        event.tag = tag;
+                        event.commit();
                     }
+                    demultiplexer.send(tag, RequestType.GetWhenRequest.getValue(), result);
+                    Logger.log("Sent result for key: " + keyCond, Logger.LogLevel.DEBUG);
+                } catch (IOException e) {
+                    Logger.log("Failed to send result: " + e.getMessage(), Logger.LogLevel.ERROR);
                 }
             } catch (IOException e) {
                             e.printStackTrace();
@@ -567,7 +2495,15 @@ class ServerWorker implements Runnable {
                 lock.writeLock().unlock();
             }
         };
-        new Thread(task).start();
+        // Counted until answered, so that the shards are not rebuilt under its lock
+        database.pendingGetWhens.incrementAndGet();
+        new Thread(() -> {
+            try {
+                task.run();
+            } finally {
+                database.pendingGetWhens.decrementAndGet();
+            }
+        }).start();
         return null;
     }
 
@@ -581,44 +2517,31 @@ class ServerWorker implements Runnable {
     private byte[] fetchTargetValue(String key) throws IOException {
         int shardIndex = database.getDatabaseShardIndex(key);
         ReentrantReadWriteLock targetLock = database.databaseLocks.get(shardIndex);
-        targetLock.readLock().lock();
+        RequestStats.lock(targetLock.readLock());
         try {
-            Map<String, byte[]> currentShard = database.databaseShards.get(shardIndex);
+            ShardTable currentShard = database.databaseShards.get(shardIndex);
             return currentShard.get(key);
         } finally {
             targetLock.readLock().unlock();
         }
     }
 
-    /**
-     * Updates the condition and notifies waiting threads.
-     * 
-     * @param keyCond The key representing the condition.
-     */
-    private void updateConditionAndNotify(String keyCond) {
-        int shardIndexCond = database.getDatabaseShardIndex(keyCond);
-        ReentrantReadWriteLock lock = database.databaseLocks.get(shardIndexCond);
-        lock.writeLock().lock();
-        try {
-            Map<String, byte[]> currentShardCond = database.databaseShards.get(shardIndexCond);
-
-            if (currentShardCond.containsKey(keyCond)) {
-                Condition condition = database.conditions.get(keyCond);
-                Logger.log("Notifying condition for key: " + keyCond, Logger.LogLevel.INFO);
-                if (condition != null) {
-                    condition.signalAll();
-                }
-            }
-        } finally {
-            lock.writeLock().unlock();
-        }
-    }
 }
 
 /**
  * The main server class that listens for incoming client connections and processes requests.
  */
 public class Server {
+    static final String USAGE = "Usage: java Server <max-clients> <database-shards> <user-shards> [--ordered-index]"
+            + " [--port=<port>] [--cluster=<host:port>;...] [--virtual-nodes=<n>] [--followers=<host:port>;...]"
+            + " [--pause-interval=<ms> --pause-duration=<ms>]"
+            + " [--raft=<host:port>;... [--raft-id=<n>] [--raft-prefix=<prefix>] [--raft-dir=<dir>]]"
+            + " [--shard-advisor=<ms> [--shard-advisor-apply]] [--log-level=<level>] [--log-file=<path>] [--jfr=<path>]"
+            + " [--trace=<path>] [--watch-threads=<n>] [--max-upload=<bytes>]"
+            + " [--max-message=<bytes>] [--follower]";
+    /* Port listened on when none is given */
+    static final int DEFAULT_PORT = 12345;
+
     static int connectedClients = 0;
     /* Lock for managing the number of active clients */
     static ReentrantLock lock = new ReentrantLock();
@@ -632,28 +2555,198 @@ public class Server {
      */
     public static void main(String[] args) throws IOException {
         List<Integer> arguments = new java.util.ArrayList<>();
+        Map<String, String> options = new HashMap<>();
 
-        if(args.length == 3) {
-            for(String arg : args) {
+        if(args.length >= 3) {
+            for(int i = 0; i < 3; i++) {
                 try {
-                    arguments.add(Integer.parseInt(arg));
+                    arguments.add(Integer.parseInt(args[i]));
                 } catch (NumberFormatException e) {
-                    System.out.println("Usage: java Server <max-clients> <database-shards> <user-shards>");
+                    System.out.println(USAGE);
+                    return;
+                }
+            }
+            for(int i = 3; i < args.length; i++) {
+                if (!args[i].startsWith("--")) {
+                    System.out.println(USAGE);
                     return;
                 }
+                int separator = args[i].indexOf('=');
+                if (separator < 0) {
+                    options.put(args[i].substring(2), "true");
+                } else {
+                    options.put(args[i].substring(2, separator), args[i].substring(separator + 1));
+                }
             }
         } else {
-            System.out.println("Usage: java Server <max-clients> <database-shards> <user-shards>");
+            System.out.println(USAGE);
             return;
         }
 
         int maxClients = arguments.get(0);
-        ServerDatabase database = new ServerDatabase(arguments.get(1), arguments.get(2));
-        ServerSocket serverSocket = new ServerSocket(12345);
+        try {
+            if (options.containsKey("log-level")) {
+                Logger.setLevel(Logger.LogLevel.valueOf(options.get("log-level").toUpperCase()));
+            }
+            if (options.containsKey("log-file")) {
+                Logger.setOutput(java.nio.file.Paths.get(options.get("log-file")));
+            }
+            if (options.containsKey("jfr")) {
+                FlightEvents.startRecording(java.nio.file.Paths.get(options.get("jfr")));
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            return;
+        }
+        boolean orderedIndex = Boolean.parseBoolean(options.getOrDefault("ordered-index", "false"));
+        int port;
+        PartitionMap partitionMap = null;
+        try {
+            port = Integer.parseInt(options.getOrDefault("port", Integer.toString(DEFAULT_PORT)));
+            if (options.containsKey("cluster")) {
+                int virtualNodes = Integer.parseInt(options.getOrDefault("virtual-nodes", Integer.toString(PartitionMap.DEFAULT_VIRTUAL_NODES)));
+                partitionMap = PartitionMap.parse(options.get("cluster"), virtualNodes);
+            }
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            return;
+        }
+        if (options.containsKey("trace")) {
+            // Only the requests their clients sampled are traced
+            Tracing.enable("server:" + port, java.nio.file.Paths.get(options.get("trace")), 0);
+            Logger.log("Writing the spans of sampled requests to " + options.get("trace"), Logger.LogLevel.INFO);
+        }
+        ServerDatabase database = new ServerDatabase(arguments.get(1), arguments.get(2), orderedIndex);
+        database.partitionMap = partitionMap;
+        if (options.containsKey("max-upload")) {
+            try {
+                long maxUpload = Long.parseLong(options.get("max-upload"));
+                if (maxUpload <= 0) {
+                    throw new IllegalArgumentException("Invalid upload limit: " + maxUpload);
+                }
+                database.maxUploadLength = maxUpload;
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.out.println(USAGE);
+                return;
+            }
+        }
+        if (options.containsKey("max-message")) {
+            try {
+                int maxMessage = Integer.parseInt(options.get("max-message"));
+                if (maxMessage < TaggedConnection.MAX_FRAME_LENGTH || maxMessage > TaggedConnection.MAX_MESSAGE_LENGTH) {
+                    throw new IllegalArgumentException("Invalid message limit: " + maxMessage + ", it must be between "
+                            + TaggedConnection.MAX_FRAME_LENGTH + " and " + TaggedConnection.MAX_MESSAGE_LENGTH);
+                }
+                database.maxMessageLength = maxMessage;
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.out.println(USAGE);
+                return;
+            }
+        }
+        if (options.containsKey("watch-threads")) {
+            try {
+                database.watchRegistry = new WatchRegistry(Integer.parseInt(options.get("watch-threads")));
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.out.println(USAGE);
+                return;
+            }
+        }
+        boolean applyShardAdvice = Boolean.parseBoolean(options.getOrDefault("shard-advisor-apply", "false"));
+        if (applyShardAdvice) {
+            database.enableResharding();
+        }
+        // A follower refuses client writes from the start, not only once its primary reached it
+        database.following = Boolean.parseBoolean(options.getOrDefault("follower", "false"));
+        if (options.containsKey("followers")) {
+            List<String> followers = new java.util.ArrayList<>();
+            try {
+                for (String follower : options.get("followers").split("[,;]")) {
+                    if (!follower.isBlank()) {
+                        PartitionMap.parsePort(follower.trim());
+                        followers.add(follower.trim());
+                    }
+                }
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.out.println(USAGE);
+                return;
+            }
+            database.replicator = new Replicator(database);
+            for (String follower : followers) {
+                database.replicator.addFollower(follower);
+            }
+            Logger.log("Followers: " + followers, Logger.LogLevel.INFO);
+        }
+        if (options.containsKey("raft")) {
+            try {
+                List<String> members = PartitionMap.parse(options.get("raft"), 1).nodes();
+                int raftId;
+                if (options.containsKey("raft-id")) {
+                    raftId = Integer.parseInt(options.get("raft-id"));
+                } else {
+                    raftId = -1;
+                    for (int i = 0; i < members.size(); i++) {
+                        if (PartitionMap.parsePort(members.get(i)) == port) {
+                            raftId = i;
+                        }
+                    }
+                }
+                database.raft = new RaftNode(raftId, members, options.getOrDefault("raft-prefix", ""),
+                        java.nio.file.Paths.get(options.getOrDefault("raft-dir", "raft-data")), database);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.out.println(USAGE);
+                return;
+            }
+            database.raft.start();
+        }
+        if (options.containsKey("pause-interval")) {
+            try {
+                long interval = Long.parseLong(options.get("pause-interval"));
+                long duration = Long.parseLong(options.getOrDefault("pause-duration", "50"));
+                new PauseInjector(database, interval, duration).start();
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.out.println(USAGE);
+                return;
+            }
+        }
+        if (options.containsKey("shard-advisor")) {
+            try {
+                database.shardAdvisor = new ShardAdvisor(database, Long.parseLong(options.get("shard-advisor")), applyShardAdvice);
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.out.println(USAGE);
+                return;
+            }
+            database.shardAdvisor.start();
+        }
+        ServerSocket serverSocket = new ServerSocket(port);
 
-        Logger.log("Server started. Listening on port 12345", Logger.LogLevel.INFO);
+        Logger.log("Server started. Listening on port " + port, Logger.LogLevel.INFO);
+        if (partitionMap != null) {
+            Logger.log("Cluster nodes: " + partitionMap.nodes() + ", Virtual nodes: " + partitionMap.virtualNodes(), Logger.LogLevel.INFO);
+            List<String> nodes = partitionMap.nodes();
+            int index = -1;
+            for (int i = 0; i < nodes.size(); i++) {
+                if (PartitionMap.parsePort(nodes.get(i)) == port) {
+                    index = i;
+                }
+            }
+            if (index < 0) {
+                Logger.log("No cluster node listens on port " + port + ", multiPuts spanning several nodes are not atomic", Logger.LogLevel.WARN);
+            } else {
+                database.transactions = new TransactionManager(index, partitionMap, database);
+                database.transactions.start();
+            }
+        }
         // log maxClients, databaseShards, userShards
-        Logger.log("Max clients: " + maxClients + ", Database shards: " + arguments.get(1), Logger.LogLevel.INFO);
+        Logger.log("Max clients: " + maxClients + ", Database shards: " + arguments.get(1) + ", Ordered index: " + orderedIndex, Logger.LogLevel.INFO);
 
         boolean running = true;
         while (running) {
@@ -678,7 +2771,6 @@ public class Server {
             } catch (InterruptedException e) {
                 throw new RuntimeException(e);
             } finally {
-                System.out.println("Unlocking");
                 lock.unlock();}
         }
         serverSocket.close();
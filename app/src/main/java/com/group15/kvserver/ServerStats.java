@@ -0,0 +1,98 @@
+package com.group15.kvserver;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The latency histograms of the requests a server served since it started, by request
+ * type, as reported by ClientLibrary.getStats.
+ */
+public class ServerStats {
+    /**
+     * The phases a request is timed in.
+     */
+    public enum Phase {
+        /* From the reception of the request until a worker starts handling it */
+        QUEUE_WAIT,
+        /* Waiting for locks held by other requests */
+        LOCK_WAIT,
+        /* The rest of the handling */
+        EXECUTION
+    }
+
+    private final Map<String, LatencyHistogram[]> histograms;
+
+    private ServerStats(Map<String, LatencyHistogram[]> histograms) {
+        this.histograms = histograms;
+    }
+
+    /**
+     * Reads a stats response.
+     *
+     * N TYPES | TYPE NAME | QUEUE WAIT | LOCK WAIT | EXECUTION | ...
+     */
+    static ServerStats read(DataInputStream in) throws IOException {
+        int types = in.readInt();
+        Map<String, LatencyHistogram[]> histograms = new LinkedHashMap<>();
+        for (int i = 0; i < types; i++) {
+            String type = in.readUTF();
+            LatencyHistogram[] phases = new LatencyHistogram[Phase.values().length];
+            for (int phase = 0; phase < phases.length; phase++) {
+                phases[phase] = LatencyHistogram.read(in);
+            }
+            histograms.put(type, phases);
+        }
+        return new ServerStats(histograms);
+    }
+
+    /**
+     * @return the names of the request types served at least once
+     */
+    public Set<String> getRequestTypes() {
+        return Collections.unmodifiableSet(histograms.keySet());
+    }
+
+    /**
+     * Returns the histogram of a phase of a request type.
+     *
+     * @param requestType the name of the request type, such as "GetRequest"
+     * @param phase the phase
+     * @return the histogram, in nanoseconds, or null if no such request was served
+     */
+    public LatencyHistogram getHistogram(String requestType, Phase phase) {
+        LatencyHistogram[] phases = histograms.get(requestType);
+        return phases == null ? null : phases[phase.ordinal()];
+    }
+
+    /**
+     * Formats the count of each request type and the p50, p99, p99.9 and maximum of each
+     * phase, in microseconds.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%-26s %10s", "request (us)", "count"));
+        for (Phase phase : Phase.values()) {
+            builder.append(String.format(" | %-35s", phase.name().toLowerCase().replace('_', ' ') + " p50/p99/p99.9/max"));
+        }
+        builder.append('\n');
+        for (Map.Entry<String, LatencyHistogram[]> type : histograms.entrySet()) {
+            builder.append(String.format("%-26s %10d", type.getKey(), type.getValue()[Phase.EXECUTION.ordinal()].getCount()));
+            for (LatencyHistogram histogram : type.getValue()) {
+                builder.append(String.format(" | %8s %8s %8s %8s", micros(histogram.getValueAtPercentile(50)),
+                        micros(histogram.getValueAtPercentile(99)), micros(histogram.getValueAtPercentile(99.9)),
+                        micros(histogram.getMax())));
+            }
+            builder.append('\n');
+        }
+        return builder.toString();
+    }
+
+    private static String micros(long nanos) {
+        return nanos < 10_000 ? String.format("%.1f", nanos / 1000.0) : Long.toString(nanos / 1000);
+    }
+}
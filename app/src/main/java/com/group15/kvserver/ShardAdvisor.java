@@ -0,0 +1,231 @@
+package com.group15.kvserver;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Recommends a number of database shards from how the shard locks are used, and
+ * optionally applies it.
+ *
+ * Every interval, compares the counters of the shard locks with those of the previous
+ * interval. When the keys are spread unevenly and the shard count is not prime, the hash
+ * codes of the keys likely share a factor with it, and it recommends the next prime. When
+ * more than CONTENTION_THRESHOLD of the lock acquisitions had to wait, it recommends
+ * multiplying the shard count by the power of two that would bring that share back under
+ * the threshold if the waits spread evenly. When a single shard had most of the waits,
+ * more shards would not help, since the contention is on a few hot keys, and it says so
+ * instead.
+ *
+ * When applying, a recommendation must hold for STABLE_WINDOWS intervals in a row before
+ * the database is resharded, which only happens while no getWhen request is waiting.
+ */
+class ShardAdvisor implements Runnable {
+    /* Share of the lock acquisitions that may wait before more shards are recommended */
+    static final double CONTENTION_THRESHOLD = 0.05;
+    /* Keys of the fullest shard over the mean above which the keys are deemed skewed */
+    static final double KEY_SKEW_THRESHOLD = 2.0;
+    /* Lock acquisitions an interval needs to judge contention */
+    static final long MIN_ACQUISITIONS = 10_000;
+    /* Keys per shard the database needs to judge skew */
+    static final int MIN_KEYS_PER_SHARD = 64;
+    /* Share of the waits a shard must have for the contention to be deemed a hot spot */
+    static final double HOT_SHARD_SHARE = 0.5;
+    static final int MAX_SHARDS = 4096;
+    /* Intervals a recommendation must hold before it is applied */
+    static final int STABLE_WINDOWS = 3;
+    /* How long resharding waits for the operations in progress to finish */
+    static final long RESHARD_TIMEOUT_MILLIS = 500;
+
+    /* Indices of the per-shard samples following the lock counters */
+    static final int KEYS = ShardLock.COUNTERS;
+    static final int KEY_BYTES = KEYS + 1;
+    static final int VALUE_BYTES = KEYS + 2;
+    static final int SAMPLE_LENGTH = KEYS + 3;
+
+    /**
+     * A recommended shard count, with the reason for it.
+     */
+    static class Advice {
+        final int shards;
+        final String reason;
+
+        Advice(int shards, String reason) {
+            this.shards = shards;
+            this.reason = reason;
+        }
+    }
+
+    private final ServerDatabase database;
+    private final long intervalMillis;
+    private final boolean apply;
+    /* The advice of the last interval, or null before the first one ends */
+    private Advice latest = null;
+
+    /**
+     * @param database The database to advise on.
+     * @param intervalMillis The length of an interval.
+     * @param apply Whether to reshard the database as recommended.
+     */
+    ShardAdvisor(ServerDatabase database, long intervalMillis, boolean apply) {
+        if (intervalMillis <= 0) {
+            throw new IllegalArgumentException("The shard advisor interval must be positive");
+        }
+        this.database = database;
+        this.intervalMillis = intervalMillis;
+        this.apply = apply;
+    }
+
+    /**
+     * Starts advising in a daemon thread.
+     */
+    void start() {
+        Thread thread = new Thread(this, "shard-advisor");
+        thread.setDaemon(true);
+        thread.start();
+        Logger.log("Advising on the shard count every " + intervalMillis + " ms" + (apply ? ", applying it" : ""), Logger.LogLevel.INFO);
+    }
+
+    @Override
+    public void run() {
+        long[][] previous = null;
+        int previousGeneration = -1;
+        int stable = 0;
+        try {
+            while (true) {
+                Thread.sleep(intervalMillis);
+                long[][] current;
+                int generation;
+                database.enterShards();
+                try {
+                    current = database.sampleShards();
+                    generation = database.layoutGeneration;
+                } finally {
+                    database.exitShards();
+                }
+                if (previous == null || generation != previousGeneration) {
+                    previous = current;
+                    previousGeneration = generation;
+                    continue;
+                }
+                Advice advice = advise(current.length, window(previous, current));
+                previous = current;
+                Advice last = latest;
+                latest = advice;
+                if (last == null || last.shards != advice.shards) {
+                    Logger.log("Shard advice: " + advice.shards + " shards, " + advice.reason,
+                            advice.shards != current.length ? Logger.LogLevel.WARN : Logger.LogLevel.INFO);
+                }
+
+                if (advice.shards == current.length) {
+                    stable = 0;
+                } else {
+                    stable = last != null && last.shards == advice.shards ? stable + 1 : 1;
+                }
+                if (apply && stable >= STABLE_WINDOWS) {
+                    stable = 0;
+                    long start = System.nanoTime();
+                    if (database.reshard(advice.shards, RESHARD_TIMEOUT_MILLIS)) {
+                        Logger.log(String.format("Resharded from %d to %d shards in %.1f ms", current.length, advice.shards,
+                                (System.nanoTime() - start) / 1e6), Logger.LogLevel.WARN);
+                    } else {
+                        Logger.log("Could not reshard to " + advice.shards + " shards: operations or getWhen requests were in progress",
+                                Logger.LogLevel.INFO);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Subtracts the counters of the previous interval from the current ones. The waiters,
+     * keys and bytes are levels, not counters, and are kept as they are.
+     */
+    private static long[][] window(long[][] previous, long[][] current) {
+        long[][] window = new long[current.length][];
+        for (int shard = 0; shard < current.length; shard++) {
+            window[shard] = current[shard].clone();
+            for (int counter = ShardLock.READS; counter <= ShardLock.WRITE_HOLD_NANOS; counter++) {
+                window[shard][counter] -= previous[shard][counter];
+            }
+        }
+        return window;
+    }
+
+    /**
+     * Recommends a shard count.
+     *
+     * @param shards The current shard count.
+     * @param samples The sample of each shard, as returned by ServerDatabase.sampleShards.
+     * @return The advice, with the current count if it should be kept.
+     */
+    static Advice advise(int shards, long[][] samples) {
+        long acquisitions = 0;
+        long contended = 0;
+        long waitNanos = 0;
+        long keys = 0;
+        int hottest = 0;
+        int fullest = 0;
+        for (int shard = 0; shard < samples.length; shard++) {
+            long[] sample = samples[shard];
+            acquisitions += sample[ShardLock.READS] + sample[ShardLock.WRITES];
+            contended += sample[ShardLock.CONTENDED];
+            waitNanos += sample[ShardLock.WAIT_NANOS];
+            keys += sample[KEYS];
+            if (sample[ShardLock.CONTENDED] > samples[hottest][ShardLock.CONTENDED]) {
+                hottest = shard;
+            }
+            if (sample[KEYS] > samples[fullest][KEYS]) {
+                fullest = shard;
+            }
+        }
+
+        if (keys >= (long) shards * MIN_KEYS_PER_SHARD && shards > 1) {
+            double skew = (double) samples[fullest][KEYS] * shards / keys;
+            if (skew > KEY_SKEW_THRESHOLD && !isPrime(shards)) {
+                int prime = shards + 1;
+                while (!isPrime(prime)) {
+                    prime++;
+                }
+                return new Advice(prime, String.format("shard %d holds %.1f times the mean number of keys;"
+                        + " their hash codes likely share a factor with the shard count, a prime count spreads them", fullest, skew));
+            }
+        }
+
+        double contention = acquisitions > 0 ? (double) contended / acquisitions : 0;
+        String waits = String.format("%.2f%% of %d lock acquisitions waited, %.1f us on average",
+                contention * 100, acquisitions, contended > 0 ? waitNanos / 1000.0 / contended : 0.0);
+        if (acquisitions >= MIN_ACQUISITIONS && contention > CONTENTION_THRESHOLD) {
+            double hotShare = (double) samples[hottest][ShardLock.CONTENDED] / contended;
+            if (shards > 1 && hotShare > HOT_SHARD_SHARE) {
+                return new Advice(shards, String.format("%s, %.0f%% of them on shard %d: its keys are hot, more shards would not help",
+                        waits, hotShare * 100, hottest));
+            }
+            if (shards < MAX_SHARDS) {
+                int factor = 2;
+                while (contention / factor > CONTENTION_THRESHOLD) {
+                    factor *= 2;
+                }
+                return new Advice((int) Math.min(MAX_SHARDS, (long) shards * factor),
+                        String.format("%s, above the %.0f%% threshold", waits, CONTENTION_THRESHOLD * 100));
+            }
+        }
+
+        if (acquisitions < MIN_ACQUISITIONS) {
+            return new Advice(shards, waits + ", too few to judge the contention");
+        }
+        return new Advice(shards, waits);
+    }
+
+    private static boolean isPrime(int n) {
+        if (n < 2) {
+            return false;
+        }
+        for (int divisor = 2; (long) divisor * divisor <= n; divisor++) {
+            if (n % divisor == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,331 @@
+package com.group15.kvserver;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The read-write lock of a database shard, counting how it is used: the read and write
+ * acquisitions, how many of them had to wait and for how long, how long the lock was
+ * held, and how many getWhen requests are waiting on its conditions.
+ *
+ * The counters are striped adders, so counting adds no shared cache line to the lock's
+ * own. Only outermost acquisitions are counted, reentrant ones are free. A lock that is
+ * free is taken with a tryLock and its wait is not timed. The read hold time is kept as
+ * the sum of the release times minus the sum of the acquisition times, so no thread has
+ * to remember when it acquired the lock; holds still in progress are counted up to the
+ * moment the counters are sampled. Waits are also recorded as flight events.
+ */
+class ShardLock extends ReentrantReadWriteLock {
+    /* Serializable through ReentrantReadWriteLock, though shard locks are never serialized */
+    private static final long serialVersionUID = 1L;
+
+    /* Indices of the counters returned by sample */
+    static final int READS = 0;
+    static final int WRITES = 1;
+    static final int CONTENDED = 2;
+    static final int WAIT_NANOS = 3;
+    static final int READ_HOLD_NANOS = 4;
+    static final int WRITE_HOLD_NANOS = 5;
+    static final int WAITERS = 6;
+    static final int COUNTERS = 7;
+
+    /* Origin of the times added to the read hold counter, to keep its sum small */
+    private static final long ORIGIN = System.nanoTime();
+
+    private final LongAdder reads = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder contended = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    /* Sum of the release times minus the acquisition times of the read holds */
+    private final LongAdder readHoldNanos = new LongAdder();
+    /* Number of threads holding the read lock */
+    private final LongAdder readHolders = new LongAdder();
+    private final LongAdder writeHoldNanos = new LongAdder();
+    /* When the write lock was last acquired, only touched by its holder */
+    private long writeAcquiredAt;
+    /* Number of threads waiting on a condition of the write lock */
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    /* The index of the shard */
+    private final int shard;
+    private final CountingReadLock readLock = new CountingReadLock();
+    private final CountingWriteLock writeLock = new CountingWriteLock();
+
+    /**
+     * Constructs a non-fair lock, like a ReentrantReadWriteLock.
+     *
+     * @param shard The index of the shard, for the flight events.
+     */
+    ShardLock(int shard) {
+        super();
+        this.shard = shard;
+    }
+
+    @Override
+    public ReentrantReadWriteLock.ReadLock readLock() {
+        return readLock;
+    }
+
+    @Override
+    public ReentrantReadWriteLock.WriteLock writeLock() {
+        return writeLock;
+    }
+
+    /**
+     * Returns the counters of the lock.
+     *
+     * @return The counters, indexed by READS, WRITES, CONTENDED, WAIT_NANOS, READ_HOLD_NANOS,
+     *         WRITE_HOLD_NANOS and WAITERS.
+     */
+    long[] sample() {
+        long[] counters = new long[COUNTERS];
+        counters[READS] = reads.sum();
+        counters[WRITES] = writes.sum();
+        counters[CONTENDED] = contended.sum();
+        counters[WAIT_NANOS] = waitNanos.sum();
+        counters[READ_HOLD_NANOS] = Math.max(0, readHoldNanos.sum() + readHolders.sum() * now());
+        counters[WRITE_HOLD_NANOS] = writeHoldNanos.sum();
+        counters[WAITERS] = waiters.get();
+        return counters;
+    }
+
+    private static long now() {
+        return System.nanoTime() - ORIGIN;
+    }
+
+    private void waited(long start, FlightEvents.ShardLockWaitEvent event, boolean write) {
+        contended.increment();
+        waitNanos.add(System.nanoTime() - start);
+        event.end();
+        if (event.shouldCommit()) {
+            event.shard = shard;
+            event.write = write;
+            event.requestType = RequestStats.currentType();
+            event.tag = RequestStats.currentTag();
+            event.commit();
+        }
+    }
+
+    private class CountingReadLock extends ReentrantReadWriteLock.ReadLock {
+        private static final long serialVersionUID = 1L;
+
+        CountingReadLock() {
+            super(ShardLock.this);
+        }
+
+        @Override
+        public void lock() {
+            if (!super.tryLock()) {
+                FlightEvents.ShardLockWaitEvent event = new FlightEvents.ShardLockWaitEvent();
+                event.begin();
+                long start = System.nanoTime();
+                super.lock();
+                waited(start, event, false);
+            }
+            acquired();
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            if (!super.tryLock()) {
+                FlightEvents.ShardLockWaitEvent event = new FlightEvents.ShardLockWaitEvent();
+                event.begin();
+                long start = System.nanoTime();
+                super.lockInterruptibly();
+                waited(start, event, false);
+            }
+            acquired();
+        }
+
+        @Override
+        public boolean tryLock() {
+            if (!super.tryLock()) {
+                return false;
+            }
+            acquired();
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+            if (!super.tryLock(timeout, unit)) {
+                return false;
+            }
+            acquired();
+            return true;
+        }
+
+        @Override
+        public void unlock() {
+            if (getReadHoldCount() == 1) {
+                readHoldNanos.add(now());
+                readHolders.decrement();
+            }
+            super.unlock();
+        }
+
+        private void acquired() {
+            if (getReadHoldCount() == 1) {
+                reads.increment();
+                readHolders.increment();
+                readHoldNanos.add(-now());
+            }
+        }
+    }
+
+    private class CountingWriteLock extends ReentrantReadWriteLock.WriteLock {
+        private static final long serialVersionUID = 1L;
+
+        CountingWriteLock() {
+            super(ShardLock.this);
+        }
+
+        @Override
+        public void lock() {
+            if (!super.tryLock()) {
+                FlightEvents.ShardLockWaitEvent event = new FlightEvents.ShardLockWaitEvent();
+                event.begin();
+                long start = System.nanoTime();
+                super.lock();
+                waited(start, event, true);
+            }
+            acquired();
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            if (!super.tryLock()) {
+                FlightEvents.ShardLockWaitEvent event = new FlightEvents.ShardLockWaitEvent();
+                event.begin();
+                long start = System.nanoTime();
+                super.lockInterruptibly();
+                waited(start, event, true);
+            }
+            acquired();
+        }
+
+        @Override
+        public boolean tryLock() {
+            if (!super.tryLock()) {
+                return false;
+            }
+            acquired();
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+            if (!super.tryLock(timeout, unit)) {
+                return false;
+            }
+            acquired();
+            return true;
+        }
+
+        @Override
+        public void unlock() {
+            if (getWriteHoldCount() == 1) {
+                writeHoldNanos.add(System.nanoTime() - writeAcquiredAt);
+            }
+            super.unlock();
+        }
+
+        @Override
+        public Condition newCondition() {
+            return new CountingCondition(super.newCondition());
+        }
+
+        private void acquired() {
+            if (getWriteHoldCount() == 1) {
+                writes.increment();
+                writeAcquiredAt = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * A condition of the write lock that counts its waiters, and does not count the time
+     * they wait as time the lock was held.
+     */
+    private class CountingCondition implements Condition {
+        private final Condition condition;
+
+        CountingCondition(Condition condition) {
+            this.condition = condition;
+        }
+
+        private void release() {
+            writeHoldNanos.add(System.nanoTime() - writeAcquiredAt);
+            waiters.incrementAndGet();
+        }
+
+        private void reacquired() {
+            waiters.decrementAndGet();
+            writeAcquiredAt = System.nanoTime();
+        }
+
+        @Override
+        public void await() throws InterruptedException {
+            release();
+            try {
+                condition.await();
+            } finally {
+                reacquired();
+            }
+        }
+
+        @Override
+        public void awaitUninterruptibly() {
+            release();
+            try {
+                condition.awaitUninterruptibly();
+            } finally {
+                reacquired();
+            }
+        }
+
+        @Override
+        public long awaitNanos(long nanosTimeout) throws InterruptedException {
+            release();
+            try {
+                return condition.awaitNanos(nanosTimeout);
+            } finally {
+                reacquired();
+            }
+        }
+
+        @Override
+        public boolean await(long time, TimeUnit unit) throws InterruptedException {
+            release();
+            try {
+                return condition.await(time, unit);
+            } finally {
+                reacquired();
+            }
+        }
+
+        @Override
+        public boolean awaitUntil(Date deadline) throws InterruptedException {
+            release();
+            try {
+                return condition.awaitUntil(deadline);
+            } finally {
+                reacquired();
+            }
+        }
+
+        @Override
+        public void signal() {
+            condition.signal();
+        }
+
+        @Override
+        public void signalAll() {
+            condition.signalAll();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.group15.kvserver;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+/**
+ * How the database shards of a server are used since it started or was last resharded,
+ * with the shard count its advisor recommends, as reported by ClientLibrary.getShardStats.
+ */
+public class ShardStats {
+    /**
+     * The counters of one shard.
+     */
+    public static class Shard {
+        private final long[] sample;
+
+        private Shard(long[] sample) {
+            this.sample = sample;
+        }
+
+        /**
+         * @return the number of times the read lock of the shard was acquired
+         */
+        public long getReadAcquisitions() {
+            return sample[ShardLock.READS];
+        }
+
+        /**
+         * @return the number of times the write lock of the shard was acquired
+         */
+        public long getWriteAcquisitions() {
+            return sample[ShardLock.WRITES];
+        }
+
+        /**
+         * @return the number of acquisitions that waited for the lock to be released
+         */
+        public long getContendedAcquisitions() {
+            return sample[ShardLock.CONTENDED];
+        }
+
+        /**
+         * @return the total time spent waiting for the lock, in nanoseconds
+         */
+        public long getWaitNanos() {
+            return sample[ShardLock.WAIT_NANOS];
+        }
+
+        /**
+         * @return the total time the read lock was held, summed over the threads holding it, in nanoseconds
+         */
+        public long getReadHoldNanos() {
+            return sample[ShardLock.READ_HOLD_NANOS];
+        }
+
+        /**
+         * @return the total time the write lock was held, in nanoseconds
+         */
+        public long getWriteHoldNanos() {
+            return sample[ShardLock.WRITE_HOLD_NANOS];
+        }
+
+        /**
+         * @return the number of getWhen requests waiting for a key of the shard
+         */
+        public long getWaiters() {
+            return sample[ShardLock.WAITERS];
+        }
+
+        /**
+         * @return the number of keys of the shard
+         */
+        public long getKeys() {
+            return sample[ShardAdvisor.KEYS];
+        }
+
+        /**
+         * @return the total bytes of the keys and values of the shard
+         */
+        public long getBytes() {
+            return sample[ShardAdvisor.KEY_BYTES] + sample[ShardAdvisor.VALUE_BYTES];
+        }
+    }
+
+    private final Shard[] shards;
+    private final int recommendedShards;
+    private final String reason;
+
+    private ShardStats(Shard[] shards, int recommendedShards, String reason) {
+        this.shards = shards;
+        this.recommendedShards = recommendedShards;
+        this.reason = reason;
+    }
+
+    /**
+     * Reads a shard stats response.
+     *
+     * N SHARDS | RECOMMENDED SHARDS | REASON | N COUNTERS | COUNTER | ... | ...
+     */
+    static ShardStats read(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        int recommendedShards = in.readInt();
+        String reason = in.readUTF();
+        int counters = in.readInt();
+        Shard[] shards = new Shard[count];
+        for (int shard = 0; shard < count; shard++) {
+            long[] sample = new long[Math.max(counters, ShardAdvisor.SAMPLE_LENGTH)];
+            for (int counter = 0; counter < counters; counter++) {
+                sample[counter] = in.readLong();
+            }
+            shards[shard] = new Shard(sample);
+        }
+        return new ShardStats(shards, recommendedShards, reason);
+    }
+
+    /**
+     * @return the number of database shards
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @param shard the index of the shard
+     * @return the counters of the shard
+     */
+    public Shard getShard(int shard) {
+        return shards[shard];
+    }
+
+    /**
+     * @return the shard count recommended by the server, its current count if it should be kept
+     */
+    public int getRecommendedShards() {
+        return recommendedShards;
+    }
+
+    /**
+     * @return why the server recommends its shard count
+     */
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     * Formats the counters of every shard, the times in milliseconds, and the recommendation.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%5s %10s %10s %9s %9s %10s %10s %7s %9s %11s%n", "shard", "reads", "writes",
+                "contended", "wait ms", "r-hold ms", "w-hold ms", "waiters", "keys", "bytes"));
+        for (int index = 0; index < shards.length; index++) {
+            Shard shard = shards[index];
+            builder.append(String.format("%5d %10d %10d %9d %9d %10d %10d %7d %9d %11d%n", index, shard.getReadAcquisitions(),
+                    shard.getWriteAcquisitions(), shard.getContendedAcquisitions(), shard.getWaitNanos() / 1_000_000,
+                    shard.getReadHoldNanos() / 1_000_000, shard.getWriteHoldNanos() / 1_000_000, shard.getWaiters(),
+                    shard.getKeys(), shard.getBytes()));
+        }
+        builder.append("Recommended shards: ").append(recommendedShards).append(" (").append(reason).append(')');
+        return builder.toString();
+    }
+}
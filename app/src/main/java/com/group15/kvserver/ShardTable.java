@@ -0,0 +1,354 @@
+package com.group15.kvserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * An open-addressing hash table specialized for a database shard.
+ *
+ * Keys are stored as UTF-8 bytes packed one after the other into large slab pages, and
+ * each slot only keeps the cached hash of its key, a packed reference to the key bytes,
+ * the value array and the version of the value. Compared to a HashMap there is no node,
+ * String or key array object per entry, and probing compares cached hashes before ever
+ * touching the key bytes. Slots are probed linearly; keys are never removed, so there
+ * are no tombstones.
+ *
+ * Lookups of ASCII keys hash and compare the String's characters directly, without
+ * encoding the key. The table is not thread-safe: reads may run concurrently with each
+ * other, but writes must be exclusive, which the shard's read-write lock guarantees.
+ */
+class ShardTable {
+    /* Size of a key slab page */
+    private static final int PAGE_SIZE = 1 << 20;
+    /* Bits of a key reference holding the key length and the offset in the page */
+    private static final int LENGTH_BITS = 16;
+    private static final int OFFSET_BITS = 20;
+    /* Maximum fraction of occupied slots before the table grows */
+    private static final float LOAD_FACTOR = 0.7f;
+
+    /* Cached hash of the key of each slot, 0 if the slot is empty */
+    private int[] hashes;
+    /* Reference to the key bytes of each slot: page | offset | length */
+    private long[] keyRefs;
+    /* Value of each slot */
+    private byte[][] values;
+    /* Version of the value of each slot */
+    private long[] versions;
+
+    /* Key slab pages */
+    private byte[][] pages = new byte[1][];
+    /* Number of pages in use */
+    private int pageCount = 0;
+    /* Write position in the last page */
+    private int pagePosition = PAGE_SIZE;
+
+    /* Number of entries */
+    private int size = 0;
+    /* Number of entries that triggers a resize */
+    private int threshold;
+    /* Total bytes of the stored keys and values */
+    private long keyBytes = 0;
+    private long valueBytes = 0;
+
+    /**
+     * Constructs an empty table.
+     */
+    ShardTable() {
+        this(16);
+    }
+
+    /**
+     * Constructs an empty table sized for the given number of entries.
+     *
+     * @param expectedSize The number of entries expected.
+     */
+    ShardTable(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(16, (int) (expectedSize / LOAD_FACTOR)) * 2 - 1);
+        allocate(capacity);
+    }
+
+    /**
+     * Returns the value of a key.
+     *
+     * @param key The key.
+     * @return The value, or null if the key is not present.
+     */
+    byte[] get(String key) {
+        int slot = find(key);
+        return slot >= 0 ? values[slot] : null;
+    }
+
+    /**
+     * Returns the version of the value of a key.
+     *
+     * @param key The key.
+     * @return The version, or 0 if the key is not present.
+     */
+    long getVersion(String key) {
+        int slot = find(key);
+        return slot >= 0 ? versions[slot] : 0;
+    }
+
+    /**
+     * Returns whether a key is present.
+     *
+     * @param key The key.
+     * @return true if the key is present.
+     */
+    boolean containsKey(String key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Stores the value of a key.
+     *
+     * @param key The key.
+     * @param value The value.
+     * @param version The version of the value.
+     * @return true if the key was not present before.
+     */
+    boolean put(String key, byte[] value, long version) {
+        byte[] encoded = null;
+        int hash = hashAscii(key);
+        if (hash == 0) {
+            encoded = key.getBytes(StandardCharsets.UTF_8);
+            hash = hashBytes(encoded);
+        }
+        int slot = find(key, encoded, hash);
+        if (slot >= 0) {
+            valueBytes += value.length - values[slot].length;
+            values[slot] = value;
+            versions[slot] = version;
+            return false;
+        }
+
+        if (size >= threshold) {
+            allocate(hashes.length * 2);
+            slot = find(key, encoded, hash);
+        }
+        slot = -slot - 1;
+        keyRefs[slot] = storeKey(key, encoded);
+        hashes[slot] = hash;
+        values[slot] = value;
+        versions[slot] = version;
+        size++;
+        valueBytes += value.length;
+        return true;
+    }
+
+    /**
+     * Returns the number of entries.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the total bytes of the stored keys.
+     */
+    long keyBytes() {
+        return keyBytes;
+    }
+
+    /**
+     * Returns the total bytes of the stored values.
+     */
+    long valueBytes() {
+        return valueBytes;
+    }
+
+    /**
+     * Returns a copy of every key, in no particular order.
+     */
+    List<String> keys() {
+        List<String> keys = new ArrayList<>(size);
+        for (int slot = 0; slot < hashes.length; slot++) {
+            if (hashes[slot] != 0) {
+                keys.add(decodeKey(keyRefs[slot]));
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Finds the slot of a key.
+     *
+     * @param key The key.
+     * @return The slot of the key, or a negative number if the key is not present.
+     */
+    private int find(String key) {
+        int hash = hashAscii(key);
+        if (hash == 0) {
+            byte[] encoded = key.getBytes(StandardCharsets.UTF_8);
+            return find(key, encoded, hashBytes(encoded));
+        }
+        return find(key, null, hash);
+    }
+
+    /**
+     * Finds the slot of a key whose hash is known.
+     *
+     * @param key The key.
+     * @param encoded The UTF-8 bytes of the key, or null if the key is ASCII.
+     * @param hash The hash of the key.
+     * @return The slot of the key, or -(empty slot) - 1 if the key is not present.
+     */
+    private int find(String key, byte[] encoded, int hash) {
+        int mask = hashes.length - 1;
+        int slot = hash & mask;
+        while (true) {
+            int slotHash = hashes[slot];
+            if (slotHash == 0) {
+                return -slot - 1;
+            }
+            if (slotHash == hash && keyEquals(keyRefs[slot], key, encoded)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Compares the key bytes a reference points to with a key.
+     */
+    private boolean keyEquals(long ref, String key, byte[] encoded) {
+        int length = (int) (ref & ((1 << LENGTH_BITS) - 1));
+        int offset = (int) ((ref >>> LENGTH_BITS) & ((1 << OFFSET_BITS) - 1));
+        byte[] page = pages[(int) (ref >>> (LENGTH_BITS + OFFSET_BITS))];
+        if (encoded != null) {
+            return Arrays.equals(page, offset, offset + length, encoded, 0, encoded.length);
+        }
+        if (length != key.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (page[offset + i] != (byte) key.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the bytes of a key into the slab.
+     *
+     * @return The reference to the key bytes.
+     */
+    private long storeKey(String key, byte[] encoded) {
+        int length = encoded == null ? key.length() : encoded.length;
+        if (length >= 1 << LENGTH_BITS) {
+            throw new IllegalArgumentException("Key too long: " + length + " bytes");
+        }
+        if (pagePosition + length > PAGE_SIZE) {
+            if (pageCount == pages.length) {
+                pages = Arrays.copyOf(pages, pages.length * 2);
+            }
+            pages[pageCount++] = new byte[PAGE_SIZE];
+            pagePosition = 0;
+        }
+        byte[] page = pages[pageCount - 1];
+        if (encoded != null) {
+            System.arraycopy(encoded, 0, page, pagePosition, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                page[pagePosition + i] = (byte) key.charAt(i);
+            }
+        }
+        long ref = ((long) (pageCount - 1) << (LENGTH_BITS + OFFSET_BITS))
+                | ((long) pagePosition << LENGTH_BITS)
+                | length;
+        pagePosition += length;
+        keyBytes += length;
+        return ref;
+    }
+
+    /**
+     * Decodes the key a reference points to.
+     */
+    private String decodeKey(long ref) {
+        int length = (int) (ref & ((1 << LENGTH_BITS) - 1));
+        int offset = (int) ((ref >>> LENGTH_BITS) & ((1 << OFFSET_BITS) - 1));
+        byte[] page = pages[(int) (ref >>> (LENGTH_BITS + OFFSET_BITS))];
+        return new String(page, offset, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Allocates the slot arrays with the given capacity and moves the current entries
+     * into them, using the cached hashes.
+     */
+    private void allocate(int capacity) {
+        int[] oldHashes = hashes;
+        long[] oldKeyRefs = keyRefs;
+        byte[][] oldValues = values;
+        long[] oldVersions = versions;
+
+        hashes = new int[capacity];
+        keyRefs = new long[capacity];
+        values = new byte[capacity][];
+        versions = new long[capacity];
+        threshold = (int) (capacity * LOAD_FACTOR);
+
+        if (oldHashes == null) {
+            return;
+        }
+        int mask = capacity - 1;
+        for (int i = 0; i < oldHashes.length; i++) {
+            int hash = oldHashes[i];
+            if (hash == 0) {
+                continue;
+            }
+            int slot = hash & mask;
+            while (hashes[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            hashes[slot] = hash;
+            keyRefs[slot] = oldKeyRefs[i];
+            values[slot] = oldValues[i];
+            versions[slot] = oldVersions[i];
+        }
+    }
+
+    /**
+     * Hashes the UTF-8 bytes of an ASCII key without encoding it. The low bits of the hash
+     * are the home slot of the key, which the tests use to build colliding keys.
+     *
+     * @return The hash, or 0 if the key is not ASCII.
+     */
+    static int hashAscii(String key) {
+        int h = 0;
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c >= 0x80) {
+                return 0;
+            }
+            h = 31 * h + c;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Hashes the UTF-8 bytes of a key.
+     */
+    private static int hashBytes(byte[] encoded) {
+        int h = 0;
+        for (byte b : encoded) {
+            h = 31 * h + b;
+        }
+        return mix(h);
+    }
+
+    /**
+     * Spreads the bits of a hash so that linear probing on its low bits works well.
+     * Never returns 0, which marks empty slots.
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h == 0 ? 1 : h;
+    }
+}
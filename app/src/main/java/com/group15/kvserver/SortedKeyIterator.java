@@ -0,0 +1,74 @@
+package com.group15.kvserver;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * Merges the sorted key sets of several shards into a single ascending sequence.
+ *
+ * The sets are read through their own iterators, which for the ordered index are weakly
+ * consistent: keys inserted while the scan runs may or may not be returned, but no shard
+ * lock is held while iterating.
+ */
+class SortedKeyIterator implements Iterator<String> {
+    /**
+     * The next key of one shard, ordered by key.
+     */
+    private static class Head implements Comparable<Head> {
+        final String key;
+        final Iterator<String> rest;
+
+        Head(String key, Iterator<String> rest) {
+            this.key = key;
+            this.rest = rest;
+        }
+
+        @Override
+        public int compareTo(Head other) {
+            return key.compareTo(other.key);
+        }
+    }
+
+    /* The smallest pending key of each shard */
+    private final PriorityQueue<Head> heads = new PriorityQueue<>();
+
+    /**
+     * Constructs an iterator over the keys of all shards, starting at the given key.
+     *
+     * @param shards The sorted key set of each shard.
+     * @param startKey The first key to return.
+     * @param inclusive Whether the start key itself is returned.
+     */
+    SortedKeyIterator(List<? extends NavigableSet<String>> shards, String startKey, boolean inclusive) {
+        for (NavigableSet<String> shard : shards) {
+            advance(shard.tailSet(startKey, inclusive).iterator());
+        }
+    }
+
+    /**
+     * Takes the next key of a shard, if any, into the merge.
+     */
+    private void advance(Iterator<String> shard) {
+        if (shard.hasNext()) {
+            heads.add(new Head(shard.next(), shard));
+        }
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heads.isEmpty();
+    }
+
+    @Override
+    public String next() {
+        Head head = heads.poll();
+        if (head == null) {
+            throw new NoSuchElementException();
+        }
+        advance(head.rest);
+        return head.key;
+    }
+}
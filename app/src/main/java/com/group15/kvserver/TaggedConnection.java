@@ -5,7 +5,11 @@ import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -17,7 +21,14 @@ import java.util.concurrent.locks.ReentrantLock;
  * This class implements AutoCloseable to handle the closing of the socket connection properly when it is no longer needed.
  */
 public class TaggedConnection implements AutoCloseable {
-    /* The socket associated with this connection */
+    /* Largest frame payload accepted, larger payloads are sent as several fragments */
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    /* Largest payload of a message made of fragments */
+    static final int MAX_MESSAGE_LENGTH = Integer.MAX_VALUE - 8;
+    /* Bit of the request type of a frame header telling that the next frame of the tag continues its payload */
+    static final short CONTINUED = 0x2000;
+
+    /* The socket associated with this connection, or null if it runs over streams */
     private final Socket socket;
     /* The input stream for reading data from the socket */
     private final DataInputStream in;
@@ -27,6 +38,8 @@ public class TaggedConnection implements AutoCloseable {
     private final Lock sendLock = new ReentrantLock();
     /* Lock for receiving frames */
     private final Lock receiveLock = new ReentrantLock();
+    /* Largest payload of a message made of fragments accepted by this end */
+    private volatile int maxMessageLength = MAX_MESSAGE_LENGTH;
 
     /**
      * A nested class representing a frame of data that can be sent or received over the connection.
@@ -39,6 +52,10 @@ public class TaggedConnection implements AutoCloseable {
         public final short requestType;
         /* The data payload of the frame. */
         public final byte[] data;
+        /* When the frame was created, which for a received frame is when it was read, as System.nanoTime. */
+        public final long createdAt;
+        /* The trace context carried in the header of the frame, or null. */
+        final TraceContext trace;
 
         /**
          * Constructs a new Frame with the given tag, request type, and data payload.
@@ -48,9 +65,23 @@ public class TaggedConnection implements AutoCloseable {
          * @param data The data payload of the frame.
          */
         public Frame(int tag, short requestType ,byte[] data) {
+            this(tag, requestType, data, null);
+        }
+
+        /**
+         * Constructs a new Frame carrying a trace context in its header.
+         *
+         * @param tag The tag identifying the frame.
+         * @param requestType The request type of the frame.
+         * @param data The data payload of the frame.
+         * @param trace The trace context, or null.
+         */
+        Frame(int tag, short requestType, byte[] data, TraceContext trace) {
             this.tag = tag;
             this.requestType = requestType;
             this.data = data;
+            this.createdAt = System.nanoTime();
+            this.trace = trace;
         }
     }
 
@@ -67,6 +98,32 @@ public class TaggedConnection implements AutoCloseable {
         this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
     }
 
+    /**
+     * Constructs a TaggedConnection over a pair of streams, such as in-memory ones for
+     * benchmarks and tests, framed and buffered as over a socket.
+     *
+     * @param input The stream the frames are received from.
+     * @param output The stream the frames are sent to.
+     */
+    public TaggedConnection(InputStream input, OutputStream output) {
+        this.socket = null;
+        this.in = new DataInputStream(new BufferedInputStream(input));
+        this.out = new DataOutputStream(new BufferedOutputStream(output));
+    }
+
+    /**
+     * Sets the largest payload of a message made of fragments this end accepts, a longer
+     * one failing the connection once its fragments reach the limit.
+     *
+     * @param maxMessageLength The limit, at most MAX_MESSAGE_LENGTH.
+     */
+    void setMaxMessageLength(int maxMessageLength) {
+        if (maxMessageLength <= 0 || maxMessageLength > MAX_MESSAGE_LENGTH) {
+            throw new IllegalArgumentException("Invalid message length limit: " + maxMessageLength);
+        }
+        this.maxMessageLength = maxMessageLength;
+    }
+
     /**
      * Sends a frame over the connection. The frame consists of a tag, request type, and data.
      * 
@@ -74,7 +131,7 @@ public class TaggedConnection implements AutoCloseable {
      * @throws IOException If an error occurs during sending the frame.
      */
     public void send(Frame frame) throws IOException {
-        send(frame.tag, frame.requestType ,frame.data);
+        send(frame.tag, frame.requestType, frame.data, 0, frame.data.length, frame.trace);
     }
 
     /**
@@ -87,21 +144,79 @@ public class TaggedConnection implements AutoCloseable {
      * @throws IOException If an error occurs during sending the frame.
      */
     public void send(int tag, short request, byte[] data) throws IOException {
+        send(tag, request, data, 0, data.length);
+    }
+
+    /**
+     * Sends a frame whose payload is a slice of the given array, without copying it.
+     * 
+     * @param tag The tag for the frame.
+     * @param request The request type for the frame.
+     * @param data The array holding the payload.
+     * @param offset The offset of the payload in the array.
+     * @param length The length of the payload.
+     * @throws IOException If an error occurs during sending the frame.
+     */
+    public void send(int tag, short request, byte[] data, int offset, int length) throws IOException {
+        send(tag, request, data, offset, length, null);
+    }
+
+    /**
+     * Sends a frame carrying a trace context in its header, recording in the context when
+     * the connection was acquired. A payload longer than MAX_FRAME_LENGTH is sent as
+     * consecutive fragments of the same tag, every one but the last with the CONTINUED bit
+     * set and only the first with the trace context, all under the send lock so that no
+     * other frame comes between them.
+     *
+     * @param tag The tag for the frame.
+     * @param request The request type for the frame.
+     * @param data The array holding the payload.
+     * @param offset The offset of the payload in the array.
+     * @param length The length of the payload.
+     * @param trace The trace context, or null to send a plain frame.
+     * @throws IOException If an error occurs during sending the frame.
+     */
+    void send(int tag, short request, byte[] data, int offset, int length, TraceContext trace) throws IOException {
+        FlightEvents.FrameSendEvent event = new FlightEvents.FrameSendEvent();
+        event.begin();
         sendLock.lock();
         try {
-            out.writeInt(tag); 
-            out.writeShort(request);
-            out.writeInt(data.length); 
-            out.write(data); 
+            int sent = 0;
+            do {
+                int fragment = Math.min(length - sent, MAX_FRAME_LENGTH);
+                short header = sent + fragment < length ? (short) (request | CONTINUED) : request;
+                out.writeInt(tag);
+                if (trace != null && sent == 0) {
+                    trace.lockedAt = System.nanoTime();
+                    out.writeShort(header | TraceContext.TRACED);
+                    out.writeInt(fragment);
+                    trace.write(out);
+                } else {
+                    out.writeShort(header);
+                    out.writeInt(fragment);
+                }
+                out.write(data, offset + sent, fragment);
+                sent += fragment;
+            } while (sent < length);
             out.flush();
         } finally {
             sendLock.unlock();
         }
+        event.end();
+        if (event.shouldCommit()) {
+            event.requestType = FlightEvents.typeName(request);
+            event.tag = tag;
+            event.bytes = length;
+            event.commit();
+        }
     }
 
     /**
      * Receives a frame from the connection. The method blocks until a complete frame is received.
-     * Ensures thread-safety by locking the receive operation.
+     * Ensures thread-safety by locking the receive operation. Frames longer than
+     * MAX_FRAME_LENGTH are rejected before any buffer is allocated, and the fragments of a
+     * longer payload are joined into a single frame, up to the message length limit of the
+     * connection.
      * 
      * @return A Frame object containing the received tag, request type, and data.
      * @throws IOException If an error occurs during receiving the frame.
@@ -110,23 +225,96 @@ public class TaggedConnection implements AutoCloseable {
         receiveLock.lock();
         try {
             int tag = in.readInt(); 
+            // Timed from the header on, since waiting for the next frame is not slowness
+            FlightEvents.FrameReceiveEvent event = new FlightEvents.FrameReceiveEvent();
+            event.begin();
             short request = in.readShort();
             int length = in.readInt(); 
+            if (length < 0 || length > MAX_FRAME_LENGTH) {
+                throw new IOException("Invalid frame length: " + length);
+            }
+            TraceContext trace = null;
+            if ((request & TraceContext.TRACED) != 0) {
+                request &= ~TraceContext.TRACED;
+                trace = TraceContext.read(in);
+            }
             byte[] data = new byte[length];
             in.readFully(data); 
-            return new Frame(tag, request, data);
+            if ((request & CONTINUED) != 0) {
+                request &= ~CONTINUED;
+                data = receiveFragments(tag, data);
+            }
+            event.end();
+            if (event.shouldCommit()) {
+                event.requestType = FlightEvents.typeName(request);
+                event.tag = tag;
+                event.bytes = data.length;
+                event.commit();
+            }
+            return new Frame(tag, request, data, trace);
         } finally {
             receiveLock.unlock();
         }
     }
 
     /**
-     * Closes the connection by closing the underlying socket.
+     * Receives the fragments following the first one of a payload, up to the one without
+     * the CONTINUED bit, and copies them once into the whole payload. Must be called
+     * holding the receive lock.
+     *
+     * @param tag The tag of the first fragment.
+     * @param first The payload of the first fragment.
+     * @return The whole payload.
+     * @throws IOException If a fragment is invalid or the payload exceeds the message
+     *         length limit of the connection.
+     */
+    private byte[] receiveFragments(int tag, byte[] first) throws IOException {
+        int limit = maxMessageLength;
+        List<byte[]> fragments = new ArrayList<>();
+        fragments.add(first);
+        int total = first.length;
+        while (true) {
+            int fragmentTag = in.readInt();
+            short request = in.readShort();
+            int length = in.readInt();
+            if (fragmentTag != tag || (request & TraceContext.TRACED) != 0 || length < 0 || length > MAX_FRAME_LENGTH
+                    || length > limit - total) {
+                throw new IOException("Invalid fragment of tag " + fragmentTag + " and length " + length + " after "
+                        + total + " bytes of tag " + tag + ", messages are limited to " + limit + " bytes");
+            }
+            byte[] fragment = new byte[length];
+            in.readFully(fragment);
+            fragments.add(fragment);
+            total += length;
+            if ((request & CONTINUED) == 0) {
+                break;
+            }
+        }
+        byte[] payload = new byte[total];
+        int offset = 0;
+        for (int i = 0; i < fragments.size(); i++) {
+            byte[] fragment = fragments.set(i, null);
+            System.arraycopy(fragment, 0, payload, offset, fragment.length);
+            offset += fragment.length;
+        }
+        return payload;
+    }
+
+    /**
+     * Closes the connection by closing the underlying socket, or its streams.
      * 
      * @throws IOException If an error occurs while closing the socket.
      */
     @Override
     public void close() throws IOException {
-        socket.close();
+        if (socket != null) {
+            socket.close();
+            return;
+        }
+        try {
+            in.close();
+        } finally {
+            out.close();
+        }
     }
 }
\ No newline at end of file
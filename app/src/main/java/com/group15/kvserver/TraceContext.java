@@ -0,0 +1,92 @@
+package com.group15.kvserver;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The trace context of a request, carried in the header of its frame: the 128-bit id of
+ * the trace, the id of the span of the request on the client, and whether the trace is
+ * sampled.
+ *
+ * A frame carrying a context has the TRACED bit set in its request type, and the context
+ * follows the length of its payload, so frames without one are unchanged.
+ *
+ * TRACE ID HIGH | TRACE ID LOW | SPAN ID | FLAGS
+ */
+final class TraceContext {
+    /* Bit of the request type of a frame header telling that a trace context follows */
+    static final short TRACED = 0x4000;
+    /* Bit of the flags of a sampled trace */
+    private static final byte SAMPLED = 1;
+
+    final long traceIdHigh;
+    final long traceIdLow;
+    final long spanId;
+    final boolean sampled;
+    /* When the sender got hold of the connection, as System.nanoTime, set by TaggedConnection.send */
+    long lockedAt;
+
+    TraceContext(long traceIdHigh, long traceIdLow, long spanId, boolean sampled) {
+        this.traceIdHigh = traceIdHigh;
+        this.traceIdLow = traceIdLow;
+        this.spanId = spanId;
+        this.sampled = sampled;
+    }
+
+    /**
+     * Starts a new sampled trace.
+     */
+    static TraceContext newTrace() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return new TraceContext(random.nextLong(), random.nextLong(), newSpanId(), true);
+    }
+
+    /**
+     * Returns a new span id, never 0.
+     */
+    static long newSpanId() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    /**
+     * Writes the context after the header of a frame.
+     */
+    void write(DataOutputStream out) throws IOException {
+        out.writeLong(traceIdHigh);
+        out.writeLong(traceIdLow);
+        out.writeLong(spanId);
+        out.writeByte(sampled ? SAMPLED : 0);
+    }
+
+    /**
+     * Reads a context written by write.
+     */
+    static TraceContext read(DataInputStream in) throws IOException {
+        long high = in.readLong();
+        long low = in.readLong();
+        long spanId = in.readLong();
+        boolean sampled = (in.readByte() & SAMPLED) != 0;
+        return new TraceContext(high, low, spanId, sampled);
+    }
+
+    /**
+     * @return The trace id as 32 hexadecimal digits.
+     */
+    String traceId() {
+        return hex(traceIdHigh) + hex(traceIdLow);
+    }
+
+    /**
+     * Formats an id as 16 hexadecimal digits.
+     */
+    static String hex(long id) {
+        String digits = Long.toHexString(id);
+        return "0000000000000000".substring(digits.length()) + digits;
+    }
+}
@@ -0,0 +1,213 @@
+package com.group15.kvserver;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Samples requests for tracing and exports their spans.
+ *
+ * A client traces a share of its requests: each sampled request gets a trace context,
+ * sent in the header of its frame, and a client span with children for the wait for the
+ * connection, the write of the frame and the wait for the response. A server traces the
+ * requests whose frame carries a sampled context: a server span, child of the client's,
+ * with children for the wait in the connection's inbox, the handling, the time the
+ * handling waited for locks, and the write of the response. Comparing them shows where
+ * the latency of a request accumulates, the network being what the client waits for
+ * beyond the server span.
+ *
+ * Spans are appended to a file, one Zipkin v2 JSON span per line, by a background thread.
+ * Spans that arrive faster than they are written are dropped.
+ */
+public final class Tracing {
+    /* Spans waiting to be written before new ones are dropped */
+    private static final int QUEUE_CAPACITY = 16 * 1024;
+
+    /* The current exporter, or null when tracing is disabled */
+    private static volatile Exporter exporter = null;
+
+    /**
+     * Writes the spans of a service to a file.
+     */
+    private static class Exporter implements Runnable {
+        final String serviceName;
+        final double sampleRate;
+        final BlockingQueue<String> spans = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+        final Writer out;
+        /* The epoch time, in microseconds, matching epochNanos */
+        final long epochMicros = System.currentTimeMillis() * 1000;
+        final long epochNanos = System.nanoTime();
+        volatile boolean running = true;
+
+        Exporter(String serviceName, Path file, double sampleRate) throws IOException {
+            this.serviceName = serviceName;
+            this.sampleRate = sampleRate;
+            this.out = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND));
+        }
+
+        long micros(long nanos) {
+            return epochMicros + (nanos - epochNanos) / 1000;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running || !spans.isEmpty()) {
+                    String span = spans.poll(100, TimeUnit.MILLISECONDS);
+                    if (span == null) {
+                        out.flush();
+                        continue;
+                    }
+                    out.write(span);
+                    out.write('\n');
+                }
+                out.close();
+            } catch (IOException e) {
+                Logger.log("Could not write spans: " + e.getMessage(), Logger.LogLevel.ERROR);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private Tracing() {
+    }
+
+    /**
+     * Starts tracing, appending the spans of this process to a file.
+     *
+     * @param serviceName The name of this process in the spans, such as "client" or "server:12345".
+     * @param file The file, created if it does not exist.
+     * @param sampleRate The share of the requests this process sends that are traced, from 0
+     *                   to 1. The requests received are traced when their sender sampled them.
+     * @throws IOException If the file cannot be opened.
+     */
+    public static synchronized void enable(String serviceName, Path file, double sampleRate) throws IOException {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("The sample rate must be between 0 and 1");
+        }
+        disable();
+        Exporter started = new Exporter(serviceName, file, sampleRate);
+        Thread thread = new Thread(started, "span-exporter");
+        thread.setDaemon(true);
+        thread.start();
+        exporter = started;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            started.running = false;
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+    }
+
+    /**
+     * Stops tracing, writing the spans recorded so far.
+     */
+    public static synchronized void disable() {
+        Exporter current = exporter;
+        if (current != null) {
+            exporter = null;
+            current.running = false;
+        }
+    }
+
+    /**
+     * Decides whether to trace a request about to be sent.
+     *
+     * @return The context of a new trace, or null if the request is not traced.
+     */
+    static TraceContext sample() {
+        Exporter current = exporter;
+        if (current == null || ThreadLocalRandom.current().nextDouble() >= current.sampleRate) {
+            return null;
+        }
+        return TraceContext.newTrace();
+    }
+
+    /**
+     * Tells whether the spans of a request received with a context are recorded.
+     *
+     * @param trace The context of the request, or null.
+     */
+    static boolean isRecorded(TraceContext trace) {
+        return trace != null && trace.sampled && exporter != null;
+    }
+
+    /**
+     * Records a span.
+     *
+     * @param trace The context of the trace.
+     * @param id The id of the span.
+     * @param parentId The id of its parent span, 0 for the root of the trace.
+     * @param name The name of the span.
+     * @param kind CLIENT, SERVER, or null for a local span.
+     * @param startNanos When the span started, as System.nanoTime.
+     * @param endNanos When the span ended, as System.nanoTime.
+     * @param tags Names and values of the tags of the span, alternately.
+     */
+    static void record(TraceContext trace, long id, long parentId, String name, String kind, long startNanos, long endNanos,
+            String... tags) {
+        Exporter current = exporter;
+        if (current == null) {
+            return;
+        }
+        StringBuilder span = new StringBuilder(256);
+        span.append("{\"traceId\":\"").append(trace.traceId()).append("\",\"id\":\"").append(TraceContext.hex(id)).append('"');
+        if (parentId != 0) {
+            span.append(",\"parentId\":\"").append(TraceContext.hex(parentId)).append('"');
+        }
+        span.append(",\"name\":\"");
+        escape(span, name);
+        span.append('"');
+        if (kind != null) {
+            span.append(",\"kind\":\"").append(kind).append('"');
+        }
+        span.append(",\"timestamp\":").append(current.micros(startNanos))
+                .append(",\"duration\":").append(Math.max(1, (endNanos - startNanos) / 1000))
+                .append(",\"localEndpoint\":{\"serviceName\":\"");
+        escape(span, current.serviceName);
+        span.append("\"}");
+        if (tags.length > 0) {
+            span.append(",\"tags\":{");
+            for (int i = 0; i + 1 < tags.length; i += 2) {
+                if (i > 0) {
+                    span.append(',');
+                }
+                span.append('"');
+                escape(span, tags[i]);
+                span.append("\":\"");
+                escape(span, tags[i + 1]);
+                span.append('"');
+            }
+            span.append('}');
+        }
+        span.append('}');
+        current.spans.offer(span.toString());
+    }
+
+    private static void escape(StringBuilder builder, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+    }
+}
@@ -0,0 +1,695 @@
+package com.group15.kvserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Atomic multiPuts across the nodes of a cluster, through two-phase commit.
+ *
+ * The node a multiPut is sent to coordinates it. If every pair belongs to this node, the
+ * batch is stored at once like any multiPut. Otherwise the coordinator asks every node
+ * owning some of the pairs to prepare its share: a participant locks the keys of its share
+ * and votes yes, or votes no if another transaction holds one of them. Once every node
+ * voted yes, the coordinator decides to commit and the participants store their shares;
+ * otherwise it aborts, the participants release their keys, and the coordinator tries again
+ * after a random delay until OPERATION_TIMEOUT. Locks are per key and never waited for, so
+ * transactions on disjoint keys run in parallel and conflicting ones cannot deadlock.
+ *
+ * The prepares and decisions for a node are sent by one thread per node, which packs all
+ * those queued meanwhile into a single request, with up to WINDOW requests in flight: under
+ * load, a round trip carries many transactions.
+ *
+ * A participant that holds a prepared share for longer than DECISION_TIMEOUT asks the
+ * coordinator for the decision. The coordinator remembers a transaction until every
+ * participant acknowledged its decision, so a transaction it does not know was aborted.
+ * A coordinator that crashes loses its own share of the transactions with the rest of its
+ * memory, and the shares it had not decided yet are then aborted by the participants.
+ *
+ * Transactions only exclude each other: puts and plain multiPuts of prepared keys are not
+ * held back, and reads may see the shares of a transaction applied on some nodes and not
+ * yet on others.
+ */
+class TransactionManager {
+    /* Votes of a participant */
+    static final byte VOTE_YES = 0;
+    static final byte VOTE_NO = 1;
+    /* Decisions of a coordinator */
+    static final byte DECISION_COMMIT = 0;
+    static final byte DECISION_ABORT = 1;
+    /* Status of a transaction, as reported by its coordinator */
+    static final byte STATUS_PENDING = 0;
+    static final byte STATUS_COMMITTED = 1;
+    static final byte STATUS_ABORTED = 2;
+    /* Outcome of an atomic multiPut, as answered to the client */
+    static final byte OUTCOME_COMMITTED = 0;
+    static final byte OUTCOME_ABORTED = 1;
+    static final byte OUTCOME_UNKNOWN = 2;
+
+    /* Time the coordinator waits for the votes before aborting, in milliseconds */
+    static final long PREPARE_TIMEOUT = 2000;
+    /* Time a multiPut is retried for, and waits for its commit to be acknowledged, in milliseconds */
+    static final long OPERATION_TIMEOUT = 10000;
+    /* Time after which a participant asks the coordinator for a decision, in milliseconds */
+    static final long DECISION_TIMEOUT = 2000;
+    /* Maximum number of transactions of a request */
+    static final int BATCH_TRANSACTIONS = 256;
+    /* Number of requests in flight per node */
+    static final int WINDOW = 4;
+
+    private static final long MAX_RETRY_DELAY = 50;
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final long MIN_BACKOFF = 50;
+    private static final long MAX_BACKOFF = 1000;
+
+    /**
+     * A transaction coordinated by this node.
+     */
+    private static class Transaction {
+        final long id;
+        /* The pairs of each participant */
+        final Map<Integer, Map<String, byte[]>> shares;
+        volatile byte status = STATUS_PENDING;
+
+        Transaction(long id, Map<Integer, Map<String, byte[]>> shares) {
+            this.id = id;
+            this.shares = shares;
+        }
+    }
+
+    /**
+     * The share of a transaction this node prepared, waiting for the decision.
+     */
+    private static class Prepared {
+        final int coordinator;
+        final Map<String, byte[]> pairs;
+        final long preparedAt;
+
+        Prepared(int coordinator, Map<String, byte[]> pairs, long preparedAt) {
+            this.coordinator = coordinator;
+            this.pairs = pairs;
+            this.preparedAt = preparedAt;
+        }
+    }
+
+    private final int id;
+    private final PartitionMap partitionMap;
+    private final ServerDatabase database;
+    private final Peer[] peers;
+    private final AtomicLong nextTransactionId;
+
+    /* The transactions coordinated by this node, until every participant acknowledged the decision */
+    private final Map<Long, Transaction> transactions = new ConcurrentHashMap<>();
+    /* The transaction holding each key locked on this node */
+    private final Map<String, Long> lockedKeys = new ConcurrentHashMap<>();
+    /* The shares prepared on this node */
+    private final Map<Long, Prepared> prepared = new ConcurrentHashMap<>();
+
+    /* Retries the aborted transactions and the unacknowledged commits, and recovers the decisions */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "transaction-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /* Collects the votes and applies the decisions, off the connection threads */
+    private final ExecutorService callbacks = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "transaction-callback");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Constructs the transaction manager of a node of a cluster.
+     *
+     * @param id The index of this node in the partition map.
+     * @param partitionMap The partition map of the cluster.
+     * @param database The database of this node.
+     */
+    TransactionManager(int id, PartitionMap partitionMap, ServerDatabase database) {
+        List<String> nodes = partitionMap.nodes();
+        if (id < 0 || id >= nodes.size()) {
+            throw new IllegalArgumentException("Invalid cluster node index " + id + " for " + nodes.size() + " nodes");
+        }
+        this.id = id;
+        this.partitionMap = partitionMap;
+        this.database = database;
+        this.peers = new Peer[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            if (i != id) {
+                peers[i] = new Peer(nodes.get(i));
+            }
+        }
+        this.nextTransactionId = new AtomicLong(((long) id << 56) | (ThreadLocalRandom.current().nextLong() & 0x00FF_FFFF_0000_0000L));
+    }
+
+    /**
+     * Starts the threads of the manager.
+     */
+    void start() {
+        for (Peer peer : peers) {
+            if (peer != null) {
+                Thread thread = new Thread(peer, "transaction-peer-" + peer.address);
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+        scheduler.scheduleWithFixedDelay(this::recoverDecisions, DECISION_TIMEOUT / 2, DECISION_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stores key-value pairs atomically across the nodes owning them.
+     *
+     * @param pairs The pairs.
+     * @return A future of the outcome: OUTCOME_COMMITTED once every node stored its share,
+     *         OUTCOME_ABORTED if conflicting transactions kept it from committing until
+     *         OPERATION_TIMEOUT, in which case no pair was stored, or OUTCOME_UNKNOWN if the
+     *         commit was decided but not acknowledged by every node in time.
+     */
+    CompletableFuture<Byte> multiPut(Map<String, byte[]> pairs) {
+        Map<Integer, Map<String, byte[]>> shares = new HashMap<>();
+        for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+            shares.computeIfAbsent(partitionMap.ownerIndex(pair.getKey()), node -> new HashMap<>())
+                    .put(pair.getKey(), pair.getValue());
+        }
+        if (shares.size() == 1 && shares.containsKey(id)) {
+            // A single node stores its batch atomically on its own
+            database.multiPut(pairs);
+            return CompletableFuture.completedFuture(OUTCOME_COMMITTED);
+        }
+        CompletableFuture<Byte> result = new CompletableFuture<>();
+        attempt(shares, result, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(OPERATION_TIMEOUT), 0);
+        return result;
+    }
+
+    /**
+     * Runs the two phases of a transaction, and runs it again under a new identifier if it
+     * was aborted.
+     */
+    private void attempt(Map<Integer, Map<String, byte[]>> shares, CompletableFuture<Byte> result, long deadline, int attempts) {
+        Transaction transaction = new Transaction(nextTransactionId.getAndIncrement(), shares);
+        transactions.put(transaction.id, transaction);
+
+        // The local share first, a conflict here spares the messages
+        Map<String, byte[]> localShare = shares.get(id);
+        if (localShare != null && !prepare(transaction.id, id, localShare)) {
+            transactions.remove(transaction.id);
+            retry(shares, result, deadline, attempts);
+            return;
+        }
+        List<CompletableFuture<Boolean>> votes = new ArrayList<>();
+        for (Map.Entry<Integer, Map<String, byte[]>> share : shares.entrySet()) {
+            if (share.getKey() != id) {
+                votes.add(peers[share.getKey()].prepare(transaction.id, share.getValue())
+                        .completeOnTimeout(false, PREPARE_TIMEOUT, TimeUnit.MILLISECONDS));
+            }
+        }
+        CompletableFuture.allOf(votes.toArray(new CompletableFuture<?>[0])).thenRunAsync(() -> {
+            if (votes.stream().allMatch(CompletableFuture::join)) {
+                decide(transaction, true)
+                        .orTimeout(OPERATION_TIMEOUT, TimeUnit.MILLISECONDS)
+                        .whenComplete((v, error) -> result.complete(error == null ? OUTCOME_COMMITTED : OUTCOME_UNKNOWN));
+            } else {
+                decide(transaction, false);
+                retry(shares, result, deadline, attempts);
+            }
+        }, callbacks);
+    }
+
+    /**
+     * Runs an aborted transaction again after a random delay, or gives up once past the deadline.
+     */
+    private void retry(Map<Integer, Map<String, byte[]>> shares, CompletableFuture<Byte> result, long deadline, int attempts) {
+        if (System.nanoTime() > deadline) {
+            result.complete(OUTCOME_ABORTED);
+            return;
+        }
+        // Random delays, growing with the attempts, keep conflicting transactions from aborting each other again
+        long bound = Math.min(MAX_RETRY_DELAY, 1L << Math.min(attempts, 6));
+        scheduler.schedule(() -> attempt(shares, result, deadline, attempts + 1),
+                ThreadLocalRandom.current().nextLong(bound * 1000 + 1), TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Sends the decision of a transaction to every participant. Commits are sent again
+     * until acknowledged; aborts are sent once, since a participant that misses one aborts
+     * on its own once the coordinator forgot the transaction.
+     *
+     * @return A future completed once every participant acknowledged the decision.
+     */
+    private CompletableFuture<Void> decide(Transaction transaction, boolean commit) {
+        transaction.status = commit ? STATUS_COMMITTED : STATUS_ABORTED;
+        List<CompletableFuture<Void>> acks = new ArrayList<>();
+        for (Integer node : transaction.shares.keySet()) {
+            if (node == id) {
+                apply(transaction.id, commit);
+            } else {
+                acks.add(peers[node].decide(transaction.id, commit));
+            }
+        }
+        CompletableFuture<Void> all = CompletableFuture.allOf(acks.toArray(new CompletableFuture<?>[0]));
+        all.whenComplete((v, error) -> transactions.remove(transaction.id));
+        return all;
+    }
+
+    /**
+     * Prepares the share of a transaction on this node, locking its keys unless one of them
+     * is already locked.
+     *
+     * @return Whether the share was prepared.
+     */
+    private boolean prepare(long transactionId, int coordinator, Map<String, byte[]> pairs) {
+        List<String> locked = new ArrayList<>(pairs.size());
+        for (String key : pairs.keySet()) {
+            if (lockedKeys.putIfAbsent(key, transactionId) != null) {
+                for (String lockedKey : locked) {
+                    lockedKeys.remove(lockedKey, transactionId);
+                }
+                return false;
+            }
+            locked.add(key);
+        }
+        prepared.put(transactionId, new Prepared(coordinator, pairs, System.nanoTime()));
+        return true;
+    }
+
+    /**
+     * Applies the decision of a transaction to its share on this node. Decisions of shares
+     * not prepared here, such as those repeated or lost in a restart, are ignored.
+     */
+    private void apply(long transactionId, boolean commit) {
+        Prepared share = prepared.remove(transactionId);
+        if (share == null) {
+            return;
+        }
+        if (commit) {
+            database.multiPut(share.pairs);
+        }
+        for (String key : share.pairs.keySet()) {
+            lockedKeys.remove(key, transactionId);
+        }
+    }
+
+    /**
+     * Asks the coordinators for the decisions awaited for longer than DECISION_TIMEOUT.
+     */
+    private void recoverDecisions() {
+        long threshold = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(DECISION_TIMEOUT);
+        Map<Integer, List<Long>> overdue = new HashMap<>();
+        for (Map.Entry<Long, Prepared> share : prepared.entrySet()) {
+            if (share.getValue().preparedAt - threshold < 0) {
+                overdue.computeIfAbsent(share.getValue().coordinator, node -> new ArrayList<>()).add(share.getKey());
+            }
+        }
+        for (Map.Entry<Integer, List<Long>> coordinator : overdue.entrySet()) {
+            List<Long> ids = coordinator.getValue();
+            if (coordinator.getKey() == id) {
+                for (long transactionId : ids) {
+                    applyStatus(transactionId, status(transactionId));
+                }
+                continue;
+            }
+            Peer peer = peers[coordinator.getKey()];
+            peer.call(RequestType.TransactionStatusRequest, encodeStatusRequest(ids))
+                    .orTimeout(DECISION_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .whenCompleteAsync((response, error) -> {
+                        if (error != null) {
+                            Logger.log("Cannot reach the coordinator " + peer.address + " of " + ids.size()
+                                    + " prepared transactions: " + error.getMessage(), Logger.LogLevel.WARN);
+                            peer.disconnect();
+                            return;
+                        }
+                        try {
+                            DataInputStream in = new DataInputStream(new ByteArrayInputStream(response));
+                            int count = in.readInt();
+                            for (int i = 0; i < count; i++) {
+                                applyStatus(ids.get(i), in.readByte());
+                            }
+                        } catch (IOException e) {
+                            Logger.log("Invalid transaction status response: " + e.getMessage(), Logger.LogLevel.ERROR);
+                        }
+                    }, callbacks);
+        }
+    }
+
+    private void applyStatus(long transactionId, byte status) {
+        if (status != STATUS_PENDING) {
+            Logger.log("Recovered the decision of transaction " + Long.toHexString(transactionId), Logger.LogLevel.WARN);
+            apply(transactionId, status == STATUS_COMMITTED);
+        }
+    }
+
+    /**
+     * Returns the status of a transaction coordinated by this node, aborted if it is not
+     * known.
+     */
+    private byte status(long transactionId) {
+        Transaction transaction = transactions.get(transactionId);
+        return transaction == null ? STATUS_ABORTED : transaction.status;
+    }
+
+    /**
+     * Handles a batch of prepares from a coordinator.
+     *
+     * COORDINATOR | N TRANSACTIONS | TRANSACTION ID | N PAIRS | KEY | VALUE LENGTH | VALUE | ...
+     * Response: N TRANSACTIONS | VOTE | ...
+     *
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     */
+    void handlePrepare(DataInputStream in, DataOutputStream out) throws IOException {
+        int coordinator = in.readInt();
+        int count = in.readInt();
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            long transactionId = in.readLong();
+            Map<String, byte[]> pairs = readPairs(in);
+            out.writeByte(prepare(transactionId, coordinator, pairs) ? VOTE_YES : VOTE_NO);
+        }
+    }
+
+    /**
+     * Handles a batch of decisions from a coordinator, acknowledged once applied.
+     *
+     * N TRANSACTIONS | TRANSACTION ID | DECISION | ...
+     *
+     * @param in The input stream to read the request from.
+     */
+    void handleDecide(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            long transactionId = in.readLong();
+            apply(transactionId, in.readByte() == DECISION_COMMIT);
+        }
+    }
+
+    /**
+     * Handles a batch of status requests from participants.
+     *
+     * N TRANSACTIONS | TRANSACTION ID | ...
+     * Response: N TRANSACTIONS | STATUS | ...
+     *
+     * @param in The input stream to read the request from.
+     * @param out The output stream to write the response to.
+     */
+    void handleStatus(DataInputStream in, DataOutputStream out) throws IOException {
+        int count = in.readInt();
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeByte(status(in.readLong()));
+        }
+    }
+
+    /**
+     * A prepare or a decision waiting to be sent.
+     */
+    private static class Message<T> {
+        final long transactionId;
+        /* The share of a prepare, or null for a decision */
+        final Map<String, byte[]> pairs;
+        final boolean commit;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        Message(long transactionId, Map<String, byte[]> pairs, boolean commit) {
+            this.transactionId = transactionId;
+            this.pairs = pairs;
+            this.commit = commit;
+        }
+    }
+
+    /**
+     * Another node of the cluster, and the messages queued for it.
+     */
+    private class Peer implements Runnable {
+        final String address;
+        /* The connection, replaced once lost, guarded by connectionLock */
+        private Demultiplexer connection = null;
+        private final Object connectionLock = new Object();
+        private final AtomicInteger nextTag = new AtomicInteger();
+
+        /* Guarded by this */
+        private final List<Message<Boolean>> prepares = new ArrayList<>();
+        private final List<Message<Void>> decisions = new ArrayList<>();
+        private int inFlight = 0;
+        private long backoff = MIN_BACKOFF;
+
+        Peer(String address) {
+            this.address = address;
+        }
+
+        synchronized CompletableFuture<Boolean> prepare(long transactionId, Map<String, byte[]> pairs) {
+            Message<Boolean> message = new Message<>(transactionId, pairs, false);
+            prepares.add(message);
+            notifyAll();
+            return message.future;
+        }
+
+        synchronized CompletableFuture<Void> decide(long transactionId, boolean commit) {
+            Message<Void> message = new Message<>(transactionId, null, commit);
+            decisions.add(message);
+            notifyAll();
+            return message.future;
+        }
+
+        private synchronized void requeue(List<Message<Void>> commits) {
+            decisions.addAll(commits);
+            notifyAll();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    List<Message<Void>> decisionBatch;
+                    List<Message<Boolean>> prepareBatch;
+                    synchronized (this) {
+                        while ((prepares.isEmpty() && decisions.isEmpty()) || inFlight >= WINDOW) {
+                            wait();
+                        }
+                        decisionBatch = take(decisions);
+                        prepareBatch = take(prepares);
+                        inFlight += (decisionBatch.isEmpty() ? 0 : 1) + (prepareBatch.isEmpty() ? 0 : 1);
+                    }
+                    // Decisions go first, so that the keys of an aborted attempt are released before its retry is prepared
+                    if (!decisionBatch.isEmpty()) {
+                        sendDecisions(decisionBatch);
+                    }
+                    if (!prepareBatch.isEmpty()) {
+                        sendPrepares(prepareBatch);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private <T> List<Message<T>> take(List<Message<T>> queue) {
+            int count = Math.min(queue.size(), BATCH_TRANSACTIONS);
+            List<Message<T>> batch = new ArrayList<>(queue.subList(0, count));
+            queue.subList(0, count).clear();
+            return batch;
+        }
+
+        private synchronized void done(boolean failed) {
+            inFlight--;
+            if (failed) {
+                backoff = Math.min(2 * backoff, MAX_BACKOFF);
+            } else {
+                backoff = MIN_BACKOFF;
+            }
+            notifyAll();
+        }
+
+        private void sendPrepares(List<Message<Boolean>> batch) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            try {
+                out.writeShort(RequestType.PrepareRequest.getValue());
+                out.writeInt(id);
+                out.writeInt(batch.size());
+                for (Message<Boolean> message : batch) {
+                    out.writeLong(message.transactionId);
+                    writePairs(out, message.pairs);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            call(RequestType.PrepareRequest, baos.toByteArray())
+                    .orTimeout(PREPARE_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .whenCompleteAsync((response, error) -> {
+                        boolean failed = error != null;
+                        try {
+                            DataInputStream in = failed ? null : new DataInputStream(new ByteArrayInputStream(response));
+                            if (in != null) {
+                                in.readInt();
+                            }
+                            for (Message<Boolean> message : batch) {
+                                message.future.complete(in != null && in.readByte() == VOTE_YES);
+                            }
+                        } catch (IOException e) {
+                            failed = true;
+                            for (Message<Boolean> message : batch) {
+                                message.future.complete(false);
+                            }
+                        }
+                        if (failed) {
+                            disconnect();
+                        }
+                        done(failed);
+                    }, callbacks);
+        }
+
+        private void sendDecisions(List<Message<Void>> batch) {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(baos);
+            try {
+                out.writeShort(RequestType.DecideRequest.getValue());
+                out.writeInt(batch.size());
+                for (Message<Void> message : batch) {
+                    out.writeLong(message.transactionId);
+                    out.writeByte(message.commit ? DECISION_COMMIT : DECISION_ABORT);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            call(RequestType.DecideRequest, baos.toByteArray())
+                    .orTimeout(OPERATION_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .whenCompleteAsync((response, error) -> {
+                        if (error == null) {
+                            for (Message<Void> message : batch) {
+                                message.future.complete(null);
+                            }
+                            done(false);
+                            return;
+                        }
+                        disconnect();
+                        List<Message<Void>> commits = new ArrayList<>();
+                        for (Message<Void> message : batch) {
+                            if (message.commit) {
+                                commits.add(message);
+                            } else {
+                                message.future.complete(null);
+                            }
+                        }
+                        long delay;
+                        synchronized (this) {
+                            delay = backoff;
+                        }
+                        done(true);
+                        if (!commits.isEmpty()) {
+                            Logger.log("Sending " + commits.size() + " commits to " + address + " again: " + error.getMessage(), Logger.LogLevel.WARN);
+                            scheduler.schedule(() -> requeue(commits), delay, TimeUnit.MILLISECONDS);
+                        }
+                    }, callbacks);
+        }
+
+        /**
+         * Sends a request to this node, connecting first if needed.
+         */
+        CompletableFuture<byte[]> call(RequestType type, byte[] data) {
+            Demultiplexer.ResponseFuture future = new Demultiplexer.ResponseFuture();
+            Demultiplexer demultiplexer = null;
+            try {
+                demultiplexer = connection();
+                int tag = nextTag.getAndIncrement();
+                demultiplexer.register(tag, future);
+                demultiplexer.send(tag, type.getValue(), data);
+            } catch (IOException e) {
+                if (demultiplexer != null) {
+                    disconnect();
+                }
+                future.completeExceptionally(e);
+            }
+            return future;
+        }
+
+        private Demultiplexer connection() throws IOException {
+            synchronized (connectionLock) {
+                if (connection == null || !connection.isOpen()) {
+                    disconnect();
+                    Socket socket = new Socket();
+                    socket.connect(new InetSocketAddress(PartitionMap.parseHost(address), PartitionMap.parsePort(address)), CONNECT_TIMEOUT);
+                    socket.setTcpNoDelay(true);
+                    connection = new Demultiplexer(new TaggedConnection(socket), true);
+                }
+                return connection;
+            }
+        }
+
+        void disconnect() {
+            synchronized (connectionLock) {
+                if (connection != null) {
+                    try {
+                        connection.close();
+                    } catch (IOException e) {
+                        Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
+                    }
+                    connection = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads key-value pairs.
+     *
+     * N PAIRS | KEY | VALUE LENGTH | VALUE | ...
+     */
+    static Map<String, byte[]> readPairs(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        Map<String, byte[]> pairs = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String key = in.readUTF();
+            byte[] value = new byte[in.readInt()];
+            in.readFully(value);
+            pairs.put(key, value);
+        }
+        return pairs;
+    }
+
+    /**
+     * Writes key-value pairs read by readPairs.
+     */
+    static void writePairs(DataOutputStream out, Map<String, byte[]> pairs) throws IOException {
+        out.writeInt(pairs.size());
+        for (Map.Entry<String, byte[]> pair : pairs.entrySet()) {
+            out.writeUTF(pair.getKey());
+            out.writeInt(pair.getValue().length);
+            out.write(pair.getValue());
+        }
+    }
+
+    private static byte[] encodeStatusRequest(List<Long> ids) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        try {
+            out.writeShort(RequestType.TransactionStatusRequest.getValue());
+            out.writeInt(ids.size());
+            for (long transactionId : ids) {
+                out.writeLong(transactionId);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return baos.toByteArray();
+    }
+}
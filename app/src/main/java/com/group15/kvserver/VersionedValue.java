@@ -0,0 +1,24 @@
+package com.group15.kvserver;
+
+/**
+ * The VersionedValue class holds a value read from the server together with its version.
+ * The version is the commit sequence of the last write of the key and can be used for
+ * compare-and-set operations.
+ */
+public class VersionedValue {
+    /* The value of the key */
+    public final byte[] value;
+    /* The version of the value */
+    public final long version;
+
+    /**
+     * Constructs a new VersionedValue.
+     *
+     * @param value the value of the key
+     * @param version the version of the value
+     */
+    public VersionedValue(byte[] value, long version) {
+        this.value = value;
+        this.version = version;
+    }
+}
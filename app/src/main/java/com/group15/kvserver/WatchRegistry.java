@@ -0,0 +1,502 @@
+package com.group15.kvserver;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Keeps track of the watch subscriptions opened by clients and streams change events
+ * to them as puts and multiPuts commit.
+ *
+ * Publishing never blocks the writer: events are only appended to the subscriber's
+ * bounded buffer and a dispatcher thread flushes them to the connection. Events for a
+ * key that is still pending replace the older one, so a slow consumer gets the latest
+ * value of each key instead of every intermediate write. If more distinct keys are
+ * pending than the buffer allows, the buffer is dropped and an overflow event tells
+ * the client to re-read the keys it cares about.
+ *
+ * The dispatcher has a fixed number of threads, and at most one of them sends to a given
+ * connection at a time, flushing one subscription per turn. A connection that stops
+ * reading thus holds a single dispatcher thread, blocked in its send, while the buffers of
+ * its subscriptions overflow; the other connections keep being served by the remaining
+ * threads, and the thread count does not grow with the number of stalled subscribers.
+ *
+ * The same machinery backs the near-caches of the clients: a tracking subscription has no
+ * fixed key, instead every key read through it is tracked until its next write, which
+ * sends a single invalidation event and stops tracking the key. The client tracks the key
+ * again the next time it reads it from the server.
+ */
+class WatchRegistry {
+    /* Event sent once the subscription is active */
+    static final byte EVENT_SUBSCRIBED = 0;
+    /* Event carrying the new value of a watched key */
+    static final byte EVENT_CHANGE = 1;
+    /* Event telling the client that events were dropped */
+    static final byte EVENT_OVERFLOW = 2;
+    /* Event telling a tracking subscriber that a key it read was written */
+    static final byte EVENT_INVALIDATE = 3;
+
+    /* Default number of distinct pending keys per subscriber */
+    static final int DEFAULT_BUFFER_CAPACITY = 1024;
+    /* Upper bound for the buffer capacity a client can ask for */
+    static final int MAX_BUFFER_CAPACITY = 65536;
+    /* Default number of dispatcher threads */
+    static final int DEFAULT_DISPATCHER_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors());
+
+    /* Subscriptions on exact keys */
+    private final Map<String, List<WatchSubscription>> keyWatches = new ConcurrentHashMap<>();
+    /* Subscriptions on key prefixes */
+    private final List<WatchSubscription> prefixWatches = new CopyOnWriteArrayList<>();
+    /* Tracking subscriptions of each key read by a near-cache, until the key is written */
+    private final Map<String, Set<WatchSubscription>> trackedKeys = new ConcurrentHashMap<>();
+    /* Number of active subscriptions, lets writers skip the lookup when nobody watches */
+    private final AtomicInteger activeCount = new AtomicInteger();
+    /* Threads flushing pending events to the subscribers */
+    private final ExecutorService dispatcher;
+    /* Subscriptions with events to flush, by connection. A connection is present while a
+       dispatcher task is queued or running for it, guarded by the map's monitor */
+    private final Map<Demultiplexer, ArrayDeque<WatchSubscription>> ready = new HashMap<>();
+
+    /**
+     * Creates a registry with the default number of dispatcher threads.
+     */
+    WatchRegistry() {
+        this(DEFAULT_DISPATCHER_THREADS);
+    }
+
+    /**
+     * Creates a registry.
+     *
+     * @param dispatcherThreads The number of threads flushing events to the subscribers.
+     * @throws IllegalArgumentException If the number of threads is not positive.
+     */
+    WatchRegistry(int dispatcherThreads) {
+        if (dispatcherThreads <= 0) {
+            throw new IllegalArgumentException("Invalid number of watch dispatcher threads: " + dispatcherThreads);
+        }
+        dispatcher = Executors.newFixedThreadPool(dispatcherThreads, runnable -> {
+            Thread thread = new Thread(runnable, "watch-dispatcher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Registers a new subscription. The subscription starts paused so that the caller
+     * can send the subscription acknowledgement before any change event.
+     *
+     * @param demultiplexer The connection of the subscriber.
+     * @param tag The tag the events are sent on.
+     * @param key The watched key or key prefix.
+     * @param prefix Whether the key is a prefix.
+     * @param bufferCapacity The maximum number of distinct pending keys.
+     * @return The new subscription.
+     */
+    WatchSubscription subscribe(Demultiplexer demultiplexer, int tag, String key, boolean prefix, int bufferCapacity) {
+        int capacity = bufferCapacity <= 0 ? DEFAULT_BUFFER_CAPACITY : Math.min(bufferCapacity, MAX_BUFFER_CAPACITY);
+        WatchSubscription subscription = new WatchSubscription(demultiplexer, tag, key, prefix, false, capacity);
+        if (prefix) {
+            prefixWatches.add(subscription);
+        } else {
+            keyWatches.compute(key, (k, list) -> {
+                List<WatchSubscription> result = list == null ? new CopyOnWriteArrayList<>() : list;
+                result.add(subscription);
+                return result;
+            });
+        }
+        activeCount.incrementAndGet();
+        return subscription;
+    }
+
+    /**
+     * Registers a new tracking subscription, for the near-cache of a client. The
+     * subscription starts paused, like the ones returned by subscribe.
+     *
+     * @param demultiplexer The connection of the subscriber.
+     * @param tag The tag the invalidation events are sent on.
+     * @param capacity The maximum number of keys tracked at once, also the maximum number
+     *                 of distinct pending invalidations.
+     * @return The new subscription.
+     */
+    WatchSubscription subscribeTracking(Demultiplexer demultiplexer, int tag, int capacity) {
+        int trackingCapacity = capacity <= 0 ? DEFAULT_BUFFER_CAPACITY : Math.min(capacity, MAX_BUFFER_CAPACITY);
+        WatchSubscription subscription = new WatchSubscription(demultiplexer, tag, "", false, true, trackingCapacity);
+        activeCount.incrementAndGet();
+        return subscription;
+    }
+
+    /**
+     * Tracks a key for a tracking subscription, so that its next write sends an
+     * invalidation event. If the subscription already tracks as many keys as it may, it
+     * stops tracking all of them and reports an overflow, telling the client to drop its
+     * whole cache.
+     * Must be called while holding the read lock of the key's shard, so that no write of
+     * the key is published between the read being tracked and the tracking.
+     *
+     * @param subscription The tracking subscription.
+     * @param key The key that was read.
+     * @return true if the key is tracked.
+     */
+    boolean track(WatchSubscription subscription, String key) {
+        if (subscription.closed) {
+            return false;
+        }
+        if (!subscription.tracked.contains(key) && subscription.tracked.size() >= subscription.capacity) {
+            untrackAll(subscription);
+            subscription.overflow();
+        }
+        subscription.tracked.add(key);
+        trackedKeys.compute(key, (k, set) -> {
+            Set<WatchSubscription> result = set == null ? ConcurrentHashMap.newKeySet() : set;
+            result.add(subscription);
+            return result;
+        });
+        return true;
+    }
+
+    /**
+     * Stops tracking every key of a tracking subscription.
+     */
+    private void untrackAll(WatchSubscription subscription) {
+        for (String key : subscription.tracked) {
+            trackedKeys.computeIfPresent(key, (k, set) -> {
+                set.remove(subscription);
+                return set.isEmpty() ? null : set;
+            });
+        }
+        subscription.tracked.clear();
+    }
+
+    /**
+     * Removes a subscription. Pending events are discarded.
+     *
+     * @param subscription The subscription to remove.
+     */
+    void unsubscribe(WatchSubscription subscription) {
+        if (!subscription.close()) {
+            return;
+        }
+        if (subscription.tracking) {
+            untrackAll(subscription);
+        } else if (subscription.prefix) {
+            prefixWatches.remove(subscription);
+        } else {
+            keyWatches.computeIfPresent(subscription.key, (k, list) -> {
+                list.remove(subscription);
+                return list.isEmpty() ? null : list;
+            });
+        }
+        activeCount.decrementAndGet();
+    }
+
+    /**
+     * Publishes a committed write to every matching subscription, and invalidates the key
+     * in the near-caches tracking it.
+     * Must be called while holding the write lock of the key's shard, so that events
+     * for the same key are published in commit order.
+     *
+     * @param key The key that was written.
+     * @param value The new value.
+     * @param version The commit sequence of the write.
+     */
+    void publish(String key, byte[] value, long version) {
+        if (activeCount.get() == 0) {
+            return;
+        }
+        List<WatchSubscription> subscriptions = keyWatches.get(key);
+        if (subscriptions != null) {
+            for (WatchSubscription subscription : subscriptions) {
+                subscription.offer(key, value, version);
+            }
+        }
+        for (WatchSubscription subscription : prefixWatches) {
+            if (key.startsWith(subscription.key)) {
+                subscription.offer(key, value, version);
+            }
+        }
+        Set<WatchSubscription> trackers = trackedKeys.remove(key);
+        if (trackers != null) {
+            for (WatchSubscription subscription : trackers) {
+                subscription.tracked.remove(key);
+                subscription.offer(key, null, version);
+            }
+        }
+    }
+
+    /**
+     * Queues a subscription with events to flush behind the other ready subscriptions of
+     * its connection, and hands the connection to a dispatcher thread unless one has it.
+     */
+    private void schedule(WatchSubscription subscription) {
+        boolean submit = false;
+        synchronized (ready) {
+            ArrayDeque<WatchSubscription> queue = ready.get(subscription.demultiplexer);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                ready.put(subscription.demultiplexer, queue);
+                submit = true;
+            }
+            queue.add(subscription);
+        }
+        if (submit) {
+            dispatcher.execute(() -> dispatch(subscription.demultiplexer));
+        }
+    }
+
+    /**
+     * Flushes one batch of the next ready subscription of a connection, then queues the
+     * connection again behind the other connections if it still has work.
+     */
+    private void dispatch(Demultiplexer demultiplexer) {
+        WatchSubscription subscription;
+        synchronized (ready) {
+            subscription = ready.get(demultiplexer).poll();
+        }
+        boolean more = subscription.drain();
+        synchronized (ready) {
+            ArrayDeque<WatchSubscription> queue = ready.get(demultiplexer);
+            if (more) {
+                queue.add(subscription);
+            }
+            if (queue.isEmpty()) {
+                ready.remove(demultiplexer);
+                return;
+            }
+        }
+        dispatcher.execute(() -> dispatch(demultiplexer));
+    }
+
+    /**
+     * Encodes a watch event.
+     *
+     * EVENT TYPE | VERSION | KEY | VALUE LENGTH | VALUE
+     *
+     * @param eventType The type of the event.
+     * @param version The commit sequence of the event.
+     * @param key The key of the event.
+     * @param value The value of the event, or null.
+     * @return The encoded event.
+     */
+    static byte[] encodeEvent(byte eventType, long version, String key, byte[] value) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeByte(eventType);
+        out.writeLong(version);
+        out.writeUTF(key);
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * A pending change, replaced in place when the same key is written again.
+     */
+    private static class PendingEvent {
+        byte[] value;
+        long version;
+
+        PendingEvent(byte[] value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+
+    /**
+     * A single subscription of a connection to a key or key prefix.
+     */
+    class WatchSubscription {
+        /* The connection the events are sent to */
+        private final Demultiplexer demultiplexer;
+        /* The tag the events are sent on */
+        final int tag;
+        /* The watched key or key prefix */
+        final String key;
+        /* Whether the key is a prefix */
+        final boolean prefix;
+        /* Whether the subscription tracks the keys read by a near-cache instead of a fixed key */
+        final boolean tracking;
+        /* The maximum number of distinct pending keys, and of tracked keys */
+        private final int capacity;
+        /* The keys tracked for a near-cache */
+        private final Set<String> tracked = ConcurrentHashMap.newKeySet();
+
+        /* Protects the buffer and flags below */
+        private final ReentrantLock lock = new ReentrantLock();
+        /* Pending events by key, in first-write order */
+        private LinkedHashMap<String, PendingEvent> pending = new LinkedHashMap<>();
+        /* Whether events were dropped since the last flush */
+        private boolean overflowed = false;
+        /* Whether a dispatcher task owns the subscription (or it is still paused) */
+        private boolean draining = true;
+        /* Whether the subscription was removed */
+        private volatile boolean closed = false;
+
+        WatchSubscription(Demultiplexer demultiplexer, int tag, String key, boolean prefix, boolean tracking, int capacity) {
+            this.demultiplexer = demultiplexer;
+            this.tag = tag;
+            this.key = key;
+            this.prefix = prefix;
+            this.tracking = tracking;
+            this.capacity = capacity;
+        }
+
+        /**
+         * Sends the subscription acknowledgement and starts delivering events.
+         *
+         * @param version The commit sequence at subscription time.
+         * @throws IOException If the acknowledgement cannot be sent.
+         */
+        void start(long version) throws IOException {
+            demultiplexer.send(tag, RequestType.WatchRequest.getValue(), encodeEvent(EVENT_SUBSCRIBED, version, key, null));
+            boolean schedule;
+            lock.lock();
+            try {
+                schedule = !closed && (overflowed || !pending.isEmpty());
+                draining = schedule;
+            } finally {
+                lock.unlock();
+            }
+            if (schedule) {
+                schedule(this);
+            }
+        }
+
+        /**
+         * Adds an event to the buffer, coalescing it with a pending event for the same key.
+         */
+        private void offer(String changedKey, byte[] value, long version) {
+            boolean schedule = false;
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                PendingEvent existing = pending.get(changedKey);
+                if (existing != null) {
+                    existing.value = value;
+                    existing.version = version;
+                } else if (pending.size() >= capacity) {
+                    pending.clear();
+                    overflowed = true;
+                } else {
+                    pending.put(changedKey, new PendingEvent(value, version));
+                }
+                if (!draining) {
+                    draining = true;
+                    schedule = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (schedule) {
+                schedule(this);
+            }
+        }
+
+        /**
+         * Drops the pending events and reports an overflow instead.
+         */
+        private void overflow() {
+            boolean schedule = false;
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                pending.clear();
+                overflowed = true;
+                if (!draining) {
+                    draining = true;
+                    schedule = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (schedule) {
+                schedule(this);
+            }
+        }
+
+        /**
+         * Flushes the events pending so far. Only one dispatcher thread drains a
+         * subscription at a time, which keeps the events in order.
+         *
+         * @return true if the subscription may have more events to flush, false once its
+         *         buffer was found empty and it stopped draining.
+         */
+        private boolean drain() {
+            LinkedHashMap<String, PendingEvent> batch;
+            boolean sendOverflow;
+            lock.lock();
+            try {
+                if (closed || (pending.isEmpty() && !overflowed)) {
+                    draining = false;
+                    return false;
+                }
+                batch = pending;
+                pending = new LinkedHashMap<>();
+                sendOverflow = overflowed;
+                overflowed = false;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                if (sendOverflow) {
+                    demultiplexer.send(tag, RequestType.WatchRequest.getValue(), encodeEvent(EVENT_OVERFLOW, 0, key, null));
+                }
+                List<Map.Entry<String, PendingEvent>> events = new ArrayList<>(batch.entrySet());
+                for (Map.Entry<String, PendingEvent> event : events) {
+                    PendingEvent pendingEvent = event.getValue();
+                    byte[] encoded = tracking
+                            ? encodeEvent(EVENT_INVALIDATE, pendingEvent.version, event.getKey(), null)
+                            : encodeEvent(EVENT_CHANGE, pendingEvent.version, event.getKey(), pendingEvent.value);
+                    demultiplexer.send(tag, RequestType.WatchRequest.getValue(), encoded);
+                }
+            } catch (IOException e) {
+                Logger.log("Failed to deliver watch events: " + e.getMessage(), Logger.LogLevel.ERROR);
+                unsubscribe(this);
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Marks the subscription as closed.
+         *
+         * @return true if the subscription was open.
+         */
+        private boolean close() {
+            lock.lock();
+            try {
+                if (closed) {
+                    return false;
+                }
+                closed = true;
+                pending.clear();
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -1,11 +1,34 @@
 package com.group15.kvserver.utils;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * The Logger class provides a utility for logging messages with different levels of severity.
  * It formats log messages with a timestamp, a log level, and the message itself.
+ *
+ * Messages below the current level are dropped by a single comparison. The others are put
+ * into a bounded ring buffer without taking a lock or allocating, and a background thread
+ * formats and writes them, to the console or to a file, so the threads logging never wait
+ * for the output. The timestamp is only formatted again when the second changes. When the
+ * ring is full, messages are dropped and their number is logged once there is room again.
+ *
+ * The level and output may be set with the kvserver.log.level and kvserver.log.file system
+ * properties, and changed at any time with setLevel and setOutput.
  */
 public class Logger {
 
@@ -13,7 +36,63 @@ public class Logger {
      * Enum representing the different levels of log severity.
      */
     public enum LogLevel {
-        INFO, WARN, ERROR, DEBUG
+        INFO(1), WARN(2), ERROR(3), DEBUG(0);
+
+        /* Messages of a level are logged when its severity is at least that of the current level */
+        private final int severity;
+
+        LogLevel(int severity) {
+            this.severity = severity;
+        }
+    }
+
+    /* Number of messages the ring holds, a power of two */
+    private static final int CAPACITY = 1 << 14;
+    private static final int MASK = CAPACITY - 1;
+    /* Longest time the writer thread sleeps while the ring is empty */
+    private static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss")
+            .withZone(ZoneId.systemDefault());
+
+    /* Severity below which messages are dropped */
+    private static volatile int threshold = LogLevel.INFO.severity;
+    /* The file to switch the output to, or null to keep the current output */
+    private static volatile Path pendingOutput = null;
+
+    /* Slots of the ring: the position a slot expects to be written at next, and its message.
+       A producer claims a position by moving the tail, fills the slot, and publishes it by
+       setting its sequence to the position plus one; the writer thread frees it by setting
+       its sequence to the position of the next round. */
+    private static final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private static final long[] times = new long[CAPACITY];
+    private static final LogLevel[] levels = new LogLevel[CAPACITY];
+    private static final String[] messages = new String[CAPACITY];
+    /* Next position to claim */
+    private static final AtomicLong tail = new AtomicLong();
+    /* Position up to which the messages were written and flushed, only moved by the writer thread */
+    private static volatile long flushed = 0;
+    /* Messages dropped because the ring was full */
+    private static final AtomicLong dropped = new AtomicLong();
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            sequences.set(i, i);
+        }
+        String level = System.getProperty("kvserver.log.level");
+        if (level != null) {
+            setLevel(LogLevel.valueOf(level.toUpperCase()));
+        }
+        String file = System.getProperty("kvserver.log.file");
+        if (file != null) {
+            setOutput(Paths.get(file));
+        }
+        Thread writer = new Thread(Logger::drain, "logger");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> flush(1000)));
+    }
+
+    private Logger() {
     }
 
     /**
@@ -23,9 +102,145 @@ public class Logger {
      * @param level   the severity level of the log (INFO, WARN, ERROR, DEBUG)
      */
     public static void log(String message, LogLevel level) {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-        String timestamp = sdf.format(new Date());
+        if (level.severity < threshold) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        while (true) {
+            long position = tail.get();
+            int slot = (int) position & MASK;
+            long sequence = sequences.get(slot);
+            if (sequence < position) {
+                dropped.incrementAndGet();
+                return;
+            }
+            if (sequence == position && tail.compareAndSet(position, position + 1)) {
+                times[slot] = now;
+                levels[slot] = level;
+                messages[slot] = message;
+                sequences.lazySet(slot, position + 1);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Tells whether messages of a level are logged, to skip building those that are not.
+     *
+     * @param level the level
+     * @return true if messages of the level are logged
+     */
+    public static boolean isEnabled(LogLevel level) {
+        return level.severity >= threshold;
+    }
+
+    /**
+     * Sets the lowest level of the messages logged. DEBUG logs every message.
+     *
+     * @param level the level
+     */
+    public static void setLevel(LogLevel level) {
+        threshold = level.severity;
+    }
+
+    /**
+     * @return the lowest level of the messages logged
+     */
+    public static LogLevel getLevel() {
+        int current = threshold;
+        for (LogLevel level : LogLevel.values()) {
+            if (level.severity == current) {
+                return level;
+            }
+        }
+        return LogLevel.INFO;
+    }
+
+    /**
+     * Appends the messages logged from now on to a file instead of the console.
+     *
+     * @param file the file, created if it does not exist
+     */
+    public static void setOutput(Path file) {
+        pendingOutput = file;
+    }
+
+    /**
+     * Waits until the messages logged so far are written.
+     *
+     * @param timeoutMillis how long to wait at most
+     */
+    public static void flush(long timeoutMillis) {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (flushed < target && System.nanoTime() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Writes the messages of the ring as they arrive, on the writer thread.
+     */
+    private static void drain() {
+        Writer out = console();
+        StringBuilder line = new StringBuilder(256);
+        char[] chars = new char[256];
+        long second = Long.MIN_VALUE;
+        String timestamp = "";
+        long idleNanos = 0;
+        long position = 0;
+        while (true) {
+            try {
+                Path file = pendingOutput;
+                if (file != null) {
+                    pendingOutput = null;
+                    out.flush();
+                    out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                }
+
+                int slot = (int) position & MASK;
+                if (sequences.get(slot) != position + 1) {
+                    long lost = dropped.getAndSet(0);
+                    if (lost > 0) {
+                        out.write("[" + timestamp + "] [" + LogLevel.WARN + "] Dropped " + lost + " log messages\n");
+                    }
+                    if (idleNanos == 0) {
+                        out.flush();
+                        flushed = position;
+                    }
+                    idleNanos = Math.min(MAX_IDLE_NANOS, Math.max(idleNanos * 2, 50_000));
+                    LockSupport.parkNanos(idleNanos);
+                    continue;
+                }
+                idleNanos = 0;
+
+                long time = times[slot];
+                LogLevel level = levels[slot];
+                String message = messages[slot];
+                messages[slot] = null;
+                sequences.lazySet(slot, position + CAPACITY);
+                position++;
+
+                if (time / 1000 != second) {
+                    second = time / 1000;
+                    timestamp = TIMESTAMP.format(Instant.ofEpochMilli(time));
+                }
+                line.setLength(0);
+                line.append('[').append(timestamp).append("] [").append(level).append("] ").append(message).append('\n');
+                if (chars.length < line.length()) {
+                    chars = new char[line.length() * 2];
+                }
+                line.getChars(0, line.length(), chars, 0);
+                out.write(chars, 0, line.length());
+            } catch (IOException e) {
+                // Fall back to the console rather than losing every message after it
+                out = console();
+            }
+        }
+    }
 
-        System.out.println(String.format("[%s] [%s] %s", timestamp, level, message));
+    private static Writer console() {
+        return new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 64 * 1024);
     }
 }
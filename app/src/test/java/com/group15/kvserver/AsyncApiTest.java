@@ -0,0 +1,210 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Checks how the futures of the asynchronous client API complete and fail.
+ *
+ * - completion: pipelined puts, gets, multiPuts, multiGets, pings and a put large
+ *   enough to be uploaded in chunks complete with the right results, and callbacks run
+ *   off the reader thread, so they may issue blocking requests;
+ * - getWhen: a future waiting for its condition completes once another client writes it;
+ * - errors on a tag: a write refused by a follower fails its own future with an
+ *   IOException, while the other requests of the connection go on;
+ * - connection loss: the requests in flight when the server dies fail with an
+ *   IOException, and the requests issued afterwards fail without throwing.
+ *
+ * Usage: AsyncApiTest [requests] [port]
+ */
+public class AsyncApiTest {
+    /* Time a future is given to complete */
+    private static final long TIMEOUT_SECONDS = 10;
+
+    /* Number of failed checks */
+    private static int failures = 0;
+
+    /**
+     * Main entry point for the test.
+     */
+    public static void main(String[] args) throws Exception {
+        int requests = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 13281;
+
+        Process server = ServerProcesses.start(port, "50", "16", "1");
+        Process follower = ServerProcesses.start(port + 1, "50", "16", "1", "--follower");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.destroyForcibly();
+            follower.destroyForcibly();
+        }));
+        ServerProcesses.awaitPort(port);
+        ServerProcesses.awaitPort(port + 1);
+
+        ClientLibrary client = new ClientLibrary("localhost", port);
+        completion(client, requests);
+        getWhen(client, port);
+        errorOnTag(port + 1);
+        connectionLoss(client, server);
+
+        follower.destroyForcibly();
+        Logger.log(failures == 0 ? "Async API: all checks passed" : "Async API: " + failures + " checks failed",
+                failures == 0 ? Logger.LogLevel.INFO : Logger.LogLevel.ERROR);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static synchronized void check(boolean condition, String message) {
+        if (!condition) {
+            failures++;
+            if (failures <= 20) {
+                Logger.log("Failed: " + message, Logger.LogLevel.ERROR);
+            }
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Waits for a future, returning null if it failed or did not complete in time.
+     */
+    private static <T> T result(CompletableFuture<T> future, String what) throws InterruptedException {
+        try {
+            return future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            check(false, what + " failed: " + e.getCause());
+        } catch (TimeoutException e) {
+            check(false, what + " did not complete");
+        }
+        return null;
+    }
+
+    /**
+     * Waits for a future expected to fail, returning its cause, or null if it succeeded.
+     */
+    private static Throwable failure(CompletableFuture<?> future) throws InterruptedException {
+        try {
+            future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (TimeoutException e) {
+            return e;
+        }
+    }
+
+    private static void completion(ClientLibrary client, int requests) throws Exception {
+        List<CompletableFuture<Void>> puts = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            puts.add(client.putAsync("async-" + i, ascii("value-" + i)));
+        }
+        result(CompletableFuture.allOf(puts.toArray(new CompletableFuture<?>[0])), "completion: the pipelined puts");
+
+        List<CompletableFuture<byte[]>> gets = new ArrayList<>();
+        for (int i = 0; i < requests; i++) {
+            gets.add(client.getAsync("async-" + i));
+        }
+        int wrong = 0;
+        for (int i = 0; i < requests; i++) {
+            byte[] value = result(gets.get(i), "completion: a pipelined get");
+            if (!Arrays.equals(value, ascii("value-" + i))) {
+                wrong++;
+            }
+        }
+        check(wrong == 0, "completion: " + wrong + " pipelined gets returned the wrong value");
+        check(result(client.getAsync("async-missing"), "completion: a get of a missing key") == null,
+                "completion: a get of a missing key returned a value");
+
+        Map<String, byte[]> pairs = new HashMap<>();
+        pairs.put("async-multi-1", ascii("1"));
+        pairs.put("async-multi-2", ascii("2"));
+        result(client.multiPutAsync(pairs), "completion: a multiPut");
+        Map<String, byte[]> found = result(client.multiGetAsync(Set.of("async-multi-1", "async-multi-2", "async-missing")),
+                "completion: a multiGet");
+        check(found != null && found.size() == 2 && Arrays.equals(found.get("async-multi-1"), ascii("1"))
+                && Arrays.equals(found.get("async-multi-2"), ascii("2")), "completion: the multiGet returned " + found);
+        result(client.pingAsync(), "completion: a ping");
+
+        byte[] large = new byte[ClientLibrary.CHUNKED_PUT_THRESHOLD + 4096];
+        Arrays.fill(large, (byte) 'L');
+        result(client.putAsync("async-large", large), "completion: a put uploaded in chunks");
+        check(Arrays.equals(result(client.getAsync("async-large"), "completion: a get of a large value"), large),
+                "completion: the large value read back differs");
+
+        // Callbacks may block on other requests of the same connection. The callback runs on a
+        // callback thread, or on this one if the put completed before it was attached, never
+        // on the reader thread, which would then wait for its own response
+        CompletableFuture<String> chained = client.putAsync("async-chained", ascii("chained")).thenApply(done -> {
+            try {
+                String thread = Thread.currentThread().getName();
+                return thread + ":" + new String(client.get("async-chained"), StandardCharsets.US_ASCII);
+            } catch (IOException e) {
+                return "failed: " + e.getMessage();
+            }
+        });
+        String outcome = result(chained, "completion: a callback issuing a request");
+        check(outcome != null && (outcome.startsWith("client-callback") || outcome.startsWith(Thread.currentThread().getName() + ":"))
+                && outcome.endsWith(":chained"),
+                "completion: the callback ran as " + outcome);
+    }
+
+    private static void getWhen(ClientLibrary client, int port) throws Exception {
+        client.put("when-value", ascii("ready"));
+        CompletableFuture<byte[]> waiting = client.getWhenAsync("when-value", "when-cond", ascii("go"));
+        Thread.sleep(200);
+        check(!waiting.isDone(), "getWhen: completed before its condition held");
+        // The connection stays usable while the getWhen waits
+        check(Arrays.equals(result(client.getAsync("when-value"), "getWhen: a get while waiting"), ascii("ready")),
+                "getWhen: a get while waiting returned the wrong value");
+        ClientLibrary other = new ClientLibrary("localhost", port);
+        other.put("when-cond", ascii("go"));
+        other.close();
+        check(Arrays.equals(result(waiting, "getWhen: the waiting future"), ascii("ready")),
+                "getWhen: completed with the wrong value");
+    }
+
+    private static void errorOnTag(int followerPort) throws Exception {
+        ClientLibrary client = new ClientLibrary("localhost", followerPort);
+        CompletableFuture<Void> refused = client.putAsync("on-follower", ascii("1"));
+        CompletableFuture<byte[]> read = client.getAsync("on-follower");
+        Throwable cause = failure(refused);
+        check(cause instanceof IOException, "error on a tag: the refused put failed with " + cause);
+        check(result(read, "error on a tag: a get next to the refused put") == null,
+                "error on a tag: the refused put was stored");
+        check(client.isConnected(), "error on a tag: the connection was closed");
+        result(client.pingAsync(), "error on a tag: a ping after the refused put");
+        client.close();
+    }
+
+    private static void connectionLoss(ClientLibrary client, Process server) throws Exception {
+        // Never answered, its condition is never written
+        CompletableFuture<byte[]> pending = client.getWhenAsync("lost-value", "lost-cond", ascii("never"));
+        Thread.sleep(200);
+        server.destroyForcibly().waitFor();
+        Throwable cause = failure(pending);
+        check(cause instanceof IOException, "connection loss: the request in flight failed with " + cause);
+
+        CompletableFuture<byte[]> after;
+        try {
+            after = client.getAsync("after-loss");
+        } catch (RuntimeException e) {
+            check(false, "connection loss: a request after the loss threw " + e);
+            return;
+        }
+        cause = failure(after);
+        check(cause instanceof IOException, "connection loss: a request after the loss failed with " + cause);
+        check(!client.isConnected(), "connection loss: the client still reports a connection");
+    }
+}
@@ -0,0 +1,173 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Checks that multiPuts spanning several nodes of a cluster are atomic, and compares their
+ * throughput with that of multiPuts served by a single node.
+ *
+ * Starts a cluster of three nodes as separate processes. Writer threads first store
+ * batches whose keys all belong to one node, then batches spread over every node. Then
+ * they overwrite random groups of keys spread over every node, a whole group at a time
+ * with the same value, so that conflicting multiPuts keep aborting and retrying each
+ * other: once they are done, every key of a group must hold the same value.
+ *
+ * Usage: AtomicMultiPutTest [batches-per-writer] [writers] [base-port]
+ */
+public class AtomicMultiPutTest {
+    private static final int NODES = 3;
+    private static final int BATCH_SIZE = 8;
+    private static final int GROUPS = 16;
+
+    /**
+     * Main entry point for the test.
+     */
+    public static void main(String[] args) throws Exception {
+        int batches = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int basePort = args.length > 2 ? Integer.parseInt(args[2]) : 13231;
+
+        List<String> nodes = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            nodes.add("localhost:" + (basePort + i));
+        }
+        String cluster = "--cluster=" + String.join(";", nodes);
+        List<Process> processes = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> processes.forEach(Process::destroyForcibly)));
+        for (int i = 0; i < NODES; i++) {
+            processes.add(ServerProcesses.start(basePort + i, "50", "16", "1", cluster));
+        }
+        for (int i = 0; i < NODES; i++) {
+            ServerProcesses.awaitPort(basePort + i);
+        }
+        ClusterClient client = new ClusterClient("localhost", basePort);
+        PartitionMap partitionMap = new PartitionMap(nodes, PartitionMap.DEFAULT_VIRTUAL_NODES);
+
+        // Keys of each node, to build batches owned by one node or spread over all of them
+        List<List<String>> keysByNode = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            keysByNode.add(new ArrayList<>());
+        }
+        for (int i = 0; keysByNode.stream().anyMatch(keys -> keys.size() < 1024); i++) {
+            String key = "t" + i;
+            List<String> keys = keysByNode.get(partitionMap.ownerIndex(key));
+            if (keys.size() < 1024) {
+                keys.add(key);
+            }
+        }
+
+        double local = run(writers, batches, "single-node", (writer, random) -> {
+            List<String> keys = keysByNode.get(random.nextInt(NODES));
+            Map<String, byte[]> batch = new HashMap<>();
+            while (batch.size() < BATCH_SIZE) {
+                batch.put(keys.get(random.nextInt(keys.size())), new byte[16]);
+            }
+            client.multiPut(batch);
+        });
+        double spread = run(writers, batches, "cross-node", (writer, random) -> {
+            Map<String, byte[]> batch = new HashMap<>();
+            while (batch.size() < BATCH_SIZE) {
+                List<String> keys = keysByNode.get(batch.size() % NODES);
+                batch.put(keys.get(random.nextInt(keys.size())), new byte[16]);
+            }
+            client.multiPut(batch);
+        });
+
+        // Groups of keys spread over every node, each overwritten as a whole
+        List<List<String>> groups = new ArrayList<>();
+        for (int g = 0; g < GROUPS; g++) {
+            List<String> group = new ArrayList<>();
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                group.add(keysByNode.get(i % NODES).get(g * BATCH_SIZE + i));
+            }
+            groups.add(group);
+        }
+        AtomicLong aborted = new AtomicLong();
+        run(writers, batches / 4, "conflicting", (writer, random) -> {
+            List<String> group = groups.get(random.nextInt(GROUPS));
+            byte[] value = (writer + "-" + random.nextLong()).getBytes(StandardCharsets.US_ASCII);
+            Map<String, byte[]> batch = new HashMap<>();
+            for (String key : group) {
+                batch.put(key, value);
+            }
+            try {
+                client.multiPut(batch);
+            } catch (IOException e) {
+                aborted.incrementAndGet();
+            }
+        });
+
+        int torn = 0;
+        for (List<String> group : groups) {
+            Map<String, byte[]> values = client.multiGet(new HashSet<>(group));
+            Set<String> distinct = new HashSet<>();
+            for (String key : group) {
+                byte[] value = values.get(key);
+                distinct.add(value == null ? "" : new String(value, StandardCharsets.US_ASCII));
+            }
+            if (distinct.size() != 1) {
+                Logger.log("Group " + group + " holds " + distinct, Logger.LogLevel.ERROR);
+                torn++;
+            }
+        }
+
+        Logger.log(String.format("Single-node multiPuts: %.0f/s, cross-node multiPuts: %.0f/s, groups: %d, torn: %d, aborted: %d",
+                local, spread, GROUPS, torn, aborted.get()), Logger.LogLevel.INFO);
+        client.close();
+        for (Process process : processes) {
+            process.destroyForcibly();
+        }
+        System.exit(torn == 0 ? 0 : 1);
+    }
+
+    @FunctionalInterface
+    private interface Operation {
+        void run(int writer, Random random) throws IOException;
+    }
+
+    /**
+     * Runs an operation a number of times on each writer thread.
+     *
+     * @return The number of operations per second.
+     */
+    private static double run(int writers, int count, String name, Operation operation) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        AtomicLong failures = new AtomicLong();
+        long start = System.nanoTime();
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            Thread thread = new Thread(() -> {
+                Random random = new Random(writer);
+                try {
+                    for (int i = 0; i < count; i++) {
+                        operation.run(writer, random);
+                    }
+                } catch (IOException e) {
+                    Logger.log(name + " writer " + writer + " failed: " + e.getMessage(), Logger.LogLevel.ERROR);
+                    failures.incrementAndGet();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (failures.get() > 0) {
+            throw new IllegalStateException(failures.get() + " " + name + " writers failed");
+        }
+        return writers * count / seconds;
+    }
+}
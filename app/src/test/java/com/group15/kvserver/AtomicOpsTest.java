@@ -0,0 +1,175 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Checks the compare-and-sets, increments and appends of a server.
+ *
+ * - compare-and-set: by value and by version, on absent and present keys, succeeding
+ *   only when the expectation holds and leaving the value unchanged otherwise;
+ * - increment: a missing key counts as 0, negative deltas, the counter stored as a
+ *   decimal string, and an increment of a value that is not a number failing without
+ *   changing it or closing the connection;
+ * - append: a missing key treated as empty and the suffixes concatenated;
+ * - contention: threads incrementing one counter, updating another with compare-and-set
+ *   retry loops and appending to one key, with no update lost.
+ *
+ * Usage: AtomicOpsTest [threads] [operations-per-thread] [port]
+ */
+public class AtomicOpsTest {
+    /* Number of failed checks */
+    private static int failures = 0;
+
+    /**
+     * Main entry point for the test.
+     */
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 13271;
+
+        Process server = ServerProcesses.start(port, "50", "16", "1");
+        Runtime.getRuntime().addShutdownHook(new Thread(server::destroyForcibly));
+        ServerProcesses.awaitPort(port);
+
+        ClientLibrary client = new ClientLibrary("localhost", port);
+        compareAndSet(client);
+        increment(client);
+        append(client);
+        contention(client, port, threads, operations);
+        client.close();
+
+        server.destroyForcibly();
+        Logger.log(failures == 0 ? "Atomic operations: all checks passed" : "Atomic operations: " + failures + " checks failed",
+                failures == 0 ? Logger.LogLevel.INFO : Logger.LogLevel.ERROR);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static synchronized void check(boolean condition, String message) {
+        if (!condition) {
+            failures++;
+            if (failures <= 20) {
+                Logger.log("Failed: " + message, Logger.LogLevel.ERROR);
+            }
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String text(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.US_ASCII);
+    }
+
+    private static void compareAndSet(ClientLibrary client) throws IOException {
+        check(!client.compareAndSet("cas", ascii("a"), ascii("b")), "cas: succeeded on an absent key expected present");
+        check(client.get("cas") == null, "cas: a failed compare-and-set created the key");
+        check(client.compareAndSet("cas", null, ascii("a")), "cas: failed on an absent key expected absent");
+        check(!client.compareAndSet("cas", null, ascii("b")), "cas: succeeded on a present key expected absent");
+        check(!client.compareAndSet("cas", ascii("x"), ascii("b")), "cas: succeeded with the wrong expected value");
+        check("a".equals(text(client.get("cas"))), "cas: a failed compare-and-set changed the value to " + text(client.get("cas")));
+        check(client.compareAndSet("cas", ascii("a"), ascii("b")), "cas: failed with the expected value");
+        check("b".equals(text(client.get("cas"))), "cas: the value is " + text(client.get("cas")) + " instead of b");
+
+        check(client.compareAndSetVersion("cas-version", 0, ascii("1")), "cas: failed on an absent key expected at version 0");
+        VersionedValue first = client.getVersioned("cas-version");
+        check(first != null && "1".equals(text(first.value)) && first.version > 0, "cas: the first versioned value is wrong");
+        check(!client.compareAndSetVersion("cas-version", 0, ascii("2")), "cas: succeeded on a present key expected at version 0");
+        check(client.compareAndSetVersion("cas-version", first.version, ascii("2")), "cas: failed with the current version");
+        VersionedValue second = client.getVersioned("cas-version");
+        check(second != null && "2".equals(text(second.value)) && second.version > first.version,
+                "cas: the version did not grow with the value");
+        check(!client.compareAndSetVersion("cas-version", first.version, ascii("3")), "cas: succeeded with a stale version");
+        check("2".equals(text(client.get("cas-version"))), "cas: a stale compare-and-set changed the value");
+    }
+
+    private static void increment(ClientLibrary client) throws IOException {
+        check(client.increment("counter", 5) == 5, "increment: a missing key does not count as 0");
+        check(client.increment("counter", 10) == 15, "increment: the second increment is wrong");
+        check(client.increment("counter", -20) == -5, "increment: a negative delta is wrong");
+        check("-5".equals(text(client.get("counter"))), "increment: the counter is stored as " + text(client.get("counter")));
+        client.put("counter-put", ascii("41"));
+        check(client.increment("counter-put", 1) == 42, "increment: a number stored by a put is not incremented");
+
+        client.put("not-a-number", ascii("forty-two"));
+        boolean refused;
+        try {
+            client.increment("not-a-number", 1);
+            refused = false;
+        } catch (IOException e) {
+            refused = true;
+        }
+        check(refused, "increment: a value that is not a number was incremented");
+        check("forty-two".equals(text(client.get("not-a-number"))), "increment: a failed increment changed the value");
+        check(client.isConnected(), "increment: a failed increment closed the connection");
+    }
+
+    private static void append(ClientLibrary client) throws IOException {
+        check(client.append("log", ascii("abc")) == 3, "append: a missing key is not treated as empty");
+        check(client.append("log", ascii("de")) == 5, "append: the length after the second append is wrong");
+        check(client.append("log", new byte[0]) == 5, "append: an empty suffix changed the length");
+        check("abcde".equals(text(client.get("log"))), "append: the value is " + text(client.get("log")));
+    }
+
+    private static void contention(ClientLibrary shared, int port, int threads, int operations) throws Exception {
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            int id = t;
+            Thread worker = new Thread(() -> {
+                try {
+                    // Half of the threads share the connection, the others have their own
+                    ClientLibrary client = id % 2 == 0 ? shared : new ClientLibrary("localhost", port);
+                    byte[] mark = {(byte) ('a' + id % 26)};
+                    for (int i = 0; i < operations; i++) {
+                        client.increment("contended-counter", 1);
+                        while (true) {
+                            byte[] current = client.get("contended-cas");
+                            long next = (current == null ? 0 : Long.parseLong(text(current))) + 1;
+                            if (client.compareAndSet("contended-cas", current, ascii(Long.toString(next)))) {
+                                break;
+                            }
+                        }
+                        client.append("contended-log", mark);
+                    }
+                    if (client != shared) {
+                        client.close();
+                    }
+                } catch (IOException e) {
+                    check(false, "contention: " + e.getMessage());
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        long expected = (long) threads * operations;
+        check(Long.toString(expected).equals(text(shared.get("contended-counter"))),
+                "contention: the counter is " + text(shared.get("contended-counter")) + " instead of " + expected);
+        check(Long.toString(expected).equals(text(shared.get("contended-cas"))),
+                "contention: the compare-and-set counter is " + text(shared.get("contended-cas")) + " instead of " + expected);
+        byte[] log = shared.get("contended-log");
+        check(log != null && log.length == expected, "contention: the appended value has "
+                + (log == null ? 0 : log.length) + " bytes instead of " + expected);
+        if (log != null) {
+            int[] counts = new int[26];
+            for (byte mark : log) {
+                counts[mark - 'a']++;
+            }
+            int[] expectedCounts = new int[26];
+            for (int t = 0; t < threads; t++) {
+                expectedCounts[t % 26] += operations;
+            }
+            check(Arrays.equals(counts, expectedCounts), "contention: the appends of some threads were lost");
+        }
+    }
+}
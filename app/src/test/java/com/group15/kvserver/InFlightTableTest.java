@@ -0,0 +1,257 @@
+package com.group15.kvserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Checks the table of requests in flight against a HashMap holding the same entries.
+ *
+ * - churn: random puts, replacements, removals and lookups of tags, negative ones
+ *   included, compared with the HashMap as it goes;
+ * - wrapped runs: tags built to share the last home slots of the table, so that their
+ *   probe run wraps around to the first slots, removed in every order, each removal in
+ *   the middle of the run followed by a lookup of every tag;
+ * - resizes: thousands of requests put while others are removed, the table growing
+ *   under them, then drained;
+ * - tag reuse: tags put again once removed, tags wrapping past Integer.MAX_VALUE, and
+ *   threads putting, looking up and removing requests at once.
+ *
+ * Usage: InFlightTableTest [seed]
+ */
+public class InFlightTableTest {
+    /* Number of failed checks */
+    private static int failures = 0;
+
+    /**
+     * Main entry point for the test.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 42;
+        churn(new Random(seed));
+        wrappedRuns();
+        resizes(new Random(seed));
+        tagReuse();
+        Logger.log(failures == 0 ? "In-flight table: all checks passed" : "In-flight table: " + failures + " checks failed",
+                failures == 0 ? Logger.LogLevel.INFO : Logger.LogLevel.ERROR);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static synchronized void check(boolean condition, String message) {
+        if (!condition) {
+            failures++;
+            if (failures <= 20) {
+                Logger.log("Failed: " + message, Logger.LogLevel.ERROR);
+            }
+        }
+    }
+
+    /**
+     * Compares the given tags, present or not, with the oracle.
+     */
+    private static void compare(InFlightTable<String> table, Map<Integer, String> oracle, Iterable<Integer> tags, String phase) {
+        check(table.size() == oracle.size(), phase + ": size " + table.size() + " instead of " + oracle.size());
+        for (int tag : tags) {
+            String entry = table.get(tag);
+            check(entry == null ? !oracle.containsKey(tag) : entry.equals(oracle.get(tag)),
+                    phase + ": tag " + tag + " holds " + entry + " instead of " + oracle.get(tag));
+        }
+    }
+
+    private static void churn(Random random) {
+        InFlightTable<String> table = new InFlightTable<>();
+        Map<Integer, String> oracle = new HashMap<>();
+        List<Integer> universe = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            universe.add(random.nextInt(2000) - 1000);
+        }
+        for (int round = 0; round < 50_000; round++) {
+            int tag = universe.get(random.nextInt(universe.size()));
+            int operation = random.nextInt(3);
+            if (operation == 0) {
+                String entry = "entry-" + round;
+                table.put(tag, entry);
+                oracle.put(tag, entry);
+            } else if (operation == 1) {
+                String removed = table.remove(tag);
+                String expected = oracle.remove(tag);
+                check(removed == null ? expected == null : removed.equals(expected), "churn: removal of " + tag + " returned " + removed);
+            } else {
+                String entry = table.get(tag);
+                check(entry == null ? !oracle.containsKey(tag) : entry.equals(oracle.get(tag)), "churn: lookup of " + tag);
+            }
+            if (round % 1000 == 0) {
+                compare(table, oracle, universe, "churn round " + round);
+            }
+        }
+        List<String> cleared = table.clear();
+        check(new HashSet<>(cleared).equals(new HashSet<>(oracle.values())) && table.size() == 0, "churn: clear");
+    }
+
+    /**
+     * Builds tags whose home slot in a table of the given capacity is one of the given slots.
+     */
+    private static List<Integer> tagsHomedAt(int from, int capacity, int count, int... slots) {
+        List<Integer> tags = new ArrayList<>();
+        for (int tag = from; tags.size() < count; tag++) {
+            int home = InFlightTable.slot(tag, capacity - 1);
+            for (int slot : slots) {
+                if (home == slot) {
+                    tags.add(tag);
+                    break;
+                }
+            }
+        }
+        return tags;
+    }
+
+    private static void wrappedRuns() {
+        // A new table has 64 slots: five tags homed at slots 61 to 63 fill them and wrap
+        // around to slots 0 and 1, pushing three tags homed at slots 0 and 1 to slots 2 to 4
+        List<Integer> run = new ArrayList<>(tagsHomedAt(0, 64, 5, 61, 62, 63));
+        run.addAll(tagsHomedAt(0, 64, 3, 0, 1));
+        List<Integer> absent = tagsHomedAt(1_000_000, 64, 4, 62, 63, 0);
+        List<Integer> probed = new ArrayList<>(run);
+        probed.addAll(absent);
+
+        // Every order of removal of the tags of the run
+        int[] order = new int[run.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        int orders = 0;
+        do {
+            InFlightTable<String> table = new InFlightTable<>();
+            Map<Integer, String> oracle = new HashMap<>();
+            for (int tag : run) {
+                table.put(tag, "entry-" + tag);
+                oracle.put(tag, "entry-" + tag);
+            }
+            for (int index : order) {
+                int tag = run.get(index);
+                String removed = table.remove(tag);
+                check(("entry-" + tag).equals(removed), "wrapped run: removal of " + tag + " returned " + removed);
+                oracle.remove(tag);
+                compare(table, oracle, probed, "wrapped run, removal order " + Arrays.toString(order));
+            }
+            orders++;
+        } while (nextPermutation(order));
+        check(orders > 1, "wrapped run: no removal order tried");
+    }
+
+    /**
+     * Rearranges the indices into the next permutation in lexicographic order.
+     *
+     * @return false once the last permutation was reached.
+     */
+    private static boolean nextPermutation(int[] order) {
+        int i = order.length - 2;
+        while (i >= 0 && order[i] >= order[i + 1]) {
+            i--;
+        }
+        if (i < 0) {
+            return false;
+        }
+        int j = order.length - 1;
+        while (order[j] <= order[i]) {
+            j--;
+        }
+        int swap = order[i];
+        order[i] = order[j];
+        order[j] = swap;
+        for (int left = i + 1, right = order.length - 1; left < right; left++, right--) {
+            swap = order[left];
+            order[left] = order[right];
+            order[right] = swap;
+        }
+        return true;
+    }
+
+    private static void resizes(Random random) {
+        InFlightTable<String> table = new InFlightTable<>();
+        Map<Integer, String> oracle = new HashMap<>();
+        List<Integer> inFlight = new ArrayList<>();
+        int nextTag = 0;
+        // Grows to 20000 requests in flight while a third of them complete
+        while (oracle.size() < 20_000) {
+            int tag = nextTag++;
+            table.put(tag, "entry-" + tag);
+            oracle.put(tag, "entry-" + tag);
+            inFlight.add(tag);
+            if (random.nextInt(3) == 0) {
+                int done = inFlight.remove(random.nextInt(inFlight.size()));
+                check(("entry-" + done).equals(table.remove(done)), "resize: removal of " + done);
+                oracle.remove(done);
+            }
+            if (Integer.bitCount(tag) == 1) {
+                compare(table, oracle, inFlight, "resize with " + oracle.size() + " entries");
+            }
+        }
+        compare(table, oracle, inFlight, "resize, grown");
+        while (!inFlight.isEmpty()) {
+            int done = inFlight.remove(inFlight.size() - 1);
+            check(("entry-" + done).equals(table.remove(done)), "resize: drain of " + done);
+            oracle.remove(done);
+        }
+        check(table.size() == 0 && table.get(0) == null, "resize: the drained table is not empty");
+    }
+
+    private static void tagReuse() throws InterruptedException {
+        InFlightTable<String> table = new InFlightTable<>();
+        table.put(7, "first");
+        table.put(7, "replaced");
+        check(table.size() == 1 && "replaced".equals(table.get(7)), "reuse: replacement of a tag");
+        check("replaced".equals(table.remove(7)) && table.get(7) == null, "reuse: removal of a replaced tag");
+        table.put(7, "again");
+        check(table.size() == 1 && "again".equals(table.get(7)), "reuse: tag put again once removed");
+        check(table.remove(8) == null && table.size() == 1, "reuse: removal of an absent tag");
+        table.remove(7);
+
+        // Tags of a counter wrapping past Integer.MAX_VALUE, with a window in flight
+        Map<Integer, String> oracle = new HashMap<>();
+        int tag = Integer.MAX_VALUE - 500;
+        List<Integer> window = new ArrayList<>();
+        for (int i = 0; i < 1000; i++, tag++) {
+            table.put(tag, "entry-" + tag);
+            oracle.put(tag, "entry-" + tag);
+            window.add(tag);
+            if (window.size() > 32) {
+                int done = window.remove(0);
+                check(("entry-" + done).equals(table.remove(done)), "reuse: removal of wrapped tag " + done);
+                oracle.remove(done);
+            }
+        }
+        compare(table, oracle, window, "reuse, after wrapping");
+        table.clear();
+
+        // Threads putting, looking up and removing requests at once, each reusing its own
+        // tags every 8192 requests
+        InFlightTable<String> shared = new InFlightTable<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int id = t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    int own = ((i * 8) & 0xffff) + id;
+                    String entry = "entry-" + id + "-" + i;
+                    shared.put(own, entry);
+                    String found = shared.get(own);
+                    String removed = shared.remove(own);
+                    check(entry.equals(found) && entry.equals(removed), "reuse: concurrent tag " + own + " lost its entry");
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        check(shared.size() == 0, "reuse: " + shared.size() + " entries left after the concurrent requests");
+    }
+}
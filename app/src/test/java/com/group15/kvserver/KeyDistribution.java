@@ -0,0 +1,170 @@
+package com.group15.kvserver;
+
+import java.util.SplittableRandom;
+
+/**
+ * Picks the index of the key of an operation of the load generator, out of the keys
+ * 0 to count - 1, following the key distributions of YCSB.
+ *
+ * - uniform: every key equally likely.
+ * - zipfian: a few keys very popular and a long tail, key of rank r being picked in
+ *   proportion to 1 / r^theta; the ranks are scrambled over the key space, so the popular
+ *   keys are not neighbours.
+ * - hotspot: a fraction of the keys, the hot set, receives a fraction of the operations,
+ *   uniformly, and the other keys the rest.
+ * - latest: zipfian over the recency of the keys, the last key inserted being the most
+ *   popular, for workloads that insert keys as they run.
+ *
+ * Zipfian values are drawn with the method of Gray et al., "Quickly Generating
+ * Billion-Record Synthetic Databases", as YCSB does, after computing the zeta constant of
+ * the key count once. Instances are shared by the threads; the randomness is theirs.
+ */
+abstract class KeyDistribution {
+    /* Skew of the zipfian distributions when none is given, that of YCSB */
+    static final double DEFAULT_THETA = 0.99;
+    /* Fractions of the keys in the hot set, and of the operations on it, when none are given */
+    static final double DEFAULT_HOT_KEYS = 0.2;
+    static final double DEFAULT_HOT_OPERATIONS = 0.8;
+
+    /**
+     * Picks a key.
+     *
+     * @param random The randomness of the calling thread.
+     * @param count The number of keys at the moment, which only grows for latest.
+     * @return The index of the key, from 0 to count - 1.
+     */
+    abstract int next(SplittableRandom random, int count);
+
+    /**
+     * Parses a distribution.
+     *
+     * @param spec uniform, zipfian[:theta], hotspot[:hot-keys:hot-operations] or latest[:theta].
+     * @param keys The number of keys loaded.
+     * @return The distribution.
+     * @throws IllegalArgumentException If the spec is invalid.
+     */
+    static KeyDistribution parse(String spec, int keys) {
+        String[] parts = spec.split(":");
+        switch (parts[0]) {
+            case "uniform":
+                return new Uniform();
+            case "zipfian":
+                return new Zipfian(keys, parts.length > 1 ? Double.parseDouble(parts[1]) : DEFAULT_THETA, true);
+            case "hotspot":
+                if (parts.length == 3) {
+                    return new Hotspot(Double.parseDouble(parts[1]), Double.parseDouble(parts[2]));
+                }
+                return new Hotspot(DEFAULT_HOT_KEYS, DEFAULT_HOT_OPERATIONS);
+            case "latest":
+                return new Latest(new Zipfian(keys, parts.length > 1 ? Double.parseDouble(parts[1]) : DEFAULT_THETA, false));
+            default:
+                throw new IllegalArgumentException("Unknown key distribution: " + spec);
+        }
+    }
+
+    static class Uniform extends KeyDistribution {
+        @Override
+        int next(SplittableRandom random, int count) {
+            return random.nextInt(count);
+        }
+    }
+
+    static class Zipfian extends KeyDistribution {
+        private final int items;
+        private final double theta;
+        private final double alpha;
+        private final double zetaN;
+        private final double eta;
+        private final boolean scrambled;
+
+        /**
+         * @param items The number of ranks drawn from.
+         * @param theta The skew, from 0 (uniform) to below 1.
+         * @param scrambled Whether ranks are spread over the key space, or rank r is key r.
+         */
+        Zipfian(int items, double theta, boolean scrambled) {
+            if (theta <= 0 || theta >= 1) {
+                throw new IllegalArgumentException("The zipfian skew must be between 0 and 1, exclusive");
+            }
+            this.items = items;
+            this.theta = theta;
+            this.alpha = 1 / (1 - theta);
+            this.zetaN = zeta(items, theta);
+            this.eta = (1 - Math.pow(2.0 / items, 1 - theta)) / (1 - zeta(2, theta) / zetaN);
+            this.scrambled = scrambled;
+        }
+
+        private static double zeta(int n, double theta) {
+            double sum = 0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1 / Math.pow(i, theta);
+            }
+            return sum;
+        }
+
+        /**
+         * Draws a rank, 0 being the most popular.
+         */
+        int rank(SplittableRandom random) {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            if (uz < 1) {
+                return 0;
+            }
+            if (uz < 1 + Math.pow(0.5, theta)) {
+                return 1;
+            }
+            return Math.min(items - 1, (int) (items * Math.pow(eta * u - eta + 1, alpha)));
+        }
+
+        @Override
+        int next(SplittableRandom random, int count) {
+            int rank = rank(random);
+            if (!scrambled) {
+                return rank % count;
+            }
+            // FNV-1a of the rank, so that the popular keys land anywhere in the key space
+            long hash = 0xcbf29ce484222325L;
+            for (int shift = 0; shift < 32; shift += 8) {
+                hash ^= (rank >>> shift) & 0xff;
+                hash *= 0x100000001b3L;
+            }
+            return (int) Math.floorMod(hash, (long) count);
+        }
+    }
+
+    static class Hotspot extends KeyDistribution {
+        private final double hotKeys;
+        private final double hotOperations;
+
+        Hotspot(double hotKeys, double hotOperations) {
+            if (hotKeys <= 0 || hotKeys >= 1 || hotOperations < 0 || hotOperations > 1) {
+                throw new IllegalArgumentException("Invalid hotspot fractions");
+            }
+            this.hotKeys = hotKeys;
+            this.hotOperations = hotOperations;
+        }
+
+        @Override
+        int next(SplittableRandom random, int count) {
+            int hot = Math.max(1, (int) (count * hotKeys));
+            if (hot == count || random.nextDouble() < hotOperations) {
+                return random.nextInt(hot);
+            }
+            return hot + random.nextInt(count - hot);
+        }
+    }
+
+    static class Latest extends KeyDistribution {
+        private final Zipfian recency;
+
+        Latest(Zipfian recency) {
+            this.recency = recency;
+        }
+
+        @Override
+        int next(SplittableRandom random, int count) {
+            return Math.max(0, count - 1 - recency.rank(random) % count);
+        }
+    }
+}
@@ -0,0 +1,1030 @@
+package com.group15.kvserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.ChartUtils;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.title.TextTitle;
+import org.jfree.data.xy.XYSeries;
+import org.jfree.data.xy.XYSeriesCollection;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Generates load against a running server and reports its throughput and latencies.
+ *
+ * Loads the keys, then issues a mix of operations over a pool of connections, first for a
+ * warmup phase whose results are discarded, then for the measured phase. Prints the
+ * throughput and latency percentiles of each operation, writes them as JSON and CSV when
+ * an output prefix is given, and with --charts renders them to PNG files. Runs headless,
+ * so it can be scripted.
+ *
+ * By default the load is closed-loop: each thread issues its next operation when the
+ * previous one completed, and each operation is timed from its call until its response.
+ * A server that stalls then receives fewer operations, and the operations that would have
+ * been sent during the stall are never timed, so the latencies are flattering. With
+ * --rate the load is open-loop: operations are issued asynchronously on a fixed schedule
+ * at the target rate whatever the server does, and each is timed from when the schedule
+ * meant to send it, so a stall shows in the latency of every operation it delayed. The
+ * latencies from the actual sends are reported too, to show the difference. With --sweep
+ * the open-loop run is repeated at increasing rates to find the knee: the highest rate the
+ * server sustains before its throughput falls behind or its p99 takes off.
+ *
+ * The operations follow a workload: the YCSB mixes update-heavy (50% reads, 50% updates),
+ * read-mostly (95/5), read-only, read-latest (95% reads of recently inserted keys, 5%
+ * inserts), read-modify-write (50% reads, 50% reads followed by an update of the same key),
+ * and multi-key (multiGets and multiPuts of --batch keys), or a mix of its own. Keys are
+ * picked by a KeyDistribution, zipfian by default, and value sizes are constant or drawn
+ * from a uniform or zipfian range. The keys are loaded with multiPuts of --load-batch keys.
+ * Each thread draws from a generator seeded by --seed and its index, so two runs with the
+ * same options issue the same operations on the same keys, and compare servers, not luck.
+ *
+ * With --server the generator starts the server itself, with the given max-clients,
+ * database-shards and user-shards, so a sweep can be repeated for each configuration.
+ *
+ * Usage: LoadGenerator [--option=value]..., see USAGE.
+ */
+public class LoadGenerator {
+    static final String USAGE = "Usage: LoadGenerator [--host=<host>] [--port=<port>] [--connections=<n>] [--threads=<n>]"
+            + " [--workload=<name> | --mix=<op>:<weight>;...] [--distribution=<distribution>] [--keys=<n>]"
+            + " [--value-size=<bytes> | --value-size=uniform|zipfian:<min>:<max>] [--batch=<keys>] [--load-batch=<keys>]"
+            + " [--seed=<n>] [--warmup=<seconds>]"
+            + " [--duration=<seconds>] [--rate=<ops/s> | --sweep=<from>:<to>:<step> [--p99-limit=<us>]]"
+            + " [--max-outstanding=<n>] [--server=<max-clients>:<database-shards>:<user-shards>] [--output=<prefix>] [--charts]\n"
+            + "Workloads: update-heavy, read-mostly, read-only, read-latest, read-modify-write, multi-key\n"
+            + "Operations: get, put, insert, readModifyWrite, multiGet, multiPut\n"
+            + "Distributions: uniform, zipfian[:<theta>], hotspot[:<hot-keys>:<hot-operations>], latest[:<theta>]";
+    /* Share of the target rate an open-loop run must achieve to be below the knee */
+    static final double KNEE_THROUGHPUT = 0.95;
+    /* Share of the target rate below which a sweep stops, the server being saturated */
+    static final double SATURATED_THROUGHPUT = 0.8;
+    /* Multiple of the p99 of the lowest rate of a sweep beyond which it is past the knee, unless --p99-limit is given */
+    static final int DEFAULT_P99_GROWTH = 5;
+    /* Percentiles reported */
+    static final double[] PERCENTILES = {50, 90, 99, 99.9, 99.99};
+
+    /**
+     * An operation of the mix.
+     */
+    enum Operation {
+        GET("get"), PUT("put"), INSERT("insert"), READ_MODIFY_WRITE("readModifyWrite"), MULTI_GET("multiGet"),
+        MULTI_PUT("multiPut");
+
+        final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+
+        static Operation of(String label) {
+            for (Operation operation : values()) {
+                if (operation.label.equalsIgnoreCase(label)) {
+                    return operation;
+                }
+            }
+            throw new IllegalArgumentException("Unknown operation: " + label);
+        }
+    }
+
+    /**
+     * A standard mix of operations, with its key distribution.
+     */
+    enum Workload {
+        UPDATE_HEAVY("update-heavy", "get:50;put:50", "zipfian"),
+        READ_MOSTLY("read-mostly", "get:95;put:5", "zipfian"),
+        READ_ONLY("read-only", "get:100", "zipfian"),
+        READ_LATEST("read-latest", "get:95;insert:5", "latest"),
+        READ_MODIFY_WRITE("read-modify-write", "get:50;readModifyWrite:50", "zipfian"),
+        MULTI_KEY("multi-key", "multiGet:50;multiPut:50", "zipfian");
+
+        final String label;
+        final String mix;
+        final String distribution;
+
+        Workload(String label, String mix, String distribution) {
+            this.label = label;
+            this.mix = mix;
+            this.distribution = distribution;
+        }
+
+        static Workload of(String label) {
+            for (Workload workload : values()) {
+                if (workload.label.equalsIgnoreCase(label)) {
+                    return workload;
+                }
+            }
+            throw new IllegalArgumentException("Unknown workload: " + label);
+        }
+    }
+
+    /**
+     * The sizes of the values written: constant, or drawn uniformly or zipfian from a range,
+     * the smallest sizes being the most frequent.
+     */
+    static class ValueSizes {
+        final String spec;
+        final int min;
+        final int max;
+        private final KeyDistribution.Zipfian zipfian;
+
+        /**
+         * @param spec A size in bytes, or uniform:min:max or zipfian:min:max.
+         */
+        ValueSizes(String spec) {
+            this.spec = spec;
+            String[] parts = spec.split(":");
+            if (parts.length == 1) {
+                min = max = Integer.parseInt(parts[0]);
+            } else if (parts.length == 3 && (parts[0].equals("uniform") || parts[0].equals("zipfian"))) {
+                min = Integer.parseInt(parts[1]);
+                max = Integer.parseInt(parts[2]);
+            } else {
+                throw new IllegalArgumentException("Invalid value size: " + spec);
+            }
+            if (min < 0 || max < min) {
+                throw new IllegalArgumentException("Invalid value size: " + spec);
+            }
+            zipfian = parts[0].equals("zipfian") && max > min
+                    ? new KeyDistribution.Zipfian(max - min + 1, KeyDistribution.DEFAULT_THETA, false) : null;
+        }
+
+        int next(SplittableRandom random) {
+            if (min == max) {
+                return min;
+            }
+            return zipfian != null ? min + zipfian.rank(random) : min + random.nextInt(max - min + 1);
+        }
+    }
+
+    /**
+     * The parameters of a run.
+     */
+    static class Options {
+        String host = "localhost";
+        int port = Server.DEFAULT_PORT;
+        int connections = 4;
+        int threads = 16;
+        /* The standard workload run, or null for a mix of its own */
+        Workload workload = null;
+        /* Weight of each operation, in the order of Operation */
+        int[] mix;
+        String distributionSpec = "zipfian";
+        KeyDistribution distribution;
+        int keys = 10000;
+        ValueSizes valueSizes = new ValueSizes("100");
+        /* Keys of a multiGet or multiPut */
+        int batch = 10;
+        /* Keys of each multiPut of the load phase */
+        int loadBatch = 100;
+        long seed = 1;
+        int warmupSeconds = 5;
+        int durationSeconds = 30;
+        /* Target rate of an open-loop run, in operations per second, 0 for a closed-loop run */
+        double rate = 0;
+        /* Rates of a sweep, or sweepTo 0 for no sweep */
+        double sweepFrom = 0;
+        double sweepTo = 0;
+        double sweepStep = 0;
+        /* p99 beyond which a sweep is past the knee, in nanoseconds, 0 for a multiple of the lowest rate's */
+        long p99Limit = 0;
+        /* Operations in flight beyond which an open-loop run waits before issuing more */
+        int maxOutstanding = 10000;
+        /* Arguments of the server to start, as max-clients:database-shards:user-shards, or null */
+        String server = null;
+        /* Prefix of the files written, or null */
+        String output = null;
+        boolean charts = false;
+
+        /**
+         * Parses the options of the command line.
+         *
+         * @param args Arguments of the form --name=value, or --name for a flag.
+         * @return The options, defaults for the ones not given.
+         * @throws IllegalArgumentException If an argument is not an option or is invalid.
+         */
+        static Options parse(String[] args) {
+            Map<String, String> values = new HashMap<>();
+            for (String arg : args) {
+                if (!arg.startsWith("--")) {
+                    throw new IllegalArgumentException("Not an option: " + arg);
+                }
+                int separator = arg.indexOf('=');
+                if (separator < 0) {
+                    values.put(arg.substring(2), "true");
+                } else {
+                    values.put(arg.substring(2, separator), arg.substring(separator + 1));
+                }
+            }
+            Options options = new Options();
+            options.host = values.getOrDefault("host", options.host);
+            options.port = Integer.parseInt(values.getOrDefault("port", Integer.toString(options.port)));
+            options.connections = Integer.parseInt(values.getOrDefault("connections", Integer.toString(options.connections)));
+            options.threads = Integer.parseInt(values.getOrDefault("threads", Integer.toString(options.threads)));
+            options.keys = Integer.parseInt(values.getOrDefault("keys", Integer.toString(options.keys)));
+            options.valueSizes = new ValueSizes(values.getOrDefault("value-size", options.valueSizes.spec));
+            options.batch = Integer.parseInt(values.getOrDefault("batch", Integer.toString(options.batch)));
+            options.loadBatch = Integer.parseInt(values.getOrDefault("load-batch", Integer.toString(options.loadBatch)));
+            options.seed = Long.parseLong(values.getOrDefault("seed", Long.toString(options.seed)));
+            options.warmupSeconds = Integer.parseInt(values.getOrDefault("warmup", Integer.toString(options.warmupSeconds)));
+            options.durationSeconds = Integer.parseInt(values.getOrDefault("duration", Integer.toString(options.durationSeconds)));
+            options.rate = Double.parseDouble(values.getOrDefault("rate", "0"));
+            if (values.containsKey("sweep")) {
+                String[] rates = values.get("sweep").split(":");
+                if (rates.length != 3) {
+                    throw new IllegalArgumentException("Invalid sweep: " + values.get("sweep"));
+                }
+                options.sweepFrom = Double.parseDouble(rates[0]);
+                options.sweepTo = Double.parseDouble(rates[1]);
+                options.sweepStep = Double.parseDouble(rates[2]);
+                if (options.sweepFrom <= 0 || options.sweepTo < options.sweepFrom || options.sweepStep <= 0 || options.rate > 0) {
+                    throw new IllegalArgumentException("Invalid sweep: " + values.get("sweep"));
+                }
+            }
+            options.p99Limit = Long.parseLong(values.getOrDefault("p99-limit", "0")) * 1000;
+            options.maxOutstanding = Integer.parseInt(values.getOrDefault("max-outstanding", Integer.toString(options.maxOutstanding)));
+            options.server = values.getOrDefault("server", null);
+            if (options.server != null && options.server.split(":").length != 3) {
+                throw new IllegalArgumentException("Invalid server: " + options.server);
+            }
+            options.output = values.getOrDefault("output", null);
+            options.charts = Boolean.parseBoolean(values.getOrDefault("charts", "false"));
+            String mix = "get:95;put:5";
+            if (values.containsKey("workload")) {
+                options.workload = Workload.of(values.get("workload"));
+                mix = options.workload.mix;
+                options.distributionSpec = options.workload.distribution;
+            }
+            if (values.containsKey("mix")) {
+                options.workload = null;
+                mix = values.get("mix");
+            }
+            options.distributionSpec = values.getOrDefault("distribution", options.distributionSpec);
+            options.distribution = KeyDistribution.parse(options.distributionSpec, options.keys);
+            options.mix = new int[Operation.values().length];
+            for (String entry : mix.split(";")) {
+                String[] parts = entry.split(":");
+                if (parts.length != 2) {
+                    throw new IllegalArgumentException("Invalid mix entry: " + entry);
+                }
+                options.mix[Operation.of(parts[0]).ordinal()] = Integer.parseInt(parts[1]);
+            }
+            int totalWeight = 0;
+            for (int weight : options.mix) {
+                if (weight < 0) {
+                    throw new IllegalArgumentException("Negative weight in the mix");
+                }
+                totalWeight += weight;
+            }
+            if (totalWeight == 0 || options.connections < 1 || options.threads < 1 || options.keys < 1
+                    || options.batch < 1 || options.loadBatch < 1 || options.warmupSeconds < 0 || options.durationSeconds < 1
+                    || options.rate < 0 || options.maxOutstanding < 1) {
+                throw new IllegalArgumentException("Invalid options");
+            }
+            if (options.charts && options.output == null) {
+                throw new IllegalArgumentException("--charts needs --output");
+            }
+            return options;
+        }
+
+        /**
+         * Picks an operation of the mix at random.
+         */
+        Operation pick(SplittableRandom random) {
+            int total = 0;
+            for (int weight : mix) {
+                total += weight;
+            }
+            int draw = random.nextInt(total);
+            for (int i = 0; i < mix.length; i++) {
+                draw -= mix[i];
+                if (draw < 0) {
+                    return Operation.values()[i];
+                }
+            }
+            throw new IllegalStateException();
+        }
+
+        boolean isSweep() {
+            return sweepTo > 0;
+        }
+
+        String mixString() {
+            StringBuilder builder = new StringBuilder();
+            for (Operation operation : Operation.values()) {
+                if (mix[operation.ordinal()] > 0) {
+                    builder.append(builder.length() > 0 ? ";" : "").append(operation.label).append(':').append(mix[operation.ordinal()]);
+                }
+            }
+            return builder.toString();
+        }
+    }
+
+    /**
+     * The latencies and errors of the operations of a worker, and how many operations it
+     * completed in each second of the measured phase. For an open-loop run, the latencies
+     * are from the intended sends, and the latencies from the actual sends of all the
+     * operations are kept apart.
+     */
+    static class Recorder {
+        final long[][] counts = new long[Operation.values().length][LatencyHistogram.BUCKETS];
+        final long[] errors = new long[Operation.values().length];
+        final long[] uncorrectedCounts = new long[LatencyHistogram.BUCKETS];
+        final long[] perSecond;
+
+        Recorder(int seconds) {
+            this.perSecond = new long[seconds];
+        }
+
+        void record(Operation operation, long latency, int second) {
+            counts[operation.ordinal()][LatencyHistogram.bucketOf(latency)]++;
+            if (second >= 0 && second < perSecond.length) {
+                perSecond[second]++;
+            }
+        }
+
+        void add(Recorder other) {
+            for (int i = 0; i < counts.length; i++) {
+                for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+                    counts[i][bucket] += other.counts[i][bucket];
+                }
+                errors[i] += other.errors[i];
+            }
+            for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+                uncorrectedCounts[bucket] += other.uncorrectedCounts[bucket];
+            }
+            for (int second = 0; second < perSecond.length; second++) {
+                perSecond[second] += other.perSecond[second];
+            }
+        }
+    }
+
+    /**
+     * The results of one rate of a sweep.
+     */
+    static class SweepPoint {
+        final double targetRate;
+        final double achievedRate;
+        final LatencyHistogram latency;
+        final LatencyHistogram uncorrected;
+        final long errors;
+
+        SweepPoint(double targetRate, double achievedRate, LatencyHistogram latency, LatencyHistogram uncorrected, long errors) {
+            this.targetRate = targetRate;
+            this.achievedRate = achievedRate;
+            this.latency = latency;
+            this.uncorrected = uncorrected;
+            this.errors = errors;
+        }
+    }
+
+    private final Options options;
+    /* Bytes the values are copied from, as large as the largest value */
+    private final byte[] valueBytes;
+    /* Keys loaded or inserted so far, the keys picked from */
+    private final AtomicInteger keyCount = new AtomicInteger();
+
+    LoadGenerator(Options options) {
+        this.options = options;
+        this.valueBytes = new byte[options.valueSizes.max];
+        new SplittableRandom(options.seed).nextBytes(valueBytes);
+    }
+
+    /**
+     * Main entry point for the load generator.
+     */
+    public static void main(String[] args) throws Exception {
+        System.setProperty("java.awt.headless", "true");
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            return;
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+        if (options.server != null) {
+            String[] arguments = options.server.split(":");
+            Process server = ServerProcesses.start(options.port, arguments[0], arguments[1], arguments[2]);
+            Runtime.getRuntime().addShutdownHook(new Thread(server::destroyForcibly));
+            ServerProcesses.awaitPort(options.port);
+        }
+        try (ClientPool pool = new ClientPool(options.host, options.port, options.connections, options.connections,
+                Integer.MAX_VALUE, ClientPool.DEFAULT_HEALTH_CHECK_INTERVAL, ClientPool.DEFAULT_IDLE_TIMEOUT)) {
+            generator.load(pool);
+            if (options.isSweep()) {
+                List<SweepPoint> points = generator.sweep(pool);
+                System.out.print(generator.reportSweep(points));
+                if (options.output != null) {
+                    generator.writeSweep(points, options.output);
+                }
+                System.exit(0);
+            }
+            Recorder total = options.rate > 0 ? generator.runOpenLoop(pool, options.rate) : generator.run(pool);
+            System.out.print(generator.report(total));
+            if (options.output != null) {
+                generator.writeJson(total, new File(options.output + ".json"));
+                generator.writeCsv(total, new File(options.output + ".csv"));
+                if (options.charts) {
+                    generator.writeCharts(total, options.output);
+                }
+            }
+        } catch (IOException e) {
+            Logger.log("Load failed: " + e.getMessage(), Logger.LogLevel.ERROR);
+        }
+        System.exit(0);
+    }
+
+    static String key(int index) {
+        return "key" + index;
+    }
+
+    private String nextKey(SplittableRandom random) {
+        return key(options.distribution.next(random, keyCount.get()));
+    }
+
+    private byte[] nextValue(SplittableRandom random) {
+        return Arrays.copyOf(valueBytes, options.valueSizes.next(random));
+    }
+
+    /**
+     * Stores a value under every key, with multiPuts of loadBatch keys spread over the
+     * worker threads.
+     */
+    void load(ClientPool pool) throws Exception {
+        Logger.log("Loading " + options.keys + " keys", Logger.LogLevel.INFO);
+        long start = System.nanoTime();
+        AtomicInteger next = new AtomicInteger();
+        List<Thread> loaders = new ArrayList<>();
+        List<Exception> failures = new ArrayList<>();
+        for (int t = 0; t < options.threads; t++) {
+            SplittableRandom random = new SplittableRandom(options.seed + t);
+            Thread loader = new Thread(() -> {
+                try {
+                    for (int first = next.getAndAdd(options.loadBatch); first < options.keys;
+                            first = next.getAndAdd(options.loadBatch)) {
+                        Map<String, byte[]> pairs = new HashMap<>();
+                        for (int i = first; i < Math.min(first + options.loadBatch, options.keys); i++) {
+                            pairs.put(key(i), nextValue(random));
+                        }
+                        pool.multiPut(pairs);
+                    }
+                } catch (IOException e) {
+                    synchronized (failures) {
+                        failures.add(e);
+                    }
+                }
+            });
+            loader.start();
+            loaders.add(loader);
+        }
+        for (Thread loader : loaders) {
+            loader.join();
+        }
+        if (!failures.isEmpty()) {
+            throw failures.get(0);
+        }
+        keyCount.set(options.keys);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Logger.log(String.format("Loaded %d keys in %.1f s, %.0f keys/s", options.keys, seconds, options.keys / seconds),
+                Logger.LogLevel.INFO);
+    }
+
+    /**
+     * Runs the warmup and measured phases.
+     *
+     * @return The results of the measured phase, of all the workers.
+     */
+    Recorder run(ClientPool pool) throws InterruptedException {
+        Logger.log("Warming up for " + options.warmupSeconds + " s, then measuring for " + options.durationSeconds + " s",
+                Logger.LogLevel.INFO);
+        long measureFrom = System.nanoTime() + options.warmupSeconds * 1_000_000_000L;
+        long measureUntil = measureFrom + options.durationSeconds * 1_000_000_000L;
+        List<Recorder> recorders = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < options.threads; t++) {
+            Recorder recorder = new Recorder(options.durationSeconds);
+            recorders.add(recorder);
+            SplittableRandom random = new SplittableRandom(options.seed + t);
+            Thread worker = new Thread(() -> work(pool, recorder, random, measureFrom, measureUntil), "load-" + t);
+            worker.start();
+            workers.add(worker);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Recorder total = new Recorder(options.durationSeconds);
+        for (Recorder recorder : recorders) {
+            total.add(recorder);
+        }
+        return total;
+    }
+
+    private void work(ClientPool pool, Recorder recorder, SplittableRandom random, long measureFrom, long measureUntil) {
+        long now = System.nanoTime();
+        while (now < measureUntil) {
+            Operation operation = options.pick(random);
+            long start = now;
+            boolean failed = false;
+            try {
+                execute(pool, operation, random);
+            } catch (IOException e) {
+                failed = true;
+            }
+            now = System.nanoTime();
+            if (start >= measureFrom && now <= measureUntil) {
+                if (failed) {
+                    recorder.errors[operation.ordinal()]++;
+                } else {
+                    recorder.record(operation, now - start, (int) ((now - measureFrom) / 1_000_000_000L));
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the warmup and measured phases open-loop, at a target rate. Each thread issues
+     * its share of the schedule, interleaved with the other threads, and never waits for a
+     * response, unless maxOutstanding operations are in flight.
+     *
+     * @param rate The target rate, in operations per second.
+     * @return The results of the operations scheduled in the measured phase, timed from when
+     *         they were scheduled.
+     */
+    Recorder runOpenLoop(ClientPool pool, double rate) throws InterruptedException {
+        Logger.log(String.format("Warming up for %d s, then measuring for %d s, at %.0f ops/s", options.warmupSeconds,
+                options.durationSeconds, rate), Logger.LogLevel.INFO);
+        long start = System.nanoTime();
+        long measureFrom = start + options.warmupSeconds * 1_000_000_000L;
+        long measureUntil = measureFrom + options.durationSeconds * 1_000_000_000L;
+        Recorder total = new Recorder(options.durationSeconds);
+        Semaphore outstanding = new Semaphore(options.maxOutstanding);
+        List<Thread> schedulers = new ArrayList<>();
+        for (int t = 0; t < options.threads; t++) {
+            int first = t;
+            SplittableRandom random = new SplittableRandom(options.seed + t);
+            Thread scheduler = new Thread(() -> schedule(pool, total, outstanding, random, rate, first, start, measureFrom,
+                    measureUntil), "load-" + t);
+            scheduler.start();
+            schedulers.add(scheduler);
+        }
+        for (Thread scheduler : schedulers) {
+            scheduler.join();
+        }
+        if (!outstanding.tryAcquire(options.maxOutstanding, 30, TimeUnit.SECONDS)) {
+            Logger.log("Operations still in flight after 30 s, reporting without them", Logger.LogLevel.WARN);
+        }
+        synchronized (total) {
+            return total;
+        }
+    }
+
+    /**
+     * Issues the operations first, first + threads, first + 2 * threads... of the schedule,
+     * operation i being meant to be sent i / rate seconds after the start.
+     */
+    private void schedule(ClientPool pool, Recorder recorder, Semaphore outstanding, SplittableRandom random, double rate,
+            int first, long start, long measureFrom, long measureUntil) {
+        for (long i = first; ; i += options.threads) {
+            long intended = start + (long) (i * 1e9 / rate);
+            if (intended >= measureUntil) {
+                return;
+            }
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            outstanding.acquireUninterruptibly();
+            Operation operation = options.pick(random);
+            long sentAt = System.nanoTime();
+            CompletableFuture<?> future;
+            try {
+                future = executeAsync(pool, operation, random);
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            future.whenComplete((result, error) -> {
+                long now = System.nanoTime();
+                outstanding.release();
+                if (intended < measureFrom) {
+                    return;
+                }
+                synchronized (recorder) {
+                    if (error != null) {
+                        recorder.errors[operation.ordinal()]++;
+                    } else {
+                        recorder.record(operation, now - intended, (int) ((now - measureFrom) / 1_000_000_000L));
+                        recorder.uncorrectedCounts[LatencyHistogram.bucketOf(now - sentAt)]++;
+                    }
+                }
+            });
+        }
+    }
+
+    private CompletableFuture<?> executeAsync(ClientPool pool, Operation operation, SplittableRandom random) {
+        switch (operation) {
+            case GET:
+                return pool.getAsync(nextKey(random));
+            case PUT:
+                return pool.putAsync(nextKey(random), nextValue(random));
+            case INSERT:
+                return pool.putAsync(key(keyCount.getAndIncrement()), nextValue(random));
+            case READ_MODIFY_WRITE: {
+                String key = nextKey(random);
+                byte[] value = nextValue(random);
+                return pool.getAsync(key).thenCompose(previous -> pool.putAsync(key, value));
+            }
+            case MULTI_GET:
+                return pool.multiGetAsync(nextKeys(random));
+            case MULTI_PUT: {
+                Map<String, byte[]> pairs = nextPairs(random);
+                return pool.submit(client -> client.multiPutAsync(pairs));
+            }
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    private Set<String> nextKeys(SplittableRandom random) {
+        Set<String> keys = new HashSet<>();
+        for (int i = 0; i < options.batch; i++) {
+            keys.add(nextKey(random));
+        }
+        return keys;
+    }
+
+    private Map<String, byte[]> nextPairs(SplittableRandom random) {
+        Map<String, byte[]> pairs = new HashMap<>();
+        for (int i = 0; i < options.batch; i++) {
+            pairs.put(nextKey(random), nextValue(random));
+        }
+        return pairs;
+    }
+
+    /**
+     * Runs open-loop at each rate of the sweep, until the server is saturated.
+     *
+     * @return The results of each rate run.
+     */
+    List<SweepPoint> sweep(ClientPool pool) throws InterruptedException {
+        List<SweepPoint> points = new ArrayList<>();
+        for (double rate = options.sweepFrom; rate <= options.sweepTo + 1e-9; rate += options.sweepStep) {
+            Recorder total = runOpenLoop(pool, rate);
+            long[] counts = new long[LatencyHistogram.BUCKETS];
+            long errors = 0;
+            for (Operation operation : Operation.values()) {
+                for (int bucket = 0; bucket < LatencyHistogram.BUCKETS; bucket++) {
+                    counts[bucket] += total.counts[operation.ordinal()][bucket];
+                }
+                errors += total.errors[operation.ordinal()];
+            }
+            LatencyHistogram latency = new LatencyHistogram(counts);
+            SweepPoint point = new SweepPoint(rate, (double) latency.getCount() / options.durationSeconds, latency,
+                    new LatencyHistogram(total.uncorrectedCounts), errors);
+            points.add(point);
+            Logger.log(String.format("%.0f ops/s offered, %.0f achieved, p99 %.1f us", rate, point.achievedRate,
+                    micros(latency.getValueAtPercentile(99))), Logger.LogLevel.INFO);
+            if (point.achievedRate < SATURATED_THROUGHPUT * rate) {
+                break;
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Finds the knee of a sweep: the last rate, from the lowest, whose throughput kept up
+     * with the target and whose p99 stayed under the limit.
+     *
+     * @return The index of the knee, or -1 if even the lowest rate is past it.
+     */
+    int knee(List<SweepPoint> points) {
+        long limit = options.p99Limit > 0 ? options.p99Limit
+                : DEFAULT_P99_GROWTH * points.get(0).latency.getValueAtPercentile(99);
+        int knee = -1;
+        for (int i = 0; i < points.size(); i++) {
+            SweepPoint point = points.get(i);
+            if (point.achievedRate < KNEE_THROUGHPUT * point.targetRate || point.latency.getValueAtPercentile(99) > limit) {
+                break;
+            }
+            knee = i;
+        }
+        return knee;
+    }
+
+    private void execute(ClientPool pool, Operation operation, SplittableRandom random) throws IOException {
+        switch (operation) {
+            case GET:
+                pool.get(nextKey(random));
+                break;
+            case PUT:
+                pool.put(nextKey(random), nextValue(random));
+                break;
+            case INSERT:
+                pool.put(key(keyCount.getAndIncrement()), nextValue(random));
+                break;
+            case READ_MODIFY_WRITE: {
+                String key = nextKey(random);
+                pool.get(key);
+                pool.put(key, nextValue(random));
+                break;
+            }
+            case MULTI_GET:
+                pool.multiGet(nextKeys(random));
+                break;
+            case MULTI_PUT:
+                pool.multiPut(nextPairs(random));
+                break;
+            default:
+                throw new IllegalStateException();
+        }
+    }
+
+    /**
+     * Returns the histograms of the operations that were run, in the order of Operation.
+     */
+    static Map<Operation, LatencyHistogram> histograms(Recorder total) {
+        Map<Operation, LatencyHistogram> histograms = new LinkedHashMap<>();
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram histogram = new LatencyHistogram(total.counts[operation.ordinal()]);
+            if (histogram.getCount() > 0 || total.errors[operation.ordinal()] > 0) {
+                histograms.put(operation, histogram);
+            }
+        }
+        return histograms;
+    }
+
+    private static String percentileName(double percentile) {
+        return "p" + (percentile == Math.rint(percentile) ? Integer.toString((int) percentile) : Double.toString(percentile));
+    }
+
+    private static double micros(long nanos) {
+        return nanos / 1000.0;
+    }
+
+    /**
+     * Formats the results as a table, latencies in microseconds.
+     */
+    String report(Recorder total) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%s, %d s measured%n", describe(), options.durationSeconds));
+        builder.append(String.format("%-15s %10s %7s %10s %9s", "op", "count", "errors", "ops/s", "mean us"));
+        for (double percentile : PERCENTILES) {
+            builder.append(String.format(" %9s", percentileName(percentile)));
+        }
+        builder.append(String.format(" %9s%n", "max"));
+        long count = 0;
+        for (Map.Entry<Operation, LatencyHistogram> entry : histograms(total).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            count += histogram.getCount();
+            builder.append(String.format("%-15s %10d %7d %10.0f %9.1f", entry.getKey().label, histogram.getCount(),
+                    total.errors[entry.getKey().ordinal()], (double) histogram.getCount() / options.durationSeconds,
+                    micros((long) histogram.getMean())));
+            for (double percentile : PERCENTILES) {
+                builder.append(String.format(" %9.1f", micros(histogram.getValueAtPercentile(percentile))));
+            }
+            builder.append(String.format(" %9.1f%n", micros(histogram.getMax())));
+        }
+        builder.append(String.format("Throughput: %.0f ops/s%n", (double) count / options.durationSeconds));
+        if (options.rate > 0) {
+            LatencyHistogram uncorrected = new LatencyHistogram(total.uncorrectedCounts);
+            builder.append(String.format("Timed from the actual sends instead, all operations: p50 %.1f us, p99 %.1f us, p99.9 %.1f us, max %.1f us%n",
+                    micros(uncorrected.getValueAtPercentile(50)), micros(uncorrected.getValueAtPercentile(99)),
+                    micros(uncorrected.getValueAtPercentile(99.9)), micros(uncorrected.getMax())));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Describes the load, and the server if it was started here.
+     */
+    String describe() {
+        String load = options.rate > 0 ? String.format("open loop at %.0f ops/s", options.rate)
+                : options.isSweep() ? "open loop sweep" : "closed loop";
+        return String.format("%s, %d threads, %d connections, %smix %s, %d %s keys, %s-byte values%s", load, options.threads,
+                options.connections, options.workload != null ? options.workload.label + " " : "", options.mixString(),
+                options.keys, options.distributionSpec, options.valueSizes.spec,
+                options.server != null ? ", server " + options.server : "");
+    }
+
+    /**
+     * Formats the options as the members of a JSON object.
+     */
+    String optionsJson() {
+        return String.format(java.util.Locale.ROOT, "\"host\": \"%s\", \"port\": %d, \"connections\": %d, \"threads\": %d, "
+                + "\"workload\": %s, \"mix\": \"%s\", \"distribution\": \"%s\", \"keys\": %d, \"valueSize\": \"%s\", \"batch\": %d, "
+                + "\"loadBatch\": %d, \"seed\": %d, \"warmupSeconds\": %d, \"durationSeconds\": %d, \"targetOpsPerSecond\": %.1f, "
+                + "\"server\": %s", options.host, options.port, options.connections, options.threads,
+                options.workload != null ? "\"" + options.workload.label + "\"" : "null", options.mixString(),
+                options.distributionSpec, options.keys, options.valueSizes.spec, options.batch, options.loadBatch, options.seed,
+                options.warmupSeconds, options.durationSeconds, options.rate,
+                options.server != null ? "\"" + options.server + "\"" : "null");
+    }
+
+    /**
+     * Formats the results of a sweep as a table, latencies in microseconds, with its knee.
+     */
+    String reportSweep(List<SweepPoint> points) {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%s, %d s measured per rate%n", describe(), options.durationSeconds));
+        builder.append(String.format("%12s %12s %7s %9s %9s %9s %9s %15s%n", "target ops/s", "achieved", "errors", "p50 us",
+                "p99 us", "p99.9 us", "max us", "uncorrected p99"));
+        int knee = knee(points);
+        for (int i = 0; i < points.size(); i++) {
+            SweepPoint point = points.get(i);
+            builder.append(String.format("%12.0f %12.0f %7d %9.1f %9.1f %9.1f %9.1f %15.1f%s%n", point.targetRate, point.achievedRate,
+                    point.errors, micros(point.latency.getValueAtPercentile(50)), micros(point.latency.getValueAtPercentile(99)),
+                    micros(point.latency.getValueAtPercentile(99.9)), micros(point.latency.getMax()),
+                    micros(point.uncorrected.getValueAtPercentile(99)), i == knee ? "  <- knee" : ""));
+        }
+        if (knee < 0) {
+            builder.append(String.format("Past the knee at the lowest rate%n"));
+        } else {
+            builder.append(String.format("Knee: %.0f ops/s%n", points.get(knee).targetRate));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Writes the options and results as a JSON object, latencies in microseconds.
+     */
+    void writeJson(Recorder total, File file) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"options\": {").append(optionsJson()).append("},\n");
+        long count = 0;
+        json.append("  \"operations\": {");
+        boolean first = true;
+        for (Map.Entry<Operation, LatencyHistogram> entry : histograms(total).entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            count += histogram.getCount();
+            json.append(first ? "\n" : ",\n").append(String.format(java.util.Locale.ROOT,
+                    "    \"%s\": {\"count\": %d, \"errors\": %d, \"opsPerSecond\": %.1f, \"meanUs\": %.1f",
+                    entry.getKey().label, histogram.getCount(), total.errors[entry.getKey().ordinal()],
+                    (double) histogram.getCount() / options.durationSeconds, micros((long) histogram.getMean())));
+            for (double percentile : PERCENTILES) {
+                json.append(String.format(java.util.Locale.ROOT, ", \"%sUs\": %.1f", percentileName(percentile),
+                        micros(histogram.getValueAtPercentile(percentile))));
+            }
+            json.append(String.format(java.util.Locale.ROOT, ", \"maxUs\": %.1f}", micros(histogram.getMax())));
+            first = false;
+        }
+        json.append("\n  },\n");
+        json.append(String.format(java.util.Locale.ROOT, "  \"opsPerSecond\": %.1f,\n", (double) count / options.durationSeconds));
+        if (options.rate > 0) {
+            LatencyHistogram uncorrected = new LatencyHistogram(total.uncorrectedCounts);
+            json.append("  \"uncorrected\": {");
+            for (double percentile : PERCENTILES) {
+                json.append(String.format(java.util.Locale.ROOT, "\"%sUs\": %.1f, ", percentileName(percentile),
+                        micros(uncorrected.getValueAtPercentile(percentile))));
+            }
+            json.append(String.format(java.util.Locale.ROOT, "\"maxUs\": %.1f},\n", micros(uncorrected.getMax())));
+        }
+        json.append("  \"opsPerSecondOverTime\": [");
+        for (int second = 0; second < total.perSecond.length; second++) {
+            json.append(second > 0 ? ", " : "").append(total.perSecond[second]);
+        }
+        json.append("]\n}\n");
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8)) {
+            out.print(json);
+        }
+        Logger.log("Wrote " + file, Logger.LogLevel.INFO);
+    }
+
+    /**
+     * Writes the results as CSV, one row per operation, latencies in microseconds.
+     */
+    void writeCsv(Recorder total, File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(file, StandardCharsets.UTF_8)) {
+            out.print("operation,count,errors,ops_per_second,mean_us");
+            for (double percentile : PERCENTILES) {
+                out.print("," + percentileName(percentile) + "_us");
+            }
+            out.println(",max_us");
+            for (Map.Entry<Operation, LatencyHistogram> entry : histograms(total).entrySet()) {
+                LatencyHistogram histogram = entry.getValue();
+                out.print(String.format(java.util.Locale.ROOT, "%s,%d,%d,%.1f,%.1f", entry.getKey().label, histogram.getCount(),
+                        total.errors[entry.getKey().ordinal()], (double) histogram.getCount() / options.durationSeconds,
+                        micros((long) histogram.getMean())));
+                for (double percentile : PERCENTILES) {
+                    out.print(String.format(java.util.Locale.ROOT, ",%.1f", micros(histogram.getValueAtPercentile(percentile))));
+                }
+                out.println(String.format(java.util.Locale.ROOT, ",%.1f", micros(histogram.getMax())));
+            }
+        }
+        Logger.log("Wrote " + file, Logger.LogLevel.INFO);
+    }
+
+    /**
+     * Renders the latency percentiles of each operation, and the throughput of each second
+     * of the measured phase, to PNG files.
+     *
+     * @param prefix Prefix of the files, to which -latency.png and -throughput.png are appended.
+     */
+    void writeCharts(Recorder total, String prefix) throws IOException {
+        String subtitle = describe();
+
+        // Percentiles on a scale of nines, so that the tail is not squashed against 100
+        XYSeriesCollection latencies = new XYSeriesCollection();
+        for (Map.Entry<Operation, LatencyHistogram> entry : histograms(total).entrySet()) {
+            XYSeries series = new XYSeries(entry.getKey().label);
+            for (double nines = 0; nines <= 4; nines += 0.125) {
+                double percentile = 100 * (1 - Math.pow(10, -nines));
+                series.add(nines, entry.getValue().getValueAtPercentile(percentile) / 1000.0);
+            }
+            latencies.addSeries(series);
+        }
+        JFreeChart latencyChart = ChartFactory.createXYLineChart("Latency by percentile",
+                "Percentile (nines: 1 = p90, 2 = p99, 3 = p99.9)", "Latency (us)", latencies);
+        latencyChart.addSubtitle(new TextTitle(subtitle));
+        File latencyFile = new File(prefix + "-latency.png");
+        ChartUtils.saveChartAsPNG(latencyFile, latencyChart, 1000, 600);
+
+        XYSeries throughput = new XYSeries("ops/s");
+        for (int second = 0; second < total.perSecond.length; second++) {
+            throughput.add(second, total.perSecond[second]);
+        }
+        JFreeChart throughputChart = ChartFactory.createXYLineChart("Throughput over time", "Time (s)", "Operations per second",
+                new XYSeriesCollection(throughput));
+        throughputChart.addSubtitle(new TextTitle(subtitle));
+        File throughputFile = new File(prefix + "-throughput.png");
+        ChartUtils.saveChartAsPNG(throughputFile, throughputChart, 1000, 600);
+        Logger.log("Wrote " + latencyFile + " and " + throughputFile, Logger.LogLevel.INFO);
+    }
+
+    /**
+     * Writes the results of a sweep to prefix.json and prefix.csv, latencies in
+     * microseconds, and with --charts renders the latency percentiles against the target
+     * rate to prefix-sweep.png.
+     */
+    void writeSweep(List<SweepPoint> points, String prefix) throws IOException {
+        int knee = knee(points);
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"options\": {").append(optionsJson()).append("},\n");
+        json.append("  \"sweep\": [");
+        for (int i = 0; i < points.size(); i++) {
+            SweepPoint point = points.get(i);
+            json.append(i > 0 ? ",\n" : "\n").append(String.format(java.util.Locale.ROOT,
+                    "    {\"targetOpsPerSecond\": %.1f, \"opsPerSecond\": %.1f, \"errors\": %d, \"p50Us\": %.1f, \"p99Us\": %.1f, \"p99.9Us\": %.1f, \"maxUs\": %.1f, \"uncorrectedP99Us\": %.1f}",
+                    point.targetRate, point.achievedRate, point.errors, micros(point.latency.getValueAtPercentile(50)),
+                    micros(point.latency.getValueAtPercentile(99)), micros(point.latency.getValueAtPercentile(99.9)),
+                    micros(point.latency.getMax()), micros(point.uncorrected.getValueAtPercentile(99))));
+        }
+        json.append("\n  ],\n");
+        json.append(String.format(java.util.Locale.ROOT, "  \"kneeOpsPerSecond\": %s\n}\n",
+                knee < 0 ? "null" : String.format(java.util.Locale.ROOT, "%.1f", points.get(knee).targetRate)));
+        File jsonFile = new File(prefix + ".json");
+        try (PrintWriter out = new PrintWriter(jsonFile, StandardCharsets.UTF_8)) {
+            out.print(json);
+        }
+        File csvFile = new File(prefix + ".csv");
+        try (PrintWriter out = new PrintWriter(csvFile, StandardCharsets.UTF_8)) {
+            out.println("target_ops_per_second,ops_per_second,errors,p50_us,p99_us,p99.9_us,max_us,uncorrected_p99_us,knee");
+            for (int i = 0; i < points.size(); i++) {
+                SweepPoint point = points.get(i);
+                out.println(String.format(java.util.Locale.ROOT, "%.1f,%.1f,%d,%.1f,%.1f,%.1f,%.1f,%.1f,%b", point.targetRate,
+                        point.achievedRate, point.errors, micros(point.latency.getValueAtPercentile(50)),
+                        micros(point.latency.getValueAtPercentile(99)), micros(point.latency.getValueAtPercentile(99.9)),
+                        micros(point.latency.getMax()), micros(point.uncorrected.getValueAtPercentile(99)), i == knee));
+            }
+        }
+        Logger.log("Wrote " + jsonFile + " and " + csvFile, Logger.LogLevel.INFO);
+        if (!options.charts) {
+            return;
+        }
+        XYSeriesCollection latencies = new XYSeriesCollection();
+        for (double percentile : new double[] {50, 99, 99.9}) {
+            XYSeries series = new XYSeries(percentileName(percentile));
+            for (SweepPoint point : points) {
+                series.add(point.targetRate, point.latency.getValueAtPercentile(percentile) / 1000.0);
+            }
+            latencies.addSeries(series);
+        }
+        XYSeries uncorrected = new XYSeries("p99 from the actual sends");
+        for (SweepPoint point : points) {
+            uncorrected.add(point.targetRate, point.uncorrected.getValueAtPercentile(99) / 1000.0);
+        }
+        latencies.addSeries(uncorrected);
+        JFreeChart chart = ChartFactory.createXYLineChart("Latency by target rate", "Target rate (ops/s)", "Latency (us)", latencies);
+        chart.addSubtitle(new TextTitle(describe()));
+        File chartFile = new File(prefix + "-sweep.png");
+        ChartUtils.saveChartAsPNG(chartFile, chart, 1000, 600);
+        Logger.log("Wrote " + chartFile, Logger.LogLevel.INFO);
+    }
+}
@@ -0,0 +1,221 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Checks that the near-cache of a client serves repeated gets and never keeps a value the
+ * server reports as written.
+ *
+ * - hits: a second get of a key, present or missing, is served from the cache;
+ * - invalidation: the puts, multiPuts, increments and appends of another client make the
+ *   cached client read the new value, and count as invalidations;
+ * - own writes: a write through the cached client is visible to its next get at once;
+ * - lease and capacity: an entry is fetched again once its lease expired, and the least
+ *   recently used entries are evicted once the cache is full;
+ * - concurrent writes: another client increments a counter while the cached client reads
+ *   it, which must never see it go back and must see its last value once the writes stop.
+ *
+ * Usage: NearCacheTest [increments] [port]
+ */
+public class NearCacheTest {
+    /* Time an invalidation is given to arrive */
+    private static final long INVALIDATION_TIMEOUT_MILLIS = 5000;
+
+    /* Number of failed checks */
+    private static int failures = 0;
+
+    /**
+     * Main entry point for the test.
+     */
+    public static void main(String[] args) throws Exception {
+        int increments = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 13291;
+
+        Process server = ServerProcesses.start(port, "50", "16", "1");
+        Runtime.getRuntime().addShutdownHook(new Thread(server::destroyForcibly));
+        ServerProcesses.awaitPort(port);
+
+        ClientLibrary cached = new ClientLibrary("localhost", port);
+        ClientLibrary writer = new ClientLibrary("localhost", port);
+        cached.enableNearCache(1000, 60_000);
+        hits(cached, writer);
+        invalidation(cached, writer);
+        ownWrites(cached);
+        leaseAndCapacity(cached, writer, port);
+        concurrentWrites(cached, writer, increments);
+
+        cached.disableNearCache();
+        check(cached.getNearCache() == null, "disable: the near-cache is still enabled");
+        writer.put("after-disable", text("1"));
+        check("1".equals(text(cached.get("after-disable"))), "disable: a get after disabling the cache failed");
+        cached.close();
+        writer.close();
+
+        server.destroyForcibly();
+        Logger.log(failures == 0 ? "Near-cache: all checks passed" : "Near-cache: " + failures + " checks failed",
+                failures == 0 ? Logger.LogLevel.INFO : Logger.LogLevel.ERROR);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static synchronized void check(boolean condition, String message) {
+        if (!condition) {
+            failures++;
+            if (failures <= 20) {
+                Logger.log("Failed: " + message, Logger.LogLevel.ERROR);
+            }
+        }
+    }
+
+    private static byte[] text(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String text(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Reads a key through the cached client until it holds the expected value.
+     */
+    private static boolean awaitValue(ClientLibrary cached, String key, String expected) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + INVALIDATION_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            String value = text(cached.get(key));
+            if (expected == null ? value == null : expected.equals(value)) {
+                return true;
+            }
+            Thread.sleep(5);
+        }
+        return false;
+    }
+
+    private static void hits(ClientLibrary cached, ClientLibrary writer) throws IOException {
+        NearCache cache = cached.getNearCache();
+        writer.put("hit", text("1"));
+        long misses = cache.getMissCount();
+        long hits = cache.getHitCount();
+        check("1".equals(text(cached.get("hit"))), "hits: the first get returned the wrong value");
+        check("1".equals(text(cached.get("hit"))), "hits: the second get returned the wrong value");
+        check(cache.getMissCount() == misses + 1 && cache.getHitCount() == hits + 1,
+                "hits: " + (cache.getMissCount() - misses) + " misses and " + (cache.getHitCount() - hits) + " hits instead of 1 and 1");
+        check(cached.get("hit-missing") == null && cached.get("hit-missing") == null, "hits: a missing key returned a value");
+        check(cache.getHitCount() == hits + 2, "hits: the second get of a missing key was not served from the cache");
+    }
+
+    private static void invalidation(ClientLibrary cached, ClientLibrary writer) throws Exception {
+        NearCache cache = cached.getNearCache();
+        long invalidations = cache.getInvalidationCount();
+
+        writer.put("inv-put", text("old"));
+        cached.get("inv-put");
+        writer.put("inv-put", text("new"));
+        check(awaitValue(cached, "inv-put", "new"), "invalidation: a put of another client was not seen");
+
+        cached.get("inv-missing");
+        writer.put("inv-missing", text("created"));
+        check(awaitValue(cached, "inv-missing", "created"), "invalidation: the creation of a cached missing key was not seen");
+
+        writer.put("inv-multi-1", text("old"));
+        writer.put("inv-multi-2", text("old"));
+        cached.get("inv-multi-1");
+        cached.get("inv-multi-2");
+        Map<String, byte[]> batch = new HashMap<>();
+        batch.put("inv-multi-1", text("new"));
+        batch.put("inv-multi-2", text("new"));
+        writer.multiPut(batch);
+        check(awaitValue(cached, "inv-multi-1", "new") && awaitValue(cached, "inv-multi-2", "new"),
+                "invalidation: a multiPut of another client was not seen");
+
+        writer.increment("inv-counter", 1);
+        cached.get("inv-counter");
+        writer.increment("inv-counter", 1);
+        check(awaitValue(cached, "inv-counter", "2"), "invalidation: an increment of another client was not seen");
+
+        writer.put("inv-append", text("a"));
+        cached.get("inv-append");
+        writer.append("inv-append", text("b"));
+        check(awaitValue(cached, "inv-append", "ab"), "invalidation: an append of another client was not seen");
+
+        check(cache.getInvalidationCount() >= invalidations + 6,
+                "invalidation: " + (cache.getInvalidationCount() - invalidations) + " invalidations counted instead of at least 6");
+    }
+
+    private static void ownWrites(ClientLibrary cached) throws IOException {
+        cached.put("own", text("1"));
+        cached.get("own");
+        cached.put("own", text("2"));
+        check("2".equals(text(cached.get("own"))), "own writes: a put was not seen by the next get");
+        check(cached.compareAndSet("own", text("2"), text("3")), "own writes: the compare-and-set failed");
+        check("3".equals(text(cached.get("own"))), "own writes: a compare-and-set was not seen by the next get");
+        cached.put("own-counter", text("1"));
+        cached.get("own-counter");
+        cached.increment("own-counter", 1);
+        check("2".equals(text(cached.get("own-counter"))), "own writes: an increment was not seen by the next get");
+        cached.append("own-counter", text("0"));
+        check("20".equals(text(cached.get("own-counter"))), "own writes: an append was not seen by the next get");
+        Map<String, byte[]> batch = new HashMap<>();
+        batch.put("own", text("4"));
+        cached.multiPut(batch);
+        check("4".equals(text(cached.get("own"))), "own writes: a multiPut was not seen by the next get");
+    }
+
+    private static void leaseAndCapacity(ClientLibrary cached, ClientLibrary writer, int port) throws Exception {
+        ClientLibrary leased = new ClientLibrary("localhost", port);
+        leased.enableNearCache(4, 100);
+        NearCache cache = leased.getNearCache();
+        writer.put("lease", text("1"));
+        leased.get("lease");
+        long misses = cache.getMissCount();
+        Thread.sleep(200);
+        leased.get("lease");
+        check(cache.getMissCount() == misses + 1, "lease: an expired entry was served from the cache");
+
+        for (int i = 0; i < 10; i++) {
+            leased.get("capacity-" + i);
+        }
+        check(cache.size() <= 4, "capacity: the cache holds " + cache.size() + " entries for a capacity of 4");
+        misses = cache.getMissCount();
+        leased.get("capacity-9");
+        check(cache.getMissCount() == misses, "capacity: the most recently read key was evicted");
+        leased.get("capacity-0");
+        check(cache.getMissCount() == misses + 1, "capacity: the least recently read key was not evicted");
+        leased.close();
+    }
+
+    private static void concurrentWrites(ClientLibrary cached, ClientLibrary writer, int increments) throws Exception {
+        writer.put("racing", text("0"));
+        AtomicBoolean done = new AtomicBoolean();
+        Thread incrementer = new Thread(() -> {
+            try {
+                for (int i = 0; i < increments; i++) {
+                    writer.increment("racing", 1);
+                }
+            } catch (IOException e) {
+                check(false, "concurrent writes: " + e.getMessage());
+            } finally {
+                done.set(true);
+            }
+        });
+        incrementer.start();
+        long last = 0;
+        boolean monotonic = true;
+        while (!done.get()) {
+            long seen = Long.parseLong(text(cached.get("racing")));
+            monotonic &= seen >= last;
+            last = seen;
+        }
+        incrementer.join();
+        check(monotonic, "concurrent writes: the cached client saw the counter go back");
+        check(awaitValue(cached, "racing", Integer.toString(increments)),
+                "concurrent writes: the cached client still reads " + text(cached.get("racing")) + " instead of " + increments);
+        NearCache cache = cached.getNearCache();
+        Logger.log("Near-cache: " + cache.getHitCount() + " hits, " + cache.getMissCount() + " misses, "
+                + cache.getInvalidationCount() + " invalidations", Logger.LogLevel.INFO);
+    }
+}
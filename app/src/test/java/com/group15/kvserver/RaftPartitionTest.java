@@ -0,0 +1,538 @@
+package com.group15.kvserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Kills and partitions the nodes of a consensus group under load, and checks that no
+ * acknowledged write is lost and that no read is stale.
+ *
+ * Starts the nodes as separate processes, each reaching the others through a proxy of
+ * this process, so that links can be cut: a cut link drops every byte, and the
+ * connections that lost bytes are closed once it is restored. Writer threads put
+ * sequential keys under the consensus prefix through any node, and read each write back
+ * through another node right after it is acknowledged. Meanwhile, a schedule drawn from
+ * the seed alternates a fault with a healing: isolating the leader, partitioning a random
+ * minority, killing the leader or a random node, never affecting more than a minority at
+ * once. Killed nodes are restarted on their log. At the end, every acknowledged write must
+ * be readable, no read may have missed an acknowledged write, and every node must have
+ * applied the same log.
+ *
+ * Then compare-and-sets, appends and increments of keys under the prefix are issued
+ * through every node in turn, and their results and values checked through every node,
+ * before and after the leader is killed. A versioned get of such a key must fail without
+ * closing the connection.
+ *
+ * The schedule and the keys are the same for a given seed; the timing of the elections
+ * is not.
+ *
+ * Usage: RaftPartitionTest [nodes] [rounds] [seed] [base-port]
+ */
+public class RaftPartitionTest {
+    private static final String PREFIX = "c/";
+    private static final int WRITERS = 4;
+    private static final long FAULT_MILLIS = 2000;
+    private static final long HEAL_MILLIS = 1500;
+    private static final long CLIENT_TIMEOUT = 3000;
+
+    private static int nodes;
+    private static int basePort;
+    private static Path dataDir;
+    private static Process[] processes;
+    private static LinkProxy[][] proxies;
+
+    /**
+     * Main entry point for the test.
+     */
+    public static void main(String[] args) throws Exception {
+        nodes = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        basePort = args.length > 3 ? Integer.parseInt(args[3]) : 13221;
+        dataDir = Files.createTempDirectory("raft-test-");
+        Random schedule = new Random(seed);
+
+        processes = new Process[nodes];
+        proxies = new LinkProxy[nodes][nodes];
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            for (Process process : processes) {
+                if (process != null) {
+                    process.destroyForcibly();
+                }
+            }
+        }));
+        for (int from = 0; from < nodes; from++) {
+            for (int to = 0; to < nodes; to++) {
+                if (from != to) {
+                    proxies[from][to] = new LinkProxy(proxyPort(from, to), basePort + to);
+                }
+            }
+        }
+        for (int node = 0; node < nodes; node++) {
+            start(node);
+        }
+        for (int node = 0; node < nodes; node++) {
+            ServerProcesses.awaitPort(basePort + node);
+        }
+        Logger.log(nodes + " nodes, logs in " + dataDir + ", seed " + seed, Logger.LogLevel.INFO);
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicLongArray acked = new AtomicLongArray(WRITERS);
+        AtomicLong staleReads = new AtomicLong();
+        AtomicLong retries = new AtomicLong();
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            Thread thread = new Thread(() -> write(writer, running, acked, staleReads, retries), "writer-" + w);
+            thread.start();
+            writers.add(thread);
+        }
+
+        long start = System.nanoTime();
+        Set<Integer> killed = new HashSet<>();
+        for (int round = 0; round < rounds; round++) {
+            int faulty = (nodes - 1) / 2;
+            int leader = findLeader();
+            switch (schedule.nextInt(4)) {
+                case 0:
+                    Logger.log("Round " + round + ": isolating the leader " + leader, Logger.LogLevel.INFO);
+                    if (leader >= 0) {
+                        isolate(Set.of(leader));
+                    }
+                    break;
+                case 1:
+                    Set<Integer> minority = new HashSet<>();
+                    while (minority.size() < faulty) {
+                        minority.add(schedule.nextInt(nodes));
+                    }
+                    Logger.log("Round " + round + ": partitioning " + minority + " from the others", Logger.LogLevel.INFO);
+                    isolate(minority);
+                    break;
+                case 2:
+                    Logger.log("Round " + round + ": killing the leader " + leader, Logger.LogLevel.INFO);
+                    if (leader >= 0) {
+                        kill(leader);
+                        killed.add(leader);
+                    }
+                    break;
+                default:
+                    int victim = schedule.nextInt(nodes);
+                    Logger.log("Round " + round + ": killing node " + victim, Logger.LogLevel.INFO);
+                    kill(victim);
+                    killed.add(victim);
+                    break;
+            }
+            Thread.sleep(FAULT_MILLIS);
+            Logger.log("Round " + round + ": healing", Logger.LogLevel.INFO);
+            healAll();
+            for (int node : killed) {
+                start(node);
+            }
+            killed.clear();
+            Thread.sleep(HEAL_MILLIS);
+        }
+        running.set(false);
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        // Every acknowledged write must be there, read through every node in turn
+        long totalAcked = 0;
+        long lost = 0;
+        for (int w = 0; w < WRITERS; w++) {
+            totalAcked += acked.get(w);
+            ClientLibrary client = new ClientLibrary("localhost", basePort + w % nodes);
+            for (long i = 1; i <= acked.get(w); i++) {
+                byte[] value = client.get(key(w, i));
+                if (value == null || Long.parseLong(new String(value, StandardCharsets.US_ASCII)) != i) {
+                    lost++;
+                }
+            }
+            client.close();
+        }
+
+        int readModifyWriteFailures = checkReadModifyWrites();
+
+        // Every node must end up applying the same log
+        boolean converged = false;
+        List<RaftStatus> statuses = new ArrayList<>();
+        for (int attempt = 0; attempt < 100 && !converged; attempt++) {
+            statuses.clear();
+            for (int node = 0; node < nodes; node++) {
+                ClientLibrary client = new ClientLibrary("localhost", basePort + node);
+                statuses.add(client.getRaftStatus());
+                client.close();
+            }
+            long applied = statuses.get(0).getLastApplied();
+            converged = statuses.stream().allMatch(status -> status.getLastApplied() == applied && status.getCommitIndex() == applied);
+            if (!converged) {
+                Thread.sleep(100);
+            }
+        }
+
+        for (RaftStatus status : statuses) {
+            Logger.log(status.toString(), Logger.LogLevel.INFO);
+        }
+        Logger.log(String.format("Acknowledged writes: %d (%.0f/s), retried: %d, lost: %d, stale reads: %d, "
+                + "failed read-modify-writes: %d, nodes converged: %b", totalAcked, totalAcked / seconds, retries.get(), lost,
+                staleReads.get(), readModifyWriteFailures, converged), Logger.LogLevel.INFO);
+        for (Process process : processes) {
+            process.destroyForcibly();
+        }
+        System.exit(lost == 0 && staleReads.get() == 0 && readModifyWriteFailures == 0 && converged && totalAcked > 0 ? 0 : 1);
+    }
+
+    /**
+     * Runs compare-and-sets, appends and increments of keys under the prefix through every
+     * node in turn, followers forwarding them to the leader, and checks their results and
+     * that every node reads the same values, then again once the leader was killed and
+     * restarted.
+     *
+     * @return The number of failed checks.
+     */
+    private static int checkReadModifyWrites() throws IOException, InterruptedException {
+        String casKey = PREFIX + "cas";
+        String appendKey = PREFIX + "append";
+        String counterKey = PREFIX + "counter";
+        int failures = 0;
+        for (int node = 0; node < nodes; node++) {
+            ClientLibrary client = new ClientLibrary("localhost", basePort + node);
+            byte[] expected = node == 0 ? null : Integer.toString(node - 1).getBytes(StandardCharsets.US_ASCII);
+            byte[] value = Integer.toString(node).getBytes(StandardCharsets.US_ASCII);
+            if (!client.compareAndSet(casKey, expected, value)) {
+                Logger.log("Compare-and-set through node " + node + " failed", Logger.LogLevel.ERROR);
+                failures++;
+            }
+            // The value was just replaced, so the same compare-and-set must now fail
+            if (client.compareAndSet(casKey, expected, value)) {
+                Logger.log("Stale compare-and-set through node " + node + " succeeded", Logger.LogLevel.ERROR);
+                failures++;
+            }
+            int length = client.append(appendKey, new byte[] {(byte) ('a' + node)});
+            if (length != node + 1) {
+                Logger.log("Append through node " + node + " returned " + length, Logger.LogLevel.ERROR);
+                failures++;
+            }
+            long counter = client.increment(counterKey, 2);
+            if (counter != 2L * (node + 1)) {
+                Logger.log("Increment through node " + node + " returned " + counter, Logger.LogLevel.ERROR);
+                failures++;
+            }
+            // Versions are local to each node, so a versioned get fails, on its own
+            try {
+                client.getVersioned(casKey);
+                Logger.log("Versioned get of a consensus key through node " + node + " answered", Logger.LogLevel.ERROR);
+                failures++;
+            } catch (IOException e) {
+                if (!client.isConnected()) {
+                    Logger.log("Refusing a versioned get closed the connection to node " + node, Logger.LogLevel.ERROR);
+                    failures++;
+                }
+            }
+            client.close();
+        }
+        failures += checkReadModifyWriteValues(casKey, appendKey, counterKey);
+
+        // The results must survive the loss of the leader, applied again from its log on restart
+        int leader = findLeader();
+        Logger.log("Killing the leader " + leader + " after the read-modify-writes", Logger.LogLevel.INFO);
+        if (leader >= 0) {
+            kill(leader);
+            failures += checkReadModifyWriteValues(casKey, appendKey, counterKey);
+            start(leader);
+            ServerProcesses.awaitPort(basePort + leader);
+        }
+        return failures;
+    }
+
+    /**
+     * Reads the keys of the read-modify-writes through every live node.
+     *
+     * @return The number of nodes that read other values than expected.
+     */
+    private static int checkReadModifyWriteValues(String casKey, String appendKey, String counterKey) {
+        StringBuilder appended = new StringBuilder();
+        for (int node = 0; node < nodes; node++) {
+            appended.append((char) ('a' + node));
+        }
+        String cas = Integer.toString(nodes - 1);
+        String counter = Long.toString(2L * nodes);
+        int failures = 0;
+        for (int node = 0; node < nodes; node++) {
+            if (!processes[node].isAlive()) {
+                continue;
+            }
+            try {
+                ClientLibrary client = new ClientLibrary("localhost", basePort + node);
+                byte[] casValue = client.get(casKey);
+                byte[] appendValue = client.get(appendKey);
+                byte[] counterValue = client.get(counterKey);
+                client.close();
+                if (casValue == null || !cas.equals(new String(casValue, StandardCharsets.US_ASCII))
+                        || appendValue == null || !appended.toString().equals(new String(appendValue, StandardCharsets.US_ASCII))
+                        || counterValue == null || !counter.equals(new String(counterValue, StandardCharsets.US_ASCII))) {
+                    Logger.log("Node " + node + " reads other values after the read-modify-writes", Logger.LogLevel.ERROR);
+                    failures++;
+                }
+            } catch (IOException e) {
+                Logger.log("Node " + node + " failed to read after the read-modify-writes: " + e.getMessage(), Logger.LogLevel.ERROR);
+                failures++;
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Puts the keys of a writer in sequence, moving to another node whenever one does not
+     * answer, and reads each key back through the next node once it is acknowledged.
+     */
+    private static void write(int writer, AtomicBoolean running, AtomicLongArray acked, AtomicLong staleReads, AtomicLong retries) {
+        int node = writer % nodes;
+        ClientLibrary client = null;
+        ClientLibrary reader = null;
+        long i = 1;
+        while (running.get()) {
+            try {
+                if (client == null) {
+                    client = new ClientLibrary("localhost", basePort + node);
+                    reader = new ClientLibrary("localhost", basePort + (node + 1) % nodes);
+                }
+                byte[] value = Long.toString(i).getBytes(StandardCharsets.US_ASCII);
+                client.putAsync(key(writer, i), value).get(CLIENT_TIMEOUT, TimeUnit.MILLISECONDS);
+                acked.set(writer, i);
+                try {
+                    byte[] read = reader.getAsync(key(writer, i)).get(CLIENT_TIMEOUT, TimeUnit.MILLISECONDS);
+                    if (read == null) {
+                        Logger.log("Stale read of " + key(writer, i), Logger.LogLevel.ERROR);
+                        staleReads.incrementAndGet();
+                    }
+                } catch (TimeoutException | java.util.concurrent.ExecutionException e) {
+                    // The reading node is unavailable, only answered reads are checked
+                }
+                i++;
+            } catch (Exception e) {
+                // The node is unavailable: the same write is retried through the next one
+                retries.incrementAndGet();
+                abort(client);
+                abort(reader);
+                client = null;
+                reader = null;
+                node = (node + 1) % nodes;
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+        abort(client);
+        abort(reader);
+    }
+
+    private static void abort(ClientLibrary client) {
+        if (client != null) {
+            try {
+                client.abort();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+    }
+
+    private static String key(int writer, long i) {
+        return PREFIX + writer + "-" + i;
+    }
+
+    private static int proxyPort(int from, int to) {
+        return basePort + 100 + from * nodes + to;
+    }
+
+    /**
+     * Returns the leader most nodes agree on, -1 if none.
+     */
+    private static int findLeader() {
+        for (int node = 0; node < nodes; node++) {
+            try {
+                ClientLibrary client = new ClientLibrary("localhost", basePort + node);
+                RaftStatus status = client.getRaftStatus();
+                client.close();
+                if (status.getRole() == RaftStatus.ROLE_LEADER) {
+                    return node;
+                }
+            } catch (IOException e) {
+                // Dead node
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Cuts every link between the given nodes and the others.
+     */
+    private static void isolate(Set<Integer> group) {
+        for (int from = 0; from < nodes; from++) {
+            for (int to = 0; to < nodes; to++) {
+                if (from != to && group.contains(from) != group.contains(to)) {
+                    proxies[from][to].setBlocked(true);
+                }
+            }
+        }
+    }
+
+    private static void healAll() {
+        for (int from = 0; from < nodes; from++) {
+            for (int to = 0; to < nodes; to++) {
+                if (from != to) {
+                    proxies[from][to].setBlocked(false);
+                }
+            }
+        }
+    }
+
+    private static void kill(int node) throws InterruptedException {
+        processes[node].destroyForcibly().waitFor();
+    }
+
+    /**
+     * Starts a node in a new process, with the classpath of this one, reaching the other
+     * nodes through the proxies.
+     */
+    private static void start(int node) throws IOException {
+        List<String> members = new ArrayList<>();
+        for (int other = 0; other < nodes; other++) {
+            members.add("localhost:" + (other == node ? basePort + node : proxyPort(node, other)));
+        }
+        File log = dataDir.resolve("server-" + node + ".log").toFile();
+        processes[node] = ServerProcesses.start(ProcessBuilder.Redirect.appendTo(log), basePort + node, "50", "16", "1",
+                "--raft=" + String.join(";", members), "--raft-id=" + node, "--raft-prefix=" + PREFIX, "--raft-dir=" + dataDir);
+    }
+
+    /**
+     * A one-way link between two nodes that can be cut. While cut, the bytes sent either
+     * way are dropped; once restored, the connections that dropped bytes are closed, since
+     * their frames are broken.
+     */
+    private static class LinkProxy {
+        private final int target;
+        private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+        private volatile boolean blocked = false;
+
+        private class Connection {
+            final Socket client;
+            final Socket server;
+            volatile boolean broken = false;
+
+            Connection(Socket client, Socket server) {
+                this.client = client;
+                this.server = server;
+            }
+
+            void pump(InputStream in, OutputStream out) {
+                byte[] buffer = new byte[64 * 1024];
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) >= 0) {
+                        if (blocked) {
+                            broken = true;
+                        } else if (!broken) {
+                            out.write(buffer, 0, read);
+                            out.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    // Either side closed
+                } finally {
+                    close();
+                }
+            }
+
+            void close() {
+                connections.remove(this);
+                try {
+                    client.close();
+                    server.close();
+                } catch (IOException e) {
+                    // Already closed
+                }
+            }
+        }
+
+        LinkProxy(int port, int target) throws IOException {
+            this.target = target;
+            ServerSocket listener = new ServerSocket(port);
+            Thread acceptor = new Thread(() -> {
+                while (true) {
+                    try {
+                        Socket client = listener.accept();
+                        Socket server;
+                        try {
+                            server = new Socket("localhost", this.target);
+                        } catch (IOException e) {
+                            client.close();
+                            continue;
+                        }
+                        client.setTcpNoDelay(true);
+                        server.setTcpNoDelay(true);
+                        Connection connection = new Connection(client, server);
+                        connections.add(connection);
+                        startDaemon(() -> connection.pump(client.getInputStream(), server.getOutputStream()));
+                        startDaemon(() -> connection.pump(server.getInputStream(), client.getOutputStream()));
+                    } catch (IOException e) {
+                        Logger.log(e.getMessage(), Logger.LogLevel.ERROR);
+                    }
+                }
+            }, "proxy-" + port);
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        void setBlocked(boolean blocked) {
+            this.blocked = blocked;
+            if (!blocked) {
+                for (Connection connection : connections) {
+                    if (connection.broken) {
+                        connection.close();
+                    }
+                }
+            }
+        }
+
+        @FunctionalInterface
+        private interface IORunnable {
+            void run() throws IOException;
+        }
+
+        private static void startDaemon(IORunnable runnable) {
+            Thread thread = new Thread(() -> {
+                try {
+                    runnable.run();
+                } catch (IOException e) {
+                    // The connection closed before it started
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Kills a primary under load and promotes one of its followers.
+ *
+ * Starts a primary and two followers as separate processes, has writer threads put
+ * sequential keys on the primary, kills the primary, promotes the first follower and
+ * checks what it holds: the keys of each writer must be a gap-free prefix of what the
+ * writer wrote, every acknowledged write missing from it was lost by the asynchronous
+ * replication, and the replication lag reported just before the kill bounds that loss.
+ * Finally checks that the writes made on the new primary reach the remaining follower,
+ * whose keys must then match the new primary's even where it had received more writes
+ * from the old one, and that the remaining follower refuses client writes.
+ *
+ * Usage: ReplicationFailoverTest [load-millis] [writers] [base-port]
+ */
+public class ReplicationFailoverTest {
+    /**
+     * Main entry point for the test.
+     */
+    public static void main(String[] args) throws Exception {
+        long loadMillis = args.length > 0 ? Long.parseLong(args[0]) : 3000;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int basePort = args.length > 2 ? Integer.parseInt(args[2]) : 13201;
+        String primaryNode = "localhost:" + basePort;
+        String follower1 = "localhost:" + (basePort + 1);
+        String follower2 = "localhost:" + (basePort + 2);
+
+        List<Process> processes = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> processes.forEach(Process::destroyForcibly)));
+        processes.add(ServerProcesses.start(basePort + 1, "20", "16", "1", "--follower"));
+        processes.add(ServerProcesses.start(basePort + 2, "20", "16", "1", "--follower"));
+        Process primary = ServerProcesses.start(basePort, "20", "16", "1", "--followers=" + follower1 + ";" + follower2);
+        processes.add(primary);
+        ServerProcesses.awaitPort(basePort);
+        ServerProcesses.awaitPort(basePort + 1);
+        ServerProcesses.awaitPort(basePort + 2);
+
+        ClientLibrary client = new ClientLibrary("localhost", basePort);
+        client.register("failover", "secret");
+
+        // Writers put k<writer>-<i> = i until the primary dies
+        AtomicLongArray acked = new AtomicLongArray(writers);
+        AtomicBoolean primaryAlive = new AtomicBoolean(true);
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            Thread thread = new Thread(() -> {
+                try {
+                    for (long i = 1; primaryAlive.get(); i++) {
+                        client.put(key(writer, i), Long.toString(i).getBytes(StandardCharsets.US_ASCII));
+                        acked.set(writer, i);
+                    }
+                } catch (IOException e) {
+                    // The primary was killed
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        Thread.sleep(loadMillis);
+        ReplicationStatus before = client.getReplicationStatus();
+        primaryAlive.set(false);
+        primary.destroyForcibly().waitFor();
+        long killedAt = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        client.abort();
+        Logger.log("Before the kill: " + before, Logger.LogLevel.INFO);
+
+        ClientLibrary promoted = new ClientLibrary("localhost", basePort + 1);
+        promoted.promote(List.of(follower2));
+        double failoverMillis = (System.nanoTime() - killedAt) / 1e6;
+
+        long totalAcked = 0;
+        long totalLost = 0;
+        long[] presentOnPromoted = new long[writers];
+        boolean consistent = true;
+        for (int w = 0; w < writers; w++) {
+            long ackedWrites = acked.get(w);
+            long present = lastPresent(promoted, w, ackedWrites + 1);
+            presentOnPromoted[w] = present;
+            for (long i = 1; i <= present && consistent; i += Math.max(1, present / 100)) {
+                byte[] value = promoted.get(key(w, i));
+                consistent = value != null && Long.parseLong(new String(value, StandardCharsets.US_ASCII)) == i;
+            }
+            totalAcked += ackedWrites;
+            totalLost += Math.max(0, ackedWrites - present);
+        }
+        boolean userReplicated = promoted.authenticate("failover", "secret");
+
+        // Writes on the new primary must reach the remaining follower
+        promoted.put("after-failover", "1".getBytes(StandardCharsets.US_ASCII));
+        ClientLibrary remaining = new ClientLibrary("localhost", basePort + 2);
+        boolean propagated = false;
+        for (int attempt = 0; attempt < 100 && !propagated; attempt++) {
+            propagated = remaining.get("after-failover") != null;
+            if (!propagated) {
+                Thread.sleep(50);
+            }
+        }
+        // The snapshot was applied before the write above, and replaced what the old primary sent
+        boolean matching = true;
+        for (int w = 0; w < writers; w++) {
+            matching &= lastPresent(remaining, w, acked.get(w) + 1) == presentOnPromoted[w];
+        }
+        boolean refused;
+        try {
+            remaining.put("on-follower", "1".getBytes(StandardCharsets.US_ASCII));
+            refused = false;
+        } catch (IOException e) {
+            refused = remaining.isConnected() && remaining.get("on-follower") == null;
+        }
+
+        Logger.log("After the promotion: " + promoted.getReplicationStatus(), Logger.LogLevel.INFO);
+        Logger.log(String.format("Acknowledged writes: %d, lost: %d (%.3f%%), failover: %.0f ms",
+                totalAcked, totalLost, 100.0 * totalLost / Math.max(1, totalAcked), failoverMillis), Logger.LogLevel.INFO);
+        Logger.log("Gap-free and correct values: " + consistent + ", user replicated: " + userReplicated
+                + ", new writes reach the remaining follower: " + propagated + ", its keys match: " + matching
+                + ", it refuses writes: " + refused, Logger.LogLevel.INFO);
+
+        promoted.close();
+        remaining.close();
+        processes.forEach(Process::destroyForcibly);
+        System.exit(consistent && userReplicated && propagated && matching && refused ? 0 : 1);
+    }
+
+    private static String key(int writer, long i) {
+        return "k" + writer + "-" + i;
+    }
+
+    /**
+     * Finds the last key of a writer held by the server, given that they form a prefix.
+     */
+    private static long lastPresent(ClientLibrary client, int writer, long upperBound) throws IOException {
+        long low = 0;
+        long high = upperBound;
+        while (low < high) {
+            long middle = (low + high + 1) / 2;
+            Set<String> keys = new HashSet<>(List.of(key(writer, middle)));
+            Map<String, byte[]> found = client.multiGet(keys);
+            if (found.isEmpty()) {
+                high = middle - 1;
+            } else {
+                low = middle;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,90 @@
+package com.group15.kvserver;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Starts servers in separate processes for the tests and benchmarks, and waits for them
+ * to accept connections.
+ */
+final class ServerProcesses {
+    /* Number of times a port is probed, 100 ms apart, before giving up */
+    private static final int PROBES = 100;
+
+    private ServerProcesses() {
+    }
+
+    /**
+     * Starts a server in a new process, with the classpath of this one, logging to a new
+     * temporary file.
+     *
+     * @param port The port the server listens on.
+     * @param maxClients The maximum number of clients.
+     * @param databaseShards The number of database shards.
+     * @param userShards The number of user shards.
+     * @param options Further options of the server.
+     * @return The process.
+     */
+    static Process start(int port, String maxClients, String databaseShards, String userShards, String... options)
+            throws IOException {
+        File log = File.createTempFile("server-" + port + "-", ".log");
+        Logger.log("Server on port " + port + " logs to " + log, Logger.LogLevel.INFO);
+        return start(ProcessBuilder.Redirect.to(log), port, maxClients, databaseShards, userShards, options);
+    }
+
+    /**
+     * Starts a server in a new process, with the classpath of this one.
+     *
+     * @param log Where the output of the server goes.
+     * @param port The port the server listens on.
+     * @param maxClients The maximum number of clients.
+     * @param databaseShards The number of database shards.
+     * @param userShards The number of user shards.
+     * @param options Further options of the server.
+     * @return The process.
+     */
+    static Process start(ProcessBuilder.Redirect log, int port, String maxClients, String databaseShards, String userShards,
+            String... options) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(ProcessHandle.current().info().command().orElse("java"));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Server.class.getName());
+        command.add(maxClients);
+        command.add(databaseShards);
+        command.add(userShards);
+        command.add("--port=" + port);
+        command.addAll(List.of(options));
+        return new ProcessBuilder(command).redirectErrorStream(true).redirectOutput(log).start();
+    }
+
+    /**
+     * Waits until a server accepts connections.
+     *
+     * @param port The port of the server.
+     * @throws IllegalStateException If the server did not accept a connection in 10 seconds.
+     */
+    static void awaitPort(int port) throws InterruptedException {
+        for (int attempt = 0; attempt < PROBES; attempt++) {
+            Socket probe;
+            try {
+                probe = new Socket("localhost", port);
+            } catch (IOException e) {
+                Thread.sleep(100);
+                continue;
+            }
+            try {
+                probe.close();
+            } catch (IOException e) {
+                // The server accepted the connection, which is all that was checked
+            }
+            return;
+        }
+        throw new IllegalStateException("Server on port " + port + " did not start");
+    }
+}
@@ -0,0 +1,134 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Checks that the shard advisor of a server whose keys all fall into one of its shards
+ * recommends another shard count, and that resharding the live server keeps every write.
+ *
+ * Starts a server with four shards and the advisor applying its advice, then runs writer
+ * threads with puts and multiPuts over keys of their own, all chosen with a hash code
+ * that is a multiple of four, while polling the shard stats. Once the server has
+ * resharded, to a prime count, the writers go on for a while, then every key is read back
+ * and compared with the last value written to it. The shard stats of the server are
+ * printed at the end.
+ *
+ * Usage: ShardAdvisorTest [max-seconds] [writers] [port]
+ */
+public class ShardAdvisorTest {
+    private static final int SHARDS = 4;
+    private static final int KEYS_PER_WRITER = 500;
+
+    /**
+     * Main entry point for the test.
+     */
+    public static void main(String[] args) throws Exception {
+        int maxSeconds = args.length > 0 ? Integer.parseInt(args[0]) : 60;
+        int writers = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+        int port = args.length > 2 ? Integer.parseInt(args[2]) : 13251;
+
+        Process server = ServerProcesses.start(port, "50", Integer.toString(SHARDS), "1", "--shard-advisor=500", "--shard-advisor-apply");
+        Runtime.getRuntime().addShutdownHook(new Thread(server::destroyForcibly));
+        ServerProcesses.awaitPort(port);
+
+        // The last value written to each key, by writer
+        List<Map<String, byte[]>> written = new ArrayList<>();
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicLong operations = new AtomicLong();
+        AtomicLong failures = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < writers; w++) {
+            final int writer = w;
+            Map<String, byte[]> values = new HashMap<>();
+            written.add(values);
+            List<String> keys = new ArrayList<>();
+            for (int i = 0; keys.size() < KEYS_PER_WRITER; i++) {
+                String key = "w" + writer + "-" + i;
+                if (Math.abs(key.hashCode()) % SHARDS == 0) {
+                    keys.add(key);
+                }
+            }
+            Thread thread = new Thread(() -> {
+                Random random = new Random(writer);
+                try {
+                    ClientLibrary client = new ClientLibrary("localhost", port);
+                    for (long i = 0; !stop.get(); i++) {
+                        if (random.nextInt(4) == 0) {
+                            Map<String, byte[]> batch = new HashMap<>();
+                            for (int k = 0; k < 8; k++) {
+                                String key = keys.get(random.nextInt(KEYS_PER_WRITER));
+                                batch.put(key, (key + "=" + i).getBytes(StandardCharsets.US_ASCII));
+                            }
+                            client.multiPut(batch);
+                            values.putAll(batch);
+                        } else {
+                            String key = keys.get(random.nextInt(KEYS_PER_WRITER));
+                            byte[] value = (key + "=" + i).getBytes(StandardCharsets.US_ASCII);
+                            client.put(key, value);
+                            values.put(key, value);
+                        }
+                        operations.incrementAndGet();
+                    }
+                    client.close();
+                } catch (IOException e) {
+                    Logger.log("Writer " + writer + " failed: " + e.getMessage(), Logger.LogLevel.ERROR);
+                    failures.incrementAndGet();
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        ClientLibrary client = new ClientLibrary("localhost", port);
+        long deadline = System.nanoTime() + maxSeconds * 1_000_000_000L;
+        ShardStats stats = client.getShardStats();
+        while (stats.getShardCount() == SHARDS && System.nanoTime() < deadline && failures.get() == 0) {
+            Thread.sleep(500);
+            stats = client.getShardStats();
+        }
+        long reshardedAfter = operations.get();
+        Thread.sleep(2000);
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int lost = 0;
+        for (Map<String, byte[]> values : written) {
+            Map<String, byte[]> stored = client.multiGet(values.keySet());
+            for (Map.Entry<String, byte[]> entry : values.entrySet()) {
+                if (!Arrays.equals(stored.get(entry.getKey()), entry.getValue())) {
+                    Logger.log("Key " + entry.getKey() + " lost its last write", Logger.LogLevel.ERROR);
+                    lost++;
+                }
+            }
+        }
+        stats = client.getShardStats();
+        System.out.println(stats);
+        Set<String> keys = new java.util.HashSet<>();
+        written.forEach(values -> keys.addAll(values.keySet()));
+        long stored = 0;
+        for (int shard = 0; shard < stats.getShardCount(); shard++) {
+            stored += stats.getShard(shard).getKeys();
+        }
+
+        Logger.log(String.format("Shards: %d, operations: %d (%d before resharding), keys: %d written, %d stored, lost writes: %d",
+                stats.getShardCount(), operations.get(), reshardedAfter, keys.size(), stored, lost), Logger.LogLevel.INFO);
+        client.close();
+        server.destroyForcibly();
+        boolean passed = stats.getShardCount() != SHARDS && lost == 0 && stored == keys.size() && failures.get() == 0;
+        System.exit(passed ? 0 : 1);
+    }
+}
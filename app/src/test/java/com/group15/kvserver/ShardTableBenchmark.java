@@ -0,0 +1,141 @@
+package com.group15.kvserver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Compares the memory per entry and the put/get throughput of a ShardTable with the
+ * HashMap layout the shards used before (one map for the values and one for the versions).
+ *
+ * Usage: ShardTableBenchmark [entries] [value-size]
+ */
+public class ShardTableBenchmark {
+    /* Number of times each throughput measurement is repeated, the best one is kept */
+    private static final int ROUNDS = 5;
+
+    /**
+     * Main entry point for the benchmark.
+     */
+    public static void main(String[] args) {
+        int entries = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int valueSize = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        String[] keys = new String[entries];
+        byte[][] values = new byte[entries][];
+        Random random = new Random(42);
+        for (int i = 0; i < entries; i++) {
+            keys[i] = "key" + i;
+            values[i] = new byte[valueSize];
+            random.nextBytes(values[i]);
+        }
+        // Puts and lookups use copies of the keys, as the server decodes a new String for
+        // every request and its hash code is not cached yet
+        String[] lookups = new String[entries];
+        for (int i = 0; i < entries; i++) {
+            lookups[i] = new String(keys[random.nextInt(entries)]);
+        }
+
+        Logger.log("Entries: " + entries + ", value size: " + valueSize + " bytes", Logger.LogLevel.INFO);
+
+        // Memory: keys and values are shared by both layouts and excluded, except for the
+        // key bytes the ShardTable copies into its slab
+        long before = usedMemory();
+        Map<String, byte[]> hashMap = new HashMap<>();
+        Map<String, Long> hashMapVersions = new HashMap<>();
+        for (int i = 0; i < entries; i++) {
+            hashMap.put(keys[i], values[i]);
+            hashMapVersions.put(keys[i], (long) i + 1000);
+        }
+        long hashMapBytes = usedMemory() - before;
+        // The String objects of the keys only exist in the HashMap layout
+        long keyStringBytes = 0;
+        for (String key : keys) {
+            keyStringBytes += 24 + 16 + align8(key.length());
+        }
+        hashMap = null;
+        hashMapVersions = null;
+
+        before = usedMemory();
+        ShardTable table = new ShardTable();
+        for (int i = 0; i < entries; i++) {
+            table.put(keys[i], values[i], (long) i + 1000);
+        }
+        long tableBytes = usedMemory() - before;
+
+        Logger.log(String.format("HashMap values+versions: %.1f bytes/entry (+%.1f for the key Strings)",
+                (double) hashMapBytes / entries, (double) keyStringBytes / entries), Logger.LogLevel.INFO);
+        Logger.log(String.format("ShardTable:              %.1f bytes/entry (key bytes included)",
+                (double) tableBytes / entries), Logger.LogLevel.INFO);
+        table = null;
+
+        // Throughput
+        double hashMapPut = 0, hashMapGet = 0, tablePut = 0, tableGet = 0;
+        long checksum = 0;
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            Map<String, byte[]> map = new HashMap<>();
+            Map<String, Long> versions = new HashMap<>();
+            for (int i = 0; i < entries; i++) {
+                map.put(new String(keys[i]), values[i]);
+                versions.put(keys[i], (long) i);
+            }
+            hashMapPut = Math.max(hashMapPut, opsPerSecond(entries, start));
+
+            start = System.nanoTime();
+            for (int i = 0; i < entries; i++) {
+                checksum += map.get(new String(lookups[i])).length;
+            }
+            hashMapGet = Math.max(hashMapGet, opsPerSecond(entries, start));
+
+            start = System.nanoTime();
+            ShardTable shard = new ShardTable();
+            for (int i = 0; i < entries; i++) {
+                shard.put(new String(keys[i]), values[i], i);
+            }
+            tablePut = Math.max(tablePut, opsPerSecond(entries, start));
+
+            start = System.nanoTime();
+            for (int i = 0; i < entries; i++) {
+                checksum += shard.get(new String(lookups[i])).length;
+            }
+            tableGet = Math.max(tableGet, opsPerSecond(entries, start));
+        }
+
+        Logger.log(String.format("HashMap put: %.2f Mops/s, get: %.2f Mops/s", hashMapPut / 1e6, hashMapGet / 1e6), Logger.LogLevel.INFO);
+        Logger.log(String.format("ShardTable put: %.2f Mops/s, get: %.2f Mops/s", tablePut / 1e6, tableGet / 1e6), Logger.LogLevel.INFO);
+        Logger.log("Checksum: " + checksum, Logger.LogLevel.DEBUG);
+    }
+
+    /**
+     * Returns the heap in use after a few garbage collections.
+     */
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Rounds a byte count up to the 8-byte object alignment.
+     */
+    private static long align8(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * Computes the operations per second since a start time.
+     */
+    private static double opsPerSecond(int operations, long startNanos) {
+        return operations * 1e9 / (System.nanoTime() - startNanos);
+    }
+}
@@ -0,0 +1,190 @@
+package com.group15.kvserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Checks the shard table against a HashMap holding the same entries.
+ *
+ * - churn: random puts of new and existing keys, ASCII and not, every lookup, the size,
+ *   the byte counts and the key list compared with the HashMap as it goes;
+ * - wrapped runs: keys built to share the last home slots of the table, so that their
+ *   probe sequence wraps around to the first slots, overwritten and looked up, before and
+ *   after the table grows;
+ * - resizes: a table grown from its smallest capacity to a million keys, every key
+ *   checked after each time it doubled, over several slab pages.
+ *
+ * Keys are never removed from a shard table, so there is no delete to check.
+ *
+ * Usage: ShardTableTest [seed]
+ */
+public class ShardTableTest {
+    /* Number of failed checks */
+    private static int failures = 0;
+
+    /**
+     * Main entry point for the test.
+     */
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 42;
+        churn(new Random(seed));
+        wrappedRuns();
+        resizes();
+        Logger.log(failures == 0 ? "Shard table: all checks passed" : "Shard table: " + failures + " checks failed",
+                failures == 0 ? Logger.LogLevel.INFO : Logger.LogLevel.ERROR);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition) {
+            failures++;
+            if (failures <= 20) {
+                Logger.log("Failed: " + message, Logger.LogLevel.ERROR);
+            }
+        }
+    }
+
+    private static final class Entry {
+        final byte[] value;
+        final long version;
+
+        Entry(byte[] value, long version) {
+            this.value = value;
+            this.version = version;
+        }
+    }
+
+    /**
+     * Compares every key of the universe, present or not, with the oracle.
+     */
+    private static void compare(ShardTable table, Map<String, Entry> oracle, List<String> universe, String phase) {
+        check(table.size() == oracle.size(), phase + ": size " + table.size() + " instead of " + oracle.size());
+        long keyBytes = 0;
+        long valueBytes = 0;
+        for (Map.Entry<String, Entry> entry : oracle.entrySet()) {
+            keyBytes += entry.getKey().getBytes(StandardCharsets.UTF_8).length;
+            valueBytes += entry.getValue().value.length;
+        }
+        check(table.keyBytes() == keyBytes, phase + ": key bytes " + table.keyBytes() + " instead of " + keyBytes);
+        check(table.valueBytes() == valueBytes, phase + ": value bytes " + table.valueBytes() + " instead of " + valueBytes);
+        for (String key : universe) {
+            Entry expected = oracle.get(key);
+            byte[] value = table.get(key);
+            if (expected == null) {
+                check(value == null && !table.containsKey(key) && table.getVersion(key) == 0, phase + ": absent key " + key + " found");
+            } else {
+                check(Arrays.equals(value, expected.value) && table.containsKey(key), phase + ": wrong value for " + key);
+                check(table.getVersion(key) == expected.version, phase + ": wrong version for " + key);
+            }
+        }
+        List<String> keys = table.keys();
+        check(keys.size() == oracle.size() && new HashSet<>(keys).equals(oracle.keySet()), phase + ": key list differs");
+    }
+
+    private static void churn(Random random) {
+        List<String> universe = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            // A tenth of the keys are not ASCII, so they are encoded before being hashed
+            universe.add(i % 10 == 0 ? "cl\u00e9-" + i + "-\u4e2d" : "key-" + i);
+        }
+        ShardTable table = new ShardTable();
+        Map<String, Entry> oracle = new HashMap<>();
+        long version = 0;
+        for (int round = 1; round <= 20_000; round++) {
+            String key = universe.get(random.nextInt(universe.size()));
+            byte[] value = new byte[random.nextInt(64)];
+            random.nextBytes(value);
+            version++;
+            boolean added = table.put(key, value, version);
+            check(added == !oracle.containsKey(key), "churn: put of " + key + " returned " + added);
+            oracle.put(key, new Entry(value, version));
+            if (round % 2000 == 0) {
+                compare(table, oracle, universe, "churn round " + round);
+            }
+        }
+    }
+
+    /**
+     * Builds keys whose home slot in a table of the given capacity is one of the given slots.
+     */
+    private static List<String> keysHomedAt(String prefix, int capacity, int count, int... slots) {
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; keys.size() < count; i++) {
+            String key = prefix + i;
+            int home = ShardTable.hashAscii(key) & (capacity - 1);
+            for (int slot : slots) {
+                if (home == slot) {
+                    keys.add(key);
+                    break;
+                }
+            }
+        }
+        return keys;
+    }
+
+    private static void wrappedRuns() {
+        // A new table has 16 slots and grows past 11 entries
+        List<String> universe = new ArrayList<>(keysHomedAt("wrap-", 16, 6, 14, 15));
+        universe.addAll(keysHomedAt("start-", 16, 3, 0, 1));
+        universe.addAll(keysHomedAt("absent-", 16, 4, 15, 0));
+        ShardTable table = new ShardTable();
+        Map<String, Entry> oracle = new HashMap<>();
+        long version = 0;
+        for (String key : universe.subList(0, 9)) {
+            version++;
+            table.put(key, new byte[] {(byte) version}, version);
+            oracle.put(key, new Entry(new byte[] {(byte) version}, version));
+            compare(table, oracle, universe, "wrapped run, after adding " + key);
+        }
+        // Overwrites in the middle and at the end of the run
+        for (String key : List.of(universe.get(3), universe.get(8), universe.get(0))) {
+            version++;
+            table.put(key, new byte[] {1, 2, (byte) version}, version);
+            oracle.put(key, new Entry(new byte[] {1, 2, (byte) version}, version));
+        }
+        compare(table, oracle, universe, "wrapped run, after overwrites");
+
+        // Keys wrapping around the end of the 32 slots the table grows to
+        List<String> more = keysHomedAt("grown-", 32, 6, 31);
+        universe.addAll(more);
+        for (String key : more) {
+            version++;
+            table.put(key, new byte[] {(byte) version}, version);
+            oracle.put(key, new Entry(new byte[] {(byte) version}, version));
+        }
+        compare(table, oracle, universe, "wrapped run, after growing");
+    }
+
+    private static void resizes() {
+        int keys = 1_000_000;
+        ShardTable table = new ShardTable();
+        List<String> inserted = new ArrayList<>();
+        int nextCheck = 12;
+        for (int i = 0; i < keys; i++) {
+            // Long enough keys to fill several slab pages
+            String key = "resize-key-" + i;
+            table.put(key, new byte[] {(byte) i, (byte) (i >>> 8)}, i + 1L);
+            inserted.add(key);
+            if (i + 1 == nextCheck || i == keys - 1) {
+                // Right after the table doubled
+                boolean ok = table.size() == inserted.size();
+                for (int j = 0; j < inserted.size() && ok; j++) {
+                    byte[] value = table.get(inserted.get(j));
+                    ok = value != null && value[0] == (byte) j && value[1] == (byte) (j >>> 8) && table.getVersion(inserted.get(j)) == j + 1L;
+                }
+                check(ok, "resize: a key is missing or wrong with " + inserted.size() + " keys");
+                nextCheck = nextCheck * 2;
+            }
+        }
+        check(table.keyBytes() > 2 << 20, "resize: the keys should span several slab pages");
+        check(table.get("resize-key-" + keys) == null, "resize: absent key found");
+    }
+}
@@ -0,0 +1,153 @@
+package com.group15.kvserver;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Measures the tail latency of reads with and without hedging, on nodes that pause.
+ *
+ * Starts a primary and two followers as separate processes, each stalling at random
+ * times, loads keys through the primary, then runs the same closed-loop read load three
+ * times: against the primary alone, spread over the replicas within the staleness bound,
+ * and spread over the replicas with hedging. Reads are gets, with one multiGet of eight
+ * keys in ten. Prints the latency percentiles of each run and fails if hedging does not
+ * lower the p99.9.
+ *
+ * Usage: TailLatencyBenchmark [run-millis] [readers] [pause-interval-millis]
+ *        [pause-duration-millis] [base-port]
+ */
+public class TailLatencyBenchmark {
+    private static final int KEYS = 10000;
+    private static final long MAX_STALENESS_MILLIS = 1000;
+
+    /**
+     * Main entry point for the benchmark.
+     */
+    public static void main(String[] args) throws Exception {
+        long runMillis = args.length > 0 ? Long.parseLong(args[0]) : 5000;
+        int readers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        long pauseInterval = args.length > 2 ? Long.parseLong(args[2]) : 500;
+        long pauseDuration = args.length > 3 ? Long.parseLong(args[3]) : 50;
+        int basePort = args.length > 4 ? Integer.parseInt(args[4]) : 13211;
+        String[] pauses = {"--pause-interval=" + pauseInterval, "--pause-duration=" + pauseDuration};
+
+        List<Process> processes = new ArrayList<>();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> processes.forEach(Process::destroyForcibly)));
+        processes.add(ServerProcesses.start(basePort + 1, "20", "16", "1", pauses));
+        processes.add(ServerProcesses.start(basePort + 2, "20", "16", "1", pauses));
+        processes.add(ServerProcesses.start(basePort, "20", "16", "1", pauses[0], pauses[1],
+                "--followers=localhost:" + (basePort + 1) + ";localhost:" + (basePort + 2)));
+        for (int port = basePort; port < basePort + 3; port++) {
+            ServerProcesses.awaitPort(port);
+        }
+
+        ReplicaSetClient loader = new ReplicaSetClient("localhost", basePort, 0, false);
+        Map<String, byte[]> batch = new HashMap<>();
+        for (int i = 0; i < KEYS; i++) {
+            batch.put(key(i), ("value-" + i).getBytes(StandardCharsets.US_ASCII));
+            if (batch.size() == 500) {
+                loader.multiPut(batch);
+                batch.clear();
+            }
+        }
+        loader.close();
+        // Lets the followers catch up so that they are within the staleness bound
+        Thread.sleep(2 * ReplicaSetClient.STATUS_INTERVAL);
+
+        Logger.log(String.format("%d readers, pauses of %d ms every %d ms on every node, %d ms per run",
+                readers, pauseDuration, pauseInterval, runMillis), Logger.LogLevel.INFO);
+        long[] primaryOnly = run("primary only", basePort, 0, false, readers, runMillis);
+        long[] replicas = run("replica reads", basePort, MAX_STALENESS_MILLIS, false, readers, runMillis);
+        long[] hedged = run("replica reads + hedging", basePort, MAX_STALENESS_MILLIS, true, readers, runMillis);
+
+        processes.forEach(Process::destroyForcibly);
+        boolean better = percentile(hedged, 0.999) < percentile(primaryOnly, 0.999)
+                && percentile(hedged, 0.999) < percentile(replicas, 0.999);
+        Logger.log("Hedging lowers the p99.9: " + better, Logger.LogLevel.INFO);
+        System.exit(better ? 0 : 1);
+    }
+
+    /**
+     * Runs the read load for a while and returns the sorted latencies, in microseconds.
+     */
+    private static long[] run(String name, int port, long maxStalenessMillis, boolean hedging, int readers, long runMillis)
+            throws IOException, InterruptedException {
+        ReplicaSetClient client = new ReplicaSetClient("localhost", port, maxStalenessMillis, hedging);
+        List<long[]> samples = new ArrayList<>();
+        int[] counts = new int[readers];
+        boolean[] failed = new boolean[1];
+        long deadline = System.nanoTime() + runMillis * 1_000_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int r = 0; r < readers; r++) {
+            final int reader = r;
+            long[] latencies = new long[1 << 20];
+            samples.add(latencies);
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    int count = 0;
+                    while (System.nanoTime() < deadline && count < latencies.length) {
+                        long start = System.nanoTime();
+                        if (random.nextInt(10) == 0) {
+                            Set<String> keys = new HashSet<>();
+                            while (keys.size() < 8) {
+                                keys.add(key(random.nextInt(KEYS)));
+                            }
+                            client.multiGet(keys);
+                        } else {
+                            client.get(key(random.nextInt(KEYS)));
+                        }
+                        latencies[count++] = (System.nanoTime() - start) / 1000;
+                    }
+                    counts[reader] = count;
+                } catch (IOException e) {
+                    Logger.log("Reader failed: " + e.getMessage(), Logger.LogLevel.ERROR);
+                    failed[0] = true;
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int total = Arrays.stream(counts).sum();
+        long[] all = new long[total];
+        int offset = 0;
+        for (int r = 0; r < readers; r++) {
+            System.arraycopy(samples.get(r), 0, all, offset, counts[r]);
+            offset += counts[r];
+        }
+        Arrays.sort(all);
+        Logger.log(String.format("%-24s %7d reads (%4.1f%% on followers, %4.1f%% hedged), p50 %6d us, p99 %6d us,"
+                        + " p99.9 %6d us, max %6d us, hedge delay %d us%s",
+                name, total, 100.0 * client.getReplicaReadCount() / Math.max(1, client.getReadCount()),
+                100.0 * client.getHedgeCount() / Math.max(1, client.getReadCount()),
+                percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999), percentile(all, 1),
+                client.getHedgeDelayMicros(), failed[0] ? " (some readers failed)" : ""), Logger.LogLevel.INFO);
+        client.close();
+        return all;
+    }
+
+    private static long percentile(long[] sorted, double fraction) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * fraction))];
+    }
+
+    private static String key(int i) {
+        return "key-" + i;
+    }
+}
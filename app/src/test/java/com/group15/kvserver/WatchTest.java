@@ -0,0 +1,241 @@
+package com.group15.kvserver;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.group15.kvserver.utils.Logger;
+
+/**
+ * Checks the change events of watch subscriptions against the writes of another client.
+ *
+ * - delivery: a key watch reports the puts and multiPuts of its key only, with their
+ *   values and increasing versions, a prefix watch the writes of every key it covers,
+ *   and no event follows an unwatch; each write waits for its events, so that none
+ *   coalesces with the next;
+ * - coalescing: a listener held back while one key is written many times with large
+ *   values receives fewer events than writes, the last one carrying the last value;
+ * - overflow: a listener with a small buffer held back while many distinct keys are
+ *   written is told that events were dropped.
+ *
+ * Usage: WatchTest [port]
+ */
+public class WatchTest {
+    /* Time given to the events of a write to arrive */
+    private static final long EVENT_TIMEOUT_MILLIS = 5000;
+
+    /* Number of failed checks */
+    private static int failures = 0;
+
+    /**
+     * An event received by a listener.
+     */
+    private static class Event {
+        final String key;
+        final String value;
+        final long version;
+
+        Event(String key, byte[] value, long version) {
+            this.key = key;
+            this.value = new String(value, StandardCharsets.US_ASCII);
+            this.version = version;
+        }
+    }
+
+    /**
+     * Main entry point for the test.
+     */
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 13261;
+
+        Process server = ServerProcesses.start(port, "50", "16", "1");
+        Runtime.getRuntime().addShutdownHook(new Thread(server::destroyForcibly));
+        ServerProcesses.awaitPort(port);
+
+        ClientLibrary writer = new ClientLibrary("localhost", port);
+        delivery(writer, port);
+        coalescing(writer, port);
+        overflow(writer, port);
+        writer.close();
+
+        server.destroyForcibly();
+        Logger.log(failures == 0 ? "Watch: all checks passed" : "Watch: " + failures + " checks failed",
+                failures == 0 ? Logger.LogLevel.INFO : Logger.LogLevel.ERROR);
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    private static synchronized void check(boolean condition, String message) {
+        if (!condition) {
+            failures++;
+            if (failures <= 20) {
+                Logger.log("Failed: " + message, Logger.LogLevel.ERROR);
+            }
+        }
+    }
+
+    private static byte[] ascii(String value) {
+        return value.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Waits until the list holds at least the given number of events.
+     */
+    private static boolean await(List<Event> events, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + EVENT_TIMEOUT_MILLIS;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (events) {
+                if (events.size() >= count) {
+                    return true;
+                }
+            }
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    private static void delivery(ClientLibrary writer, int port) throws Exception {
+        ClientLibrary watcher = new ClientLibrary("localhost", port);
+        List<Event> keyEvents = Collections.synchronizedList(new ArrayList<>());
+        List<Event> prefixEvents = Collections.synchronizedList(new ArrayList<>());
+        int keyWatch = watcher.watch("d-key", (key, value, version) -> keyEvents.add(new Event(key, value, version)));
+        int prefixWatch = watcher.watchPrefix("d-", (key, value, version) -> prefixEvents.add(new Event(key, value, version)));
+
+        // Each write waits for its events, which would otherwise coalesce with the next ones
+        writer.put("d-key", ascii("1"));
+        check(await(keyEvents, 1) && await(prefixEvents, 1), "delivery: the first put was not reported");
+        writer.put("other", ascii("ignored"));
+        writer.put("d-key", ascii("2"));
+        check(await(keyEvents, 2) && await(prefixEvents, 2), "delivery: the second put was not reported");
+        writer.put("d-other", ascii("3"));
+        check(await(prefixEvents, 3), "delivery: the put of another key was not reported by the prefix watch");
+        Map<String, byte[]> batch = new HashMap<>();
+        batch.put("d-key", ascii("4"));
+        batch.put("d-batch", ascii("5"));
+        batch.put("e-batch", ascii("ignored"));
+        writer.multiPut(batch);
+        check(await(keyEvents, 3), "delivery: " + keyEvents.size() + " events of the key watch instead of 3");
+        check(await(prefixEvents, 5), "delivery: " + prefixEvents.size() + " events of the prefix watch instead of 5");
+        // Let any event that should not have been sent arrive
+        Thread.sleep(200);
+        List<String> keyValues = new ArrayList<>();
+        long lastVersion = 0;
+        boolean increasing = true;
+        synchronized (keyEvents) {
+            for (Event event : keyEvents) {
+                check(event.key.equals("d-key"), "delivery: the key watch reported " + event.key);
+                keyValues.add(event.value);
+                increasing &= event.version > lastVersion;
+                lastVersion = event.version;
+            }
+        }
+        check(keyValues.equals(List.of("1", "2", "4")), "delivery: the key watch reported the values " + keyValues);
+        check(increasing, "delivery: the versions of the key watch do not increase");
+        Map<String, String> lastByKey = new HashMap<>();
+        synchronized (prefixEvents) {
+            check(prefixEvents.size() == 5, "delivery: " + prefixEvents.size() + " events of the prefix watch instead of 5");
+            for (Event event : prefixEvents) {
+                check(event.key.startsWith("d-"), "delivery: the prefix watch reported " + event.key);
+                lastByKey.put(event.key, event.value);
+            }
+        }
+        check(lastByKey.equals(Map.of("d-key", "4", "d-other", "3", "d-batch", "5")),
+                "delivery: the prefix watch last reported " + lastByKey);
+
+        check(watcher.unwatch(keyWatch), "delivery: unwatch of an open subscription returned false");
+        check(!watcher.unwatch(keyWatch), "delivery: unwatch of a closed subscription returned true");
+        int before = keyEvents.size();
+        writer.put("d-key", ascii("6"));
+        check(await(prefixEvents, 6), "delivery: the prefix watch missed a write after the other unwatch");
+        Thread.sleep(200);
+        check(keyEvents.size() == before, "delivery: the key watch reported a write after its unwatch");
+        watcher.unwatch(prefixWatch);
+        watcher.close();
+    }
+
+    private static void coalescing(ClientLibrary writer, int port) throws Exception {
+        int writes = 200;
+        byte[] padding = new byte[64 * 1024];
+        ClientLibrary watcher = new ClientLibrary("localhost", port);
+        CountDownLatch release = new CountDownLatch(1);
+        List<Event> events = Collections.synchronizedList(new ArrayList<>());
+        // Events are handled on the reader thread, so holding the first one back stalls the
+        // connection and the following writes pile up on the server
+        watcher.watch("c-key", (key, value, version) -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            events.add(new Event(key, Arrays.copyOf(value, 8), version));
+        });
+
+        for (int i = 0; i < writes; i++) {
+            byte[] value = padding.clone();
+            System.arraycopy(ascii(String.format("%08d", i)), 0, value, 0, 8);
+            writer.put("c-key", value);
+        }
+        release.countDown();
+
+        String last = String.format("%08d", writes - 1);
+        long deadline = System.currentTimeMillis() + EVENT_TIMEOUT_MILLIS;
+        boolean reachedLast = false;
+        while (!reachedLast && System.currentTimeMillis() < deadline) {
+            synchronized (events) {
+                reachedLast = !events.isEmpty() && events.get(events.size() - 1).value.equals(last);
+            }
+            Thread.sleep(10);
+        }
+        check(reachedLast, "coalescing: the last event does not carry the last value");
+        check(events.size() < writes, "coalescing: " + events.size() + " events for " + writes + " writes");
+        long lastVersion = 0;
+        boolean increasing = true;
+        synchronized (events) {
+            for (Event event : events) {
+                increasing &= event.version > lastVersion;
+                lastVersion = event.version;
+            }
+        }
+        check(increasing, "coalescing: the versions of the events do not increase");
+        Logger.log("Coalescing: " + events.size() + " events for " + writes + " writes", Logger.LogLevel.INFO);
+        watcher.close();
+    }
+
+    private static void overflow(ClientLibrary writer, int port) throws Exception {
+        byte[] value = new byte[64 * 1024];
+        ClientLibrary watcher = new ClientLibrary("localhost", port);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch overflowed = new CountDownLatch(1);
+        AtomicInteger events = new AtomicInteger();
+        watcher.watch("o-", true, 2, new ClientLibrary.WatchListener() {
+            @Override
+            public void onChange(String key, byte[] value, long version) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                events.incrementAndGet();
+            }
+
+            @Override
+            public void onOverflow() {
+                overflowed.countDown();
+            }
+        });
+
+        for (int i = 0; i < 200; i++) {
+            writer.put("o-" + i, value);
+        }
+        release.countDown();
+        check(overflowed.await(EVENT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS), "overflow: no overflow reported");
+        check(events.get() < 200, "overflow: " + events.get() + " events for 200 distinct keys despite the overflow");
+        watcher.close();
+    }
+}